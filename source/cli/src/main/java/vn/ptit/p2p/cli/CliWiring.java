@@ -5,7 +5,12 @@ import org.slf4j.LoggerFactory;
 import vn.ptit.p2p.common.Config;
 import vn.ptit.p2p.common.Utils;
 import vn.ptit.p2p.control.*;
+import vn.ptit.p2p.data.CongestionAlgorithm;
+import vn.ptit.p2p.data.DataConfig;
 import vn.ptit.p2p.data.DataService;
+import vn.ptit.p2p.data.CompressionMode;
+import vn.ptit.p2p.data.FecMode;
+import vn.ptit.p2p.data.TransportType;
 import vn.ptit.p2p.discovery.DiscoveryService;
 import vn.ptit.p2p.discovery.PeerRegistry;
 
@@ -75,7 +80,46 @@ public class CliWiring {
         }
         
         // Data service
-        dataService = new DataService();
+        DataConfig dataConfig = DataConfig.builder()
+            .windowSize(config.getInt("data.window_size", 64))
+            .transferTimeout(config.getInt("data.transfer_timeout", 30000))
+            .udpAttemptTimeout(config.getInt("data.udp_attempt_timeout", 10000))
+            .maxRetransmits(config.getInt("data.max_retransmits", 10))
+            .congestionAlgorithm(CongestionAlgorithm.fromString(
+                config.getString("data.congestion_control", "cubic")))
+            .pieceSize(config.getInt("data.piece_size", 262144))
+            .uploadRateLimit(config.getInt("data.upload_rate_limit", 0))
+            .downloadRateLimit(config.getInt("data.download_rate_limit", 0))
+            .maxUploads(config.getInt("data.max_uploads", 5))
+            .maxDownloads(config.getInt("data.max_downloads", 3))
+            .pacingDelayMicros(config.getInt("data.pacing_delay_us", 100))
+            .transport(TransportType.fromString(config.getString("data.transport", "netty")))
+            .transportThreads(config.getInt("data.transport_threads", 0))
+            .receiveWorkers(config.getInt("data.receive_workers", 0))
+            .receiveQueueSize(config.getInt("data.receive_queue_size", 8192))
+            .sendThreads(config.getInt("data.send_threads", 0))
+            .receiveThreads(config.getInt("data.receive_threads", 0))
+            .verifyThreads(config.getInt("data.verify_threads", 0))
+            .taskQueueSize(config.getInt("data.task_queue_size", 4096))
+            .tcpConnectionsPerPeer(config.getInt("data.tcp_connections_per_peer", 2))
+            .tcpServerThreads(config.getInt("data.tcp_server_threads", 0))
+            .maxPiecesInFlight(config.getInt("data.max_pieces_in_flight", 16))
+            .fecMode(FecMode.fromString(config.getString("data.fec", "none")))
+            .fecGroupSize(config.getInt("data.fec_group_size", 16))
+            .tcpLossThreshold(config.getInt("data.tcp_loss_percent", 30) / 100.0)
+            .udpLossThreshold(config.getInt("data.udp_loss_percent", 10) / 100.0)
+            .udpProbeInterval(config.getInt("data.udp_probe_interval", 10000))
+            .maxMtu(config.getInt("data.max_mtu", 9000))
+            .pmtuDiscovery(config.getBoolean("data.pmtu_discovery", true))
+            .multicastGroup(config.getString("data.multicast_group", "239.255.0.2"))
+            .multicastPort(config.getInt("data.multicast_port", 7072))
+            .multicastTtl(config.getInt("data.multicast_ttl", 1))
+            .multicastRate(config.getLong("data.multicast_rate", 12_500_000L))
+            .multicastNackBackoff(config.getInt("data.multicast_nack_backoff", 50))
+            .multicastInterface(config.getString("data.multicast_interface", null))
+            .compression(CompressionMode.fromString(config.getString("data.compression", "none")))
+            .build();
+        dataService = new DataService(dataConfig);
         dataService.startListening(config.getInt("data.udp_port", 7070));
         
         // Control components
@@ -85,6 +129,7 @@ public class CliWiring {
         
         // Controller
         controller = new Controller(peerId, manifestStore, pieceScheduler, resumeManager);
+        controller.setDataApi(dataService);
         ControlConfig controlConfig = ControlConfig.builder()
             .port(config.getInt("control.port", 8081))
             .maxMessageSize(config.getInt("control.max_message_size", 65536))
@@ -62,6 +62,7 @@ public class GetCommand implements Callable<Integer> {
             
             // Get file metadata
             FileMetadata metadata = manifestStore.getManifest(fileHash);
+            wiring.getDataService().registerFile(metadata);
             System.out.println("File: " + metadata.getFileName());
             System.out.println("Size: " + Utils.formatBytes(metadata.getFileSize()));
             System.out.println("Pieces: " + metadata.getPieceCount());
@@ -90,6 +90,9 @@ public class ShareCommand implements Callable<Integer> {
                 manifestStore.markPieceAvailable(fileHash, i);
             }
             
+            // Serve requested pieces straight from the file
+            wiring.getDataService().shareFile(metadata, file.toPath());
+            
             System.out.println("\nFile is now being shared!");
             System.out.println("Other peers can download using hash: " + fileHash);
             
@@ -61,6 +61,22 @@ public class StatCommand implements Callable<Integer> {
             System.out.println("Total Downloads: " + stats.getTotalReceives());
             System.out.println("Failed Uploads: " + stats.getFailedSends());
             System.out.println("Failed Downloads: " + stats.getFailedReceives());
+            System.out.println("Receive Queue: " + stats.getReceiveQueueDepth()
+                             + " queued, " + stats.getReceiveQueueDrops() + " dropped");
+            System.out.println("Rejected Upload Requests: " + stats.getRejectedServes());
+            System.out.println("Queued Data Tasks: " + stats.getQueuedTasks());
+            printStage("Upload UDP", stats.getUdpSends());
+            printStage("Upload UDP retry", stats.getUdpRetrySends());
+            printStage("Upload TCP", stats.getTcpSends());
+            printStage("Download UDP", stats.getUdpReceives());
+            printStage("Download UDP retry", stats.getUdpRetryReceives());
+            printStage("Download TCP", stats.getTcpReceives());
+            DataApi.CompressionStats compression = stats.getCompression();
+            System.out.printf("Compression: %d pieces at %.0f%% of %s, %d sent raw, %d ms; %d decompressed in %d ms%n",
+                              compression.getPiecesCompressed(), compression.getRatio() * 100,
+                              Utils.formatBytes(compression.getRawBytes()), compression.getPiecesSentRaw(),
+                              compression.getCompressNanos() / 1_000_000, compression.getPiecesDecompressed(),
+                              compression.getDecompressNanos() / 1_000_000);
             
             // Resumable downloads
             int resumableCount = wiring.getResumeManager().getResumableDownloads().size();
@@ -76,5 +92,9 @@ public class StatCommand implements Callable<Integer> {
             return 1;
         }
     }
+    
+    private void printStage(String name, DataApi.StageStats stage) {
+        System.out.println(name + ": " + stage.getAttempts() + " attempts, " + stage.getSuccesses() + " ok, "
+                         + stage.getFailures() + " failed, " + stage.getTimeouts() + " timed out");
+    }
 }
-
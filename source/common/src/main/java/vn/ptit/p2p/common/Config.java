@@ -4,6 +4,7 @@ import org.yaml.snakeyaml.Yaml;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Collections;
 import java.util.Map;
 
 /**
@@ -12,6 +13,13 @@ import java.util.Map;
 public class Config {
     private Map<String, Object> config;
     
+    /**
+     * Empty configuration, for subclasses that supply their own values
+     */
+    protected Config() {
+        config = Collections.emptyMap();
+    }
+    
     public Config(String configPath) throws IOException {
         try (InputStream input = new FileInputStream(configPath)) {
             Yaml yaml = new Yaml();
@@ -54,7 +54,7 @@ public class Hashing {
     /**
      * Convert byte array to hexadecimal string
      */
-    private static String bytesToHex(byte[] bytes) {
+    public static String bytesToHex(byte[] bytes) {
         StringBuilder result = new StringBuilder();
         for (byte b : bytes) {
             result.append(String.format("%02x", b));
@@ -62,6 +62,27 @@ public class Hashing {
         return result.toString();
     }
     
+    /**
+     * Convert hexadecimal string to byte array
+     * 
+     * @throws IllegalArgumentException if the string is not valid hex
+     */
+    public static byte[] hexToBytes(String hex) {
+        if (hex.length() % 2 != 0) {
+            throw new IllegalArgumentException("Odd-length hex string");
+        }
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int high = Character.digit(hex.charAt(2 * i), 16);
+            int low = Character.digit(hex.charAt(2 * i + 1), 16);
+            if (high < 0 || low < 0) {
+                throw new IllegalArgumentException("Invalid hex string: " + hex);
+            }
+            bytes[i] = (byte) ((high << 4) | low);
+        }
+        return bytes;
+    }
+    
     /**
      * Verify if data matches the expected hash
      */
@@ -1,7 +1,9 @@
 package vn.ptit.p2p.common;
 
+import java.nio.ByteBuffer;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Common data models used across the P2P application
@@ -103,6 +105,153 @@ public class Models {
         }
     }
     
+    /**
+     * A piece whose data is a ByteBuffer (heap, direct or a slice of a mapped
+     * file) rather than a byte[], so it can travel from file or cache to the
+     * socket, and from the socket to the caller, without being copied.
+     * It is reference counted: it starts with one reference, whoever is handed
+     * one releases it when done, and the release hook (if any) runs when the
+     * last reference is gone. The data must not be used after that.
+     */
+    public static class PieceBuffer {
+        private final String fileHash;
+        private final int index;
+        private final ByteBuffer data;
+        private final String hash;
+        private final Runnable releaseHook;
+        private final AtomicInteger refCnt = new AtomicInteger(1);
+        
+        /**
+         * A piece whose memory the garbage collector reclaims; releasing it only ends its use
+         */
+        public PieceBuffer(String fileHash, int index, ByteBuffer data, String hash) {
+            this(fileHash, index, data, hash, null);
+        }
+        
+        /**
+         * @param data The piece data, position to limit; not modified
+         * @param releaseHook Returns the memory, e.g. to a pool, once the last reference is released
+         */
+        public PieceBuffer(String fileHash, int index, ByteBuffer data, String hash, Runnable releaseHook) {
+            this.fileHash = fileHash;
+            this.index = index;
+            this.data = data.slice();
+            this.hash = hash;
+            this.releaseHook = releaseHook;
+        }
+        
+        /**
+         * View a plain piece as a buffer, without copying its array
+         */
+        public static PieceBuffer wrap(Piece piece) {
+            return new PieceBuffer(piece.getFileHash(), piece.getIndex(), ByteBuffer.wrap(piece.getData()), piece.getHash());
+        }
+        
+        public String getFileHash() { return fileHash; }
+        public int getIndex() { return index; }
+        public String getHash() { return hash; }
+        public int getLength() { return data.remaining(); }
+        public int refCnt() { return refCnt.get(); }
+        
+        /**
+         * The data as a new view with its own position and limit
+         *
+         * @throws IllegalStateException if the piece has already been released
+         */
+        public ByteBuffer getData() {
+            if (refCnt.get() <= 0) {
+                throw new IllegalStateException("Piece " + index + " has been released");
+            }
+            return data.duplicate();
+        }
+        
+        /**
+         * Take another reference, e.g. for the duration of a transfer
+         */
+        public PieceBuffer retain() {
+            int count;
+            do {
+                count = refCnt.get();
+                if (count <= 0) {
+                    throw new IllegalStateException("Piece " + index + " has been released");
+                }
+            } while (!refCnt.compareAndSet(count, count + 1));
+            return this;
+        }
+        
+        /**
+         * Give up one reference
+         *
+         * @return true if it was the last one and the memory has been handed back
+         */
+        public boolean release() {
+            int count = refCnt.decrementAndGet();
+            if (count < 0) {
+                refCnt.incrementAndGet();
+                throw new IllegalStateException("Piece " + index + " released more often than retained");
+            }
+            if (count == 0 && releaseHook != null) {
+                releaseHook.run();
+            }
+            return count == 0;
+        }
+        
+        /**
+         * A second piece over the same bytes with a reference count of its own, for
+         * handing one received piece to several callers. Only pieces without a
+         * release hook can be duplicated, since their memory outlives every reference.
+         */
+        public PieceBuffer duplicate() {
+            if (releaseHook != null) {
+                throw new IllegalStateException("Piece " + index + " has a release hook and cannot be duplicated");
+            }
+            return new PieceBuffer(fileHash, index, data, hash);
+        }
+        
+        /**
+         * Copy the data out into a plain piece. A heap buffer without a release
+         * hook that spans its whole array is handed over instead of copied.
+         */
+        public Piece toPiece() {
+            ByteBuffer view = getData();
+            byte[] bytes;
+            if (releaseHook == null && view.hasArray() && view.arrayOffset() == 0
+                && view.remaining() == view.array().length) {
+                bytes = view.array();
+            } else {
+                bytes = new byte[view.remaining()];
+                view.get(bytes);
+            }
+            return new Piece(fileHash, index, bytes, hash);
+        }
+    }
+    
+    /**
+     * Part of a piece, addressed by offset and length, so one piece can be
+     * fetched from several peers in parallel. Blocks carry no hash of their
+     * own: the assembled piece is verified.
+     */
+    public static class Block {
+        public static final int DEFAULT_SIZE = 16 * 1024;
+        
+        private String fileHash;
+        private int pieceIndex;
+        private int offset;
+        private byte[] data;
+        
+        public Block(String fileHash, int pieceIndex, int offset, byte[] data) {
+            this.fileHash = fileHash;
+            this.pieceIndex = pieceIndex;
+            this.offset = offset;
+            this.data = data;
+        }
+        
+        public String getFileHash() { return fileHash; }
+        public int getPieceIndex() { return pieceIndex; }
+        public int getOffset() { return offset; }
+        public byte[] getData() { return data; }
+    }
+    
     /**
      * Transfer statistics
      */
@@ -3,20 +3,23 @@ package vn.ptit.p2p.control;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import vn.ptit.p2p.common.Json;
+import vn.ptit.p2p.common.Models.Block;
 import vn.ptit.p2p.common.Models.FileMetadata;
 import vn.ptit.p2p.common.Models.Peer;
+import vn.ptit.p2p.common.Models.Piece;
 import vn.ptit.p2p.dataapi.DataApi;
 
 import java.net.Socket;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Main controller that coordinates all control protocol operations
  * Điều phối giữa Control Plane (B) và Data Plane (C)
  */
-public class Controller {
+public class Controller implements DataApi.LinkListener {
     private static final Logger logger = LoggerFactory.getLogger(Controller.class);
     
     private final String peerId;
@@ -42,10 +45,12 @@ public class Controller {
     }
     
     /**
-     * Set Data API để giao tiếp với Data Plane (Người C)
+     * Set Data API để giao tiếp với Data Plane (Người C),
+     * đồng thời đăng ký nhận cảnh báo loss / lỗi CRC từ Data Plane
      */
     public void setDataApi(DataApi dataApi) {
         this.dataApi = dataApi;
+        dataApi.registerLinkListener(this);
         logger.info("Data API registered with Controller");
     }
     
@@ -193,6 +198,38 @@ public class Controller {
         // dataApi.sendPiece(peer, piece);
     }
     
+    /**
+     * Tải 1 piece theo từng block (16 KB) song song từ nhiều peer, ghép lại và verify.
+     * Peer chậm không giữ chân piece: block còn treo được xin lại từ peer khác.
+     * @param fileHash Hash của file
+     * @param pieceId Index của piece
+     * @param peers Các peer đang có piece này
+     * @return Future hoàn thành với piece đã verify
+     */
+    public CompletableFuture<Piece> downloadPiece(String fileHash, int pieceId, List<Peer> peers) {
+        if (dataApi == null) {
+            return CompletableFuture.failedFuture(new IllegalStateException("Data API not initialized"));
+        }
+        FileMetadata metadata = manifestStore.getManifest(fileHash);
+        if (metadata == null || pieceId < 0 || pieceId >= metadata.getPieceHashes().size()) {
+            return CompletableFuture.failedFuture(new IllegalArgumentException(
+                "Unknown piece " + pieceId + " of " + fileHash));
+        }
+        
+        logger.debug("Downloading piece {} of {} as blocks from {} peers", pieceId, fileHash, peers.size());
+        return new PieceDownload(dataApi, metadata, pieceId, Block.DEFAULT_SIZE).start(peers)
+            .whenComplete((piece, error) -> {
+                if (error == null) {
+                    onPieceDone(fileHash, pieceId);
+                } else if (error instanceof PieceDownload.CorruptPieceException) {
+                    onPieceCrcError(fileHash, pieceId);
+                } else {
+                    logger.warn("Download of piece {} of {} failed: {}", pieceId, fileHash, error.getMessage());
+                    pieceScheduler.markPieceFailed(fileHash, pieceId);
+                }
+            });
+    }
+    
     /**
      * Yêu cầu retransmit các sequence cụ thể
      * @param fileHash Hash của file
@@ -209,7 +246,7 @@ public class Controller {
                     seqList.size(), pieceId, fileHash);
         
         // Gọi API của Data Plane để retransmit
-        // dataApi.retransmitSeq(fileHash, pieceId, seqList);
+        dataApi.retransmitSeq(fileHash, pieceId, seqList);
     }
     
     /**
@@ -286,23 +323,23 @@ public class Controller {
     }
     
     /**
-     * Callback khi Data Plane phát hiện loss cao
+     * Callback khi Data Plane phát hiện loss cao (gọi một lần mỗi khi loss vượt một ngưỡng)
      * @param fileHash Hash của file
      * @param pieceId Index của piece
      * @param lossRate Tỷ lệ loss (0.0 - 1.0)
      */
+    @Override
     public void onLossAlert(String fileHash, int pieceId, double lossRate) {
         logger.warn("High loss detected for piece {} of {}: {}%", 
                    pieceId, fileHash, lossRate * 100);
         
-        // Nếu loss quá cao (>30%), chuyển sang TCP
+        // Nếu loss quá cao (>30%), Data Plane đã tự chuyển peer sang TCP
+        // và định kỳ thử lại UDP để quay về khi loss giảm
         if (lossRate > 0.3) {
-            logger.warn("Loss rate too high, switching to TCP fallback");
-            // fallbackTcp sẽ được gọi tự động bởi Data Plane
+            logger.warn("Loss rate too high, data plane switched the peer to TCP");
         } else if (lossRate > 0.1) {
-            // Loss vừa phải, yêu cầu retransmit
-            logger.info("Requesting retransmission due to packet loss");
-            // Data Plane sẽ tự động retransmit theo cơ chế của nó
+            // Loss vừa phải: Data Plane tự retransmit (và thêm FEC nếu bật)
+            logger.info("Moderate packet loss, data plane retransmits lost segments");
         }
     }
     
@@ -311,6 +348,7 @@ public class Controller {
      * @param fileHash Hash của file
      * @param pieceId Index của piece bị lỗi
      */
+    @Override
     public void onPieceCrcError(String fileHash, int pieceId) {
         logger.error("CRC error detected for piece {} of {}", pieceId, fileHash);
         
@@ -0,0 +1,210 @@
+package vn.ptit.p2p.control;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import vn.ptit.p2p.common.Models.Block;
+import vn.ptit.p2p.common.Models.FileMetadata;
+import vn.ptit.p2p.common.Models.Peer;
+import vn.ptit.p2p.common.Models.Piece;
+import vn.ptit.p2p.dataapi.DataApi;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Downloads one piece as blocks from several peers in parallel. Each peer
+ * keeps a few block requests in flight and gets the next missing block as
+ * soon as one completes, so faster peers fetch more of the piece. Once every
+ * block has been requested, peers that run idle re-request blocks still
+ * outstanding elsewhere (first copy wins), so one slow peer cannot hold up
+ * the piece. The assembled piece is verified against the manifest's hash
+ * on the data plane's verify pool.
+ */
+public class PieceDownload {
+    private static final Logger logger = LoggerFactory.getLogger(PieceDownload.class);
+    private static final int BLOCKS_IN_FLIGHT_PER_PEER = 4;
+    private static final int MAX_FAILURES_PER_PEER = 3;
+    
+    private final DataApi dataApi;
+    private final String fileHash;
+    private final int pieceIndex;
+    private final String pieceHash;
+    private final int blockSize;
+    private final byte[] data;
+    private final boolean[] received;
+    private final List<Set<Peer>> requestedFrom;
+    private final Deque<Integer> missing = new ArrayDeque<>();
+    private final Map<Peer, Integer> inFlight = new LinkedHashMap<>();
+    private final Map<Peer, Integer> failures = new LinkedHashMap<>();
+    private final CompletableFuture<Piece> result = new CompletableFuture<>();
+    private int receivedCount;
+    
+    public PieceDownload(DataApi dataApi, FileMetadata metadata, int pieceIndex, int blockSize) {
+        this.dataApi = dataApi;
+        this.fileHash = metadata.getFileHash();
+        this.pieceIndex = pieceIndex;
+        this.pieceHash = metadata.getPieceHashes().get(pieceIndex);
+        this.blockSize = blockSize;
+        
+        long pieceOffset = (long) pieceIndex * metadata.getPieceSize();
+        int length = (int) Math.min(metadata.getPieceSize(), metadata.getFileSize() - pieceOffset);
+        this.data = new byte[length];
+        int blocks = Math.max(1, (length + blockSize - 1) / blockSize);
+        this.received = new boolean[blocks];
+        this.requestedFrom = new ArrayList<>(blocks);
+        for (int i = 0; i < blocks; i++) {
+            requestedFrom.add(new HashSet<>());
+            missing.add(i);
+        }
+    }
+    
+    /**
+     * Start fetching from the given peers
+     *
+     * @return Completes with the verified piece, or fails once no peer can deliver a missing block
+     */
+    public CompletableFuture<Piece> start(List<Peer> peers) {
+        synchronized (this) {
+            if (peers.isEmpty()) {
+                result.completeExceptionally(new IOException("No peers for piece " + pieceIndex));
+                return result;
+            }
+            for (Peer peer : peers) {
+                inFlight.put(peer, 0);
+            }
+            for (Peer peer : peers) {
+                fill(peer);
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Give the peer new blocks until it has its share in flight. Called with the lock held.
+     */
+    private void fill(Peer peer) {
+        while (!result.isDone()) {
+            Integer count = inFlight.get(peer);
+            if (count == null || count >= BLOCKS_IN_FLIGHT_PER_PEER) {
+                return; // dropped after repeated failures, or busy enough
+            }
+            Integer block = missing.poll();
+            if (block == null) {
+                block = duplicateFor(peer);
+            }
+            if (block == null) {
+                return;
+            }
+            request(peer, block);
+        }
+    }
+    
+    /**
+     * Endgame: an outstanding block the peer has not been asked for, preferring the least requested one
+     */
+    private Integer duplicateFor(Peer peer) {
+        Integer best = null;
+        for (int i = 0; i < received.length; i++) {
+            Set<Peer> peers = requestedFrom.get(i);
+            if (received[i] || peers.isEmpty() || peers.contains(peer)) {
+                continue;
+            }
+            if (best == null || peers.size() < requestedFrom.get(best).size()) {
+                best = i;
+            }
+        }
+        return best;
+    }
+    
+    private void request(Peer peer, int block) {
+        int offset = block * blockSize;
+        int length = Math.min(blockSize, data.length - offset);
+        requestedFrom.get(block).add(peer);
+        inFlight.merge(peer, 1, Integer::sum);
+        
+        CompletableFuture<Block> future;
+        try {
+            future = dataApi.requestBlock(peer, fileHash, pieceIndex, offset, length);
+        } catch (RuntimeException e) {
+            future = CompletableFuture.failedFuture(e);
+        }
+        future.whenComplete((value, error) -> onBlock(peer, block, value, error));
+    }
+    
+    private synchronized void onBlock(Peer peer, int block, Block value, Throwable error) {
+        inFlight.computeIfPresent(peer, (p, count) -> count - 1);
+        requestedFrom.get(block).remove(peer);
+        if (result.isDone() || receivedCount == received.length) {
+            return; // finished, or being verified
+        }
+        
+        if (error != null) {
+            logger.debug("Block {} of piece {} from {} failed: {}", block, pieceIndex, peer.getId(), error.getMessage());
+            if (!received[block] && requestedFrom.get(block).isEmpty()) {
+                missing.addFirst(block);
+            }
+            if (failures.merge(peer, 1, Integer::sum) >= MAX_FAILURES_PER_PEER) {
+                inFlight.remove(peer);
+            }
+        } else if (!received[block]) {
+            System.arraycopy(value.getData(), 0, data, block * blockSize, value.getData().length);
+            received[block] = true;
+            receivedCount++;
+            if (receivedCount == received.length) {
+                complete();
+                return;
+            }
+        }
+        
+        // Keep every usable peer busy, not only the one that just answered
+        for (Peer next : new ArrayList<>(inFlight.keySet())) {
+            fill(next);
+        }
+        if (inFlight.values().stream().allMatch(count -> count == 0)) {
+            result.completeExceptionally(new IOException("No peer could deliver piece " + pieceIndex + " of " + fileHash));
+        }
+    }
+    
+    /**
+     * Every block is in, so the data no longer changes: hash it on the verify
+     * pool rather than on the thread that delivered the last block, or right
+     * here if the pool is full
+     */
+    private void complete() {
+        try {
+            dataApi.getVerifyExecutor().execute(this::verify);
+        } catch (RejectedExecutionException e) {
+            verify();
+        }
+    }
+    
+    private void verify() {
+        Piece piece = new Piece(fileHash, pieceIndex, data, pieceHash);
+        if (piece.verify()) {
+            result.complete(piece);
+        } else {
+            result.completeExceptionally(new CorruptPieceException("Piece " + pieceIndex + " of " + fileHash
+                                                                   + " failed verification after block assembly"));
+        }
+    }
+    
+    /**
+     * All blocks arrived but the assembled piece does not match its hash
+     */
+    public static class CorruptPieceException extends IOException {
+        private static final long serialVersionUID = 1L;
+        
+        public CorruptPieceException(String message) {
+            super(message);
+        }
+    }
+}
@@ -1,10 +1,18 @@
 package vn.ptit.p2p.dataapi;
 
+import vn.ptit.p2p.common.Models.Block;
+import vn.ptit.p2p.common.Models.FileMetadata;
 import vn.ptit.p2p.common.Models.Piece;
+import vn.ptit.p2p.common.Models.PieceBuffer;
 import vn.ptit.p2p.common.Models.Peer;
 
 import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
 
 /**
  * Interface for data transfer operations
@@ -20,6 +28,17 @@ public interface DataApi {
      */
     CompletableFuture<Void> sendPiece(Peer peer, Piece piece);
     
+    /**
+     * Send a piece straight from its buffer, without copying it into an array.
+     * The caller keeps its reference and may release it once the returned future
+     * completes; the transfer holds its own reference while it runs.
+     * 
+     * @param peer The peer to send the piece to
+     * @param piece The piece to send
+     * @return CompletableFuture that completes when the piece is sent
+     */
+    CompletableFuture<Void> sendPiece(Peer peer, PieceBuffer piece);
+    
     /**
      * Request a piece from a peer
      * 
@@ -30,6 +49,70 @@ public interface DataApi {
      */
     CompletableFuture<Piece> requestPiece(Peer peer, String fileHash, int pieceIndex);
     
+    /**
+     * Request a piece and receive it in the buffer it was read into, without
+     * copying it out. The caller owns the returned piece and must release it.
+     * 
+     * @param peer The peer to request from
+     * @param fileHash The hash of the file
+     * @param pieceIndex The index of the piece to request
+     * @return CompletableFuture that completes with the received and verified piece
+     */
+    CompletableFuture<PieceBuffer> requestPieceBuffer(Peer peer, String fileHash, int pieceIndex);
+    
+    /**
+     * Request many pieces of a file from a peer as one stream. Pieces are only
+     * requested from the network as the subscriber signals demand (and never
+     * more than a configured number ahead of it), so a slow consumer such as a
+     * disk writer bounds how much of the download is held in memory.
+     * Pieces are published in the order they arrive, not by index. The stream
+     * completes once every piece has been published, or fails with the first
+     * piece that could not be fetched over UDP or TCP. Only one subscriber is accepted.
+     * 
+     * @param peer The peer to request from
+     * @param fileHash The hash of the file
+     * @param pieceIndices The pieces to fetch
+     * @return Publisher of the verified pieces
+     */
+    Flow.Publisher<Piece> requestPieces(Peer peer, String fileHash, int[] pieceIndices);
+    
+    /**
+     * Request a piece and write it straight into its region of a file
+     * (pieceIndex * pieceSize) as it arrives, hashing it on the way, so the
+     * piece is never held in memory. The file's manifest must have been
+     * registered with {@link #registerFile}; it gives the piece's length and hash.
+     * 
+     * @param peer The peer to request from
+     * @param fileHash The hash of the file
+     * @param pieceIndex The index of the piece to request
+     * @param target The file being downloaded, open for reading and writing
+     * @return CompletableFuture that completes once the piece is on disk and verified
+     */
+    CompletableFuture<Void> requestPieceToFile(Peer peer, String fileHash, int pieceIndex, FileChannel target);
+    
+    /**
+     * Request part of a piece from a peer, so a piece can be assembled from
+     * several peers. A block cannot be verified on its own; the caller checks
+     * the assembled piece against its hash.
+     *
+     * @param peer The peer to request from
+     * @param fileHash The hash of the file
+     * @param pieceIndex The index of the piece
+     * @param offset Offset of the block within the piece
+     * @param length Length of the block, e.g. {@link Block#DEFAULT_SIZE}
+     * @return CompletableFuture that completes with the received block
+     */
+    CompletableFuture<Block> requestBlock(Peer peer, String fileHash, int pieceIndex, int offset, int length);
+    
+    /**
+     * Retransmit specific segments of a piece that is currently being sent
+     * 
+     * @param fileHash The hash of the file
+     * @param pieceIndex The index of the piece
+     * @param seqList The sequence numbers of the segments to retransmit
+     */
+    void retransmitSeq(String fileHash, int pieceIndex, List<Integer> seqList);
+    
     /**
      * Start listening for incoming data connections
      * 
@@ -50,6 +133,65 @@ public interface DataApi {
      */
     void registerPieceRequestHandler(PieceRequestHandler handler);
     
+    /**
+     * Register a listener for the quality of the links to peers. The data plane
+     * itself moves transfers with a lossy peer to TCP and back; the listener
+     * is told so it can react too, e.g. by preferring other peers.
+     * 
+     * @param listener The listener, replacing any registered before
+     */
+    void registerLinkListener(LinkListener listener);
+    
+    /**
+     * Register the manifest of a file so received pieces are verified against its piece hashes
+     * 
+     * @param metadata The file metadata
+     */
+    void registerFile(FileMetadata metadata);
+    
+    /**
+     * Seed a complete file from disk. Requested pieces are read from the file
+     * (and sent without copying through the heap where the transport allows),
+     * so no request handler is needed for it.
+     * 
+     * @param metadata The file metadata
+     * @param path The complete file
+     * @throws IOException If the file cannot be opened or does not match the metadata
+     */
+    void shareFile(FileMetadata metadata, Path path) throws IOException;
+    
+    /**
+     * Stop seeding a file shared with {@link #shareFile}
+     * 
+     * @param fileHash The hash of the file
+     */
+    void unshareFile(String fileHash);
+    
+    /**
+     * Send a file shared with {@link #shareFile} to every receiver on the LAN
+     * at once over IP multicast, repairing what receivers report lost. The
+     * group is joined on first use.
+     * 
+     * @param fileHash The hash of the file
+     * @return CompletableFuture that completes once the file has been sent and
+     *         no receiver has asked for a repair for a while
+     */
+    CompletableFuture<Void> multicastFile(String fileHash);
+    
+    /**
+     * Receive a file that a peer multicasts with {@link #multicastFile},
+     * writing each piece straight into its region of the target file and
+     * verifying it. The file's manifest must have been registered with
+     * {@link #registerFile}; reception should start before the sender does,
+     * as anything sent earlier has to be repaired.
+     * 
+     * @param fileHash The hash of the file
+     * @param target The file being downloaded, open for reading and writing
+     * @return CompletableFuture that completes once every piece is on disk and
+     *         verified, or fails if the sender goes quiet for the transfer timeout
+     */
+    CompletableFuture<Void> receiveMulticast(String fileHash, FileChannel target);
+    
     /**
      * Get transfer statistics
      * 
@@ -57,6 +199,15 @@ public interface DataApi {
      */
     DataTransferStats getStats();
     
+    /**
+     * Pool the data plane hashes pieces on, for callers that verify pieces
+     * they assembled themselves, so the hashing does not run on (and hold up)
+     * the transport thread that completed the last transfer
+     * 
+     * @return Executor for piece verification
+     */
+    Executor getVerifyExecutor();
+    
     /**
      * Handler interface for incoming piece requests
      */
@@ -70,6 +221,42 @@ public interface DataApi {
          * @return The piece, or null if not available
          */
         Piece handlePieceRequest(Peer peer, String fileHash, int pieceIndex);
+        
+        /**
+         * Like {@link #handlePieceRequest}, for handlers that keep pieces in buffers
+         * (e.g. a pool of direct buffers). The returned reference is handed over
+         * and released once the piece has been sent.
+         * 
+         * @return The piece, or null if not available
+         */
+        default PieceBuffer handlePieceBufferRequest(Peer peer, String fileHash, int pieceIndex) {
+            Piece piece = handlePieceRequest(peer, fileHash, pieceIndex);
+            return piece != null ? PieceBuffer.wrap(piece) : null;
+        }
+    }
+    
+    /**
+     * Listener for link quality events raised by the data plane
+     */
+    interface LinkListener {
+        /**
+         * The loss rate towards a peer has risen above a threshold; called once per
+         * threshold crossed, with the transfer whose outcome crossed it
+         * 
+         * @param fileHash The hash of the file of that transfer
+         * @param pieceId The index of the piece of that transfer
+         * @param lossRate The smoothed loss rate (0.0 - 1.0)
+         */
+        void onLossAlert(String fileHash, int pieceId, double lossRate);
+        
+        /**
+         * A requested piece could not be received intact: the last attempt
+         * delivered data that does not match the piece hash
+         * 
+         * @param fileHash The hash of the file
+         * @param pieceId The index of the piece
+         */
+        void onPieceCrcError(String fileHash, int pieceId);
     }
     
     /**
@@ -84,11 +271,27 @@ public interface DataApi {
         private final int totalReceives;
         private final int failedSends;
         private final int failedReceives;
+        private final int receiveQueueDepth;
+        private final long receiveQueueDrops;
+        private final long rejectedServes;
+        private final int queuedTasks;
+        private final StageStats udpSends;
+        private final StageStats udpRetrySends;
+        private final StageStats tcpSends;
+        private final StageStats udpReceives;
+        private final StageStats udpRetryReceives;
+        private final StageStats tcpReceives;
+        private final CompressionStats compression;
         
         public DataTransferStats(long bytesSent, long bytesReceived, 
                                int activeSends, int activeReceives,
                                int totalSends, int totalReceives,
-                               int failedSends, int failedReceives) {
+                               int failedSends, int failedReceives,
+                               int receiveQueueDepth, long receiveQueueDrops, long rejectedServes,
+                               int queuedTasks,
+                               StageStats udpSends, StageStats udpRetrySends, StageStats tcpSends,
+                               StageStats udpReceives, StageStats udpRetryReceives, StageStats tcpReceives,
+                               CompressionStats compression) {
             this.bytesSent = bytesSent;
             this.bytesReceived = bytesReceived;
             this.activeSends = activeSends;
@@ -97,6 +300,17 @@ public interface DataApi {
             this.totalReceives = totalReceives;
             this.failedSends = failedSends;
             this.failedReceives = failedReceives;
+            this.receiveQueueDepth = receiveQueueDepth;
+            this.receiveQueueDrops = receiveQueueDrops;
+            this.rejectedServes = rejectedServes;
+            this.queuedTasks = queuedTasks;
+            this.udpSends = udpSends;
+            this.udpRetrySends = udpRetrySends;
+            this.tcpSends = tcpSends;
+            this.udpReceives = udpReceives;
+            this.udpRetryReceives = udpRetryReceives;
+            this.tcpReceives = tcpReceives;
+            this.compression = compression;
         }
         
         public long getBytesSent() { return bytesSent; }
@@ -107,6 +321,78 @@ public interface DataApi {
         public int getTotalReceives() { return totalReceives; }
         public int getFailedSends() { return failedSends; }
         public int getFailedReceives() { return failedReceives; }
+        public int getReceiveQueueDepth() { return receiveQueueDepth; }
+        public long getReceiveQueueDrops() { return receiveQueueDrops; }
+        public long getRejectedServes() { return rejectedServes; }
+        public int getQueuedTasks() { return queuedTasks; }
+        public StageStats getUdpSends() { return udpSends; }
+        public StageStats getUdpRetrySends() { return udpRetrySends; }
+        public StageStats getTcpSends() { return tcpSends; }
+        public StageStats getUdpReceives() { return udpReceives; }
+        public StageStats getUdpRetryReceives() { return udpRetryReceives; }
+        public StageStats getTcpReceives() { return tcpReceives; }
+        public CompressionStats getCompression() { return compression; }
+    }
+    
+    /**
+     * Outcome counters of one transfer stage (UDP, UDP retry or TCP fallback)
+     */
+    class StageStats {
+        private final long attempts;
+        private final long successes;
+        private final long failures;
+        private final long timeouts;
+        
+        public StageStats(long attempts, long successes, long failures, long timeouts) {
+            this.attempts = attempts;
+            this.successes = successes;
+            this.failures = failures;
+            this.timeouts = timeouts;
+        }
+        
+        public long getAttempts() { return attempts; }
+        public long getSuccesses() { return successes; }
+        public long getFailures() { return failures; }
+        public long getTimeouts() { return timeouts; }
+    }
+    
+    /**
+     * Counters of piece compression: pieces sent compressed and the bytes that
+     * saved, pieces judged not worth it, and the time spent either way
+     */
+    class CompressionStats {
+        private final long piecesCompressed;
+        private final long piecesSentRaw;
+        private final long rawBytes;
+        private final long compressedBytes;
+        private final long compressNanos;
+        private final long piecesDecompressed;
+        private final long decompressNanos;
+        
+        public CompressionStats(long piecesCompressed, long piecesSentRaw, long rawBytes, long compressedBytes,
+                                long compressNanos, long piecesDecompressed, long decompressNanos) {
+            this.piecesCompressed = piecesCompressed;
+            this.piecesSentRaw = piecesSentRaw;
+            this.rawBytes = rawBytes;
+            this.compressedBytes = compressedBytes;
+            this.compressNanos = compressNanos;
+            this.piecesDecompressed = piecesDecompressed;
+            this.decompressNanos = decompressNanos;
+        }
+        
+        public long getPiecesCompressed() { return piecesCompressed; }
+        public long getPiecesSentRaw() { return piecesSentRaw; }
+        public long getRawBytes() { return rawBytes; }
+        public long getCompressedBytes() { return compressedBytes; }
+        public long getCompressNanos() { return compressNanos; }
+        public long getPiecesDecompressed() { return piecesDecompressed; }
+        public long getDecompressNanos() { return decompressNanos; }
+        
+        /**
+         * Compressed size over raw size of the pieces sent compressed, 1.0 before any
+         */
+        public double getRatio() {
+            return rawBytes > 0 ? (double) compressedBytes / rawBytes : 1.0;
+        }
     }
 }
-
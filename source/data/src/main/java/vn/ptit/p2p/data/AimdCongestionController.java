@@ -0,0 +1,43 @@
+package vn.ptit.p2p.data;
+
+/**
+ * Reno-style AIMD: slow start, +1 segment per RTT, halve on loss
+ */
+public class AimdCongestionController implements CongestionController {
+    private final int maxWindow;
+    private double cwnd;
+    private double ssthresh;
+    
+    public AimdCongestionController(int initialWindow, int maxWindow) {
+        this.maxWindow = maxWindow;
+        this.cwnd = Math.max(MIN_WINDOW, Math.min(initialWindow, maxWindow));
+        this.ssthresh = initialWindow > INITIAL_WINDOW ? cwnd : maxWindow;
+    }
+    
+    @Override
+    public void onAck(int ackedSegments, long rttMicros, int delayMicros, long nowNanos) {
+        if (cwnd < ssthresh) {
+            cwnd += ackedSegments;
+        } else {
+            cwnd += (double) ackedSegments / cwnd;
+        }
+        cwnd = Math.min(cwnd, maxWindow);
+    }
+    
+    @Override
+    public void onLoss(long nowNanos) {
+        ssthresh = Math.max(MIN_WINDOW, cwnd / 2);
+        cwnd = ssthresh;
+    }
+    
+    @Override
+    public void onTimeout(long nowNanos) {
+        ssthresh = Math.max(MIN_WINDOW, cwnd / 2);
+        cwnd = MIN_WINDOW;
+    }
+    
+    @Override
+    public int getWindow() {
+        return (int) cwnd;
+    }
+}
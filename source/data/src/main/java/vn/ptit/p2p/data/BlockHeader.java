@@ -0,0 +1,81 @@
+package vn.ptit.p2p.data;
+
+import vn.ptit.p2p.common.Hashing;
+import vn.ptit.p2p.common.Models.Block;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Addresses a block of a piece: raw SHA-256 file hash (32 bytes), piece index (4),
+ * offset (4), length (4). Sent alone as the body of a block request and in front
+ * of the data of a block response, over UDP as well as TCP.
+ */
+public final class BlockHeader {
+    public static final int SIZE = PieceHeader.HASH_SIZE + 12;
+    public static final int MAX_LENGTH = 1024 * 1024; // Bounds what one (possibly spoofed) request can make us send
+    
+    private BlockHeader() {
+    }
+    
+    public static ByteBuffer encode(String fileHash, int pieceIndex, int offset, int length) {
+        ByteBuffer out = ByteBuffer.allocate(SIZE);
+        put(out, fileHash, pieceIndex, offset, length);
+        out.flip();
+        return out;
+    }
+    
+    /**
+     * Write the header at the buffer's position and advance past it
+     *
+     * @throws IllegalArgumentException if the file hash is not a hex SHA-256 digest
+     */
+    public static void put(ByteBuffer out, String fileHash, int pieceIndex, int offset, int length) {
+        byte[] raw = Hashing.hexToBytes(fileHash);
+        if (raw.length != PieceHeader.HASH_SIZE) {
+            throw new IllegalArgumentException("Not a SHA-256 hash: " + fileHash);
+        }
+        out.put(raw);
+        out.putInt(pieceIndex);
+        out.putInt(offset);
+        out.putInt(length);
+    }
+    
+    /**
+     * Whether a requested range is one we are willing to serve at all
+     */
+    public static boolean isValidRange(int pieceIndex, int offset, int length) {
+        return pieceIndex >= 0 && offset >= 0 && length > 0 && length <= MAX_LENGTH;
+    }
+    
+    /**
+     * Whether a received block is the one that was asked for
+     */
+    public static boolean matches(Block block, String fileHash, int pieceIndex, int offset, int length) {
+        return block.getFileHash().equalsIgnoreCase(fileHash) && block.getPieceIndex() == pieceIndex
+               && block.getOffset() == offset && block.getData().length == length;
+    }
+    
+    /**
+     * Decode a reassembled block response (header followed by data),
+     * returning null if the length does not match what was received
+     */
+    public static Block decode(byte[] stream) {
+        if (stream.length < SIZE) {
+            return null;
+        }
+        
+        ByteBuffer in = ByteBuffer.wrap(stream);
+        byte[] fileHash = new byte[PieceHeader.HASH_SIZE];
+        in.get(fileHash);
+        int pieceIndex = in.getInt();
+        int offset = in.getInt();
+        int length = in.getInt();
+        if (length < 0 || length != stream.length - SIZE) {
+            return null;
+        }
+        
+        byte[] data = Arrays.copyOfRange(stream, SIZE, stream.length);
+        return new Block(Hashing.bytesToHex(fileHash), pieceIndex, offset, data);
+    }
+}
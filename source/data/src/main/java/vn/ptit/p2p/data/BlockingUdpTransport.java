@@ -0,0 +1,91 @@
+package vn.ptit.p2p.data;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * Portable transport: a blocking DatagramChannel read by a single thread into one reused buffer
+ */
+public class BlockingUdpTransport implements UdpTransport {
+    private static final Logger logger = LoggerFactory.getLogger(BlockingUdpTransport.class);
+    private static final int MAX_PACKET_SIZE = 65507;
+    private static final int SOCKET_BUFFER_SIZE = 4 * 1024 * 1024; // room for a window of jumbo segments
+    
+    private final String name;
+    private DatagramChannel channel;
+    private Thread receiverThread;
+    private volatile boolean running;
+    
+    public BlockingUdpTransport(String name) {
+        this.name = name;
+    }
+    
+    @Override
+    public void bind(int port, Handler handler) throws IOException {
+        channel = DatagramChannel.open();
+        channel.setOption(StandardSocketOptions.SO_RCVBUF, SOCKET_BUFFER_SIZE);
+        channel.setOption(StandardSocketOptions.SO_SNDBUF, SOCKET_BUFFER_SIZE);
+        channel.bind(new InetSocketAddress(port));
+        running = true;
+        
+        receiverThread = new Thread(() -> receiveLoop(handler), name);
+        receiverThread.setDaemon(true);
+        receiverThread.start();
+    }
+    
+    @Override
+    public void send(ByteBuffer datagram, InetSocketAddress target) throws IOException {
+        int position = datagram.position();
+        channel.send(datagram, target);
+        datagram.position(position);
+    }
+    
+    @Override
+    public int getLocalPort() {
+        try {
+            return ((InetSocketAddress) channel.getLocalAddress()).getPort();
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+    
+    @Override
+    public void close() {
+        running = false;
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.debug("Error closing UDP channel", e);
+            }
+        }
+    }
+    
+    private void receiveLoop(Handler handler) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(MAX_PACKET_SIZE);
+        
+        while (running) {
+            try {
+                buffer.clear();
+                InetSocketAddress sender = (InetSocketAddress) channel.receive(buffer);
+                buffer.flip();
+                handler.onDatagram(buffer, sender);
+            } catch (ClosedChannelException e) {
+                break;
+            } catch (IOException e) {
+                if (running) {
+                    logger.error("Error receiving UDP packet", e);
+                }
+            } catch (RuntimeException e) {
+                logger.error("Error handling UDP packet", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package vn.ptit.p2p.data;
+
+import java.util.zip.Deflater;
+
+/**
+ * Compression of pieces sent in answer to requests that accept it. Both
+ * modes produce Deflate, which every peer can decode, so the choice only
+ * trades the sender's CPU for ratio.
+ */
+public enum CompressionMode {
+    NONE(0),                              // Pieces are always sent raw, and asked for raw
+    FAST(Deflater.BEST_SPEED),            // For fast links, where CPU is the bottleneck
+    STRONG(6);                            // zlib's default level, for slow WAN links where every byte counts
+    
+    private final int level;
+    
+    CompressionMode(int level) {
+        this.level = level;
+    }
+    
+    /**
+     * Deflater level of this mode, 0 to {@link Deflater#BEST_COMPRESSION}
+     */
+    public int getLevel() { return level; }
+    
+    /**
+     * Parse a config value such as "fast", falling back to NONE when unknown
+     */
+    public static CompressionMode fromString(String name) {
+        if (name != null) {
+            String normalized = name.trim().replace('-', '_');
+            for (CompressionMode mode : values()) {
+                if (mode.name().equalsIgnoreCase(normalized)) {
+                    return mode;
+                }
+            }
+        }
+        return NONE;
+    }
+}
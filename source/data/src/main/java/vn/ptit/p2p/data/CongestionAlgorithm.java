@@ -0,0 +1,42 @@
+package vn.ptit.p2p.data;
+
+/**
+ * Available congestion control algorithms for UDP transfers
+ */
+public enum CongestionAlgorithm {
+    AIMD,    // Reno-style additive increase, multiplicative decrease
+    CUBIC,   // Fast recovery to the last saturation point, good for fat links
+    LEDBAT;  // Delay-based scavenger, yields to other traffic (background seeding)
+    
+    /**
+     * Create a controller for one transfer
+     * 
+     * @param initialWindow Starting window, e.g. the last window used towards the same peer
+     * @param maxWindow Upper bound from the configured sliding window size
+     */
+    public CongestionController create(int initialWindow, int maxWindow) {
+        switch (this) {
+            case AIMD:
+                return new AimdCongestionController(initialWindow, maxWindow);
+            case LEDBAT:
+                return new LedbatCongestionController(initialWindow, maxWindow);
+            case CUBIC:
+            default:
+                return new CubicCongestionController(initialWindow, maxWindow);
+        }
+    }
+    
+    /**
+     * Parse a config value such as "cubic", falling back to CUBIC when unknown
+     */
+    public static CongestionAlgorithm fromString(String name) {
+        if (name != null) {
+            for (CongestionAlgorithm algorithm : values()) {
+                if (algorithm.name().equalsIgnoreCase(name.trim())) {
+                    return algorithm;
+                }
+            }
+        }
+        return CUBIC;
+    }
+}
@@ -0,0 +1,35 @@
+package vn.ptit.p2p.data;
+
+/**
+ * Congestion window control for one UDP transfer. Windows are counted in segments.
+ */
+public interface CongestionController {
+    
+    int MIN_WINDOW = 2;
+    int INITIAL_WINDOW = 10;
+    
+    /**
+     * Segments were newly acknowledged
+     * 
+     * @param ackedSegments Number of segments acknowledged by this ACK
+     * @param rttMicros Smoothed round-trip time
+     * @param delayMicros One-way delay sample (sender clock to receiver clock, offset unknown)
+     * @param nowNanos Current time from System.nanoTime()
+     */
+    void onAck(int ackedSegments, long rttMicros, int delayMicros, long nowNanos);
+    
+    /**
+     * A loss was detected from later deliveries (at most once per window)
+     */
+    void onLoss(long nowNanos);
+    
+    /**
+     * The retransmission timeout expired
+     */
+    void onTimeout(long nowNanos);
+    
+    /**
+     * Current congestion window in segments
+     */
+    int getWindow();
+}
@@ -0,0 +1,79 @@
+package vn.ptit.p2p.data;
+
+/**
+ * CUBIC-style window growth (RFC 8312): after a loss the window grows along
+ * a cubic curve centred on the window where the loss happened, so it returns
+ * to the previous saturation point quickly and probes carefully around it.
+ */
+public class CubicCongestionController implements CongestionController {
+    private static final double C = 0.4;
+    private static final double BETA = 0.7;
+    
+    private final int maxWindow;
+    private double cwnd;
+    private double ssthresh;
+    private double wMax;
+    private double k;
+    private double wEst;
+    private long epochStartNanos;
+    
+    public CubicCongestionController(int initialWindow, int maxWindow) {
+        this.maxWindow = maxWindow;
+        this.cwnd = Math.max(MIN_WINDOW, Math.min(initialWindow, maxWindow));
+        this.ssthresh = initialWindow > INITIAL_WINDOW ? cwnd : maxWindow;
+    }
+    
+    @Override
+    public void onAck(int ackedSegments, long rttMicros, int delayMicros, long nowNanos) {
+        if (cwnd < ssthresh) {
+            cwnd = Math.min(cwnd + ackedSegments, maxWindow);
+            return;
+        }
+        
+        if (epochStartNanos == 0) {
+            epochStartNanos = nowNanos;
+            if (wMax < cwnd) {
+                wMax = cwnd;
+                k = 0;
+            } else {
+                k = Math.cbrt(wMax * (1 - BETA) / C);
+            }
+            wEst = cwnd;
+        }
+        
+        double rtt = rttMicros / 1e6;
+        double t = (nowNanos - epochStartNanos) / 1e9 + rtt;
+        double target = C * Math.pow(t - k, 3) + wMax;
+        
+        // TCP-friendly region: never grow slower than Reno would
+        wEst += 3 * (1 - BETA) / (1 + BETA) * ackedSegments / cwnd;
+        target = Math.max(target, wEst);
+        
+        if (target > cwnd) {
+            cwnd += (target - cwnd) / cwnd * ackedSegments;
+        } else {
+            cwnd += 0.01 * ackedSegments / cwnd;
+        }
+        cwnd = Math.min(cwnd, maxWindow);
+    }
+    
+    @Override
+    public void onLoss(long nowNanos) {
+        epochStartNanos = 0;
+        // Fast convergence: release bandwidth sooner if the saturation point keeps dropping
+        wMax = cwnd < wMax ? cwnd * (1 + BETA) / 2 : cwnd;
+        cwnd = Math.max(MIN_WINDOW, cwnd * BETA);
+        ssthresh = cwnd;
+    }
+    
+    @Override
+    public void onTimeout(long nowNanos) {
+        onLoss(nowNanos);
+        cwnd = MIN_WINDOW;
+    }
+    
+    @Override
+    public int getWindow() {
+        return (int) cwnd;
+    }
+}
@@ -0,0 +1,365 @@
+package vn.ptit.p2p.data;
+
+/**
+ * Configuration for the data plane
+ */
+public class DataConfig {
+    private final int windowSize;
+    private final int transferTimeout;
+    private final int maxRetransmits;
+    private final CongestionAlgorithm congestionAlgorithm;
+    private final int pieceSize;
+    private final long uploadRateLimit;
+    private final long downloadRateLimit;
+    private final int maxUploads;
+    private final int maxDownloads;
+    private final int pacingDelayMicros;
+    private final TransportType transport;
+    private final int transportThreads;
+    private final int receiveWorkers;
+    private final int receiveQueueSize;
+    private final int udpAttemptTimeout;
+    private final int sendThreads;
+    private final int receiveThreads;
+    private final int verifyThreads;
+    private final int taskQueueSize;
+    private final int tcpConnectionsPerPeer;
+    private final int tcpServerThreads;
+    private final int maxPiecesInFlight;
+    private final FecMode fecMode;
+    private final int fecGroupSize;
+    private final double tcpLossThreshold;
+    private final double udpLossThreshold;
+    private final int udpProbeInterval;
+    private final int maxMtu;
+    private final boolean pmtuDiscovery;
+    private final String multicastGroup;
+    private final int multicastPort;
+    private final int multicastTtl;
+    private final long multicastRate;
+    private final int multicastNackBackoff;
+    private final String multicastInterface;
+    private final CompressionMode compression;
+    
+    public DataConfig(int windowSize, int transferTimeout, int maxRetransmits,
+                      CongestionAlgorithm congestionAlgorithm, int pieceSize,
+                      long uploadRateLimit, long downloadRateLimit, int maxUploads, int maxDownloads,
+                      int pacingDelayMicros, TransportType transport, int transportThreads,
+                      int receiveWorkers, int receiveQueueSize, int udpAttemptTimeout,
+                      int sendThreads, int receiveThreads, int verifyThreads, int taskQueueSize,
+                      int tcpConnectionsPerPeer, int tcpServerThreads, int maxPiecesInFlight,
+                      FecMode fecMode, int fecGroupSize, double tcpLossThreshold, double udpLossThreshold,
+                      int udpProbeInterval, int maxMtu, boolean pmtuDiscovery, String multicastGroup,
+                      int multicastPort, int multicastTtl, long multicastRate, int multicastNackBackoff,
+                      String multicastInterface, CompressionMode compression) {
+        this.windowSize = windowSize;
+        this.transferTimeout = transferTimeout;
+        this.maxRetransmits = maxRetransmits;
+        this.congestionAlgorithm = congestionAlgorithm;
+        this.pieceSize = pieceSize;
+        this.uploadRateLimit = uploadRateLimit;
+        this.downloadRateLimit = downloadRateLimit;
+        this.maxUploads = maxUploads;
+        this.maxDownloads = maxDownloads;
+        this.pacingDelayMicros = pacingDelayMicros;
+        this.transport = transport;
+        this.transportThreads = transportThreads;
+        this.receiveWorkers = receiveWorkers;
+        this.receiveQueueSize = receiveQueueSize;
+        this.udpAttemptTimeout = udpAttemptTimeout;
+        this.sendThreads = sendThreads;
+        this.receiveThreads = receiveThreads;
+        this.verifyThreads = verifyThreads;
+        this.taskQueueSize = taskQueueSize;
+        this.tcpConnectionsPerPeer = tcpConnectionsPerPeer;
+        this.tcpServerThreads = tcpServerThreads;
+        this.maxPiecesInFlight = maxPiecesInFlight;
+        this.fecMode = fecMode;
+        this.fecGroupSize = fecGroupSize;
+        this.tcpLossThreshold = tcpLossThreshold;
+        this.udpLossThreshold = udpLossThreshold;
+        this.udpProbeInterval = udpProbeInterval;
+        this.maxMtu = maxMtu;
+        this.pmtuDiscovery = pmtuDiscovery;
+        this.multicastGroup = multicastGroup;
+        this.multicastPort = multicastPort;
+        this.multicastTtl = multicastTtl;
+        this.multicastRate = multicastRate;
+        this.multicastNackBackoff = multicastNackBackoff;
+        this.multicastInterface = multicastInterface;
+        this.compression = compression;
+    }
+    
+    public int getWindowSize() { return windowSize; }
+    public int getTransferTimeout() { return transferTimeout; }
+    public int getMaxRetransmits() { return maxRetransmits; }
+    public CongestionAlgorithm getCongestionAlgorithm() { return congestionAlgorithm; }
+    public int getPieceSize() { return pieceSize; }
+    public long getUploadRateLimit() { return uploadRateLimit; }
+    public long getDownloadRateLimit() { return downloadRateLimit; }
+    public int getMaxUploads() { return maxUploads; }
+    public int getMaxDownloads() { return maxDownloads; }
+    public int getPacingDelayMicros() { return pacingDelayMicros; }
+    public TransportType getTransport() { return transport; }
+    public int getTransportThreads() { return transportThreads; }
+    public int getReceiveWorkers() { return receiveWorkers; }
+    public int getReceiveQueueSize() { return receiveQueueSize; }
+    public int getUdpAttemptTimeout() { return udpAttemptTimeout; }
+    public int getSendThreads() { return sendThreads; }
+    public int getReceiveThreads() { return receiveThreads; }
+    public int getVerifyThreads() { return verifyThreads; }
+    public int getTaskQueueSize() { return taskQueueSize; }
+    public int getTcpConnectionsPerPeer() { return tcpConnectionsPerPeer; }
+    public int getTcpServerThreads() { return tcpServerThreads; }
+    public int getMaxPiecesInFlight() { return maxPiecesInFlight; }
+    public FecMode getFecMode() { return fecMode; }
+    public int getFecGroupSize() { return fecGroupSize; }
+    public double getTcpLossThreshold() { return tcpLossThreshold; }
+    public double getUdpLossThreshold() { return udpLossThreshold; }
+    public int getUdpProbeInterval() { return udpProbeInterval; }
+    public int getMaxMtu() { return maxMtu; }
+    public boolean isPmtuDiscovery() { return pmtuDiscovery; }
+    public String getMulticastGroup() { return multicastGroup; }
+    public int getMulticastPort() { return multicastPort; }
+    public int getMulticastTtl() { return multicastTtl; }
+    public long getMulticastRate() { return multicastRate; }
+    public int getMulticastNackBackoff() { return multicastNackBackoff; }
+    public String getMulticastInterface() { return multicastInterface; }
+    public CompressionMode getCompression() { return compression; }
+    
+    public static Builder builder() {
+        return new Builder();
+    }
+    
+    public static class Builder {
+        private int windowSize = 64;  // Sliding window (segments in flight)
+        private int transferTimeout = 30000;
+        private int maxRetransmits = 10;
+        private CongestionAlgorithm congestionAlgorithm = CongestionAlgorithm.CUBIC;
+        private int pieceSize = 262144;
+        private long uploadRateLimit = 0;    // bytes/s, 0 = unlimited
+        private long downloadRateLimit = 0;  // bytes/s, 0 = unlimited
+        private int maxUploads = 5;
+        private int maxDownloads = 3;
+        private int pacingDelayMicros = 100; // gap between datagrams until RTT is known
+        private TransportType transport = TransportType.NETTY;
+        private int transportThreads = 0;    // 0 = one per core
+        private int receiveWorkers = 0;      // 0 = one per core
+        private int receiveQueueSize = 8192; // datagrams
+        private int udpAttemptTimeout = 10000; // per UDP attempt before retrying / falling back to TCP
+        private int sendThreads = 0;         // 0 = max(cores, maxUploads)
+        private int receiveThreads = 0;      // 0 = max(cores, maxDownloads)
+        private int verifyThreads = 0;       // 0 = one per core
+        private int taskQueueSize = 4096;    // per pool, further tasks are rejected
+        private int tcpConnectionsPerPeer = 2; // persistent, pipelined TCP fallback connections
+        private int tcpServerThreads = 0;    // TCP server event loops, 0 = one per core
+        private int maxPiecesInFlight = 16;  // per piece stream, requested or waiting for the subscriber
+        private FecMode fecMode = FecMode.NONE;
+        private int fecGroupSize = 16;       // data segments per FEC group (XOR: the largest group)
+        private double tcpLossThreshold = 0.3; // loss rate above which a peer is moved to TCP
+        private double udpLossThreshold = 0.1; // loss rate below which it is moved back to UDP
+        private int udpProbeInterval = 10000;  // ms between UDP probes to a peer on TCP
+        private int maxMtu = UdpSegment.MAX_MTU; // largest path MTU probed for, capped by the interface MTU
+        private boolean pmtuDiscovery = true;  // off: every peer gets the 1500-byte default
+        private String multicastGroup = "239.255.0.2"; // group files are multicast to on the LAN
+        private int multicastPort = 7072;
+        private int multicastTtl = 1;          // 1 = the local subnet only
+        private long multicastRate = 12_500_000; // bytes/s a multicast is sent at, 0 = unpaced
+        private int multicastNackBackoff = 50; // ms, longest random wait before a receiver NACKs
+        private String multicastInterface;     // name of the interface to multicast on, null = pick one
+        private CompressionMode compression = CompressionMode.NONE;
+        
+        public Builder windowSize(int windowSize) {
+            this.windowSize = windowSize;
+            return this;
+        }
+        
+        public Builder transferTimeout(int timeout) {
+            this.transferTimeout = timeout;
+            return this;
+        }
+        
+        public Builder maxRetransmits(int maxRetransmits) {
+            this.maxRetransmits = maxRetransmits;
+            return this;
+        }
+        
+        public Builder congestionAlgorithm(CongestionAlgorithm algorithm) {
+            this.congestionAlgorithm = algorithm;
+            return this;
+        }
+        
+        public Builder pieceSize(int pieceSize) {
+            this.pieceSize = pieceSize;
+            return this;
+        }
+        
+        public Builder uploadRateLimit(long bytesPerSecond) {
+            this.uploadRateLimit = bytesPerSecond;
+            return this;
+        }
+        
+        public Builder downloadRateLimit(long bytesPerSecond) {
+            this.downloadRateLimit = bytesPerSecond;
+            return this;
+        }
+        
+        public Builder maxUploads(int maxUploads) {
+            this.maxUploads = maxUploads;
+            return this;
+        }
+        
+        public Builder maxDownloads(int maxDownloads) {
+            this.maxDownloads = maxDownloads;
+            return this;
+        }
+        
+        public Builder pacingDelayMicros(int pacingDelayMicros) {
+            this.pacingDelayMicros = pacingDelayMicros;
+            return this;
+        }
+        
+        public Builder transport(TransportType transport) {
+            this.transport = transport;
+            return this;
+        }
+        
+        public Builder transportThreads(int transportThreads) {
+            this.transportThreads = transportThreads;
+            return this;
+        }
+        
+        public Builder receiveWorkers(int receiveWorkers) {
+            this.receiveWorkers = receiveWorkers;
+            return this;
+        }
+        
+        public Builder receiveQueueSize(int receiveQueueSize) {
+            this.receiveQueueSize = receiveQueueSize;
+            return this;
+        }
+        
+        public Builder udpAttemptTimeout(int timeout) {
+            this.udpAttemptTimeout = timeout;
+            return this;
+        }
+        
+        public Builder sendThreads(int sendThreads) {
+            this.sendThreads = sendThreads;
+            return this;
+        }
+        
+        public Builder receiveThreads(int receiveThreads) {
+            this.receiveThreads = receiveThreads;
+            return this;
+        }
+        
+        public Builder verifyThreads(int verifyThreads) {
+            this.verifyThreads = verifyThreads;
+            return this;
+        }
+        
+        public Builder taskQueueSize(int taskQueueSize) {
+            this.taskQueueSize = taskQueueSize;
+            return this;
+        }
+        
+        public Builder tcpConnectionsPerPeer(int tcpConnectionsPerPeer) {
+            this.tcpConnectionsPerPeer = tcpConnectionsPerPeer;
+            return this;
+        }
+        
+        public Builder tcpServerThreads(int tcpServerThreads) {
+            this.tcpServerThreads = tcpServerThreads;
+            return this;
+        }
+        
+        public Builder maxPiecesInFlight(int maxPiecesInFlight) {
+            this.maxPiecesInFlight = maxPiecesInFlight;
+            return this;
+        }
+        
+        public Builder fecMode(FecMode fecMode) {
+            this.fecMode = fecMode;
+            return this;
+        }
+        
+        public Builder fecGroupSize(int fecGroupSize) {
+            this.fecGroupSize = fecGroupSize;
+            return this;
+        }
+        
+        public Builder tcpLossThreshold(double tcpLossThreshold) {
+            this.tcpLossThreshold = tcpLossThreshold;
+            return this;
+        }
+        
+        public Builder udpLossThreshold(double udpLossThreshold) {
+            this.udpLossThreshold = udpLossThreshold;
+            return this;
+        }
+        
+        public Builder udpProbeInterval(int udpProbeInterval) {
+            this.udpProbeInterval = udpProbeInterval;
+            return this;
+        }
+        
+        public Builder maxMtu(int maxMtu) {
+            this.maxMtu = maxMtu;
+            return this;
+        }
+        
+        public Builder pmtuDiscovery(boolean pmtuDiscovery) {
+            this.pmtuDiscovery = pmtuDiscovery;
+            return this;
+        }
+        
+        public Builder multicastGroup(String multicastGroup) {
+            this.multicastGroup = multicastGroup;
+            return this;
+        }
+        
+        public Builder multicastPort(int multicastPort) {
+            this.multicastPort = multicastPort;
+            return this;
+        }
+        
+        public Builder multicastTtl(int multicastTtl) {
+            this.multicastTtl = multicastTtl;
+            return this;
+        }
+        
+        public Builder multicastRate(long bytesPerSecond) {
+            this.multicastRate = bytesPerSecond;
+            return this;
+        }
+        
+        public Builder multicastNackBackoff(int millis) {
+            this.multicastNackBackoff = millis;
+            return this;
+        }
+        
+        public Builder multicastInterface(String name) {
+            this.multicastInterface = name;
+            return this;
+        }
+        
+        public Builder compression(CompressionMode compression) {
+            this.compression = compression;
+            return this;
+        }
+        
+        public DataConfig build() {
+            return new DataConfig(windowSize, transferTimeout, maxRetransmits, congestionAlgorithm,
+                                  pieceSize, uploadRateLimit, downloadRateLimit, maxUploads, maxDownloads,
+                                  pacingDelayMicros, transport, transportThreads,
+                                  receiveWorkers, receiveQueueSize, udpAttemptTimeout,
+                                  sendThreads, receiveThreads, verifyThreads, taskQueueSize,
+                                  tcpConnectionsPerPeer, tcpServerThreads, maxPiecesInFlight,
+                                  fecMode, fecGroupSize, tcpLossThreshold, udpLossThreshold,
+                                  udpProbeInterval, maxMtu, pmtuDiscovery, multicastGroup,
+                                  multicastPort, multicastTtl, multicastRate, multicastNackBackoff,
+                                  multicastInterface, compression);
+        }
+    }
+}
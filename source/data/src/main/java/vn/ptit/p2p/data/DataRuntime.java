@@ -0,0 +1,135 @@
+package vn.ptit.p2p.data;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import vn.ptit.p2p.common.Models.Peer;
+
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Threads and shared state of the data plane. Every thread pool of the data
+ * plane lives here, each fixed-size with a bounded queue and shut down with
+ * the runtime, so socket sends and TCP reads never run on (or starve)
+ * ForkJoinPool.commonPool() and a burst of transfers is rejected instead of
+ * queueing without limit:
+ * <ul>
+ *   <li>send: starting UDP transfers, TCP uploads and serving TCP clients</li>
+ *   <li>receive: blocking TCP downloads (UDP datagrams go through {@link ReceivePipeline})
+ *       and delivery of streamed pieces ({@link PieceStream})</li>
+ *   <li>verify: SHA-256 of complete pieces</li>
+ *   <li>upload: serving pieces and blocks requested over UDP; each task holds
+ *       its thread until its transfer ends, which bounds concurrent UDP uploads</li>
+ *   <li>fallback: moving transfers between the UDP, retry and TCP stages
+ *       ({@link FallbackTransfer}); these short tasks run in place when the queue is full</li>
+ * </ul>
+ * Peer addresses are resolved once and cached, rather than looked up for every transfer.
+ */
+public class DataRuntime {
+    private static final Logger logger = LoggerFactory.getLogger(DataRuntime.class);
+    private static final long ADDRESS_TTL_MS = 60_000; // re-resolve occasionally so DNS changes are picked up
+    private static final int FALLBACK_THREADS = 2;      // stage changes never block
+    
+    private final ThreadPoolExecutor sendExecutor;
+    private final ThreadPoolExecutor receiveExecutor;
+    private final ThreadPoolExecutor verifyExecutor;
+    private final ThreadPoolExecutor uploadExecutor;
+    private final ThreadPoolExecutor fallbackExecutor;
+    private final Map<String, CachedAddress> addresses = new ConcurrentHashMap<>();
+    
+    public DataRuntime(DataConfig config) {
+        int cores = Runtime.getRuntime().availableProcessors();
+        // Network pools wait on sockets most of the time, so they may be larger than the core count
+        this.sendExecutor = newPool("data-send", config.getSendThreads() > 0 ? config.getSendThreads()
+                                                 : Math.max(cores, config.getMaxUploads()),
+                                    config.getTaskQueueSize());
+        this.receiveExecutor = newPool("data-receive", config.getReceiveThreads() > 0 ? config.getReceiveThreads()
+                                                       : Math.max(cores, config.getMaxDownloads()),
+                                       config.getTaskQueueSize());
+        this.verifyExecutor = newPool("data-verify", config.getVerifyThreads() > 0 ? config.getVerifyThreads() : cores,
+                                      config.getTaskQueueSize());
+        this.uploadExecutor = newPool("data-upload", Math.max(1, config.getMaxUploads()), config.getTaskQueueSize());
+        this.fallbackExecutor = newPool("data-fallback", FALLBACK_THREADS, config.getTaskQueueSize());
+    }
+    
+    public ExecutorService getSendExecutor() { return sendExecutor; }
+    public ExecutorService getReceiveExecutor() { return receiveExecutor; }
+    public ExecutorService getVerifyExecutor() { return verifyExecutor; }
+    public ExecutorService getUploadExecutor() { return uploadExecutor; }
+    public ExecutorService getFallbackExecutor() { return fallbackExecutor; }
+    
+    /**
+     * Tasks waiting in the queues of all pools
+     */
+    public int getQueuedTasks() {
+        return sendExecutor.getQueue().size() + receiveExecutor.getQueue().size() + verifyExecutor.getQueue().size()
+            + uploadExecutor.getQueue().size() + fallbackExecutor.getQueue().size();
+    }
+    
+    /**
+     * UDP address of a peer
+     */
+    public InetSocketAddress resolve(Peer peer) {
+        return resolve(peer.getHost(), peer.getPort());
+    }
+    
+    /**
+     * Resolved address for host:port, cached for a while. Failed lookups are not cached.
+     */
+    public InetSocketAddress resolve(String host, int port) {
+        String key = host + ":" + port;
+        long now = System.currentTimeMillis();
+        CachedAddress cached = addresses.get(key);
+        if (cached != null && now - cached.resolvedAt < ADDRESS_TTL_MS) {
+            return cached.address;
+        }
+        
+        InetSocketAddress address = new InetSocketAddress(host, port);
+        if (address.isUnresolved()) {
+            logger.warn("Could not resolve peer address {}", key);
+        } else {
+            addresses.put(key, new CachedAddress(address, now));
+        }
+        return address;
+    }
+    
+    public void close() {
+        sendExecutor.shutdown();
+        receiveExecutor.shutdown();
+        verifyExecutor.shutdown();
+        uploadExecutor.shutdown();
+        fallbackExecutor.shutdown();
+    }
+    
+    /**
+     * Fixed pool of daemon threads; when the queue is full, execute() throws RejectedExecutionException
+     */
+    private static ThreadPoolExecutor newPool(String name, int threads, int queueSize) {
+        AtomicInteger counter = new AtomicInteger();
+        ThreadFactory factory = r -> {
+            Thread t = new Thread(r, name + "-" + counter.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        };
+        return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                                      new ArrayBlockingQueue<>(queueSize), factory,
+                                      new ThreadPoolExecutor.AbortPolicy());
+    }
+    
+    private static class CachedAddress {
+        private final InetSocketAddress address;
+        private final long resolvedAt;
+        
+        CachedAddress(InetSocketAddress address, long resolvedAt) {
+            this.address = address;
+            this.resolvedAt = resolvedAt;
+        }
+    }
+}
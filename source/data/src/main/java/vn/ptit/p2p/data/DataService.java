@@ -2,14 +2,29 @@ package vn.ptit.p2p.data;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import vn.ptit.p2p.common.Models.Block;
+import vn.ptit.p2p.common.Models.FileMetadata;
 import vn.ptit.p2p.common.Models.Piece;
+import vn.ptit.p2p.common.Models.PieceBuffer;
 import vn.ptit.p2p.common.Models.Peer;
 import vn.ptit.p2p.dataapi.DataApi;
 
 import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
 
 /**
  * Main data transfer service that coordinates UDP and TCP transfers
@@ -20,6 +35,15 @@ public class DataService implements DataApi {
     private final UdpDataSender udpSender;
     private final UdpDataReceiver udpReceiver;
     private final TcpFallbackSender tcpSender;
+    private final DataConfig config;
+    private final DataRuntime runtime;
+    private final RateLimiter uploadLimiter;
+    private final RateLimiter downloadLimiter;
+    private final PieceVerifier pieceVerifier = new PieceVerifier();
+    private final SharedFiles sharedFiles = new SharedFiles();
+    private final LinkMonitor linkMonitor;
+    private final MulticastService multicast;
+    private final PieceCompressor compressor;
     
     private PieceRequestHandler requestHandler;
     
@@ -32,81 +56,256 @@ public class DataService implements DataApi {
     private final AtomicInteger totalReceives = new AtomicInteger(0);
     private final AtomicInteger failedSends = new AtomicInteger(0);
     private final AtomicInteger failedReceives = new AtomicInteger(0);
+    private final StageCounter[] sendStages = newStageCounters();
+    private final StageCounter[] receiveStages = newStageCounters();
     
     public DataService() {
-        this.udpSender = new UdpDataSender(this);
+        this(DataConfig.builder().build());
+    }
+    
+    public DataService(DataConfig config) {
+        this.config = config;
+        this.runtime = new DataRuntime(config);
+        this.linkMonitor = new LinkMonitor(config);
+        // Per-peer default: a fair share of the global budget among the allowed concurrent transfers
+        this.uploadLimiter = new RateLimiter(config.getUploadRateLimit(),
+                                             config.getUploadRateLimit() / Math.max(1, config.getMaxUploads()));
+        this.downloadLimiter = new RateLimiter(config.getDownloadRateLimit(),
+                                               config.getDownloadRateLimit() / Math.max(1, config.getMaxDownloads()));
+        this.udpSender = new UdpDataSender(this, config);
         this.udpReceiver = new UdpDataReceiver(this);
         this.tcpSender = new TcpFallbackSender(this);
+        this.multicast = new MulticastService(this, config);
+        this.compressor = new PieceCompressor(config.getCompression(), config.getPieceSize());
     }
     
     @Override
     public CompletableFuture<Void> sendPiece(Peer peer, Piece piece) {
+        return sendPiece(peer, piece, config.getCongestionAlgorithm());
+    }
+    
+    /**
+     * Send a piece with a specific congestion control algorithm,
+     * e.g. LEDBAT for background seeding next to business traffic
+     */
+    public CompletableFuture<Void> sendPiece(Peer peer, Piece piece, CongestionAlgorithm algorithm) {
+        return sendPiece(peer, PieceBuffer.wrap(piece), algorithm);
+    }
+    
+    @Override
+    public CompletableFuture<Void> sendPiece(Peer peer, PieceBuffer piece) {
+        return sendPiece(peer, piece, config.getCongestionAlgorithm());
+    }
+    
+    /**
+     * Send a piece buffer with a specific congestion control algorithm
+     */
+    public CompletableFuture<Void> sendPiece(Peer peer, PieceBuffer piece, CongestionAlgorithm algorithm) {
         logger.debug("Sending piece {} of file {} to peer {}", 
                     piece.getIndex(), piece.getFileHash(), peer.getId());
         
         activeSends.incrementAndGet();
         totalSends.incrementAndGet();
         
-        return udpSender.sendPiece(peer, piece)
-            .handle((result, error) -> {
-                activeSends.decrementAndGet();
-                
-                if (error != null) {
-                    logger.warn("UDP send failed, trying TCP fallback");
-                    failedSends.incrementAndGet();
-                    
-                    // Try TCP fallback
-                    return tcpSender.sendPiece(peer, piece)
-                        .handle((tcpResult, tcpError) -> {
-                            if (tcpError != null) {
-                                failedSends.incrementAndGet();
-                                throw new RuntimeException("Failed to send piece", tcpError);
-                            }
-                            bytesSent.addAndGet(piece.getData().length);
-                            return null;
-                        }).join();
-                }
-                
-                bytesSent.addAndGet(piece.getData().length);
-                return null;
-            });
+        FallbackTransfer<Void> transfer = new FallbackTransfer<>(
+            "Send of piece " + piece.getIndex() + " to " + peer.getId(),
+            timeout -> udpSender.sendPiece(peer, piece, algorithm, timeout),
+            timeout -> tcpSender.sendPiece(peer, piece, timeout),
+            config.getUdpAttemptTimeout(), config.getTransferTimeout(), sendStages,
+            runtime.getFallbackExecutor(), runtime.getSendExecutor());
+        
+        InetSocketAddress address = runtime.resolve(peer);
+        transfer.observe(linkMonitor.observer(address, piece.getFileHash(), piece.getIndex()));
+        return transfer.start(linkMonitor.route(address)).whenComplete((result, error) -> {
+            activeSends.decrementAndGet();
+            if (error != null) {
+                failedSends.incrementAndGet();
+            } else {
+                bytesSent.addAndGet(piece.getLength());
+            }
+        });
     }
     
     @Override
     public CompletableFuture<Piece> requestPiece(Peer peer, String fileHash, int pieceIndex) {
+        return requestPieceBuffer(peer, fileHash, pieceIndex).thenApply(buffer -> {
+            try {
+                return buffer.toPiece();
+            } finally {
+                buffer.release();
+            }
+        });
+    }
+    
+    @Override
+    public CompletableFuture<PieceBuffer> requestPieceBuffer(Peer peer, String fileHash, int pieceIndex) {
         logger.debug("Requesting piece {} of file {} from peer {}", 
                     pieceIndex, fileHash, peer.getId());
+        return fetch(peer, fileHash, pieceIndex, null, linkMonitor.route(runtime.resolve(peer)));
+    }
+    
+    @Override
+    public Flow.Publisher<Piece> requestPieces(Peer peer, String fileHash, int[] pieceIndices) {
+        return new PieceStream(fileHash, pieceIndices, config.getMaxPiecesInFlight(),
+                               batch -> requestPieceBatch(peer, fileHash, batch), runtime.getReceiveExecutor());
+    }
+    
+    /**
+     * Request several pieces with shared REQUEST datagrams for their first UDP
+     * attempt; from then on each piece falls back (UDP retry, TCP) on its own.
+     * A peer on TCP is asked over TCP only, except for a probe batch.
+     *
+     * @return One future per requested index, in the same order
+     */
+    List<CompletableFuture<PieceBuffer>> requestPieceBatch(Peer peer, String fileHash, int[] pieceIndices) {
+        logger.debug("Requesting {} pieces of file {} from peer {}", 
+                    pieceIndices.length, fileHash, peer.getId());
+        FallbackTransfer.Route route = linkMonitor.route(runtime.resolve(peer));
+        List<CompletableFuture<PieceBuffer>> firstAttempts = route == FallbackTransfer.Route.TCP_ONLY ? null
+            : udpReceiver.requestPieces(peer, fileHash, pieceIndices, config.getUdpAttemptTimeout());
+        List<CompletableFuture<PieceBuffer>> pieces = new ArrayList<>(pieceIndices.length);
+        for (int i = 0; i < pieceIndices.length; i++) {
+            pieces.add(fetch(peer, fileHash, pieceIndices[i], firstAttempts != null ? firstAttempts.get(i) : null,
+                             route));
+        }
+        return pieces;
+    }
+    
+    /**
+     * Fetch one piece with UDP/TCP fallback
+     *
+     * @param firstUdpAttempt A UDP request already issued for the piece, used as the
+     *                        first attempt, or null to issue one
+     * @param route Route from the link monitor
+     */
+    private CompletableFuture<PieceBuffer> fetch(Peer peer, String fileHash, int pieceIndex,
+                                                 CompletableFuture<PieceBuffer> firstUdpAttempt,
+                                                 FallbackTransfer.Route route) {
+        activeReceives.incrementAndGet();
+        totalReceives.incrementAndGet();
+        
+        AtomicReference<CompletableFuture<PieceBuffer>> issued = new AtomicReference<>(firstUdpAttempt);
+        FallbackTransfer<PieceBuffer> transfer = new FallbackTransfer<>(
+            "Request of piece " + pieceIndex + " from " + peer.getId(),
+            timeout -> {
+                CompletableFuture<PieceBuffer> attempt = issued.getAndSet(null);
+                return attempt != null ? attempt : udpReceiver.requestPiece(peer, fileHash, pieceIndex, timeout);
+            },
+            timeout -> tcpSender.requestPiece(peer, fileHash, pieceIndex, timeout),
+            config.getUdpAttemptTimeout(), config.getTransferTimeout(), receiveStages,
+            runtime.getFallbackExecutor(), runtime.getReceiveExecutor());
+        
+        transfer.observe(linkMonitor.observer(runtime.resolve(peer), fileHash, pieceIndex));
+        return transfer.start(route).whenComplete((piece, error) -> {
+            activeReceives.decrementAndGet();
+            if (error != null) {
+                failedReceives.incrementAndGet();
+                reportCorrupt(error, fileHash, pieceIndex);
+            } else if (piece != null) {
+                bytesReceived.addAndGet(piece.getLength());
+            }
+        });
+    }
+    
+    @Override
+    public CompletableFuture<Void> requestPieceToFile(Peer peer, String fileHash, int pieceIndex, FileChannel target) {
+        String expectedHash = pieceVerifier.expectedHash(fileHash, pieceIndex);
+        if (expectedHash == null) {
+            return CompletableFuture.failedFuture(new IllegalArgumentException(
+                "Piece " + pieceIndex + " of unregistered file " + fileHash));
+        }
+        FileMetadata metadata = pieceVerifier.getManifest(fileHash);
+        long position = (long) pieceIndex * metadata.getPieceSize();
+        int length = (int) Math.min(metadata.getPieceSize(), metadata.getFileSize() - position);
+        logger.debug("Requesting piece {} of file {} from peer {} into file", pieceIndex, fileHash, peer.getId());
         
         activeReceives.incrementAndGet();
         totalReceives.incrementAndGet();
         
-        return udpReceiver.requestPiece(peer, fileHash, pieceIndex)
-            .handle((piece, error) -> {
-                activeReceives.decrementAndGet();
-                
-                if (error != null) {
-                    logger.warn("UDP receive failed, trying TCP fallback");
-                    failedReceives.incrementAndGet();
-                    
-                    // Try TCP fallback
-                    return tcpSender.requestPiece(peer, fileHash, pieceIndex)
-                        .handle((tcpPiece, tcpError) -> {
-                            if (tcpError != null) {
-                                failedReceives.incrementAndGet();
-                                throw new RuntimeException("Failed to receive piece", tcpError);
-                            }
-                            if (tcpPiece != null) {
-                                bytesReceived.addAndGet(tcpPiece.getData().length);
-                            }
-                            return tcpPiece;
-                        }).join();
-                }
-                
-                if (piece != null) {
-                    bytesReceived.addAndGet(piece.getData().length);
+        FallbackTransfer<Void> transfer = new FallbackTransfer<>(
+            "Request of piece " + pieceIndex + " from " + peer.getId(),
+            timeout -> intoFile(target, position, length, expectedHash,
+                                sink -> udpReceiver.requestPieceInto(peer, fileHash, pieceIndex, sink, timeout)),
+            timeout -> intoFile(target, position, length, expectedHash,
+                                sink -> tcpSender.requestPieceInto(peer, fileHash, pieceIndex, sink, timeout)),
+            config.getUdpAttemptTimeout(), config.getTransferTimeout(), receiveStages,
+            runtime.getFallbackExecutor(), runtime.getReceiveExecutor());
+        
+        InetSocketAddress address = runtime.resolve(peer);
+        transfer.observe(linkMonitor.observer(address, fileHash, pieceIndex));
+        return transfer.start(linkMonitor.route(address)).whenComplete((result, error) -> {
+            activeReceives.decrementAndGet();
+            if (error != null) {
+                failedReceives.incrementAndGet();
+                reportCorrupt(error, fileHash, pieceIndex);
+            } else {
+                bytesReceived.addAndGet(length);
+            }
+        });
+    }
+    
+    /**
+     * Tell the link listener about a piece whose last attempt delivered corrupt data
+     */
+    private void reportCorrupt(Throwable error, String fileHash, int pieceIndex) {
+        if (FallbackTransfer.unwrap(error) instanceof PieceCorruptException) {
+            linkMonitor.pieceCorrupt(fileHash, pieceIndex);
+        }
+    }
+    
+    /**
+     * One attempt with its own sink, which is closed when the attempt ends so it
+     * cannot write over the next attempt. The digest is checked on the verify pool.
+     */
+    private CompletableFuture<Void> intoFile(FileChannel target, long position, int length, String expectedHash,
+                                             Function<PieceSink, CompletableFuture<Void>> attempt) {
+        PieceSink sink = new PieceSink(target, position, length, expectedHash);
+        return attempt.apply(sink)
+            .whenComplete((result, error) -> sink.close())
+            .thenApplyAsync(received -> {
+                if (!sink.verify()) {
+                    throw new CompletionException(new PieceCorruptException("Piece verification failed"));
                 }
-                return piece;
-            });
+                return null;
+            }, runtime.getVerifyExecutor());
+    }
+    
+    @Override
+    public CompletableFuture<Block> requestBlock(Peer peer, String fileHash, int pieceIndex, int offset, int length) {
+        if (!BlockHeader.isValidRange(pieceIndex, offset, length)) {
+            return CompletableFuture.failedFuture(new IllegalArgumentException(
+                "Invalid block " + offset + "+" + length + " of piece " + pieceIndex));
+        }
+        logger.debug("Requesting block {}+{} of piece {} of file {} from peer {}",
+                    offset, length, pieceIndex, fileHash, peer.getId());
+        
+        activeReceives.incrementAndGet();
+        totalReceives.incrementAndGet();
+        
+        FallbackTransfer<Block> transfer = new FallbackTransfer<>(
+            "Request of block " + offset + " of piece " + pieceIndex + " from " + peer.getId(),
+            timeout -> udpReceiver.requestBlock(peer, fileHash, pieceIndex, offset, length, timeout),
+            timeout -> tcpSender.requestBlock(peer, fileHash, pieceIndex, offset, length, timeout),
+            config.getUdpAttemptTimeout(), config.getTransferTimeout(), receiveStages,
+            runtime.getFallbackExecutor(), runtime.getReceiveExecutor());
+        
+        InetSocketAddress address = runtime.resolve(peer);
+        transfer.observe(linkMonitor.observer(address, fileHash, pieceIndex));
+        return transfer.start(linkMonitor.route(address)).whenComplete((block, error) -> {
+            activeReceives.decrementAndGet();
+            if (error != null) {
+                failedReceives.incrementAndGet();
+            } else {
+                bytesReceived.addAndGet(block.getData().length);
+            }
+        });
+    }
+    
+    @Override
+    public void retransmitSeq(String fileHash, int pieceIndex, List<Integer> seqList) {
+        logger.debug("Retransmitting {} sequences of piece {} of file {}", 
+                    seqList.size(), pieceIndex, fileHash);
+        udpSender.retransmitSeq(fileHash, pieceIndex, seqList);
     }
     
     @Override
@@ -120,7 +319,11 @@ public class DataService implements DataApi {
     public void stopListening() {
         logger.info("Stopping data service");
         udpReceiver.stop();
+        udpSender.close();
         tcpSender.stopServer();
+        multicast.close();
+        sharedFiles.close();
+        runtime.close();
     }
     
     @Override
@@ -128,6 +331,56 @@ public class DataService implements DataApi {
         this.requestHandler = handler;
     }
     
+    @Override
+    public void registerLinkListener(LinkListener listener) {
+        linkMonitor.setListener(listener);
+    }
+    
+    @Override
+    public void registerFile(FileMetadata metadata) {
+        pieceVerifier.register(metadata);
+    }
+    
+    @Override
+    public void shareFile(FileMetadata metadata, Path path) throws IOException {
+        sharedFiles.share(metadata, path);
+        pieceVerifier.register(metadata);
+    }
+    
+    @Override
+    public void unshareFile(String fileHash) {
+        sharedFiles.unshare(fileHash);
+        uploadLimiter.removeFile(fileHash);
+    }
+    
+    @Override
+    public CompletableFuture<Void> multicastFile(String fileHash) {
+        SharedFiles.SharedFile file = sharedFiles.get(fileHash);
+        if (file == null) {
+            return CompletableFuture.failedFuture(new IllegalArgumentException("File " + fileHash + " is not shared"));
+        }
+        try {
+            multicast.start();
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return multicast.send(file);
+    }
+    
+    @Override
+    public CompletableFuture<Void> receiveMulticast(String fileHash, FileChannel target) {
+        FileMetadata metadata = pieceVerifier.getManifest(fileHash);
+        if (metadata == null) {
+            return CompletableFuture.failedFuture(new IllegalArgumentException("File " + fileHash + " is not registered"));
+        }
+        try {
+            multicast.start();
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return multicast.receive(metadata, target);
+    }
+    
     @Override
     public DataTransferStats getStats() {
         return new DataTransferStats(
@@ -138,16 +391,177 @@ public class DataService implements DataApi {
             totalSends.get(),
             totalReceives.get(),
             failedSends.get(),
-            failedReceives.get()
+            failedReceives.get(),
+            udpReceiver.getQueueDepth(),
+            udpReceiver.getDroppedDatagrams(),
+            udpReceiver.getRejectedServes(),
+            runtime.getQueuedTasks(),
+            sendStages[FallbackTransfer.Stage.UDP.ordinal()].snapshot(),
+            sendStages[FallbackTransfer.Stage.UDP_RETRY.ordinal()].snapshot(),
+            sendStages[FallbackTransfer.Stage.TCP.ordinal()].snapshot(),
+            receiveStages[FallbackTransfer.Stage.UDP.ordinal()].snapshot(),
+            receiveStages[FallbackTransfer.Stage.UDP_RETRY.ordinal()].snapshot(),
+            receiveStages[FallbackTransfer.Stage.TCP.ordinal()].snapshot(),
+            compressor.getStats()
         );
     }
     
+    @Override
+    public Executor getVerifyExecutor() {
+        return runtime.getVerifyExecutor();
+    }
+    
+    private static StageCounter[] newStageCounters() {
+        StageCounter[] counters = new StageCounter[FallbackTransfer.Stage.values().length];
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = new StageCounter();
+        }
+        return counters;
+    }
+    
+    public DataConfig getConfig() {
+        return config;
+    }
+    
+    public LinkMonitor getLinkMonitor() {
+        return linkMonitor;
+    }
+    
+    /**
+     * Path MTU that UDP transfers to a peer are currently sized for
+     */
+    public int getPathMtu(Peer peer) {
+        return udpSender.getPathMtu(runtime.resolve(peer));
+    }
+    
     /**
-     * Handle incoming piece request
+     * Whether a host has recently acknowledged data we sent it over UDP
      */
-    public Piece handleIncomingRequest(Peer peer, String fileHash, int pieceIndex) {
+    public boolean hasAcknowledgedUdp(InetAddress host) {
+        return udpSender.hasAcknowledged(host);
+    }
+    
+    public PieceCompressor getCompressor() {
+        return compressor;
+    }
+    
+    public DataRuntime getRuntime() {
+        return runtime;
+    }
+    
+    public SharedFiles getSharedFiles() {
+        return sharedFiles;
+    }
+    
+    public PieceVerifier getPieceVerifier() {
+        return pieceVerifier;
+    }
+    
+    /**
+     * Limiter for every byte we send (global, per-peer and per-file rates are adjustable at runtime)
+     */
+    public RateLimiter getUploadLimiter() {
+        return uploadLimiter;
+    }
+    
+    /**
+     * Limiter for every byte we download
+     */
+    public RateLimiter getDownloadLimiter() {
+        return downloadLimiter;
+    }
+    
+    /**
+     * Change the global upload limit at runtime, keeping the per-peer fair share in step
+     */
+    public void setUploadRateLimit(long bytesPerSecond) {
+        uploadLimiter.setGlobalRate(bytesPerSecond);
+        uploadLimiter.setDefaultPeerRate(bytesPerSecond / Math.max(1, config.getMaxUploads()));
+    }
+    
+    /**
+     * Change the global download limit at runtime, keeping the per-peer fair share in step
+     */
+    public void setDownloadRateLimit(long bytesPerSecond) {
+        downloadLimiter.setGlobalRate(bytesPerSecond);
+        downloadLimiter.setDefaultPeerRate(bytesPerSecond / Math.max(1, config.getMaxDownloads()));
+    }
+    
+    /**
+     * Complete our pending request with a piece a peer pushed over TCP,
+     * taking over the piece if it is accepted
+     * 
+     * @param source Host that pushed the piece
+     * @return false if no request for the piece is pending with that host
+     */
+    public boolean deliverPiece(InetAddress source, PieceBuffer piece) {
+        return udpReceiver.deliverPiece(source, piece);
+    }
+    
+    /**
+     * Length a host may push for a piece: the manifest's, if a request for it is
+     * pending with that host, else -1
+     */
+    int expectedPushLength(InetAddress source, String fileHash, int pieceIndex) {
+        return udpReceiver.expectsPiece(source, fileHash, pieceIndex)
+            ? pieceVerifier.expectedLength(fileHash, pieceIndex) : -1;
+    }
+    
+    /**
+     * Send a requested block back over UDP as the transfer the requester named
+     */
+    CompletableFuture<Void> sendBlock(Peer peer, Block block, int transferId) {
+        return udpSender.sendBlock(peer, block, transferId, config.getUdpAttemptTimeout()).whenComplete((result, error) -> {
+            if (error == null) {
+                bytesSent.addAndGet(block.getData().length);
+            }
+        });
+    }
+    
+    /**
+     * Handle incoming block request: read just the range from a shared file,
+     * otherwise cut it out of the piece the registered handler returns
+     */
+    public Block handleIncomingBlockRequest(Peer peer, String fileHash, int pieceIndex, int offset, int length) {
+        SharedFiles.SharedFile shared = sharedFiles.get(fileHash);
+        if (shared != null && shared.hasPiece(pieceIndex)) {
+            if (!shared.hasBlock(pieceIndex, offset, length)) {
+                return null;
+            }
+            try {
+                return shared.readBlock(pieceIndex, offset, length);
+            } catch (IOException e) {
+                logger.error("Failed to read block of piece {} of {} from disk", pieceIndex, fileHash, e);
+                return null;
+            }
+        }
+        
+        Piece piece = requestHandler != null ? requestHandler.handlePieceRequest(peer, fileHash, pieceIndex) : null;
+        if (piece == null || !BlockHeader.isValidRange(pieceIndex, offset, length)
+            || (long) offset + length > piece.getData().length) {
+            return null;
+        }
+        return new Block(piece.getFileHash(), pieceIndex, offset,
+                         Arrays.copyOfRange(piece.getData(), offset, offset + length));
+    }
+    
+    /**
+     * Handle incoming piece request: files shared from disk first (as slices of
+     * the mapped file), then the registered handler. The caller releases the
+     * returned piece once it has been sent.
+     */
+    public PieceBuffer handleIncomingRequest(Peer peer, String fileHash, int pieceIndex) {
+        SharedFiles.SharedFile shared = sharedFiles.get(fileHash);
+        if (shared != null && shared.hasPiece(pieceIndex)) {
+            try {
+                return shared.mapPiece(pieceIndex);
+            } catch (IOException e) {
+                logger.error("Failed to map piece {} of {} from disk", pieceIndex, fileHash, e);
+                return null;
+            }
+        }
         if (requestHandler != null) {
-            return requestHandler.handlePieceRequest(peer, fileHash, pieceIndex);
+            return requestHandler.handlePieceBufferRequest(peer, fileHash, pieceIndex);
         }
         return null;
     }
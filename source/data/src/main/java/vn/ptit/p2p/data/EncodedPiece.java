@@ -0,0 +1,25 @@
+package vn.ptit.p2p.data;
+
+import vn.ptit.p2p.common.Models.PieceBuffer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A piece whose data is compressed for the wire. Its length is that of the
+ * encoded data; {@link PieceHeader} carries the encoding and the length of the
+ * piece itself, and {@link PieceCompressor#decode} restores the piece before
+ * it is verified.
+ */
+public class EncodedPiece extends PieceBuffer {
+    private final byte encoding;
+    private final int pieceLength;
+    
+    public EncodedPiece(String fileHash, int index, ByteBuffer data, String hash, byte encoding, int pieceLength) {
+        super(fileHash, index, data, hash);
+        this.encoding = encoding;
+        this.pieceLength = pieceLength;
+    }
+    
+    public byte getEncoding() { return encoding; }
+    public int getPieceLength() { return pieceLength; }
+}
@@ -0,0 +1,192 @@
+package vn.ptit.p2p.data;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * State machine for one piece transfer: UDP, then one UDP retry, then TCP.
+ * Every attempt gets its own deadline, and moving to the next stage is
+ * scheduled on the fallback executor, so no transport, timer or pool thread
+ * ever waits for another transfer to finish. The outcome is handed to the
+ * caller on the delivery executor instead, so slow callbacks on the result
+ * (copying or hashing a piece) never hold up stage changes of other transfers.
+ * A transfer may also start straight at TCP, or probe UDP once before TCP,
+ * when the link to the peer has been found too lossy for UDP (see {@link LinkMonitor}).
+ */
+public class FallbackTransfer<T> {
+    private static final Logger logger = LoggerFactory.getLogger(FallbackTransfer.class);
+    
+    public enum Stage {
+        UDP,
+        UDP_RETRY,
+        TCP;
+        
+        Stage next() {
+            switch (this) {
+                case UDP:
+                    return UDP_RETRY;
+                case UDP_RETRY:
+                    return TCP;
+                default:
+                    return null;
+            }
+        }
+    }
+    
+    /**
+     * Which stages a transfer goes through
+     */
+    public enum Route {
+        UDP_FIRST,  // UDP, UDP retry, TCP
+        UDP_PROBE,  // one UDP attempt, then TCP
+        TCP_ONLY
+    }
+    
+    /**
+     * Starts one attempt, which should give up on its own once the deadline passes
+     */
+    public interface Attempt<T> {
+        CompletableFuture<T> start(long timeoutMillis);
+    }
+    
+    /**
+     * Told about the outcome of every attempt, error null on success
+     */
+    public interface Observer {
+        void onAttempt(Stage stage, Throwable error);
+    }
+    
+    private final String description;
+    private final Attempt<T> udp;
+    private final Attempt<T> tcp;
+    private final long udpTimeoutMillis;
+    private final long tcpTimeoutMillis;
+    private final StageCounter[] counters;
+    private final Executor executor;
+    private final Executor deliveryExecutor;
+    private final CompletableFuture<T> result = new CompletableFuture<>();
+    private Observer observer = (stage, error) -> { };
+    private volatile boolean retryUdp = true;
+    private volatile Stage stage;
+    
+    /**
+     * @param counters One counter per {@link Stage}, in declaration order
+     * @param executor Runs the moves from one stage to the next, which never block
+     * @param deliveryExecutor Completes the returned future, and so runs the callbacks on it
+     */
+    public FallbackTransfer(String description, Attempt<T> udp, Attempt<T> tcp,
+                            long udpTimeoutMillis, long tcpTimeoutMillis,
+                            StageCounter[] counters, Executor executor, Executor deliveryExecutor) {
+        this.description = description;
+        this.udp = udp;
+        this.tcp = tcp;
+        this.udpTimeoutMillis = udpTimeoutMillis;
+        this.tcpTimeoutMillis = tcpTimeoutMillis;
+        this.counters = counters;
+        this.executor = executor;
+        this.deliveryExecutor = deliveryExecutor;
+    }
+    
+    public Stage getStage() { return stage; }
+    
+    /**
+     * Set before starting the transfer
+     */
+    public FallbackTransfer<T> observe(Observer observer) {
+        this.observer = observer;
+        return this;
+    }
+    
+    public CompletableFuture<T> start() {
+        return start(Route.UDP_FIRST);
+    }
+    
+    public CompletableFuture<T> start(Route route) {
+        retryUdp = route == Route.UDP_FIRST;
+        run(route == Route.TCP_ONLY ? Stage.TCP : Stage.UDP);
+        return result;
+    }
+    
+    private void run(Stage current) {
+        stage = current;
+        StageCounter counter = counters[current.ordinal()];
+        counter.attempt();
+        
+        long timeoutMillis = current == Stage.TCP ? tcpTimeoutMillis : udpTimeoutMillis;
+        CompletableFuture<T> attempt;
+        try {
+            attempt = (current == Stage.TCP ? tcp : udp).start(timeoutMillis);
+        } catch (RuntimeException e) {
+            attempt = CompletableFuture.failedFuture(e);
+        }
+        
+        // Safety net for attempts that do not enforce their deadline themselves
+        attempt.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS).whenComplete((value, error) -> execute(executor, () -> {
+            if (error == null) {
+                counter.success();
+                report(current, null);
+                deliver(() -> result.complete(value));
+                return;
+            }
+            
+            Throwable cause = unwrap(error);
+            if (cause instanceof TimeoutException) {
+                counter.timeout();
+            } else {
+                counter.failure();
+            }
+            report(current, cause);
+            
+            Stage next = current == Stage.UDP && !retryUdp ? Stage.TCP : current.next();
+            if (next == null) {
+                deliver(() -> result.completeExceptionally(cause));
+                return;
+            }
+            logger.warn("{} failed over {} ({}), trying {}", description, current, cause.getMessage(), next);
+            run(next);
+        }));
+    }
+    
+    /**
+     * Complete the result on the delivery executor
+     */
+    private void deliver(Runnable completion) {
+        execute(deliveryExecutor, completion);
+    }
+    
+    /**
+     * Run a task on an executor, or right here if its queue is full: the
+     * transfer must move on either way, or its result would never complete
+     */
+    private static void execute(Executor executor, Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            task.run();
+        }
+    }
+    
+    private void report(Stage current, Throwable error) {
+        try {
+            observer.onAttempt(current, error);
+        } catch (RuntimeException e) {
+            logger.warn("Observer of {} failed", description, e);
+        }
+    }
+    
+    static Throwable unwrap(Throwable error) {
+        while ((error instanceof CompletionException || error instanceof ExecutionException)
+               && error.getCause() != null) {
+            error = error.getCause();
+        }
+        return error;
+    }
+}
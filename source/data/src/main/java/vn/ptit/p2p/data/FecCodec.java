@@ -0,0 +1,183 @@
+package vn.ptit.p2p.data;
+
+/**
+ * Systematic Reed-Solomon erasure code over GF(2^8) for groups of UDP segments.
+ * Parity block j of a group is the sum over its data blocks i of
+ * coefficient(j, i) * data[i]. The coefficients form a Cauchy matrix with each
+ * column scaled so that parity block 0 is the plain XOR of the group, so a
+ * group with a single parity block is an XOR parity group; any e missing data
+ * blocks can be rebuilt from any e parity blocks. Coefficients do not depend
+ * on the group size, which lets the last, shorter group of a transfer use the
+ * same table.
+ */
+public final class FecCodec {
+    public static final int MAX_GROUP_SIZE = 128;
+    public static final int MAX_PARITY = 128;
+    
+    private static final int POLYNOMIAL = 0x11d;
+    private static final int[] LOG = new int[256];
+    private static final int[] EXP = new int[510];
+    private static final byte[] MUL = new byte[256 * 256];
+    private static final byte[] COEFFICIENTS = new byte[MAX_PARITY * MAX_GROUP_SIZE];
+    
+    static {
+        int x = 1;
+        for (int i = 0; i < 255; i++) {
+            EXP[i] = x;
+            EXP[i + 255] = x;
+            LOG[x] = i;
+            x <<= 1;
+            if (x >= 256) {
+                x ^= POLYNOMIAL;
+            }
+        }
+        for (int a = 1; a < 256; a++) {
+            for (int b = 1; b < 256; b++) {
+                MUL[a << 8 | b] = (byte) EXP[LOG[a] + LOG[b]];
+            }
+        }
+        
+        // Cauchy matrix 1 / (x_j + y_i) with y_i = i and x_j = MAX_GROUP_SIZE + j (all distinct),
+        // each column divided by its row 0 entry
+        for (int j = 0; j < MAX_PARITY; j++) {
+            for (int i = 0; i < MAX_GROUP_SIZE; i++) {
+                int first = MAX_GROUP_SIZE ^ i;
+                int entry = (MAX_GROUP_SIZE + j) ^ i;
+                COEFFICIENTS[j * MAX_GROUP_SIZE + i] = (byte) mul(first, inverse(entry));
+            }
+        }
+    }
+    
+    private FecCodec() {
+    }
+    
+    public static int coefficient(int parityIndex, int dataIndex) {
+        return COEFFICIENTS[parityIndex * MAX_GROUP_SIZE + dataIndex] & 0xff;
+    }
+    
+    /**
+     * Add c * src to dst over the first length bytes
+     */
+    public static void mulAdd(byte[] dst, byte[] src, int length, int c) {
+        if (c == 0) {
+            return;
+        }
+        if (c == 1) {
+            for (int n = 0; n < length; n++) {
+                dst[n] ^= src[n];
+            }
+            return;
+        }
+        int row = c << 8;
+        for (int n = 0; n < length; n++) {
+            dst[n] ^= MUL[row | (src[n] & 0xff)];
+        }
+    }
+    
+    /**
+     * Rebuild the missing data blocks of a group in place
+     *
+     * @param data Data blocks of the group, each blockSize bytes (zero padded), null where missing
+     * @param parity Parity blocks by parity index, null where missing
+     * @return false, leaving data untouched, if fewer parity blocks than missing data blocks are present
+     */
+    public static boolean recover(byte[][] data, byte[][] parity, int blockSize) {
+        int[] missing = new int[data.length];
+        int missingCount = 0;
+        for (int i = 0; i < data.length; i++) {
+            if (data[i] == null) {
+                missing[missingCount++] = i;
+            }
+        }
+        if (missingCount == 0) {
+            return true;
+        }
+        
+        int[] rows = new int[missingCount];
+        int rowCount = 0;
+        for (int j = 0; j < parity.length && rowCount < missingCount; j++) {
+            if (parity[j] != null) {
+                rows[rowCount++] = j;
+            }
+        }
+        if (rowCount < missingCount) {
+            return false;
+        }
+        
+        // What each chosen parity block owes to the missing blocks alone
+        byte[][] syndromes = new byte[missingCount][];
+        int[][] matrix = new int[missingCount][missingCount];
+        for (int r = 0; r < missingCount; r++) {
+            byte[] syndrome = parity[rows[r]].clone();
+            for (int i = 0; i < data.length; i++) {
+                if (data[i] != null) {
+                    mulAdd(syndrome, data[i], blockSize, coefficient(rows[r], i));
+                }
+            }
+            syndromes[r] = syndrome;
+            for (int c = 0; c < missingCount; c++) {
+                matrix[r][c] = coefficient(rows[r], missing[c]);
+            }
+        }
+        
+        int[][] decoding = invert(matrix);
+        for (int c = 0; c < missingCount; c++) {
+            byte[] block = new byte[blockSize];
+            for (int r = 0; r < missingCount; r++) {
+                mulAdd(block, syndromes[r], blockSize, decoding[c][r]);
+            }
+            data[missing[c]] = block;
+        }
+        return true;
+    }
+    
+    /**
+     * Gauss-Jordan inversion; every square submatrix of a Cauchy matrix is invertible
+     */
+    private static int[][] invert(int[][] matrix) {
+        int n = matrix.length;
+        int[][] a = new int[n][];
+        int[][] result = new int[n][n];
+        for (int r = 0; r < n; r++) {
+            a[r] = matrix[r].clone();
+            result[r][r] = 1;
+        }
+        
+        for (int col = 0; col < n; col++) {
+            int pivot = col;
+            while (a[pivot][col] == 0) {
+                pivot++;
+            }
+            int[] swap = a[pivot];
+            a[pivot] = a[col];
+            a[col] = swap;
+            swap = result[pivot];
+            result[pivot] = result[col];
+            result[col] = swap;
+            
+            int scale = inverse(a[col][col]);
+            for (int c = 0; c < n; c++) {
+                a[col][c] = mul(a[col][c], scale);
+                result[col][c] = mul(result[col][c], scale);
+            }
+            for (int r = 0; r < n; r++) {
+                int factor = a[r][col];
+                if (r != col && factor != 0) {
+                    for (int c = 0; c < n; c++) {
+                        a[r][c] ^= mul(factor, a[col][c]);
+                        result[r][c] ^= mul(factor, result[col][c]);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+    
+    private static int mul(int a, int b) {
+        return a == 0 || b == 0 ? 0 : EXP[LOG[a] + LOG[b]];
+    }
+    
+    private static int inverse(int a) {
+        return EXP[255 - LOG[a]];
+    }
+}
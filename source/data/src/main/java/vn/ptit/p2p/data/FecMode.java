@@ -0,0 +1,94 @@
+package vn.ptit.p2p.data;
+
+/**
+ * Forward error correction for UDP transfers: parity segments sent after each
+ * group of data segments let the receiver rebuild lost segments without
+ * waiting a round trip for their retransmission. How much parity is sent is
+ * tuned from the loss rate recently observed towards the peer, aiming for at
+ * most RESIDUAL_TARGET of groups still needing a retransmission.
+ */
+public enum FecMode {
+    NONE,          // Losses are only repaired by retransmission
+    XOR,           // One XOR parity segment per group, groups shrink as loss grows
+    REED_SOLOMON;  // Fixed groups with as many Reed-Solomon parity segments as the loss calls for
+    
+    public static final double RESIDUAL_TARGET = 0.01;
+    public static final double MIN_LOSS = 0.001; // below this no parity is sent at all
+    
+    /**
+     * Group size and parity segments per group for the next transfer
+     * 
+     * @param lossRate Recent fraction of data segments lost on the way to the peer
+     * @param maxGroupSize Configured data segments per group, at most {@link FecCodec#MAX_GROUP_SIZE}
+     * @return The plan, with no parity if FEC is off or the link is clean
+     */
+    public Plan plan(double lossRate, int maxGroupSize) {
+        int maxGroup = Math.max(2, Math.min(FecCodec.MAX_GROUP_SIZE, maxGroupSize));
+        if (this == NONE || lossRate < MIN_LOSS) {
+            return Plan.OFF;
+        }
+        
+        if (this == XOR) {
+            int groupSize = maxGroup;
+            while (groupSize > 2 && residual(groupSize + 1, 1, lossRate) > RESIDUAL_TARGET) {
+                groupSize--;
+            }
+            return new Plan(groupSize, 1);
+        }
+        
+        int parity = 1;
+        while (parity < Math.min(maxGroup, FecCodec.MAX_PARITY)
+               && residual(maxGroup + parity, parity, lossRate) > RESIDUAL_TARGET) {
+            parity++;
+        }
+        return new Plan(maxGroup, parity);
+    }
+    
+    /**
+     * Probability that more than tolerated of n segments are lost, with independent losses
+     */
+    private static double residual(int n, int tolerated, double lossRate) {
+        double p = Math.min(lossRate, 0.99);
+        double term = Math.pow(1 - p, n); // P(0 lost)
+        double atMost = term;
+        for (int lost = 1; lost <= tolerated; lost++) {
+            term *= (double) (n - lost + 1) / lost * p / (1 - p);
+            atMost += term;
+        }
+        return Math.max(0, 1 - atMost);
+    }
+    
+    /**
+     * Parse a config value such as "xor", falling back to NONE when unknown
+     */
+    public static FecMode fromString(String name) {
+        if (name != null) {
+            String normalized = name.trim().replace('-', '_');
+            for (FecMode mode : values()) {
+                if (mode.name().equalsIgnoreCase(normalized)) {
+                    return mode;
+                }
+            }
+        }
+        return NONE;
+    }
+    
+    /**
+     * How one transfer is protected: parityCount parity segments after every groupSize data segments
+     */
+    public static final class Plan {
+        public static final Plan OFF = new Plan(0, 0);
+        
+        private final int groupSize;
+        private final int parityCount;
+        
+        public Plan(int groupSize, int parityCount) {
+            this.groupSize = groupSize;
+            this.parityCount = parityCount;
+        }
+        
+        public int getGroupSize() { return groupSize; }
+        public int getParityCount() { return parityCount; }
+        public boolean isEnabled() { return parityCount > 0; }
+    }
+}
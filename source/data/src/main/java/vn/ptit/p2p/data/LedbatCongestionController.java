@@ -0,0 +1,101 @@
+package vn.ptit.p2p.data;
+
+/**
+ * LEDBAT (RFC 6817) delay-based "scavenger" control for background seeding.
+ * The window grows only while the measured queuing delay stays below the
+ * target and shrinks as soon as other traffic starts filling the queues,
+ * so seeding yields to interactive and business traffic automatically.
+ */
+public class LedbatCongestionController implements CongestionController {
+    private static final long TARGET_MICROS = 25_000;
+    private static final double GAIN = 1.0;
+    private static final int ALLOWED_INCREASE = 1;
+    private static final long BASE_BUCKET_NANOS = 60_000_000_000L;
+    private static final int BASE_HISTORY = 10;
+    private static final int CURRENT_FILTER = 4;
+    
+    private final int maxWindow;
+    private double cwnd;
+    
+    // Minimum one-way delay per minute over the last BASE_HISTORY minutes
+    private final int[] baseDelays = new int[BASE_HISTORY];
+    private int baseCount;
+    private long baseBucketStartNanos;
+    
+    // Most recent delay samples, filtered with a minimum against noise
+    private final int[] currentDelays = new int[CURRENT_FILTER];
+    private int currentCount;
+    
+    public LedbatCongestionController(int initialWindow, int maxWindow) {
+        this.maxWindow = maxWindow;
+        this.cwnd = Math.max(MIN_WINDOW, Math.min(initialWindow, maxWindow));
+    }
+    
+    @Override
+    public void onAck(int ackedSegments, long rttMicros, int delayMicros, long nowNanos) {
+        updateBaseDelay(delayMicros, nowNanos);
+        currentDelays[currentCount++ % CURRENT_FILTER] = delayMicros;
+        
+        // Delays are compared with int subtraction because clocks are unsynchronised and wrap
+        long queuingDelay = minCurrentDelay() - minBaseDelay();
+        double offTarget = (double) (TARGET_MICROS - queuingDelay) / TARGET_MICROS;
+        
+        cwnd += GAIN * offTarget * ackedSegments / cwnd;
+        cwnd = Math.max(MIN_WINDOW, Math.min(cwnd, Math.min(maxWindow, getWindow() + ALLOWED_INCREASE)));
+    }
+    
+    @Override
+    public void onLoss(long nowNanos) {
+        cwnd = Math.max(MIN_WINDOW, cwnd / 2);
+    }
+    
+    @Override
+    public void onTimeout(long nowNanos) {
+        cwnd = MIN_WINDOW;
+    }
+    
+    @Override
+    public int getWindow() {
+        return (int) cwnd;
+    }
+    
+    private void updateBaseDelay(int delayMicros, long nowNanos) {
+        if (baseCount == 0) {
+            baseDelays[0] = delayMicros;
+            baseCount = 1;
+            baseBucketStartNanos = nowNanos;
+            return;
+        }
+        
+        if (nowNanos - baseBucketStartNanos > BASE_BUCKET_NANOS) {
+            // Start a new minute, forgetting the oldest one
+            System.arraycopy(baseDelays, 0, baseDelays, 1, BASE_HISTORY - 1);
+            baseDelays[0] = delayMicros;
+            baseCount = Math.min(baseCount + 1, BASE_HISTORY);
+            baseBucketStartNanos = nowNanos;
+        } else if (delayMicros - baseDelays[0] < 0) {
+            baseDelays[0] = delayMicros;
+        }
+    }
+    
+    private int minBaseDelay() {
+        int min = baseDelays[0];
+        for (int i = 1; i < baseCount; i++) {
+            if (baseDelays[i] - min < 0) {
+                min = baseDelays[i];
+            }
+        }
+        return min;
+    }
+    
+    private int minCurrentDelay() {
+        int n = Math.min(currentCount, CURRENT_FILTER);
+        int min = currentDelays[0];
+        for (int i = 1; i < n; i++) {
+            if (currentDelays[i] - min < 0) {
+                min = currentDelays[i];
+            }
+        }
+        return min;
+    }
+}
@@ -0,0 +1,169 @@
+package vn.ptit.p2p.data;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import vn.ptit.p2p.dataapi.DataApi;
+
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Tracks the quality of the link to every peer, by the peer's data address,
+ * and decides which route new transfers with it take. A peer whose loss rate
+ * rises above the TCP threshold is moved to TCP; while it is there, one
+ * transfer per probe interval still tries UDP first, and once the probes have
+ * brought the loss rate below the UDP threshold the peer moves back. The gap
+ * between the two thresholds keeps a borderline link from flapping. Rising
+ * above a threshold is reported once to the {@link DataApi.LinkListener}.
+ */
+public class LinkMonitor {
+    private static final Logger logger = LoggerFactory.getLogger(LinkMonitor.class);
+    private static final int MIN_SAMPLES = 3;       // before a peer can be moved to TCP
+    private static final double PROBE_GAIN = 0.5;   // probes are rare, so each one weighs more
+    
+    private final double tcpThreshold;
+    private final double udpThreshold;
+    private final long probeIntervalNanos;
+    private final Map<InetSocketAddress, Link> links = new ConcurrentHashMap<>();
+    private volatile DataApi.LinkListener listener;
+    
+    public LinkMonitor(DataConfig config) {
+        this.tcpThreshold = config.getTcpLossThreshold();
+        this.udpThreshold = Math.min(config.getUdpLossThreshold(), config.getTcpLossThreshold());
+        this.probeIntervalNanos = TimeUnit.MILLISECONDS.toNanos(config.getUdpProbeInterval());
+    }
+    
+    public void setListener(DataApi.LinkListener listener) {
+        this.listener = listener;
+    }
+    
+    public LinkQuality quality(InetSocketAddress peer) {
+        return link(peer).quality;
+    }
+    
+    public boolean isOnTcp(InetSocketAddress peer) {
+        Link link = links.get(peer);
+        if (link == null) {
+            return false;
+        }
+        synchronized (link) {
+            return link.onTcp;
+        }
+    }
+    
+    /**
+     * Route for a new transfer with a peer. A peer on TCP gets a UDP probe
+     * once per probe interval; the caller that is handed it must start it.
+     */
+    public FallbackTransfer.Route route(InetSocketAddress peer) {
+        Link link = links.get(peer);
+        if (link == null) {
+            return FallbackTransfer.Route.UDP_FIRST;
+        }
+        synchronized (link) {
+            if (!link.onTcp) {
+                return FallbackTransfer.Route.UDP_FIRST;
+            }
+            long now = System.nanoTime();
+            if (now - link.lastProbeNanos < probeIntervalNanos) {
+                return FallbackTransfer.Route.TCP_ONLY;
+            }
+            link.lastProbeNanos = now;
+            return FallbackTransfer.Route.UDP_PROBE;
+        }
+    }
+    
+    /**
+     * Feed the outcome of one UDP transfer with a peer, moving the peer between
+     * UDP and TCP and raising alerts as its loss rate crosses the thresholds
+     *
+     * @param sent Data segments of the transfer, retransmissions included
+     * @param lost Data segments that had to be retransmitted or rebuilt
+     */
+    public void sampleLoss(InetSocketAddress peer, int sent, int lost, String fileHash, int pieceId) {
+        if (sent <= 0) {
+            return;
+        }
+        Link link = link(peer);
+        double lossRate;
+        boolean toTcp = false;
+        boolean toUdp = false;
+        boolean alert;
+        synchronized (link) {
+            link.quality.sampleLoss(sent, lost, link.onTcp ? PROBE_GAIN : LinkQuality.GAIN);
+            lossRate = link.quality.getLossRate();
+            if (!link.onTcp && lossRate > tcpThreshold && link.quality.getLossSamples() >= MIN_SAMPLES) {
+                link.onTcp = true;
+                link.lastProbeNanos = System.nanoTime();
+                toTcp = true;
+            } else if (link.onTcp && lossRate < udpThreshold) {
+                link.onTcp = false;
+                toUdp = true;
+            }
+            int level = lossRate > tcpThreshold ? 2 : lossRate > udpThreshold ? 1 : 0;
+            alert = level > link.alertLevel;
+            link.alertLevel = level;
+        }
+        
+        if (toTcp) {
+            logger.warn("Loss to {} at {}% (rtt {} us, jitter {} us), moving its transfers to TCP", peer,
+                       Math.round(lossRate * 100), link.quality.getSrttMicros(), link.quality.getJitterMicros());
+        } else if (toUdp) {
+            logger.info("Loss to {} down to {}%, moving its transfers back to UDP", peer, Math.round(lossRate * 100));
+        }
+        
+        DataApi.LinkListener current = listener;
+        if (alert && current != null) {
+            try {
+                current.onLossAlert(fileHash, pieceId, lossRate);
+            } catch (RuntimeException e) {
+                logger.warn("Link listener failed on a loss alert", e);
+            }
+        }
+    }
+    
+    /**
+     * Observer for a transfer with a peer: a UDP attempt that timed out counts
+     * as a transfer that lost everything, so a peer that stops answering over
+     * UDP is moved to TCP after a few of them
+     */
+    public FallbackTransfer.Observer observer(InetSocketAddress peer, String fileHash, int pieceId) {
+        return (stage, error) -> {
+            if (stage != FallbackTransfer.Stage.TCP && error instanceof TimeoutException) {
+                sampleLoss(peer, 1, 1, fileHash, pieceId);
+            }
+        };
+    }
+    
+    /**
+     * A requested piece could not be received intact over any route
+     */
+    public void pieceCorrupt(String fileHash, int pieceId) {
+        DataApi.LinkListener current = listener;
+        if (current == null) {
+            return;
+        }
+        try {
+            current.onPieceCrcError(fileHash, pieceId);
+        } catch (RuntimeException e) {
+            logger.warn("Link listener failed on a CRC error", e);
+        }
+    }
+    
+    private Link link(InetSocketAddress peer) {
+        return links.computeIfAbsent(peer, k -> new Link());
+    }
+    
+    /**
+     * Quality and route of the link to one peer
+     */
+    private static class Link {
+        private final LinkQuality quality = new LinkQuality();
+        private boolean onTcp;
+        private long lastProbeNanos;
+        private int alertLevel;  // 0 below the UDP threshold, 1 between the thresholds, 2 above the TCP one
+    }
+}
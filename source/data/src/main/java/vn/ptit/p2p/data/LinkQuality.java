@@ -0,0 +1,52 @@
+package vn.ptit.p2p.data;
+
+/**
+ * Smoothed quality of the link to one peer: the fraction of data segments
+ * lost, sampled once per UDP transfer in either direction, and the RTT and
+ * its variation (jitter) measured from the ACKs of our UDP transfers to it.
+ * Segments rebuilt from FEC parity count as lost, so the estimate does not
+ * drop just because FEC is hiding the loss.
+ */
+public class LinkQuality {
+    public static final double GAIN = 0.25;
+    
+    private final RttEstimator rtt = new RttEstimator();
+    private double lossRate;
+    private int lossSamples;
+    
+    /**
+     * Feed the outcome of one transfer
+     * 
+     * @param sent Data segments sent, retransmissions included
+     * @param lost Data segments retransmitted or rebuilt by the receiver
+     */
+    public void sampleLoss(int sent, int lost) {
+        sampleLoss(sent, lost, GAIN);
+    }
+    
+    /**
+     * Feed the outcome of one transfer with a gain of its own, e.g. a larger one
+     * for the rare probes of a link that is not otherwise used
+     */
+    public synchronized void sampleLoss(int sent, int lost, double gain) {
+        if (sent <= 0) {
+            return;
+        }
+        
+        double rate = Math.min(1.0, (double) lost / sent);
+        lossRate = lossSamples > 0 ? lossRate + gain * (rate - lossRate) : rate;
+        lossSamples++;
+    }
+    
+    public synchronized double getLossRate() { return lossRate; }
+    public synchronized int getLossSamples() { return lossSamples; }
+    public synchronized boolean hasSample() { return lossSamples > 0; }
+    
+    /**
+     * RTT estimation of the UDP transfers to the peer, shared by all of them
+     */
+    public RttEstimator getRtt() { return rtt; }
+    
+    public long getSrttMicros() { return rtt.getSrttMicros(); }
+    public long getJitterMicros() { return rtt.getRttvarMicros(); }
+}
@@ -0,0 +1,347 @@
+package vn.ptit.p2p.data;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import vn.ptit.p2p.common.Models.FileMetadata;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * One file being received from the multicast group. Segments are written
+ * straight into the target file as they arrive and each complete piece is
+ * verified against the manifest. Every backoff interval the receiver looks for
+ * segments that have been sent but not received; if it finds some that no
+ * NACK heard on the group already covers, it waits a random part of the
+ * backoff and NACKs whatever is still uncovered by then. A NACK covers its
+ * segments for {@link #REPAIR_TIMEOUT_BACKOFFS} backoffs, after which they are
+ * asked for again if the repair never came.
+ */
+public class MulticastReceiver {
+    private static final Logger logger = LoggerFactory.getLogger(MulticastReceiver.class);
+    private static final int REPAIR_TIMEOUT_BACKOFFS = 4;
+    
+    private final MulticastService service;
+    private final FileMetadata metadata;
+    private final FileChannel target;
+    private final Executor verifyExecutor;
+    private final String fileHash;
+    private final int fileIdCrc;
+    private final int pieceCount;
+    private final long backoffNanos;
+    private final long repairTimeoutNanos;
+    private final long idleTimeoutNanos;
+    private final Piece[] pieces;
+    private final CompletableFuture<Void> future = new CompletableFuture<>();
+    
+    private int segmentSize;              // learnt from the first segment or flush, 0 before
+    private int sentPiece;                // everything before (sentPiece, sentSeq) has been sent
+    private int sentSeq;
+    private int firstIncomplete;
+    private int piecesDone;
+    private long lastHeardNanos;
+    private long nextScanNanos;
+    private long nackDueNanos;            // 0 while no NACK is pending
+    private long segmentsReceived;
+    private long duplicates;
+    private long nacksSent;
+    
+    /**
+     * Reception state of one piece
+     */
+    private static class Piece {
+        final int total;
+        final BitSet received = new BitSet();
+        final BitSet requested = new BitSet();
+        long requestedNanos;
+        PieceSink sink;
+        boolean verifying;
+        boolean done;
+        
+        Piece(int total) {
+            this.total = total;
+        }
+    }
+    
+    public MulticastReceiver(MulticastService service, FileMetadata metadata, FileChannel target,
+                             DataConfig config, Executor verifyExecutor) {
+        this.service = service;
+        this.metadata = metadata;
+        this.target = target;
+        this.verifyExecutor = verifyExecutor;
+        this.fileHash = metadata.getFileHash();
+        this.fileIdCrc = UdpSegment.fileIdCrc(fileHash);
+        this.pieceCount = metadata.getPieceCount();
+        this.backoffNanos = TimeUnit.MILLISECONDS.toNanos(config.getMulticastNackBackoff());
+        this.repairTimeoutNanos = REPAIR_TIMEOUT_BACKOFFS * backoffNanos;
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(config.getTransferTimeout());
+        this.pieces = new Piece[pieceCount];
+        this.lastHeardNanos = System.nanoTime();
+        if (pieceCount == 0) {
+            future.complete(null);
+        }
+    }
+    
+    public int getFileIdCrc() { return fileIdCrc; }
+    public CompletableFuture<Void> getFuture() { return future; }
+    
+    public synchronized void onSegment(UdpSegment segment, long nowNanos) {
+        if (future.isDone() || !learnLayout(segment.getSegmentSize())) {
+            return;
+        }
+        int pieceId = segment.getPieceId();
+        int seq = segment.getSeq();
+        if (pieceId < 0 || pieceId >= pieceCount || segment.getTotal() != segmentCount(pieceId)) {
+            logger.debug("Dropping multicast segment {}/{} that does not fit file {}", pieceId, seq, fileHash);
+            return;
+        }
+        lastHeardNanos = nowNanos;
+        if (pieceId > sentPiece || (pieceId == sentPiece && seq >= sentSeq)) {
+            sentPiece = pieceId;
+            sentSeq = seq + 1;
+        }
+        
+        Piece piece = piece(pieceId);
+        if (piece.done || piece.verifying || piece.received.get(seq)) {
+            duplicates++;
+            return;
+        }
+        ByteBuffer payload = segment.getPayload();
+        long offset = (long) seq * segmentSize;
+        if (payload.remaining() != Math.min(segmentSize, pieceLength(pieceId) - offset)) {
+            logger.debug("Dropping multicast segment {}/{} of the wrong length", pieceId, seq);
+            return;
+        }
+        piece.sink.write(offset, payload);
+        piece.received.set(seq);
+        segmentsReceived++;
+        if (piece.received.cardinality() == piece.total) {
+            piece.verifying = true;
+            PieceSink sink = piece.sink;
+            verifyExecutor.execute(() -> onVerified(pieceId, sink, sink.verify()));
+        }
+    }
+    
+    /**
+     * A NACK heard on the group, ours or another receiver's: its segments are
+     * as good as requested, so do not ask for them again until they had time to come
+     */
+    public synchronized void onNack(UdpNack nack, long nowNanos) {
+        if (future.isDone() || segmentSize == 0) {
+            return;
+        }
+        for (int[] range : nack.getRanges()) {
+            if (range[0] < pieceCount) {
+                Piece piece = piece(range[0]);
+                piece.requested.set(Math.min(range[1], piece.total), (int) Math.min((long) range[1] + range[2], piece.total));
+                piece.requestedNanos = nowNanos;
+            }
+        }
+    }
+    
+    /**
+     * The sender has sent every piece: whatever is missing now is lost
+     */
+    public synchronized void onFlush(UdpFlush flush, long nowNanos) {
+        if (future.isDone() || !learnLayout(flush.getSegmentSize())) {
+            return;
+        }
+        if (flush.getPieceCount() != pieceCount) {
+            logger.debug("Ignoring multicast flush of {} pieces for file {} of {}", flush.getPieceCount(), fileHash, pieceCount);
+            return;
+        }
+        lastHeardNanos = nowNanos;
+        sentPiece = pieceCount;
+        sentSeq = 0;
+    }
+    
+    /**
+     * Look for gaps every backoff and send the NACK once its random delay is up;
+     * give up if the sender has gone quiet for the transfer timeout
+     */
+    public synchronized void onTick(long nowNanos) {
+        if (future.isDone()) {
+            return;
+        }
+        if (nowNanos - lastHeardNanos > idleTimeoutNanos) {
+            fail(new TimeoutException("Nothing heard from the multicast sender of file " + fileHash + " for "
+                                      + TimeUnit.NANOSECONDS.toMillis(idleTimeoutNanos) + " ms"));
+            return;
+        }
+        if (segmentSize == 0) {
+            return;
+        }
+        
+        if (nackDueNanos != 0) {
+            if (nowNanos - nackDueNanos >= 0) {
+                nackDueNanos = 0;
+                sendNack(nowNanos);
+            }
+        } else if (nowNanos - nextScanNanos >= 0) {
+            nextScanNanos = nowNanos + backoffNanos;
+            if (!missingRanges(nowNanos, 1).isEmpty()) {
+                nackDueNanos = nowNanos + ThreadLocalRandom.current().nextLong(backoffNanos + 1);
+            }
+        }
+    }
+    
+    public synchronized void fail(Throwable error) {
+        for (Piece piece : pieces) {
+            if (piece != null && piece.sink != null) {
+                piece.sink.close();
+            }
+        }
+        future.completeExceptionally(error);
+    }
+    
+    private void sendNack(long nowNanos) {
+        List<int[]> ranges = missingRanges(nowNanos, UdpNack.MAX_RANGES);
+        if (ranges.isEmpty()) {
+            return; // another receiver asked for all of it meanwhile
+        }
+        try {
+            service.transmit(UdpNack.encode(fileIdCrc, ranges));
+        } catch (IOException e) {
+            logger.warn("Failed to send multicast NACK for file {}: {}", fileHash, e.getMessage());
+            return;
+        }
+        nacksSent++;
+        for (int[] range : ranges) {
+            Piece piece = piece(range[0]);
+            piece.requested.set(range[1], range[1] + range[2]);
+            piece.requestedNanos = nowNanos;
+        }
+    }
+    
+    /**
+     * Up to limit ranges of segments that have been sent, did not arrive and are not requested
+     */
+    private List<int[]> missingRanges(long nowNanos, int limit) {
+        List<int[]> ranges = new ArrayList<>();
+        int last = Math.min(sentPiece, pieceCount - 1);
+        for (int i = firstIncomplete; i <= last && ranges.size() < limit; i++) {
+            Piece piece = pieces[i];
+            if (piece != null && (piece.done || piece.verifying)) {
+                continue;
+            }
+            int end = i == sentPiece ? sentSeq : segmentCount(i);
+            if (piece == null) {
+                if (end > 0) {
+                    ranges.add(new int[] {i, 0, end});
+                }
+                continue;
+            }
+            if (!piece.requested.isEmpty() && nowNanos - piece.requestedNanos > repairTimeoutNanos) {
+                piece.requested.clear();
+            }
+            int seq = 0;
+            while (seq < end && ranges.size() < limit) {
+                seq = nextMissing(piece, seq);
+                if (seq >= end) {
+                    break;
+                }
+                int stop = nextSet(piece.requested, seq, nextSet(piece.received, seq, end));
+                ranges.add(new int[] {i, seq, stop - seq});
+                seq = stop;
+            }
+        }
+        return ranges;
+    }
+    
+    /**
+     * First segment from seq on that was neither received nor requested
+     */
+    private static int nextMissing(Piece piece, int seq) {
+        while (piece.received.get(seq) || piece.requested.get(seq)) {
+            seq++;
+        }
+        return seq;
+    }
+    
+    /**
+     * First set bit from index on, or end if there is none before it
+     */
+    private static int nextSet(BitSet bits, int index, int end) {
+        int next = bits.nextSetBit(index);
+        return next < 0 || next > end ? end : next;
+    }
+    
+    private void onVerified(int pieceId, PieceSink sink, boolean valid) {
+        synchronized (this) {
+            Piece piece = pieces[pieceId];
+            if (future.isDone() || piece.sink != sink) {
+                return;
+            }
+            if (!valid) {
+                logger.warn("Multicast piece {} of file {} failed verification, receiving it again", pieceId, fileHash);
+                sink.close();
+                piece.sink = newSink(pieceId);
+                piece.received.clear();
+                piece.requested.clear();
+                piece.verifying = false;
+                return;
+            }
+            piece.done = true;
+            piece.sink = null;
+            piecesDone++;
+            while (firstIncomplete < pieceCount && pieces[firstIncomplete] != null && pieces[firstIncomplete].done) {
+                firstIncomplete++;
+            }
+            if (piecesDone < pieceCount) {
+                return;
+            }
+            logger.info("Received file {} from the multicast group: {} segments, {} duplicates, {} NACKs sent",
+                        fileHash, segmentsReceived, duplicates, nacksSent);
+        }
+        future.complete(null);
+    }
+    
+    /**
+     * Take the segment size of the session from the first datagram that carries
+     * it; false for a datagram that disagrees with it
+     */
+    private boolean learnLayout(int size) {
+        if (segmentSize == 0) {
+            segmentSize = size;
+        }
+        return size == segmentSize;
+    }
+    
+    private Piece piece(int pieceId) {
+        Piece piece = pieces[pieceId];
+        if (piece == null) {
+            piece = new Piece(segmentCount(pieceId));
+            piece.sink = newSink(pieceId);
+            pieces[pieceId] = piece;
+        }
+        return piece;
+    }
+    
+    private PieceSink newSink(int pieceId) {
+        PieceSink sink = new PieceSink(target, (long) pieceId * metadata.getPieceSize(), pieceLength(pieceId),
+                                       metadata.getPieceHashes().get(pieceId));
+        sink.whenReceived().whenComplete((result, error) -> {
+            if (error != null) {
+                fail(error);
+            }
+        });
+        return sink;
+    }
+    
+    private int pieceLength(int pieceId) {
+        return (int) Math.min(metadata.getPieceSize(), metadata.getFileSize() - (long) pieceId * metadata.getPieceSize());
+    }
+    
+    private int segmentCount(int pieceId) {
+        return UdpSegment.segmentCount(pieceLength(pieceId), segmentSize);
+    }
+}
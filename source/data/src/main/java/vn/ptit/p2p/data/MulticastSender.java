@@ -0,0 +1,242 @@
+package vn.ptit.p2p.data;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import vn.ptit.p2p.common.Models.PieceBuffer;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One file being multicast: every piece is sent once, in order, at the
+ * configured rate, then flushes are repeated while receivers NACK what they
+ * lost. Repairs go ahead of new data. A segment is repaired once per holdoff
+ * however many receivers ask for it, since NACKs that arrive right after a
+ * repair were sent before it could arrive. The session ends once nobody has
+ * asked for anything for {@link #LINGER_FLUSHES} flush intervals.
+ * There is no congestion control: the rate is a fixed budget for the LAN.
+ */
+public class MulticastSender implements Pacer.Source {
+    private static final Logger logger = LoggerFactory.getLogger(MulticastSender.class);
+    private static final int LINGER_FLUSHES = 10;
+    
+    private final MulticastService service;
+    private final SharedFiles.SharedFile file;
+    private final String fileHash;
+    private final int fileIdCrc;
+    private final int pieceCount;
+    private final int segmentSize;
+    private final long intervalNanos;      // between two datagrams at the configured rate
+    private final long holdoffNanos;
+    private final long flushIntervalNanos;
+    private final Pacer.Entry pacing;
+    private final ByteBuffer datagram;
+    private final CompletableFuture<Void> future = new CompletableFuture<>();
+    
+    private final ArrayDeque<Long> repairs = new ArrayDeque<>();   // (pieceId << 32 | seq), oldest first
+    private final Set<Long> queued = new HashSet<>();
+    private final Map<Long, Long> repairedAt = new HashMap<>();
+    private int nextPiece;
+    private int nextSeq;
+    private PieceBuffer current;          // piece being sent for the first time
+    private PieceBuffer repairing;        // piece of the last repair
+    private long startNanos;
+    private long doneNanos;               // when the last piece was first sent, 0 before
+    private long lastNackNanos;
+    private long nextFlushNanos;
+    private long nextSendNanos;
+    private long segmentsSent;
+    private long repairsSent;
+    private long nacksHeard;
+    
+    public MulticastSender(MulticastService service, SharedFiles.SharedFile file, DataConfig config, Pacer pacer) {
+        this.service = service;
+        this.file = file;
+        this.fileHash = file.getMetadata().getFileHash();
+        this.fileIdCrc = UdpSegment.fileIdCrc(fileHash);
+        this.pieceCount = file.getMetadata().getPieceCount();
+        this.segmentSize = UdpSegment.segmentSize(
+            UdpSegment.DEFAULT_MTU, UdpSegment.overhead(new InetSocketAddress(config.getMulticastGroup(), 0)));
+        long rate = config.getMulticastRate();
+        this.intervalNanos = rate > 0 ? (UdpSegment.HEADER_SIZE + segmentSize) * 1_000_000_000L / rate : 0;
+        this.holdoffNanos = TimeUnit.MILLISECONDS.toNanos(config.getMulticastNackBackoff());
+        this.flushIntervalNanos = 2 * holdoffNanos;
+        this.pacing = pacer.register(this);
+        this.datagram = ByteBuffer.allocate(UdpSegment.HEADER_SIZE + segmentSize);
+    }
+    
+    public int getFileIdCrc() { return fileIdCrc; }
+    public CompletableFuture<Void> getFuture() { return future; }
+    
+    public void start() {
+        synchronized (this) {
+            startNanos = System.nanoTime();
+            if (pieceCount == 0) {
+                future.complete(null);
+                return;
+            }
+        }
+        logger.info("Multicasting {} pieces of file {}", pieceCount, fileHash);
+        pacing.schedule();
+    }
+    
+    /**
+     * Called by the pacer: send the oldest repair asked for, or else the next segment of the file
+     */
+    @Override
+    public synchronized long sendNext(long nowNanos) {
+        if (future.isDone()) {
+            return 0;
+        }
+        Long repair = repairs.poll();
+        if (repair == null && nextPiece >= pieceCount) {
+            return 0;
+        }
+        
+        try {
+            if (repair != null) {
+                queued.remove(repair);
+                int pieceId = (int) (repair >>> 32);
+                if (repairing == null || repairing.getIndex() != pieceId) {
+                    repairing = replace(repairing, pieceId);
+                }
+                transmit(repairing, repair.intValue());
+                repairedAt.put(repair, nowNanos);
+                repairsSent++;
+            } else {
+                if (current == null) {
+                    current = replace(null, nextPiece);
+                }
+                transmit(current, nextSeq);
+                if (++nextSeq == segmentCount(nextPiece)) {
+                    current = replace(current, -1);
+                    nextSeq = 0;
+                    if (++nextPiece == pieceCount) {
+                        doneNanos = nowNanos;
+                        nextFlushNanos = nowNanos;
+                    }
+                }
+            }
+        } catch (IOException | UncheckedIOException e) {
+            fail(e);
+            return 0;
+        }
+        // Keep to the rate on average even though each send takes part of the interval
+        nextSendNanos = Math.max(nextSendNanos, nowNanos - intervalNanos) + intervalNanos;
+        return nextSendNanos;
+    }
+    
+    /**
+     * Queue repairs of the segments a receiver is missing; segments not sent
+     * yet, already queued or repaired within the holdoff are left out
+     */
+    public synchronized void onNack(UdpNack nack, long nowNanos) {
+        if (future.isDone()) {
+            return;
+        }
+        nacksHeard++;
+        lastNackNanos = nowNanos;
+        boolean added = false;
+        for (int[] range : nack.getRanges()) {
+            int pieceId = range[0];
+            if (pieceId >= Math.min(nextPiece + 1, pieceCount)) {
+                continue;
+            }
+            int end = (int) Math.min((long) range[1] + range[2], segmentCount(pieceId));
+            if (pieceId == nextPiece) {
+                end = Math.min(end, nextSeq);
+            }
+            for (int seq = range[1]; seq < end; seq++) {
+                long key = (long) pieceId << 32 | seq;
+                Long repaired = repairedAt.get(key);
+                if ((repaired == null || nowNanos - repaired > holdoffNanos) && queued.add(key)) {
+                    repairs.add(key);
+                    added = true;
+                }
+            }
+        }
+        if (added) {
+            pacing.schedule();
+        }
+    }
+    
+    /**
+     * Once the whole file has been sent: repeat the flush, and end the session
+     * when no NACK has come for a while and every repair has gone out
+     */
+    public synchronized void onTick(long nowNanos) {
+        if (future.isDone() || doneNanos == 0) {
+            return;
+        }
+        repairedAt.values().removeIf(at -> nowNanos - at > holdoffNanos);
+        if (repairs.isEmpty() && nowNanos - Math.max(doneNanos, lastNackNanos) > LINGER_FLUSHES * flushIntervalNanos) {
+            logger.info("Multicast of file {} done in {} ms: {} segments, {} repairs for {} NACKs", fileHash,
+                        TimeUnit.NANOSECONDS.toMillis(nowNanos - startNanos), segmentsSent, repairsSent, nacksHeard);
+            finish();
+            future.complete(null);
+            return;
+        }
+        if (nowNanos - nextFlushNanos >= 0) {
+            nextFlushNanos = nowNanos + flushIntervalNanos;
+            try {
+                service.transmit(UdpFlush.encode(fileIdCrc, pieceCount, segmentSize));
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+    }
+    
+    public synchronized void fail(Throwable error) {
+        finish();
+        future.completeExceptionally(error);
+    }
+    
+    private void finish() {
+        current = replace(current, -1);
+        repairing = replace(repairing, -1);
+        repairs.clear();
+        queued.clear();
+    }
+    
+    private void transmit(PieceBuffer piece, int seq) throws IOException {
+        int total = segmentCount(piece.getIndex());
+        ByteBuffer data = piece.getData();
+        int offset = seq * segmentSize;
+        data.limit(Math.min(data.limit(), offset + segmentSize)).position(offset);
+        UdpSegment.beginEncode(datagram, fileIdCrc, piece.getIndex(), seq, total, segmentSize);
+        datagram.put(data);
+        UdpSegment.finishEncode(datagram);
+        service.transmit(datagram);
+        segmentsSent++;
+    }
+    
+    /**
+     * Release a mapped piece and map another one, or none for a negative index
+     */
+    private PieceBuffer replace(PieceBuffer piece, int pieceIndex) {
+        if (piece != null) {
+            piece.release();
+        }
+        if (pieceIndex < 0) {
+            return null;
+        }
+        try {
+            return file.mapPiece(pieceIndex);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+    
+    private int segmentCount(int pieceIndex) {
+        return UdpSegment.segmentCount(file.pieceLength(pieceIndex), segmentSize);
+    }
+}
@@ -0,0 +1,256 @@
+package vn.ptit.p2p.data;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import vn.ptit.p2p.common.Models.FileMetadata;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Distributes a file to many receivers on the LAN at once, in the manner of
+ * NORM (RFC 5740): the seeder sends every piece once to a multicast group and
+ * receivers ask for what they lost with NACKs, which the seeder answers by
+ * sending the missing segments to the group again. A receiver waits a random
+ * backoff before NACKing and holds back if it hears another receiver NACK the
+ * same segments first, so a segment lost by many receivers costs a handful of
+ * NACKs and one repair instead of one of each per receiver.
+ * Every data plane joins the group on first use; sessions are told apart by
+ * the file's CRC, as in unicast segments.
+ */
+public class MulticastService {
+    private static final Logger logger = LoggerFactory.getLogger(MulticastService.class);
+    private static final long TICK_INTERVAL_MS = 5;
+    private static final int SOCKET_BUFFER_SIZE = 4 * 1024 * 1024;
+    
+    private final DataService dataService;
+    private final DataConfig config;
+    private final Map<Integer, MulticastSender> senders = new ConcurrentHashMap<>();
+    private final Map<Integer, MulticastReceiver> receivers = new ConcurrentHashMap<>();
+    private final ThreadLocal<UdpSegment> segments = ThreadLocal.withInitial(UdpSegment::new);
+    private final ThreadLocal<UdpNack> nacks = ThreadLocal.withInitial(UdpNack::new);
+    private final ThreadLocal<UdpFlush> flushes = ThreadLocal.withInitial(UdpFlush::new);
+    private InetAddress group;
+    private NetworkInterface networkInterface; // null: the system's default multicast interface
+    private MulticastSocket socket;
+    private ReceivePipeline pipeline;
+    private Pacer pacer;
+    private ScheduledExecutorService timer;
+    private volatile boolean running;
+    
+    public MulticastService(DataService dataService, DataConfig config) {
+        this.dataService = dataService;
+        this.config = config;
+    }
+    
+    /**
+     * Join the group and start the receive and timer threads, if not done yet
+     */
+    public synchronized void start() throws IOException {
+        if (running) {
+            return;
+        }
+        group = InetAddress.getByName(config.getMulticastGroup());
+        networkInterface = multicastInterface();
+        socket = new MulticastSocket(config.getMulticastPort());
+        socket.setReceiveBufferSize(SOCKET_BUFFER_SIZE);
+        socket.setSendBufferSize(SOCKET_BUFFER_SIZE);
+        socket.setTimeToLive(config.getMulticastTtl());
+        if (networkInterface != null) {
+            socket.setNetworkInterface(networkInterface);
+        }
+        socket.joinGroup(new InetSocketAddress(group, config.getMulticastPort()), networkInterface);
+        running = true;
+        
+        pipeline = new ReceivePipeline("multicast-worker", 1, config.getReceiveQueueSize(), this::handlePacket);
+        pacer = new Pacer("multicast-pacer");
+        timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "multicast-timer");
+            t.setDaemon(true);
+            return t;
+        });
+        timer.scheduleAtFixedRate(this::tick, TICK_INTERVAL_MS, TICK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        
+        Thread receiverThread = new Thread(this::receiveLoop, "multicast-receiver");
+        receiverThread.setDaemon(true);
+        receiverThread.start();
+        
+        logger.info("Joined data multicast group {}:{} on {}", group.getHostAddress(), config.getMulticastPort(),
+                    networkInterface != null ? networkInterface.getName() : "the default interface");
+    }
+    
+    /**
+     * Send a shared file to the group. Completes once the whole file has been
+     * sent and no receiver has asked for a repair for a while.
+     */
+    public CompletableFuture<Void> send(SharedFiles.SharedFile file) {
+        MulticastSender sender = new MulticastSender(this, file, config, pacer);
+        if (senders.putIfAbsent(sender.getFileIdCrc(), sender) != null) {
+            return CompletableFuture.failedFuture(new IllegalStateException(
+                "File " + file.getMetadata().getFileHash() + " is already being multicast"));
+        }
+        sender.getFuture().whenComplete((result, error) -> senders.remove(sender.getFileIdCrc(), sender));
+        sender.start();
+        return sender.getFuture();
+    }
+    
+    /**
+     * Receive a file multicast to the group straight into its target file.
+     * Completes once every piece is on disk and verified, or fails if the
+     * session goes quiet for the transfer timeout.
+     */
+    public CompletableFuture<Void> receive(FileMetadata metadata, FileChannel target) {
+        MulticastReceiver receiver = new MulticastReceiver(this, metadata, target, config,
+                                                           dataService.getRuntime().getVerifyExecutor());
+        if (receivers.putIfAbsent(receiver.getFileIdCrc(), receiver) != null) {
+            return CompletableFuture.failedFuture(new IllegalStateException(
+                "File " + metadata.getFileHash() + " is already being received from the group"));
+        }
+        receiver.getFuture().whenComplete((result, error) -> receivers.remove(receiver.getFileIdCrc(), receiver));
+        return receiver.getFuture();
+    }
+    
+    /**
+     * Send a datagram (position to limit, heap buffer) to the group
+     */
+    void transmit(ByteBuffer datagram) throws IOException {
+        socket.send(new DatagramPacket(datagram.array(), datagram.arrayOffset() + datagram.position(),
+                                       datagram.remaining(), group, config.getMulticastPort()));
+    }
+    
+    private void receiveLoop() {
+        byte[] buffer = new byte[UdpSegment.MAX_DATAGRAM_SIZE];
+        while (running) {
+            try {
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                socket.receive(packet);
+                pipeline.onDatagram(ByteBuffer.wrap(buffer, 0, packet.getLength()),
+                                    (InetSocketAddress) packet.getSocketAddress());
+            } catch (IOException e) {
+                if (running) {
+                    logger.error("Error receiving multicast packet", e);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Hand a datagram heard on the group to the session it belongs to. Our own
+     * datagrams are looped back too, and dropped here for want of a session.
+     */
+    private void handlePacket(ByteBuffer datagram, InetSocketAddress source) {
+        long now = System.nanoTime();
+        byte type = PacketCodec.type(datagram);
+        if (type == PacketCodec.TYPE_DATA) {
+            UdpSegment segment = segments.get();
+            MulticastReceiver receiver = segment.decode(datagram) ? receivers.get(segment.getFileIdCrc()) : null;
+            if (receiver != null) {
+                receiver.onSegment(segment, now);
+            }
+        } else if (type == PacketCodec.TYPE_NACK) {
+            UdpNack nack = nacks.get();
+            if (!nack.decode(datagram)) {
+                logger.debug("Dropping malformed NACK from {}", source);
+                return;
+            }
+            MulticastSender sender = senders.get(nack.getFileIdCrc());
+            if (sender != null) {
+                sender.onNack(nack, now);
+            }
+            MulticastReceiver receiver = receivers.get(nack.getFileIdCrc());
+            if (receiver != null) {
+                receiver.onNack(nack, now);
+            }
+        } else if (type == PacketCodec.TYPE_FLUSH) {
+            UdpFlush flush = flushes.get();
+            MulticastReceiver receiver = flush.decode(datagram) ? receivers.get(flush.getFileIdCrc()) : null;
+            if (receiver != null) {
+                receiver.onFlush(flush, now);
+            }
+        }
+    }
+    
+    /**
+     * Drive flushes and the end of sending sessions, and NACK timers and timeouts of receiving ones
+     */
+    private void tick() {
+        long now = System.nanoTime();
+        for (MulticastSender sender : senders.values()) {
+            try {
+                sender.onTick(now);
+            } catch (Exception e) {
+                logger.error("Error in multicast sender timer", e);
+            }
+        }
+        for (MulticastReceiver receiver : receivers.values()) {
+            try {
+                receiver.onTick(now);
+            } catch (Exception e) {
+                logger.error("Error in multicast receiver timer", e);
+            }
+        }
+    }
+    
+    public synchronized void close() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        timer.shutdownNow();
+        pacer.stop();
+        pipeline.stop();
+        for (MulticastSender sender : senders.values()) {
+            sender.fail(new IOException("Multicast service closed"));
+        }
+        for (MulticastReceiver receiver : receivers.values()) {
+            receiver.fail(new IOException("Multicast service closed"));
+        }
+        try {
+            socket.leaveGroup(new InetSocketAddress(group, config.getMulticastPort()), networkInterface);
+        } catch (IOException e) {
+            logger.debug("Error leaving multicast group", e);
+        }
+        socket.close();
+    }
+    
+    /**
+     * The configured interface, else the first one that is up, not loopback, supports
+     * multicast and has an address of the group's family; null if there is none
+     */
+    private NetworkInterface multicastInterface() throws IOException {
+        String name = config.getMulticastInterface();
+        if (name != null && !name.isEmpty()) {
+            NetworkInterface nic = NetworkInterface.getByName(name);
+            if (nic == null) {
+                throw new IOException("No network interface named " + name);
+            }
+            return nic;
+        }
+        
+        for (NetworkInterface nic : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+            if (!nic.isUp() || nic.isLoopback() || !nic.supportsMulticast()) {
+                continue;
+            }
+            for (InetAddress address : Collections.list(nic.getInetAddresses())) {
+                if ((address instanceof Inet4Address) == (group instanceof Inet4Address)) {
+                    return nic;
+                }
+            }
+        }
+        return null;
+    }
+}
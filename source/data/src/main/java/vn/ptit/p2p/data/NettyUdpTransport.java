@@ -0,0 +1,208 @@
+package vn.ptit.p2p.data;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.FixedRecvByteBufAllocator;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollDatagramChannel;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.channel.socket.nio.NioDatagramChannel;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Netty transport with pooled buffers. With native epoll (Linux) one socket
+ * per event loop is bound to the same port with SO_REUSEPORT so the kernel
+ * shards incoming flows across cores, and each read pulls a batch of
+ * datagrams with recvmmsg. Elsewhere a single NIO channel is used.
+ * Datagrams sent from other threads are queued per socket and written by one
+ * task with a single flush, so bursts go out through sendmmsg.
+ */
+public class NettyUdpTransport implements UdpTransport {
+    private static final Logger logger = LoggerFactory.getLogger(NettyUdpTransport.class);
+    private static final int MAX_DATAGRAM_SIZE = UdpSegment.MAX_DATAGRAM_SIZE; // Up to jumbo-frame segments
+    private static final int BATCH_SIZE = 32;          // Datagrams per recvmmsg call
+    private static final int SOCKET_BUFFER_SIZE = 4 * 1024 * 1024;
+    
+    private final String name;
+    private final int threads;
+    private EventLoopGroup group;
+    private Outbound[] outbounds;
+    private int localPort;
+    
+    public NettyUdpTransport(String name, int threads) {
+        this.name = name;
+        this.threads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+    }
+    
+    @Override
+    public void bind(int port, Handler handler) throws IOException {
+        boolean epoll = Epoll.isAvailable();
+        // Without SO_REUSEPORT the sockets cannot share a port, so NIO gets a single channel
+        int count = epoll ? threads : 1;
+        
+        ThreadFactory threadFactory = new DefaultThreadFactory(name, true);
+        group = epoll ? new EpollEventLoopGroup(count, threadFactory) : new NioEventLoopGroup(count, threadFactory);
+        
+        Bootstrap bootstrap = new Bootstrap()
+            .group(group)
+            .channel(epoll ? EpollDatagramChannel.class : NioDatagramChannel.class)
+            .option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+            .option(ChannelOption.SO_RCVBUF, SOCKET_BUFFER_SIZE)
+            .option(ChannelOption.SO_SNDBUF, SOCKET_BUFFER_SIZE)
+            .handler(new InboundHandler(handler));
+        
+        if (epoll) {
+            bootstrap
+                .option(EpollChannelOption.SO_REUSEPORT, true)
+                .option(EpollChannelOption.MAX_DATAGRAM_PAYLOAD_SIZE, MAX_DATAGRAM_SIZE)
+                .option(ChannelOption.RCVBUF_ALLOCATOR, new FixedRecvByteBufAllocator(MAX_DATAGRAM_SIZE * BATCH_SIZE));
+        } else {
+            bootstrap.option(ChannelOption.RCVBUF_ALLOCATOR, new FixedRecvByteBufAllocator(MAX_DATAGRAM_SIZE));
+        }
+        
+        Outbound[] bound = new Outbound[count];
+        outbounds = bound;
+        try {
+            bound[0] = new Outbound(bootstrap.bind(port).sync().channel());
+            localPort = ((InetSocketAddress) bound[0].channel.localAddress()).getPort();
+            for (int i = 1; i < count; i++) {
+                bound[i] = new Outbound(bootstrap.bind(localPort).sync().channel());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            close();
+            throw new IOException("Interrupted while binding " + name, e);
+        } catch (Exception e) {
+            close();
+            throw e instanceof IOException ? (IOException) e : new IOException("Failed to bind " + name, e);
+        }
+        
+        logger.info("{} bound to port {} with {} {} socket(s)", name, localPort, count, epoll ? "epoll" : "NIO");
+    }
+    
+    @Override
+    public void send(ByteBuffer datagram, InetSocketAddress target) throws IOException {
+        Outbound[] bound = outbounds;
+        if (bound == null) {
+            throw new IOException(name + " is not bound");
+        }
+        
+        // Keep each peer on one socket so its datagrams are not reordered across event loops
+        Outbound outbound = bound[(target.hashCode() & Integer.MAX_VALUE) % bound.length];
+        ByteBuf buffer = outbound.channel.alloc().directBuffer(datagram.remaining());
+        int position = datagram.position();
+        buffer.writeBytes(datagram);
+        datagram.position(position);
+        outbound.send(new DatagramPacket(buffer, target));
+    }
+    
+    @Override
+    public int getLocalPort() {
+        return localPort;
+    }
+    
+    @Override
+    public void close() {
+        Outbound[] bound = outbounds;
+        outbounds = null;
+        if (bound != null) {
+            for (Outbound outbound : bound) {
+                if (outbound != null) {
+                    outbound.channel.close();
+                }
+            }
+        }
+        if (group != null) {
+            group.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+        }
+    }
+    
+    /**
+     * One bound socket and the datagrams waiting to be written to it
+     */
+    private static class Outbound implements Runnable {
+        private final Channel channel;
+        private final Queue<DatagramPacket> pending = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        
+        Outbound(Channel channel) {
+            this.channel = channel;
+        }
+        
+        void send(DatagramPacket packet) {
+            if (channel.eventLoop().inEventLoop() && pending.isEmpty()) {
+                channel.writeAndFlush(packet, channel.voidPromise());
+                return;
+            }
+            pending.add(packet);
+            if (scheduled.compareAndSet(false, true)) {
+                channel.eventLoop().execute(this);
+            }
+        }
+        
+        /**
+         * Write everything queued so far with a single flush
+         */
+        @Override
+        public void run() {
+            scheduled.set(false);
+            DatagramPacket packet;
+            while ((packet = pending.poll()) != null) {
+                if (channel.isActive()) {
+                    channel.write(packet, channel.voidPromise());
+                } else {
+                    packet.release();
+                }
+            }
+            channel.flush();
+        }
+    }
+    
+    /**
+     * Hands each datagram to the handler as a view of the pooled buffer, released afterwards
+     */
+    @ChannelHandler.Sharable
+    private static class InboundHandler extends SimpleChannelInboundHandler<DatagramPacket> {
+        private final Handler handler;
+        
+        InboundHandler(Handler handler) {
+            this.handler = handler;
+        }
+        
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, DatagramPacket packet) {
+            ByteBuf content = packet.content();
+            try {
+                handler.onDatagram(content.nioBuffer(content.readerIndex(), content.readableBytes()), packet.sender());
+            } catch (RuntimeException e) {
+                logger.error("Error handling UDP packet", e);
+            }
+        }
+        
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            logger.debug("UDP channel error on {}", ctx.channel().localAddress(), cause);
+        }
+    }
+}
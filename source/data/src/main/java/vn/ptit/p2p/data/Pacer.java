@@ -0,0 +1,161 @@
+package vn.ptit.p2p.data;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Dedicated pacing thread that spreads datagrams evenly in time instead of
+ * sending a whole window back to back. Each source tells the pacer when it
+ * may send next; the thread sleeps with parkNanos until shortly before the
+ * earliest deadline and spins for the final stretch, giving sub-millisecond
+ * precision that Thread.sleep cannot.
+ */
+public class Pacer {
+    private static final Logger logger = LoggerFactory.getLogger(Pacer.class);
+    private static final long SPIN_THRESHOLD_NANOS = 50_000; // parkNanos overshoots by tens of microseconds
+    
+    /**
+     * Something that sends one datagram at a time under the pacer's control
+     */
+    public interface Source {
+        /**
+         * Send the next datagram if possible
+         * 
+         * @return when this source may send again (System.nanoTime()), or 0 if it has
+         *         nothing to send until it calls {@link Entry#schedule()} again
+         */
+        long sendNext(long nowNanos);
+    }
+    
+    private final Object lock = new Object();
+    private final PriorityQueue<Entry> queue = new PriorityQueue<>(Comparator.comparingLong(e -> e.deadline));
+    private final Thread thread;
+    private volatile boolean running = true;
+    
+    public Pacer(String name) {
+        this.thread = new Thread(this::run, name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+    
+    /**
+     * Register a source; it is not scheduled until {@link Entry#schedule()} is called
+     */
+    public Entry register(Source source) {
+        return new Entry(source);
+    }
+    
+    public void stop() {
+        running = false;
+        LockSupport.unpark(thread);
+    }
+    
+    public int getQueuedCount() {
+        synchronized (lock) {
+            return queue.size();
+        }
+    }
+    
+    private void run() {
+        while (running) {
+            Entry entry;
+            long now = System.nanoTime();
+            
+            synchronized (lock) {
+                entry = queue.peek();
+                if (entry != null && entry.deadline - now <= 0) {
+                    queue.poll();
+                } else {
+                    entry = null;
+                }
+            }
+            
+            if (entry == null) {
+                waitForNextDeadline();
+                continue;
+            }
+            
+            long next;
+            try {
+                next = entry.source.sendNext(now);
+            } catch (Exception e) {
+                logger.error("Error in paced send", e);
+                next = 0;
+            }
+            
+            synchronized (lock) {
+                if (next != 0) {
+                    entry.deadline = next;
+                    queue.add(entry);
+                } else if (entry.wake) {
+                    entry.deadline = System.nanoTime();
+                    queue.add(entry);
+                } else {
+                    entry.queued = false;
+                }
+                entry.wake = false;
+            }
+        }
+    }
+    
+    private void waitForNextDeadline() {
+        long deadline;
+        synchronized (lock) {
+            Entry head = queue.peek();
+            if (head == null) {
+                deadline = 0;
+            } else {
+                deadline = head.deadline;
+            }
+        }
+        
+        if (deadline == 0) {
+            LockSupport.park(this);
+            return;
+        }
+        
+        long remaining = deadline - System.nanoTime();
+        if (remaining > SPIN_THRESHOLD_NANOS) {
+            // Coarse sleep; schedule() unparks us if an earlier deadline shows up
+            LockSupport.parkNanos(this, remaining - SPIN_THRESHOLD_NANOS);
+        } else {
+            while (deadline - System.nanoTime() > 0) {
+                Thread.onSpinWait();
+            }
+        }
+    }
+    
+    /**
+     * Scheduling state of one source
+     */
+    public class Entry {
+        private final Source source;
+        private long deadline;
+        private boolean queued;
+        private boolean wake;
+        
+        private Entry(Source source) {
+            this.source = source;
+        }
+        
+        /**
+         * Ask the pacer to call the source as soon as its pacing allows
+         */
+        public void schedule() {
+            synchronized (lock) {
+                if (queued) {
+                    wake = true;
+                    return;
+                }
+                queued = true;
+                deadline = System.nanoTime();
+                queue.add(this);
+            }
+            LockSupport.unpark(thread);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package vn.ptit.p2p.data;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32C;
+
+/**
+ * Fixed binary layout shared by all data plane datagrams:
+ * magic (2 bytes), version (1), type (1), followed by the type-specific fields.
+ * Everything is read and written with absolute offsets on caller-supplied
+ * buffers so no per-packet objects are created.
+ */
+public final class PacketCodec {
+    public static final short MAGIC = 0x5032; // "P2"
+    public static final byte VERSION = 3; // 3: pieces may be compressed, and requests say which encodings they accept
+    public static final int HEADER_SIZE = 4;
+    
+    public static final byte TYPE_DATA = 1;
+    public static final byte TYPE_ACK = 2;
+    public static final byte TYPE_REQUEST = 3;
+    public static final byte TYPE_BLOCK_REQUEST = 4;
+    public static final byte TYPE_PARITY = 5;
+    public static final byte TYPE_PROBE = 6;
+    public static final byte TYPE_PROBE_ACK = 7;
+    public static final byte TYPE_NACK = 8;
+    public static final byte TYPE_FLUSH = 9;
+    
+    // CRC32C is hardware accelerated (SSE4.2 / ARMv8) by the JIT
+    private static final ThreadLocal<CRC32C> CHECKSUMS = ThreadLocal.withInitial(CRC32C::new);
+    
+    private PacketCodec() {
+    }
+    
+    /**
+     * Write the common header at the buffer's position and advance past it
+     */
+    public static void putHeader(ByteBuffer out, byte type) {
+        out.putShort(MAGIC);
+        out.put(VERSION);
+        out.put(type);
+    }
+    
+    /**
+     * Type of the datagram starting at the buffer's position, or 0 if it is not one of ours
+     */
+    public static byte type(ByteBuffer in) {
+        int start = in.position();
+        if (in.remaining() < HEADER_SIZE || in.getShort(start) != MAGIC || in.get(start + 2) != VERSION) {
+            return 0;
+        }
+        return in.get(start + 3);
+    }
+    
+    /**
+     * CRC32C of the bytes between offset and limit, leaving out the 4-byte
+     * checksum field at crcOffset, without moving the buffer's position
+     */
+    public static int checksum(ByteBuffer buffer, int offset, int crcOffset, int limit) {
+        CRC32C crc = CHECKSUMS.get();
+        crc.reset();
+        ByteBuffer view = buffer.duplicate();
+        view.limit(crcOffset).position(offset);
+        crc.update(view);
+        view.limit(limit).position(crcOffset + 4);
+        crc.update(view);
+        return (int) crc.getValue();
+    }
+}
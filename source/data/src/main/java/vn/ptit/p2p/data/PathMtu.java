@@ -0,0 +1,187 @@
+package vn.ptit.p2p.data;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Path MTU towards one peer, found by probing in the manner of datagram
+ * PLPMTUD (RFC 8899). Transfers use the largest MTU confirmed so far, starting
+ * from the 1500-byte Ethernet default. Larger sizes are tried with padded
+ * {@link UdpProbe} datagrams that the receiver acknowledges: a size that goes
+ * unanswered after {@link #PROBE_TRIES} probes counts as too large and the
+ * search bisects below it. Probes never exceed the MTU of the local interface,
+ * so the sending stack does not fragment them on the first hop.
+ * <p>
+ * Java cannot set IP_MTU_DISCOVER, so sockets keep the kernel default
+ * (IP_PMTUDISC_WANT on Linux): datagrams leave with DF set only until an ICMP
+ * "fragmentation needed" lowers the kernel's cached MTU for the route, and
+ * larger ones are fragmented locally from then on. A probe may then arrive
+ * whole in fragments and confirm a size the path only carries fragmented; the
+ * search cannot tell. Transfers at that size still work, and if the fragments
+ * get lost the black-hole check below catches it: a confirmed size is dropped
+ * back to the base as soon as transfers using it start failing (e.g. after a
+ * route change), and searched again every {@link #RESEARCH_INTERVAL_NANOS}.
+ */
+public class PathMtu {
+    private static final Logger logger = LoggerFactory.getLogger(PathMtu.class);
+    private static final int PROBE_TRIES = 3;
+    private static final int GRANULARITY = 64;     // the search stops once the bounds are this close
+    private static final long RESEARCH_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(10);
+    
+    private final InetSocketAddress target;
+    private final int base;
+    private final int ceiling;
+    private final int overhead;
+    private int mtu;
+    private int reported;        // last MTU logged
+    private int low;             // largest size confirmed in the current search
+    private int high;            // largest size not yet ruled out
+    private int probeSize;       // 0 while not searching
+    private int probeNonce;
+    private int tries;
+    private long probeSentNanos;
+    private long nextSearchNanos;
+    private long lastUsedNanos;
+    
+    /**
+     * @param ceiling Largest MTU to search for, see {@link #ceiling(InetSocketAddress, int)}
+     */
+    public PathMtu(InetSocketAddress target, int ceiling) {
+        this.target = target;
+        this.ceiling = ceiling;
+        this.base = Math.min(UdpSegment.DEFAULT_MTU, ceiling);
+        this.overhead = UdpSegment.overhead(target);
+        this.mtu = base;
+        this.nextSearchNanos = System.nanoTime();
+        this.lastUsedNanos = nextSearchNanos;
+    }
+    
+    /**
+     * Largest MTU worth searching for towards a target: the configured maximum,
+     * capped by the MTU of the interface the route to the target leaves through.
+     * Connecting a datagram socket only looks the route up, nothing is sent.
+     */
+    public static int ceiling(InetSocketAddress target, int maxMtu) {
+        int limit = Math.min(maxMtu, UdpSegment.MAX_MTU);
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.connect(target);
+            NetworkInterface nic = NetworkInterface.getByInetAddress(socket.getLocalAddress());
+            if (nic != null && nic.getMTU() > 0) {
+                return Math.min(limit, nic.getMTU());
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.debug("Cannot find the interface MTU towards {}: {}", target, e.getMessage());
+        }
+        return Math.min(limit, UdpSegment.DEFAULT_MTU);
+    }
+    
+    public synchronized int getMtu() { return mtu; }
+    public synchronized boolean isSearching() { return probeSize != 0; }
+    
+    /**
+     * A transfer is about to be sized by this path
+     */
+    public synchronized void touch(long nowNanos) {
+        lastUsedNanos = nowNanos;
+    }
+    
+    /**
+     * No transfer has used this path for idleNanos
+     */
+    public synchronized boolean isIdle(long nowNanos, long idleNanos) {
+        return nowNanos - lastUsedNanos > idleNanos;
+    }
+    
+    /**
+     * The probe to send now, if one is due: the next size of a search, or the
+     * current one again after the previous probe went unanswered for timeoutNanos
+     */
+    public synchronized ByteBuffer nextProbe(long nowNanos, long timeoutNanos) {
+        if (probeSize == 0) {
+            if (mtu >= ceiling || nowNanos - nextSearchNanos < 0) {
+                return null;
+            }
+            low = mtu;
+            high = ceiling;
+            probeSize = high; // the usual answer is the full ceiling, so try it first
+            tries = 0;
+        } else if (probeSentNanos != 0) {
+            if (nowNanos - probeSentNanos < timeoutNanos) {
+                return null;
+            }
+            if (++tries >= PROBE_TRIES) {
+                high = probeSize - 1;
+                if (!advance(nowNanos)) {
+                    return null;
+                }
+            }
+        }
+        
+        probeNonce++;
+        probeSentNanos = nowNanos;
+        return UdpProbe.encodeProbe(probeNonce, probeSize - overhead);
+    }
+    
+    /**
+     * The receiver got the probe whole: its size fits the path
+     */
+    public synchronized void onProbeAck(UdpProbe ack) {
+        if (probeSize == 0 || ack.getNonce() != probeNonce || ack.getSize() != probeSize - overhead) {
+            return;
+        }
+        low = probeSize;
+        mtu = probeSize;
+        tries = 0;
+        advance(System.nanoTime());
+    }
+    
+    /**
+     * Outcome of a transfer sent at the given MTU. A jumbo-sized transfer that
+     * failed or lost most of its segments suggests the path no longer carries
+     * that size: fall back to the base and search again below it.
+     */
+    public synchronized void onTransfer(int usedMtu, boolean failed, int sent, int lost) {
+        if (usedMtu <= base || usedMtu != mtu || !(failed || lost * 2 > sent)) {
+            return;
+        }
+        logger.warn("Transfers to {} at MTU {} are failing, falling back to {}", target, usedMtu, base);
+        mtu = base;
+        low = base;
+        high = usedMtu - 1;
+        probeSize = 0;
+        if (high - low >= GRANULARITY) {
+            probeSize = (low + high + 1) / 2;
+            tries = 0;
+            probeSentNanos = 0;
+        } else {
+            nextSearchNanos = System.nanoTime() + RESEARCH_INTERVAL_NANOS;
+        }
+    }
+    
+    /**
+     * Pick the next size to probe by bisecting the bounds, or end the search;
+     * returns whether there is a size left to probe
+     */
+    private boolean advance(long nowNanos) {
+        probeSentNanos = 0;
+        tries = 0;
+        if (high - low < GRANULARITY) {
+            if (mtu != reported) {
+                logger.info("Path MTU to {} is {}", target, mtu);
+                reported = mtu;
+            }
+            probeSize = 0;
+            nextSearchNanos = nowNanos + RESEARCH_INTERVAL_NANOS;
+            return false;
+        }
+        probeSize = (low + high + 1) / 2;
+        return true;
+    }
+}
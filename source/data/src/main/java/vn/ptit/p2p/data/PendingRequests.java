@@ -0,0 +1,127 @@
+package vn.ptit.p2p.data;
+
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.collection.LongObjectHashMap;
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Outstanding requests keyed by (fileIdCrc, pieceIndex) packed into a long;
+ * block requests use their transfer id as the index. Duplicate requests for
+ * the same piece share one future, and every request is armed on a hashed
+ * timing wheel so a piece that never arrives fails its future instead of
+ * leaking it.
+ */
+public class PendingRequests<T> {
+    private static final long TICK_MILLIS = 10;
+    
+    private final String what;
+    private final LongObjectHashMap<Entry<T>> entries = new LongObjectHashMap<>();
+    private final HashedWheelTimer timer;
+    
+    /**
+     * @param what What is requested, e.g. "piece", for timer thread names and timeout messages
+     */
+    public PendingRequests(String what) {
+        this.what = what;
+        this.timer = new HashedWheelTimer(new DefaultThreadFactory(what + "-request-timer", true),
+                                          TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+    
+    public static long key(int fileIdCrc, int pieceIndex) {
+        return ((long) fileIdCrc << 32) | (pieceIndex & 0xFFFFFFFFL);
+    }
+    
+    /**
+     * Register a request unless one for the same piece is already pending. A pending
+     * request of another file whose CRC collides holds the key until it ends; the new
+     * request fails rather than share that file's future.
+     * 
+     * @return the already pending future to share, {@code future} itself if it failed
+     *         on a collision, or null if a new entry was created for {@code future}
+     */
+    public CompletableFuture<T> register(String fileHash, int pieceIndex,
+                                         CompletableFuture<T> future, long timeoutMillis) {
+        long key = key(UdpSegment.fileIdCrc(fileHash), pieceIndex);
+        Entry<T> entry;
+        synchronized (this) {
+            Entry<T> existing = entries.get(key);
+            if (existing != null && existing.fileHash.equalsIgnoreCase(fileHash)) {
+                return existing.future;
+            }
+            if (existing != null) {
+                future.completeExceptionally(new IllegalStateException(
+                    what + " " + pieceIndex + " of " + fileHash + " collides with a pending request for "
+                    + existing.fileHash));
+                return future;
+            }
+            entry = new Entry<>(fileHash, future);
+            entries.put(key, entry);
+        }
+        
+        // However the future ends (data, timeout, cancellation), drop the entry and its timer
+        future.whenComplete((value, error) -> {
+            synchronized (this) {
+                if (entries.get(key) == entry) {
+                    entries.remove(key);
+                }
+            }
+            Timeout timeout = entry.timeout;
+            if (timeout != null) {
+                timeout.cancel();
+            }
+        });
+        
+        try {
+            Timeout timeout = timer.newTimeout(t -> future.completeExceptionally(new TimeoutException(
+                what + " " + pieceIndex + " of " + fileHash + " not received within " + timeoutMillis + " ms")),
+                timeoutMillis, TimeUnit.MILLISECONDS);
+            entry.timeout = timeout;
+            if (future.isDone()) {
+                timeout.cancel(); // it ended before the timer was armed
+            }
+        } catch (IllegalStateException e) {
+            // The timer is stopped: fail the request, which drops its entry, rather than leave it pending forever
+            future.completeExceptionally(e);
+        }
+        return null;
+    }
+    
+    /**
+     * Take the pending request for a received piece, or null if nobody asked for it
+     */
+    public CompletableFuture<T> remove(int fileIdCrc, String fileHash, int pieceIndex) {
+        long key = key(fileIdCrc, pieceIndex);
+        synchronized (this) {
+            Entry<T> entry = entries.get(key);
+            if (entry == null || !entry.fileHash.equalsIgnoreCase(fileHash)) {
+                return null;
+            }
+            entries.remove(key);
+            return entry.future;
+        }
+    }
+    
+    public synchronized int size() {
+        return entries.size();
+    }
+    
+    public void stop() {
+        timer.stop();
+    }
+    
+    private static class Entry<T> {
+        private final String fileHash;
+        private final CompletableFuture<T> future;
+        private volatile Timeout timeout;
+        
+        Entry(String fileHash, CompletableFuture<T> future) {
+            this.fileHash = fileHash;
+            this.future = future;
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package vn.ptit.p2p.data;
+
+import vn.ptit.p2p.common.Models.PieceBuffer;
+import vn.ptit.p2p.dataapi.DataApi.CompressionStats;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses pieces for peers that accept it and restores them on arrival.
+ * Whether a piece is worth compressing is first judged from a few small
+ * samples at the fastest level, so media, archives and encrypted data cost
+ * little CPU and go out raw (shared files still without copying). A piece
+ * that does not save at least 5% once compressed in full is sent raw too;
+ * compression stops as soon as the output passes that size.
+ * Times are measured on the calling thread, where this CPU-bound work runs.
+ */
+public class PieceCompressor {
+    public static final byte ENCODING_RAW = 0;
+    public static final byte ENCODING_DEFLATE = 1;
+    private static final int MIN_PIECE_SIZE = 4096;
+    private static final int SAMPLE_SIZE = 4096;
+    private static final double MAX_SAMPLE_RATIO = 0.9;
+    private static final double MAX_RATIO = 0.95;
+    
+    // One deflater per level and thread: changing a deflater's level only takes effect after its next call
+    private static final ThreadLocal<Deflater[]> DEFLATERS = ThreadLocal.withInitial(
+        () -> new Deflater[Deflater.BEST_COMPRESSION + 1]);
+    private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(() -> new Inflater(true));
+    private static final ThreadLocal<byte[]> SAMPLE_OUTPUT = ThreadLocal.withInitial(() -> new byte[SAMPLE_SIZE]);
+    
+    private final CompressionMode mode;
+    private final int maxPieceLength;
+    private final LongAdder compressed = new LongAdder();
+    private final LongAdder sentRaw = new LongAdder();
+    private final LongAdder rawBytes = new LongAdder();
+    private final LongAdder encodedBytes = new LongAdder();
+    private final LongAdder compressNanos = new LongAdder();
+    private final LongAdder decompressed = new LongAdder();
+    private final LongAdder decompressNanos = new LongAdder();
+    
+    /**
+     * @param maxPieceLength Largest piece a sender may claim to have compressed when the file's manifest is unknown
+     */
+    public PieceCompressor(CompressionMode mode, int maxPieceLength) {
+        this.mode = mode;
+        this.maxPieceLength = maxPieceLength;
+    }
+    
+    /**
+     * Encodings to list in our requests as accepted, as a bit set of 1 << encoding;
+     * none while compression is off
+     */
+    public int acceptedEncodings() {
+        return mode == CompressionMode.NONE ? 0 : 1 << ENCODING_DEFLATE;
+    }
+    
+    /**
+     * Whether pieces for a requester that accepts these encodings should go through {@link #encode}
+     */
+    public boolean isEnabled(int acceptedEncodings) {
+        return mode != CompressionMode.NONE && (acceptedEncodings & 1 << ENCODING_DEFLATE) != 0;
+    }
+    
+    /**
+     * The piece as it should be sent to a requester that accepts the given
+     * encodings: compressed into a new {@link EncodedPiece} if that is on,
+     * accepted and worth it, else the piece itself. The caller keeps its
+     * reference to the piece either way.
+     */
+    public PieceBuffer encode(PieceBuffer piece, int acceptedEncodings) {
+        if (!isEnabled(acceptedEncodings) || piece.getLength() < MIN_PIECE_SIZE) {
+            return piece;
+        }
+        
+        long start = System.nanoTime();
+        ByteBuffer data = piece.getData();
+        int length = data.remaining();
+        byte[] out = null;
+        int outLength = -1;
+        if (worthCompressing(data)) {
+            out = new byte[(int) (length * MAX_RATIO)];
+            outLength = deflate(data, mode.getLevel(), out);
+        }
+        compressNanos.add(System.nanoTime() - start);
+        
+        if (outLength < 0) {
+            sentRaw.increment();
+            return piece;
+        }
+        compressed.increment();
+        rawBytes.add(length);
+        encodedBytes.add(outLength);
+        return new EncodedPiece(piece.getFileHash(), piece.getIndex(), ByteBuffer.wrap(out, 0, outLength),
+                                piece.getHash(), ENCODING_DEFLATE, length);
+    }
+    
+    /**
+     * Restore a received piece before it is verified. An {@link EncodedPiece} is
+     * inflated into a new piece and released; any other piece is returned as it is.
+     * The length the sender claims is checked before anything is allocated for it.
+     *
+     * @param expectedLength The piece's length from its manifest, or -1 if unknown (then up to the maximum)
+     * @return The piece, or null if the encoded data is corrupt or claims the wrong length
+     */
+    public PieceBuffer decode(PieceBuffer piece, int expectedLength) {
+        if (!(piece instanceof EncodedPiece)) {
+            return piece;
+        }
+        EncodedPiece encoded = (EncodedPiece) piece;
+        try {
+            int length = encoded.getPieceLength();
+            if (encoded.getEncoding() != ENCODING_DEFLATE || length <= 0
+                || (expectedLength >= 0 ? length != expectedLength : length > maxPieceLength)) {
+                return null;
+            }
+            long start = System.nanoTime();
+            byte[] out = new byte[length];
+            boolean valid = inflate(encoded.getData(), out);
+            decompressNanos.add(System.nanoTime() - start);
+            decompressed.increment();
+            return valid ? new PieceBuffer(encoded.getFileHash(), encoded.getIndex(), ByteBuffer.wrap(out),
+                                           encoded.getHash()) : null;
+        } finally {
+            encoded.release();
+        }
+    }
+    
+    public CompressionStats getStats() {
+        return new CompressionStats(compressed.sum(), sentRaw.sum(), rawBytes.sum(), encodedBytes.sum(),
+                                    compressNanos.sum(), decompressed.sum(), decompressNanos.sum());
+    }
+    
+    /**
+     * Compress a sample from the start, middle and end of the data at the fastest level
+     */
+    private static boolean worthCompressing(ByteBuffer data) {
+        byte[] out = SAMPLE_OUTPUT.get();
+        int length = data.remaining();
+        int sampled = 0;
+        int sampleOut = 0;
+        for (int i = 0; i < 3; i++) {
+            int offset = data.position() + (int) ((long) (length - SAMPLE_SIZE) * i / 2);
+            ByteBuffer sample = data.duplicate();
+            sample.limit(offset + SAMPLE_SIZE).position(offset);
+            int size = deflate(sample, Deflater.BEST_SPEED, out);
+            sampled += SAMPLE_SIZE;
+            sampleOut += size < 0 ? SAMPLE_SIZE : size;
+        }
+        return sampleOut <= sampled * MAX_SAMPLE_RATIO;
+    }
+    
+    /**
+     * Deflate the data (position to limit, not moved) into out
+     *
+     * @return The compressed length, or -1 if it does not fit in out
+     */
+    private static int deflate(ByteBuffer data, int level, byte[] out) {
+        Deflater[] deflaters = DEFLATERS.get();
+        if (deflaters[level] == null) {
+            deflaters[level] = new Deflater(level, true);
+        }
+        Deflater deflater = deflaters[level];
+        deflater.reset();
+        deflater.setInput(data.duplicate());
+        deflater.finish();
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length == out.length) {
+                return -1;
+            }
+            length += deflater.deflate(out, length, out.length - length);
+        }
+        return length;
+    }
+    
+    /**
+     * Inflate the data into out, which it must fill exactly: a stream that
+     * ends early or runs past the piece is not the piece
+     */
+    private static boolean inflate(ByteBuffer data, byte[] out) {
+        Inflater inflater = INFLATERS.get();
+        inflater.reset();
+        inflater.setInput(data);
+        byte[] overflow = new byte[1];
+        int length = 0;
+        try {
+            while (!inflater.finished()) {
+                int count = length < out.length ? inflater.inflate(out, length, out.length - length)
+                    : inflater.inflate(overflow);
+                if (length == out.length && count > 0) {
+                    return false; // longer than the piece
+                }
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    return false;
+                }
+                length += count;
+            }
+            return length == out.length && inflater.getRemaining() == 0;
+        } catch (DataFormatException e) {
+            return false;
+        }
+    }
+}
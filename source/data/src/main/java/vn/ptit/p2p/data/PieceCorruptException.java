@@ -0,0 +1,14 @@
+package vn.ptit.p2p.data;
+
+import java.io.IOException;
+
+/**
+ * A piece arrived complete but does not match the hash in its manifest
+ */
+public class PieceCorruptException extends IOException {
+    private static final long serialVersionUID = 1L;
+    
+    public PieceCorruptException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,113 @@
+package vn.ptit.p2p.data;
+
+import vn.ptit.p2p.common.Hashing;
+import vn.ptit.p2p.common.Models.Piece;
+import vn.ptit.p2p.common.Models.PieceBuffer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Fixed header in front of the piece data carried by a UDP transfer:
+ * raw SHA-256 file hash (32 bytes), raw SHA-256 piece hash (32), encoding (1),
+ * piece length (4) and data length (4). The data is the piece itself, or with
+ * an encoding other than {@link PieceCompressor#ENCODING_RAW} the piece
+ * compressed, see {@link EncodedPiece}. Index and file id are already in
+ * every segment header.
+ */
+public final class PieceHeader {
+    public static final int HASH_SIZE = 32;
+    public static final int SIZE = 2 * HASH_SIZE + 9;
+    public static final int ENCODING_OFFSET = 2 * HASH_SIZE;
+    public static final int DATA_LENGTH_OFFSET = SIZE - 4;
+    public static final int MAX_PIECE_LENGTH = 64 * 1024 * 1024; // Bounds what an encoded piece may inflate to
+    
+    private PieceHeader() {
+    }
+    
+    /**
+     * Encode the header for a piece, ready to be sent in front of its data
+     * 
+     * @throws IllegalArgumentException if a hash is not a hex SHA-256 digest
+     */
+    public static ByteBuffer encode(Piece piece) {
+        return encode(piece.getFileHash(), piece.getHash(), piece.getData().length);
+    }
+    
+    /**
+     * Encode the header for a piece buffer, compressed if it is an {@link EncodedPiece}
+     */
+    public static ByteBuffer encode(PieceBuffer piece) {
+        if (piece instanceof EncodedPiece) {
+            EncodedPiece encoded = (EncodedPiece) piece;
+            return encode(piece.getFileHash(), piece.getHash(), encoded.getEncoding(), encoded.getPieceLength(),
+                          piece.getLength());
+        }
+        return encode(piece.getFileHash(), piece.getHash(), piece.getLength());
+    }
+    
+    /**
+     * Encode the header for raw piece data that is not in memory, e.g. sent straight from a file
+     */
+    public static ByteBuffer encode(String fileHash, String pieceHash, int length) {
+        return encode(fileHash, pieceHash, PieceCompressor.ENCODING_RAW, length, length);
+    }
+    
+    private static ByteBuffer encode(String fileHash, String pieceHash, byte encoding, int pieceLength, int dataLength) {
+        ByteBuffer out = ByteBuffer.allocate(SIZE);
+        out.put(rawHash(fileHash));
+        out.put(rawHash(pieceHash));
+        out.put(encoding);
+        out.putInt(pieceLength);
+        out.putInt(dataLength);
+        out.flip();
+        return out;
+    }
+    
+    /**
+     * Decode a reassembled transfer (header followed by data) into a piece
+     * that shares the stream's array, returning null if the lengths do not
+     * match what was received. Compressed data comes back as an {@link EncodedPiece}.
+     */
+    public static PieceBuffer decode(int pieceIndex, byte[] stream) {
+        if (stream.length < SIZE) {
+            return null;
+        }
+        
+        ByteBuffer in = ByteBuffer.wrap(stream);
+        byte[] fileHash = new byte[HASH_SIZE];
+        byte[] pieceHash = new byte[HASH_SIZE];
+        in.get(fileHash);
+        in.get(pieceHash);
+        byte encoding = in.get();
+        int pieceLength = in.getInt();
+        int length = in.getInt();
+        if (length < 0 || length != stream.length - SIZE) {
+            return null;
+        }
+        
+        ByteBuffer data = ByteBuffer.wrap(stream, SIZE, length);
+        return piece(Hashing.bytesToHex(fileHash), pieceIndex, data, Hashing.bytesToHex(pieceHash), encoding, pieceLength);
+    }
+    
+    /**
+     * The piece carried by data with the given header fields, or null if they are inconsistent
+     */
+    public static PieceBuffer piece(String fileHash, int pieceIndex, ByteBuffer data, String pieceHash,
+                                    byte encoding, int pieceLength) {
+        if (encoding == PieceCompressor.ENCODING_RAW) {
+            return pieceLength == data.remaining() ? new PieceBuffer(fileHash, pieceIndex, data, pieceHash) : null;
+        }
+        if (pieceLength < 0 || pieceLength > MAX_PIECE_LENGTH) {
+            return null;
+        }
+        return new EncodedPiece(fileHash, pieceIndex, data, pieceHash, encoding, pieceLength);
+    }
+    
+    private static byte[] rawHash(String hex) {
+        byte[] raw = Hashing.hexToBytes(hex);
+        if (raw.length != HASH_SIZE) {
+            throw new IllegalArgumentException("Not a SHA-256 hash: " + hex);
+        }
+        return raw;
+    }
+}
@@ -0,0 +1,493 @@
+package vn.ptit.p2p.data;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Reassembles pieces from UDP segments that may arrive out of order or duplicated.
+ * Only transfers we asked for get reassembly state: datagrams of any other
+ * piece, or from any host but the one it was asked from, are dropped before
+ * anything is allocated for them.
+ * Pieces with an attached {@link PieceSink} are not kept in memory: each
+ * segment's data is passed to the sink as it arrives. Segments lost on the way
+ * are rebuilt from FEC parity segments ({@link UdpParity}) when enough of
+ * their group has arrived, and acknowledged as if they had been received.
+ * The listener learns how many segments of every completed piece had to be
+ * repaired, which is the receiving side's measure of loss on the link.
+ */
+public class PieceReassembler {
+    private static final Logger logger = LoggerFactory.getLogger(PieceReassembler.class);
+    private static final long STALE_TIMEOUT_MS = 30000;
+    private static final long COMPLETED_RETENTION_MS = 5000; // Re-ACK window for late retransmissions
+    private static final int MAX_SEGMENTS = 65536;
+    
+    /**
+     * Told about every piece reassembled, on the thread that completed it
+     */
+    public interface Listener {
+        /**
+         * @param segments Data segments of the piece
+         * @param repaired Segments that only arrived after a later one (retransmitted) or were rebuilt from parity
+         */
+        void onReassembled(int fileIdCrc, int pieceId, int segments, int repaired);
+    }
+    
+    /**
+     * Decides which transfers get reassembly state
+     */
+    public interface Filter {
+        /**
+         * @param requestKey The transfer's piece, by {@link PendingRequests#key}
+         * @return Whether the piece was asked for from this host
+         */
+        boolean expects(InetAddress source, long requestKey);
+    }
+    
+    private final Listener listener;
+    private final Filter expected;
+    private final Map<Key, Partial> partials = new ConcurrentHashMap<>();
+    private final Map<Key, Long> completed = new ConcurrentHashMap<>();
+    private final Map<Long, PieceSink> sinks = new ConcurrentHashMap<>();
+    
+    /**
+     * Reassembler that takes every transfer
+     */
+    public PieceReassembler() {
+        this((fileIdCrc, pieceId, segments, repaired) -> { }, (source, key) -> true);
+    }
+    
+    public PieceReassembler(Listener listener, Filter expected) {
+        this.listener = listener;
+        this.expected = expected;
+    }
+    
+    /**
+     * Whether a datagram of this piece from this source is worth handling (and
+     * acknowledging): it is being reassembled, was just completed or was asked
+     * for from the source's host. A piece streamed into a sink must have been
+     * asked for too; the sink alone does not let any host write into it.
+     */
+    public boolean accepts(InetSocketAddress source, int fileIdCrc, int pieceId) {
+        if (expected.expects(source.getAddress(), PendingRequests.key(fileIdCrc, pieceId))) {
+            return true;
+        }
+        Key key = new Key(source, fileIdCrc, pieceId);
+        return partials.containsKey(key) || completed.containsKey(key);
+    }
+    
+    /**
+     * Add a segment and fill in the selective ACK to send back.
+     * Returns the complete piece payload once every segment has arrived.
+     */
+    public byte[] addSegment(SocketAddress source, UdpSegment segment, UdpAck ack) {
+        Key key = new Key(source, segment.getFileIdCrc(), segment.getPieceId());
+        Partial partial = partialFor(key, segment.getTotal(), segment.getSegmentSize(), segment.getTimestamp(), ack);
+        if (partial == null) {
+            return null;
+        }
+        
+        boolean complete = partial.add(segment);
+        return finish(key, partial, complete, ack);
+    }
+    
+    /**
+     * Add a parity segment, rebuilding lost segments of its group if it
+     * completes the set needed, and fill in the selective ACK to send back.
+     * Returns the complete piece payload if that completed the piece.
+     */
+    public byte[] addParity(SocketAddress source, UdpParity parity, UdpAck ack) {
+        Key key = new Key(source, parity.getFileIdCrc(), parity.getPieceId());
+        Partial partial = partialFor(key, parity.getTotal(), parity.getSegmentSize(), parity.getTimestamp(), ack);
+        if (partial == null) {
+            return null;
+        }
+        
+        boolean complete = partial.addParity(parity);
+        return finish(key, partial, complete, ack);
+    }
+    
+    /**
+     * Reset the ACK for a datagram of the given piece and find (or start) its
+     * partial; null if the datagram needs no further processing
+     */
+    private Partial partialFor(Key key, int total, int segmentSize, int timestamp, UdpAck ack) {
+        ack.setFileIdCrc(key.fileIdCrc);
+        ack.setPieceId(key.pieceId);
+        ack.setTsEcho(timestamp);
+        ack.setDelay(UdpSegment.nowMicros() - timestamp);
+        ack.setCumAck(0);
+        ack.setSackBits(0);
+        ack.setRecovered(0);
+        
+        if (total > MAX_SEGMENTS) {
+            logger.warn("Dropping segment with unreasonable total {} from {}", total, key.source);
+            return null;
+        }
+        
+        if (completed.containsKey(key)) {
+            // Retransmission after our final ACK was lost: acknowledge everything again
+            ack.setCumAck(total);
+            return null;
+        }
+        
+        PieceSink sink = sinks.get(PendingRequests.key(key.fileIdCrc, key.pieceId));
+        if (sink != null && total != UdpSegment.segmentCount(PieceHeader.SIZE + sink.getLength(), segmentSize)) {
+            logger.warn("Dropping segment of piece {}: its length does not match the manifest", key.pieceId);
+            return null;
+        }
+        
+        Partial partial = partials.computeIfAbsent(key, k -> new Partial(total, segmentSize, sink));
+        
+        if (partial.chunks.length != total || partial.segmentSize != segmentSize) {
+            logger.warn("Segment layout mismatch for piece {}, restarting reassembly", key.pieceId);
+            partial = new Partial(total, segmentSize, sink);
+            partials.put(key, partial);
+        }
+        return partial;
+    }
+    
+    private byte[] finish(Key key, Partial partial, boolean complete, UdpAck ack) {
+        partial.fillAck(ack);
+        
+        if (!complete) {
+            return null;
+        }
+        
+        partials.remove(key);
+        completed.put(key, System.currentTimeMillis());
+        listener.onReassembled(key.fileIdCrc, key.pieceId, partial.chunks.length, partial.getRepaired());
+        return partial.sink == null ? partial.assemble() : null;
+    }
+    
+    /**
+     * Stream the next transfer of a piece into a sink instead of assembling it in
+     * memory; the sink completes once every segment has been written
+     */
+    public void attach(int fileIdCrc, int pieceId, PieceSink sink) {
+        forget(fileIdCrc, pieceId);
+        partials.keySet().removeIf(key -> key.fileIdCrc == fileIdCrc && key.pieceId == pieceId);
+        sinks.put(PendingRequests.key(fileIdCrc, pieceId), sink);
+    }
+    
+    public void detach(int fileIdCrc, int pieceId, PieceSink sink) {
+        sinks.remove(PendingRequests.key(fileIdCrc, pieceId), sink);
+    }
+    
+    /**
+     * Drop partially received pieces that have not made progress recently
+     */
+    public int evictStale() {
+        long now = System.currentTimeMillis();
+        int evicted = 0;
+        
+        Iterator<Map.Entry<Key, Partial>> it = partials.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Key, Partial> entry = it.next();
+            if (now - entry.getValue().lastUpdate > STALE_TIMEOUT_MS) {
+                it.remove();
+                evicted++;
+            }
+        }
+        
+        completed.values().removeIf(completedAt -> now - completedAt > COMPLETED_RETENTION_MS);
+        
+        if (evicted > 0) {
+            logger.debug("Evicted {} stale partial pieces", evicted);
+        }
+        return evicted;
+    }
+    
+    /**
+     * Forget that a piece was completed so that it can be received again
+     */
+    public void forget(int fileIdCrc, int pieceId) {
+        completed.keySet().removeIf(key -> key.fileIdCrc == fileIdCrc && key.pieceId == pieceId);
+    }
+    
+    public int getPendingCount() {
+        return partials.size();
+    }
+    
+    /**
+     * Segments received so far for one piece
+     */
+    private static class Partial {
+        private static final byte[] STREAMED = new byte[0]; // marks a segment already passed to the sink
+        
+        private final byte[][] chunks;
+        private final int segmentSize;
+        private final PieceSink sink;
+        private final Map<Integer, byte[][]> parities = new HashMap<>(); // group -> parity payloads by index
+        private byte[] firstChunk;  // streamed pieces: segment 0, which also carries the piece header
+        private int groupSize;      // from the first parity segment, 0 until then
+        private int streamLength = -1;
+        private int received;
+        private int recovered;
+        private int highest;        // one past the highest segment that has arrived
+        private int late;           // segments that arrived after a higher one
+        private int cumAck;
+        private int totalLength;
+        private long lastUpdate = System.currentTimeMillis();
+        
+        Partial(int total, int segmentSize, PieceSink sink) {
+            this.chunks = new byte[total][];
+            this.segmentSize = segmentSize;
+            this.sink = sink;
+            if (sink != null) {
+                this.streamLength = PieceHeader.SIZE + sink.getLength();
+            }
+        }
+        
+        synchronized boolean add(UdpSegment segment) {
+            lastUpdate = System.currentTimeMillis();
+            int seq = segment.getSeq();
+            if (chunks[seq] != null) {
+                return false; // duplicate
+            }
+            if (!store(seq, segment.getPayload())) {
+                return false;
+            }
+            if (seq < highest) {
+                late++;
+            } else {
+                highest = seq + 1;
+            }
+            
+            if (groupSize > 0 && parities.containsKey(seq / groupSize)) {
+                recover(seq / groupSize);
+            }
+            return received == chunks.length;
+        }
+        
+        synchronized boolean addParity(UdpParity parity) {
+            lastUpdate = System.currentTimeMillis();
+            if (groupSize == 0) {
+                groupSize = parity.getGroupSize();
+            }
+            if (streamLength < 0) {
+                streamLength = parity.getStreamLength();
+            }
+            if (parity.getGroupSize() != groupSize || parity.getStreamLength() != streamLength) {
+                return false; // does not belong to the transfer being reassembled
+            }
+            
+            int group = parity.getGroup();
+            if (missingIn(group) == 0) {
+                return false;
+            }
+            byte[][] groupParities = parities.computeIfAbsent(group, g -> new byte[FecCodec.MAX_PARITY][]);
+            if (groupParities[parity.getParityIndex()] == null) {
+                byte[] payload = new byte[segmentSize];
+                parity.getPayload().duplicate().get(payload);
+                groupParities[parity.getParityIndex()] = payload;
+            }
+            
+            recover(group);
+            return received == chunks.length;
+        }
+        
+        /**
+         * Keep (or stream) the payload of a segment that has arrived or been rebuilt
+         */
+        private boolean store(int seq, ByteBuffer payload) {
+            if (sink != null) {
+                if (!stream(seq, payload)) {
+                    return false;
+                }
+                chunks[seq] = STREAMED;
+                if (seq == 0) {
+                    firstChunk = new byte[payload.remaining()];
+                    payload.duplicate().get(firstChunk);
+                }
+            } else {
+                byte[] chunk = new byte[payload.remaining()];
+                payload.duplicate().get(chunk);
+                chunks[seq] = chunk;
+                totalLength += chunk.length;
+                if (seq == chunks.length - 1) {
+                    streamLength = seq * segmentSize + chunk.length;
+                }
+            }
+            received++;
+            
+            while (cumAck < chunks.length && chunks[cumAck] != null) {
+                cumAck++;
+            }
+            return true;
+        }
+        
+        private int missingIn(int group) {
+            int missing = 0;
+            for (int seq = group * groupSize, end = groupEnd(group); seq < end; seq++) {
+                if (chunks[seq] == null) {
+                    missing++;
+                }
+            }
+            return missing;
+        }
+        
+        private int groupEnd(int group) {
+            return Math.min(chunks.length, (group + 1) * groupSize);
+        }
+        
+        /**
+         * Rebuild the missing segments of a group once as many parity segments as
+         * missing ones have arrived; the group's parity is dropped once it is whole
+         */
+        private void recover(int group) {
+            int missing = missingIn(group);
+            if (missing == 0) {
+                parities.remove(group);
+                return;
+            }
+            byte[][] groupParities = parities.get(group);
+            int first = group * groupSize;
+            int end = groupEnd(group);
+            int available = 0;
+            for (byte[] parity : groupParities) {
+                available += parity != null ? 1 : 0;
+            }
+            if (missing > available) {
+                return;
+            }
+            
+            byte[][] blocks = new byte[end - first][];
+            try {
+                for (int seq = first; seq < end; seq++) {
+                    if (chunks[seq] != null) {
+                        blocks[seq - first] = paddedPayload(seq);
+                    }
+                }
+            } catch (IOException e) {
+                logger.debug("Cannot read back segments to rebuild group {}: {}", group, e.getMessage());
+                return;
+            }
+            
+            FecCodec.recover(blocks, groupParities, segmentSize);
+            for (int seq = first; seq < end; seq++) {
+                if (chunks[seq] == null && store(seq, ByteBuffer.wrap(blocks[seq - first], 0, segmentLength(seq)))) {
+                    recovered++;
+                }
+            }
+            parities.remove(group);
+        }
+        
+        /**
+         * Payload of a segment that has arrived, zero padded to a full segment
+         */
+        private byte[] paddedPayload(int seq) throws IOException {
+            if (sink == null) {
+                return Arrays.copyOf(chunks[seq], segmentSize);
+            }
+            if (seq == 0) {
+                return Arrays.copyOf(firstChunk, segmentSize);
+            }
+            byte[] block = new byte[segmentSize];
+            sink.read((long) seq * segmentSize - PieceHeader.SIZE,
+                      ByteBuffer.wrap(block, 0, segmentLength(seq)));
+            return block;
+        }
+        
+        private int segmentLength(int seq) {
+            return Math.min(segmentSize, streamLength - seq * segmentSize);
+        }
+        
+        /**
+         * Write a segment's share of the piece data to the sink. The stream is the
+         * {@link PieceHeader} followed by the data, cut into segmentSize segments,
+         * so a segment whose size does not fit that layout is dropped unacknowledged.
+         */
+        private boolean stream(int seq, ByteBuffer segmentPayload) {
+            long streamOffset = (long) seq * segmentSize;
+            ByteBuffer payload = segmentPayload.duplicate();
+            if (payload.remaining() != Math.min(segmentSize, streamLength - streamOffset)) {
+                return false;
+            }
+            
+            if (streamOffset < PieceHeader.SIZE) {
+                int headerBytes = (int) Math.min(PieceHeader.SIZE - streamOffset, payload.remaining());
+                if (headerBytes == PieceHeader.SIZE) { // segments are larger than the header, so it comes whole
+                    int header = payload.position();
+                    if (payload.get(header + PieceHeader.ENCODING_OFFSET) != PieceCompressor.ENCODING_RAW) {
+                        sink.fail(new IOException("Piece sent encoded to a sink, which takes raw data only"));
+                    } else if (payload.getInt(header + PieceHeader.DATA_LENGTH_OFFSET) != sink.getLength()) {
+                        sink.fail(new IOException("Piece header length does not match the manifest"));
+                    }
+                }
+                payload.position(payload.position() + headerBytes);
+                streamOffset += headerBytes;
+            }
+            if (payload.hasRemaining()) {
+                sink.write(streamOffset - PieceHeader.SIZE, payload);
+            }
+            return true;
+        }
+        
+        synchronized void fillAck(UdpAck ack) {
+            long bits = 0;
+            int limit = Math.min(chunks.length, cumAck + 1 + UdpAck.SACK_BITS);
+            for (int seq = cumAck + 1; seq < limit; seq++) {
+                if (chunks[seq] != null) {
+                    bits |= 1L << (seq - cumAck - 1);
+                }
+            }
+            ack.setCumAck(cumAck);
+            ack.setSackBits(bits);
+            ack.setRecovered(recovered);
+        }
+        
+        synchronized int getRepaired() {
+            return late + recovered;
+        }
+        
+        synchronized byte[] assemble() {
+            byte[] result = new byte[totalLength];
+            int offset = 0;
+            for (byte[] chunk : chunks) {
+                System.arraycopy(chunk, 0, result, offset, chunk.length);
+                offset += chunk.length;
+            }
+            return result;
+        }
+    }
+    
+    /**
+     * Identifies one piece in flight from one source
+     */
+    private static class Key {
+        private final SocketAddress source;
+        private final int fileIdCrc;
+        private final int pieceId;
+        
+        Key(SocketAddress source, int fileIdCrc, int pieceId) {
+            this.source = source;
+            this.fileIdCrc = fileIdCrc;
+            this.pieceId = pieceId;
+        }
+        
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key key = (Key) o;
+            return fileIdCrc == key.fileIdCrc && pieceId == key.pieceId && Objects.equals(source, key.source);
+        }
+        
+        @Override
+        public int hashCode() {
+            return Objects.hash(source, fileIdCrc, pieceId);
+        }
+    }
+}
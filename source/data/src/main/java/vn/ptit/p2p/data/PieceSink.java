@@ -0,0 +1,157 @@
+package vn.ptit.p2p.data;
+
+import vn.ptit.p2p.common.Hashing;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Receives one piece straight into its region of a file, so a download never
+ * holds the piece on the heap. Data may arrive in any order (UDP segments) and
+ * is written with positional writes as it comes; it is hashed in order, so
+ * bytes that arrive ahead of a gap are read back from the page cache once the
+ * gap is filled. Writes after {@link #close()} are ignored, which keeps an
+ * abandoned attempt from touching the region a later attempt is writing.
+ */
+public class PieceSink {
+    private static final int READ_BACK_SIZE = 64 * 1024;
+    private static final ThreadLocal<ByteBuffer> READ_BACK = ThreadLocal.withInitial(
+        () -> ByteBuffer.allocate(READ_BACK_SIZE));
+    
+    private final FileChannel file;
+    private final long position;
+    private final int length;
+    private final byte[] expectedHash;
+    private final MessageDigest digest;
+    private final Map<Long, Integer> unhashed = new TreeMap<>(); // offset -> length, written past the hashed prefix
+    private final CompletableFuture<Void> received = new CompletableFuture<>();
+    private long hashed;
+    private long written;
+    private boolean closed;
+    
+    /**
+     * @param position Offset of the piece in the file
+     * @param length Length of the piece according to the manifest; anything else is rejected
+     * @param expectedHash SHA-256 of the piece from the manifest
+     */
+    public PieceSink(FileChannel file, long position, int length, String expectedHash) {
+        this.file = file;
+        this.position = position;
+        this.length = length;
+        this.expectedHash = Hashing.hexToBytes(expectedHash);
+        try {
+            this.digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 algorithm not available", e);
+        }
+    }
+    
+    public int getLength() { return length; }
+    
+    /**
+     * Completes once every byte of the piece has been written, or fails on a write error
+     */
+    public CompletableFuture<Void> whenReceived() {
+        return received;
+    }
+    
+    /**
+     * Write data at an offset within the piece. Ranges must not overlap; a range
+     * outside the piece fails the sink.
+     */
+    public synchronized void write(long offset, ByteBuffer src) {
+        if (closed || received.isDone()) {
+            return;
+        }
+        int count = src.remaining();
+        if (offset < 0 || offset + count > length) {
+            fail(new IOException("Data at " + offset + "+" + count + " lies outside the piece"));
+            return;
+        }
+        
+        try {
+            ByteBuffer data = src.duplicate();
+            long target = position + offset;
+            while (data.hasRemaining()) {
+                target += file.write(data, target);
+            }
+            
+            if (offset == hashed) {
+                digest.update(src.duplicate());
+                hashed += count;
+                catchUp();
+            } else {
+                unhashed.put(offset, count);
+            }
+        } catch (IOException e) {
+            fail(e);
+            return;
+        }
+        
+        written += count;
+        if (written == length) {
+            received.complete(null);
+        }
+    }
+    
+    /**
+     * Read back data already written at an offset within the piece, e.g. to
+     * rebuild a lost segment from FEC parity, filling dst to its limit
+     */
+    public void read(long offset, ByteBuffer dst) throws IOException {
+        long source = position + offset;
+        while (dst.hasRemaining()) {
+            int read = file.read(dst, source);
+            if (read < 0) {
+                throw new IOException("File truncated while receiving a piece");
+            }
+            source += read;
+        }
+    }
+    
+    /**
+     * Hash ranges that arrived early and are now contiguous with the hashed prefix
+     */
+    private void catchUp() throws IOException {
+        Integer count;
+        while ((count = unhashed.remove(hashed)) != null) {
+            long end = hashed + count;
+            ByteBuffer buffer = READ_BACK.get();
+            while (hashed < end) {
+                buffer.clear().limit((int) Math.min(READ_BACK_SIZE, end - hashed));
+                int read = file.read(buffer, position + hashed);
+                if (read < 0) {
+                    throw new IOException("File truncated while receiving a piece");
+                }
+                buffer.flip();
+                digest.update(buffer);
+                hashed += read;
+            }
+        }
+    }
+    
+    public synchronized void fail(Throwable error) {
+        closed = true;
+        received.completeExceptionally(error);
+    }
+    
+    /**
+     * Whether the whole piece was written and matches the expected hash
+     */
+    public synchronized boolean verify() {
+        return hashed == length && written == length && MessageDigest.isEqual(digest.digest(), expectedHash);
+    }
+    
+    /**
+     * Ignore any further writes, e.g. from an attempt that has been given up on
+     */
+    public synchronized void close() {
+        closed = true;
+    }
+}
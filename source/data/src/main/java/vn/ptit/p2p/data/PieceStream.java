@@ -0,0 +1,302 @@
+package vn.ptit.p2p.data;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import vn.ptit.p2p.common.Models.Piece;
+import vn.ptit.p2p.common.Models.PieceBuffer;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Publishes a batch of pieces with demand-driven back-pressure. Pieces are
+ * fetched in batches of as many as the subscriber has asked for and not yet
+ * been given, and pieces in flight plus pieces waiting for the subscriber
+ * never exceed maxInFlight, however much demand is signalled. Signals are
+ * delivered one at a time on the given executor, never on a transport or
+ * verify thread. The first piece that cannot be fetched cancels the rest;
+ * pieces already received are still published (as far as demand allows)
+ * before onError.
+ */
+public class PieceStream implements Flow.Publisher<Piece> {
+    private static final Logger logger = LoggerFactory.getLogger(PieceStream.class);
+    
+    /**
+     * Starts fetching pieces, returning one future per index in the same order
+     */
+    public interface Fetcher {
+        List<CompletableFuture<PieceBuffer>> fetch(int[] pieceIndices);
+    }
+    
+    private final String fileHash;
+    private final int[] pieceIndices;
+    private final int maxInFlight;
+    private final Fetcher fetcher;
+    private final Executor executor;
+    private final AtomicBoolean subscribed = new AtomicBoolean();
+    
+    public PieceStream(String fileHash, int[] pieceIndices, int maxInFlight, Fetcher fetcher, Executor executor) {
+        this.fileHash = fileHash;
+        this.pieceIndices = pieceIndices.clone();
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.fetcher = fetcher;
+        this.executor = executor;
+    }
+    
+    @Override
+    public void subscribe(Flow.Subscriber<? super Piece> subscriber) {
+        Objects.requireNonNull(subscriber, "subscriber");
+        if (!subscribed.compareAndSet(false, true)) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {
+                }
+                
+                @Override
+                public void cancel() {
+                }
+            });
+            subscriber.onError(new IllegalStateException("A piece stream accepts only one subscriber"));
+            return;
+        }
+        
+        StreamSubscription subscription = new StreamSubscription(subscriber);
+        subscriber.onSubscribe(subscription);
+        subscription.start();
+    }
+    
+    private class StreamSubscription implements Flow.Subscription {
+        private final Flow.Subscriber<? super Piece> subscriber;
+        private final AtomicInteger pendingSignals = new AtomicInteger();
+        private final ArrayDeque<Piece> ready = new ArrayDeque<>();
+        private final Set<CompletableFuture<PieceBuffer>> inFlight = new HashSet<>();
+        private long demand;      // requested by the subscriber and not yet published
+        private int next;         // position in pieceIndices of the next piece to fetch
+        private int outstanding;  // fetches started and not yet finished
+        private Throwable error;
+        private boolean cancelled;
+        private boolean terminated;
+        private volatile boolean started;
+        
+        StreamSubscription(Flow.Subscriber<? super Piece> subscriber) {
+            this.subscriber = subscriber;
+        }
+        
+        /**
+         * Allow signals once onSubscribe has returned; an empty batch completes right away
+         */
+        void start() {
+            started = true;
+            signal();
+        }
+        
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                fail(new IllegalArgumentException("Demand must be positive, got " + n));
+                return;
+            }
+            synchronized (this) {
+                if (cancelled) {
+                    return;
+                }
+                demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+            }
+            refill();
+            signal();
+        }
+        
+        @Override
+        public void cancel() {
+            List<CompletableFuture<PieceBuffer>> abandoned;
+            synchronized (this) {
+                if (cancelled) {
+                    return;
+                }
+                cancelled = true;
+                ready.clear();
+                abandoned = new ArrayList<>(inFlight);
+                inFlight.clear();
+            }
+            for (CompletableFuture<PieceBuffer> future : abandoned) {
+                future.cancel(false);
+            }
+        }
+        
+        /**
+         * Start fetching as many pieces as unfulfilled demand and the in-flight cap allow
+         */
+        private void refill() {
+            int[] batch;
+            synchronized (this) {
+                if (cancelled || error != null) {
+                    return;
+                }
+                long held = outstanding + ready.size();
+                long slots = Math.min(Math.min(demand - held, maxInFlight - held), pieceIndices.length - next);
+                if (slots <= 0) {
+                    return;
+                }
+                batch = Arrays.copyOfRange(pieceIndices, next, next + (int) slots);
+                next += batch.length;
+                outstanding += batch.length;
+            }
+            
+            List<CompletableFuture<PieceBuffer>> futures;
+            try {
+                futures = fetcher.fetch(batch);
+            } catch (RuntimeException e) {
+                synchronized (this) {
+                    outstanding -= batch.length;
+                }
+                fail(e);
+                return;
+            }
+            
+            boolean abandoned;
+            synchronized (this) {
+                abandoned = cancelled || error != null;
+                if (!abandoned) {
+                    inFlight.addAll(futures);
+                }
+            }
+            for (int i = 0; i < batch.length; i++) {
+                CompletableFuture<PieceBuffer> future = futures.get(i);
+                int pieceIndex = batch[i];
+                future.whenComplete((piece, failure) -> onFetched(future, pieceIndex, piece, failure));
+                if (abandoned) {
+                    future.cancel(false);
+                }
+            }
+        }
+        
+        private void onFetched(CompletableFuture<PieceBuffer> future, int pieceIndex, PieceBuffer buffer,
+                               Throwable failure) {
+            Piece piece = null;
+            if (failure == null) {
+                try {
+                    piece = buffer.toPiece();
+                } finally {
+                    buffer.release();
+                }
+            }
+            
+            synchronized (this) {
+                inFlight.remove(future);
+                outstanding--;
+                if (cancelled) {
+                    return;
+                }
+                if (piece != null) {
+                    ready.add(piece);
+                }
+            }
+            if (failure != null) {
+                Throwable cause = failure instanceof CompletionException && failure.getCause() != null
+                                  ? failure.getCause() : failure;
+                fail(new IOException("Piece " + pieceIndex + " of " + fileHash + " could not be fetched", cause));
+                return;
+            }
+            refill();
+            signal();
+        }
+        
+        /**
+         * Record the first error and abandon the pieces still in flight
+         */
+        private void fail(Throwable failure) {
+            List<CompletableFuture<PieceBuffer>> abandoned;
+            synchronized (this) {
+                if (cancelled || error != null) {
+                    return;
+                }
+                error = failure;
+                abandoned = new ArrayList<>(inFlight);
+                inFlight.clear();
+            }
+            for (CompletableFuture<PieceBuffer> future : abandoned) {
+                future.cancel(false);
+            }
+            signal();
+        }
+        
+        /**
+         * Run the emit loop on the executor unless it is already scheduled or running
+         */
+        private void signal() {
+            if (pendingSignals.getAndIncrement() != 0) {
+                return;
+            }
+            try {
+                executor.execute(this::drain);
+            } catch (RejectedExecutionException e) {
+                drain(); // signals must not be lost; publish on this thread instead
+            }
+        }
+        
+        private void drain() {
+            int missed = 1;
+            do {
+                if (started) {
+                    emit();
+                }
+                missed = pendingSignals.addAndGet(-missed);
+            } while (missed != 0);
+        }
+        
+        private void emit() {
+            while (true) {
+                Piece piece = null;
+                Throwable failure = null;
+                synchronized (this) {
+                    if (cancelled || terminated) {
+                        return;
+                    }
+                    if (demand > 0 && !ready.isEmpty()) {
+                        piece = ready.poll();
+                        demand--;
+                    } else if (error != null) {
+                        failure = error;
+                        terminated = true;
+                        ready.clear();
+                    } else if (next == pieceIndices.length && outstanding == 0 && ready.isEmpty()) {
+                        terminated = true;
+                    } else {
+                        return;
+                    }
+                }
+                
+                if (piece == null) {
+                    if (failure != null) {
+                        subscriber.onError(failure);
+                    } else {
+                        subscriber.onComplete();
+                    }
+                    return;
+                }
+                
+                try {
+                    subscriber.onNext(piece);
+                } catch (RuntimeException e) {
+                    logger.warn("Subscriber of the piece stream of {} failed, cancelling", fileHash, e);
+                    cancel();
+                    return;
+                }
+                refill(); // publishing freed a place under the in-flight cap
+            }
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package vn.ptit.p2p.data;
+
+import vn.ptit.p2p.common.Hashing;
+import vn.ptit.p2p.common.Models.FileMetadata;
+import vn.ptit.p2p.common.Models.Piece;
+import vn.ptit.p2p.common.Models.PieceBuffer;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Verifies complete pieces with one SHA-256 each. The expected hash comes
+ * from the registered manifest (FileMetadata.getPieceHashes()); the hash the
+ * sender put in the piece header is only trusted for unregistered files.
+ * Individual segments are already covered by their CRC32C.
+ */
+public class PieceVerifier {
+    private static final ThreadLocal<MessageDigest> DIGESTS = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 algorithm not available", e);
+        }
+    });
+    
+    private final Map<String, FileMetadata> manifests = new ConcurrentHashMap<>();
+    
+    public void register(FileMetadata metadata) {
+        manifests.put(metadata.getFileHash().toLowerCase(), metadata);
+    }
+    
+    public void unregister(String fileHash) {
+        manifests.remove(fileHash.toLowerCase());
+    }
+    
+    /**
+     * The registered manifest of a file, or null if the file is unknown
+     */
+    public FileMetadata getManifest(String fileHash) {
+        return manifests.get(fileHash.toLowerCase());
+    }
+    
+    /**
+     * Expected hash of a piece from the registered manifest, or null if the file is unknown
+     */
+    public String expectedHash(String fileHash, int pieceIndex) {
+        FileMetadata metadata = manifests.get(fileHash.toLowerCase());
+        if (metadata == null) {
+            return null;
+        }
+        List<String> pieceHashes = metadata.getPieceHashes();
+        return pieceIndex >= 0 && pieceIndex < pieceHashes.size() ? pieceHashes.get(pieceIndex) : null;
+    }
+    
+    /**
+     * Length of a piece from the registered manifest, or -1 if the file or piece is unknown
+     */
+    public int expectedLength(String fileHash, int pieceIndex) {
+        FileMetadata metadata = manifests.get(fileHash.toLowerCase());
+        if (metadata == null || pieceIndex < 0 || pieceIndex >= metadata.getPieceHashes().size()) {
+            return -1;
+        }
+        long offset = (long) pieceIndex * metadata.getPieceSize();
+        return (int) Math.min(metadata.getPieceSize(), metadata.getFileSize() - offset);
+    }
+    
+    /**
+     * Check a received piece against its expected SHA-256
+     */
+    public boolean verify(Piece piece) {
+        byte[] expected = expectedRaw(piece.getFileHash(), piece.getIndex(), piece.getHash());
+        if (expected == null) {
+            return false;
+        }
+        MessageDigest digest = DIGESTS.get();
+        digest.reset();
+        return MessageDigest.isEqual(digest.digest(piece.getData()), expected);
+    }
+    
+    /**
+     * Check a received piece buffer against its expected SHA-256, reading it in place
+     */
+    public boolean verify(PieceBuffer piece) {
+        byte[] expected = expectedRaw(piece.getFileHash(), piece.getIndex(), piece.getHash());
+        if (expected == null) {
+            return false;
+        }
+        MessageDigest digest = DIGESTS.get();
+        digest.reset();
+        digest.update(piece.getData());
+        return MessageDigest.isEqual(digest.digest(), expected);
+    }
+    
+    /**
+     * Expected digest from the manifest, else the one the sender claimed; null if neither is usable
+     */
+    private byte[] expectedRaw(String fileHash, int pieceIndex, String claimedHash) {
+        String expected = expectedHash(fileHash, pieceIndex);
+        if (expected == null) {
+            expected = claimedHash;
+        }
+        if (expected == null) {
+            return null;
+        }
+        try {
+            return Hashing.hexToBytes(expected);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package vn.ptit.p2p.data;
+
+import java.net.InetAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hierarchical token bucket: global -> per-peer -> per-file.
+ * A transfer may only send when every level it belongs to has tokens,
+ * so one greedy peer or file cannot take the whole link. Peers are told apart
+ * by their IP address, whichever path (UDP or TCP, serving or requesting)
+ * the bytes take, so a peer gets one bucket however it reaches us. All rates are
+ * in bytes per second, 0 meaning unlimited, and can be changed at runtime.
+ * Per-peer and per-file buckets at the default rate are dropped once they
+ * have been idle for a while: a full bucket is no different from a new one,
+ * so every peer and file ever seen does not keep a bucket forever.
+ */
+public class RateLimiter {
+    private static final long IDLE_NANOS = TimeUnit.SECONDS.toNanos(60);
+    private static final long EVICT_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+    
+    private final TokenBucket global;
+    private final Map<InetAddress, TokenBucket> peers = new ConcurrentHashMap<>();
+    private final Map<String, TokenBucket> files = new ConcurrentHashMap<>();
+    private volatile long defaultPeerRate;
+    private volatile long defaultFileRate;
+    private final AtomicLong lastEviction = new AtomicLong(System.nanoTime());
+    
+    public RateLimiter(long globalRate, long defaultPeerRate) {
+        this.global = new TokenBucket(globalRate);
+        this.defaultPeerRate = defaultPeerRate;
+    }
+    
+    public void setGlobalRate(long bytesPerSecond) {
+        global.setRate(bytesPerSecond);
+    }
+    
+    public long getGlobalRate() {
+        return global.getRate();
+    }
+    
+    /**
+     * Rate for peers without an explicit limit (existing default buckets are updated too)
+     */
+    public void setDefaultPeerRate(long bytesPerSecond) {
+        long previous = defaultPeerRate;
+        defaultPeerRate = bytesPerSecond;
+        peers.values().forEach(bucket -> {
+            if (bucket.getRate() == previous) {
+                bucket.setRate(bytesPerSecond);
+            }
+        });
+    }
+    
+    public void setDefaultFileRate(long bytesPerSecond) {
+        long previous = defaultFileRate;
+        defaultFileRate = bytesPerSecond;
+        files.values().forEach(bucket -> {
+            if (bucket.getRate() == previous) {
+                bucket.setRate(bytesPerSecond);
+            }
+        });
+    }
+    
+    public void setPeerRate(InetAddress peer, long bytesPerSecond) {
+        peerBucket(peer).setRate(bytesPerSecond);
+    }
+    
+    public void setFileRate(String fileHash, long bytesPerSecond) {
+        fileBucket(fileHash).setRate(bytesPerSecond);
+    }
+    
+    /**
+     * Forget the per-peer bucket of a peer that went away
+     */
+    public void removePeer(InetAddress peer) {
+        peers.remove(peer);
+    }
+    
+    public void removeFile(String fileHash) {
+        files.remove(fileHash);
+    }
+    
+    /**
+     * Get the chain of buckets a transfer between us and a peer for a file goes through
+     * 
+     * @param peer The peer's address, null if it could not be resolved (only the file and global rates apply then)
+     */
+    public Path path(InetAddress peer, String fileHash) {
+        evictIdleIfDue();
+        if (peer == null) {
+            return new Path(fileBucket(fileHash), global);
+        }
+        return new Path(fileBucket(fileHash), peerBucket(peer), global);
+    }
+    
+    /**
+     * Drop the peer and file buckets at the default rate that have been full
+     * for {@link #IDLE_NANOS}; buckets with a rate of their own are kept
+     */
+    public void evictIdle(long nowNanos) {
+        long peerRate = defaultPeerRate;
+        long fileRate = defaultFileRate;
+        peers.values().removeIf(bucket -> bucket.getRate() == peerRate && bucket.isIdle(nowNanos, IDLE_NANOS));
+        files.values().removeIf(bucket -> bucket.getRate() == fileRate && bucket.isIdle(nowNanos, IDLE_NANOS));
+    }
+    
+    private void evictIdleIfDue() {
+        long now = System.nanoTime();
+        long last = lastEviction.get();
+        if (now - last > EVICT_INTERVAL_NANOS && lastEviction.compareAndSet(last, now)) {
+            evictIdle(now);
+        }
+    }
+    
+    private TokenBucket peerBucket(InetAddress peer) {
+        return peers.computeIfAbsent(peer, k -> new TokenBucket(defaultPeerRate));
+    }
+    
+    private TokenBucket fileBucket(String fileHash) {
+        return files.computeIfAbsent(fileHash, k -> new TokenBucket(defaultFileRate));
+    }
+    
+    /**
+     * The file, peer and global buckets of one transfer
+     */
+    public static class Path {
+        private final TokenBucket[] buckets;
+        
+        Path(TokenBucket... buckets) {
+            this.buckets = buckets;
+        }
+        
+        /**
+         * Take tokens from every level, or none of them
+         * 
+         * @return 0 if granted, otherwise the nanoseconds to wait before retrying
+         */
+        public long tryAcquire(int bytes) {
+            long now = System.nanoTime();
+            for (int i = 0; i < buckets.length; i++) {
+                long wait = buckets[i].tryAcquire(bytes, now);
+                if (wait > 0) {
+                    for (int j = 0; j < i; j++) {
+                        buckets[j].refund(bytes);
+                    }
+                    return wait;
+                }
+            }
+            return 0;
+        }
+        
+        /**
+         * Take tokens from every level unconditionally (for bytes already committed)
+         * 
+         * @return the nanoseconds until every level is back within its burst allowance
+         */
+        public long consume(int bytes) {
+            long now = System.nanoTime();
+            long wait = 0;
+            for (TokenBucket bucket : buckets) {
+                wait = Math.max(wait, bucket.consume(bytes, now));
+            }
+            return wait;
+        }
+        
+        /**
+         * Block the calling thread until tokens are available (for blocking TCP streams)
+         */
+        public void acquire(int bytes) throws InterruptedException {
+            long wait;
+            while ((wait = tryAcquire(bytes)) > 0) {
+                LockSupport.parkNanos(wait);
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+        }
+    }
+}
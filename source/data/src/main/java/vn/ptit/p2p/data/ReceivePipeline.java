@@ -0,0 +1,158 @@
+package vn.ptit.p2p.data;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Decouples socket reads from packet processing. The transport thread only
+ * copies each datagram into a pooled buffer and hands it off through a bounded
+ * lock-free queue; a fixed set of workers runs the real handler (decoding,
+ * reassembly, hashing, future completion). When the workers fall behind,
+ * datagrams are dropped here and counted instead of stalling the socket
+ * (where the kernel would drop them silently).
+ */
+public class ReceivePipeline implements UdpTransport.Handler {
+    private static final Logger logger = LoggerFactory.getLogger(ReceivePipeline.class);
+    private static final int BUFFER_SIZE = 2048;           // Enough for segments on a standard 1500-byte MTU
+    private static final int SPIN_LIMIT = 200;             // Empty polls before a worker parks
+    private static final long MAX_PARK_NANOS = 10_000_000; // Safety net against a missed wakeup
+    
+    private final UdpTransport.Handler handler;
+    private final BoundedMpmcQueue<Slot> queue;
+    private final BoundedMpmcQueue<Slot> freeSlots;
+    private final Thread[] workers;
+    private final AtomicIntegerArray parked;
+    private final AtomicInteger parkedCount = new AtomicInteger();
+    private final LongAdder enqueued = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private volatile boolean running = true;
+    
+    /**
+     * @param name Worker thread name prefix
+     * @param workerCount Number of worker threads (0 = one per core)
+     * @param capacity Maximum number of queued datagrams
+     * @param handler Handler run on the worker threads
+     */
+    public ReceivePipeline(String name, int workerCount, int capacity, UdpTransport.Handler handler) {
+        int count = workerCount > 0 ? workerCount : Runtime.getRuntime().availableProcessors();
+        this.handler = handler;
+        this.queue = new BoundedMpmcQueue<>(capacity);
+        this.freeSlots = new BoundedMpmcQueue<>(capacity);
+        this.workers = new Thread[count];
+        this.parked = new AtomicIntegerArray(count);
+        
+        for (int i = 0; i < count; i++) {
+            int index = i;
+            workers[i] = new Thread(() -> workLoop(index), name + "-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+    
+    /**
+     * Called on the transport thread: copy and enqueue, never block
+     */
+    @Override
+    public void onDatagram(ByteBuffer datagram, InetSocketAddress sender) {
+        if (datagram.remaining() > UdpSegment.MAX_DATAGRAM_SIZE) {
+            dropped.increment();
+            return;
+        }
+        
+        Slot slot = freeSlots.poll();
+        if (slot == null) {
+            slot = new Slot();
+        }
+        
+        if (slot.buffer.capacity() < datagram.remaining()) {
+            slot.buffer = ByteBuffer.allocate(UdpSegment.MAX_DATAGRAM_SIZE); // jumbo path, the slot keeps it
+        }
+        
+        int position = datagram.position();
+        slot.buffer.clear();
+        slot.buffer.put(datagram);
+        slot.buffer.flip();
+        datagram.position(position);
+        slot.sender = sender;
+        
+        if (!queue.offer(slot)) {
+            dropped.increment();
+            slot.sender = null;
+            freeSlots.offer(slot);
+            return;
+        }
+        
+        enqueued.increment();
+        if (parkedCount.get() > 0) {
+            wakeOne();
+        }
+    }
+    
+    public int getQueueDepth() { return queue.size(); }
+    public long getEnqueued() { return enqueued.sum(); }
+    public long getDropped() { return dropped.sum(); }
+    
+    public void stop() {
+        running = false;
+        for (Thread worker : workers) {
+            LockSupport.unpark(worker);
+        }
+    }
+    
+    private void wakeOne() {
+        for (int i = 0; i < workers.length; i++) {
+            if (parked.get(i) == 1 && parked.compareAndSet(i, 1, 0)) {
+                LockSupport.unpark(workers[i]);
+                return;
+            }
+        }
+    }
+    
+    private void workLoop(int index) {
+        int idle = 0;
+        while (running) {
+            Slot slot = queue.poll();
+            if (slot == null) {
+                if (++idle < SPIN_LIMIT) {
+                    Thread.onSpinWait();
+                    continue;
+                }
+                // Publish that we are parking before the final emptiness check so a producer cannot miss us
+                parked.set(index, 1);
+                parkedCount.incrementAndGet();
+                if (queue.isEmpty() && running) {
+                    LockSupport.parkNanos(this, MAX_PARK_NANOS);
+                }
+                parked.set(index, 0);
+                parkedCount.decrementAndGet();
+                idle = 0;
+                continue;
+            }
+            
+            idle = 0;
+            try {
+                handler.onDatagram(slot.buffer, slot.sender);
+            } catch (RuntimeException e) {
+                logger.error("Error handling UDP packet", e);
+            } finally {
+                slot.sender = null;
+                freeSlots.offer(slot);
+            }
+        }
+    }
+    
+    /**
+     * Pooled copy of one received datagram
+     */
+    private static class Slot {
+        private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        private InetSocketAddress sender;
+    }
+}
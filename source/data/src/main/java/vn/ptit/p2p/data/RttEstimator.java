@@ -0,0 +1,66 @@
+package vn.ptit.p2p.data;
+
+/**
+ * Smoothed RTT and retransmission timeout estimation (RFC 6298) for one peer
+ */
+public class RttEstimator {
+    private static final long INITIAL_RTO_MICROS = 200_000;
+    private static final long MIN_RTO_MICROS = 20_000;
+    private static final long MAX_RTO_MICROS = 2_000_000;
+    private static final long CLOCK_GRANULARITY_MICROS = 1_000;
+    
+    private long srttMicros;
+    private long rttvarMicros;
+    private long minRttMicros = Long.MAX_VALUE;
+    private long rtoMicros = INITIAL_RTO_MICROS;
+    private boolean hasSample;
+    
+    /**
+     * Feed a new RTT measurement
+     */
+    public synchronized void sample(long rttMicros) {
+        if (rttMicros <= 0) {
+            return;
+        }
+        
+        if (!hasSample) {
+            srttMicros = rttMicros;
+            rttvarMicros = rttMicros / 2;
+            hasSample = true;
+        } else {
+            long delta = Math.abs(srttMicros - rttMicros);
+            rttvarMicros = (3 * rttvarMicros + delta) / 4;
+            srttMicros = (7 * srttMicros + rttMicros) / 8;
+        }
+        
+        minRttMicros = Math.min(minRttMicros, rttMicros);
+        rtoMicros = clamp(srttMicros + Math.max(CLOCK_GRANULARITY_MICROS, 4 * rttvarMicros));
+    }
+    
+    /**
+     * Exponential backoff after a retransmission timeout
+     */
+    public synchronized void backoff() {
+        rtoMicros = clamp(rtoMicros * 2);
+    }
+    
+    public synchronized long getRtoMicros() { return rtoMicros; }
+    public synchronized long getMinRttMicros() { return hasSample ? minRttMicros : 0; }
+    public synchronized boolean hasSample() { return hasSample; }
+    
+    /**
+     * Mean deviation of the RTT samples (RFC 6298 RTTVAR), i.e. the jitter of the path
+     */
+    public synchronized long getRttvarMicros() { return hasSample ? rttvarMicros : 0; }
+    
+    /**
+     * Smoothed RTT, or the initial RTO before the first sample
+     */
+    public synchronized long getSrttMicros() {
+        return hasSample ? srttMicros : INITIAL_RTO_MICROS;
+    }
+    
+    private static long clamp(long rto) {
+        return Math.max(MIN_RTO_MICROS, Math.min(MAX_RTO_MICROS, rto));
+    }
+}
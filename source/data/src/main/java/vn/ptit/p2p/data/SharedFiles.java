@@ -0,0 +1,183 @@
+package vn.ptit.p2p.data;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import vn.ptit.p2p.common.Models.Block;
+import vn.ptit.p2p.common.Models.FileMetadata;
+import vn.ptit.p2p.common.Models.Piece;
+import vn.ptit.p2p.common.Models.PieceBuffer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Complete files we seed, each kept open as one read-only FileChannel shared
+ * by all transfers (positional reads and transferTo do not move a shared
+ * position). Pieces can be read into memory, handed out as slices of the
+ * mapped file, or sent straight from the page cache to a socket without
+ * passing through the Java heap.
+ */
+public class SharedFiles {
+    private static final Logger logger = LoggerFactory.getLogger(SharedFiles.class);
+    
+    private final Map<String, SharedFile> files = new ConcurrentHashMap<>();
+    
+    /**
+     * Start serving a file from disk; replaces an earlier share of the same file
+     */
+    public void share(FileMetadata metadata, Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        if (channel.size() != metadata.getFileSize()) {
+            channel.close();
+            throw new IOException("Size of " + path + " does not match the manifest");
+        }
+        SharedFile previous = files.put(metadata.getFileHash().toLowerCase(), new SharedFile(metadata, channel));
+        if (previous != null) {
+            previous.close();
+        }
+        logger.info("Serving {} from {}", metadata.getFileHash(), path);
+    }
+    
+    public void unshare(String fileHash) {
+        SharedFile file = files.remove(fileHash.toLowerCase());
+        if (file != null) {
+            file.close();
+        }
+    }
+    
+    /**
+     * The shared file, or null if we do not serve it from disk
+     */
+    public SharedFile get(String fileHash) {
+        return files.get(fileHash.toLowerCase());
+    }
+    
+    public void close() {
+        for (SharedFile file : files.values()) {
+            file.close();
+        }
+        files.clear();
+    }
+    
+    /**
+     * One open file and its manifest
+     */
+    public static class SharedFile {
+        private static final long MAP_REGION_SIZE = 1L << 30;
+        
+        private final FileMetadata metadata;
+        private final FileChannel channel;
+        private final int piecesPerRegion;
+        private final AtomicReferenceArray<MappedByteBuffer> regions;
+        
+        SharedFile(FileMetadata metadata, FileChannel channel) {
+            this.metadata = metadata;
+            this.channel = channel;
+            this.piecesPerRegion = (int) Math.max(1, MAP_REGION_SIZE / metadata.getPieceSize());
+            this.regions = new AtomicReferenceArray<>((metadata.getPieceCount() + piecesPerRegion - 1) / piecesPerRegion);
+        }
+        
+        public FileMetadata getMetadata() { return metadata; }
+        
+        /**
+         * Whether the index refers to a piece of this file with a known hash
+         */
+        public boolean hasPiece(int pieceIndex) {
+            return pieceIndex >= 0 && pieceIndex < metadata.getPieceCount()
+                   && pieceIndex < metadata.getPieceHashes().size();
+        }
+        
+        /**
+         * Whether the range lies within a piece of this file
+         */
+        public boolean hasBlock(int pieceIndex, int offset, int length) {
+            return hasPiece(pieceIndex) && BlockHeader.isValidRange(pieceIndex, offset, length)
+                   && (long) offset + length <= pieceLength(pieceIndex);
+        }
+        
+        public long pieceOffset(int pieceIndex) {
+            return (long) pieceIndex * metadata.getPieceSize();
+        }
+        
+        public int pieceLength(int pieceIndex) {
+            return (int) Math.min(metadata.getPieceSize(), metadata.getFileSize() - pieceOffset(pieceIndex));
+        }
+        
+        public String pieceHash(int pieceIndex) {
+            List<String> hashes = metadata.getPieceHashes();
+            return hashes.get(pieceIndex);
+        }
+        
+        /**
+         * Read a piece into memory with a positional read
+         */
+        public Piece readPiece(int pieceIndex) throws IOException {
+            byte[] data = read(pieceOffset(pieceIndex), pieceLength(pieceIndex), pieceIndex);
+            return new Piece(metadata.getFileHash(), pieceIndex, data, pieceHash(pieceIndex));
+        }
+        
+        /**
+         * A piece as a slice of the memory-mapped file, so sending it reads the
+         * page cache directly instead of a heap copy. The file is mapped lazily in
+         * regions of whole pieces (at most 1 GiB each) that the GC unmaps; the
+         * file must not be truncated while it is shared.
+         */
+        public PieceBuffer mapPiece(int pieceIndex) throws IOException {
+            int region = pieceIndex / piecesPerRegion;
+            MappedByteBuffer mapped = regions.get(region);
+            if (mapped == null) {
+                long start = pieceOffset(region * piecesPerRegion);
+                long size = Math.min((long) piecesPerRegion * metadata.getPieceSize(), metadata.getFileSize() - start);
+                mapped = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+                if (!regions.compareAndSet(region, null, mapped)) {
+                    mapped = regions.get(region);
+                }
+            }
+            
+            int offset = (pieceIndex % piecesPerRegion) * metadata.getPieceSize();
+            ByteBuffer slice = mapped.duplicate();
+            slice.limit(offset + pieceLength(pieceIndex)).position(offset);
+            return new PieceBuffer(metadata.getFileHash(), pieceIndex, slice, pieceHash(pieceIndex));
+        }
+        
+        /**
+         * Read a block of a piece into memory; the range must satisfy {@link #hasBlock}
+         */
+        public Block readBlock(int pieceIndex, int offset, int length) throws IOException {
+            byte[] data = read(pieceOffset(pieceIndex) + offset, length, pieceIndex);
+            return new Block(metadata.getFileHash(), pieceIndex, offset, data);
+        }
+        
+        private byte[] read(long position, int length, int pieceIndex) throws IOException {
+            ByteBuffer data = ByteBuffer.allocate(length);
+            while (data.hasRemaining()) {
+                int read = channel.read(data, position + data.position());
+                if (read < 0) {
+                    throw new IOException("Unexpected end of file reading piece " + pieceIndex);
+                }
+            }
+            return data.array();
+        }
+        
+        /**
+         * The open file, for transfers that send pieces with transferTo; must not be closed
+         */
+        FileChannel channel() { return channel; }
+        
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.debug("Error closing shared file {}", metadata.getFileHash(), e);
+            }
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package vn.ptit.p2p.data;
+
+import vn.ptit.p2p.dataapi.DataApi.StageStats;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Live counters of one transfer stage
+ */
+public class StageCounter {
+    private final LongAdder attempts = new LongAdder();
+    private final LongAdder successes = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    
+    public void attempt() { attempts.increment(); }
+    public void success() { successes.increment(); }
+    public void failure() { failures.increment(); }
+    public void timeout() { timeouts.increment(); }
+    
+    public StageStats snapshot() {
+        return new StageStats(attempts.sum(), successes.sum(), failures.sum(), timeouts.sum());
+    }
+}
@@ -0,0 +1,231 @@
+package vn.ptit.p2p.data;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import vn.ptit.p2p.common.Models.Block;
+import vn.ptit.p2p.common.Models.PieceBuffer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Long-lived client connection to a peer's TCP data port. Requests and
+ * pushes are pipelined: each gets a request id and is written as soon as the
+ * connection is free, without waiting for earlier responses, and a reader
+ * thread completes the matching future whenever its response arrives.
+ */
+public class TcpConnection {
+    private static final Logger logger = LoggerFactory.getLogger(TcpConnection.class);
+    private static final int BUFFER_SIZE = 64 * 1024;
+    
+    private final InetSocketAddress address;
+    private final Socket socket;
+    private final DataOutputStream out;
+    private final DataInputStream in;
+    private final RateLimiter downloadLimiter;
+    // Completed with the response's piece, block or null (ACK), whatever the request expects
+    private final Map<Integer, CompletableFuture<Object>> pending = new ConcurrentHashMap<>();
+    private final Map<Integer, PieceSink> sinks = new ConcurrentHashMap<>();
+    private final AtomicInteger nextRequestId = new AtomicInteger();
+    private volatile boolean closed;
+    
+    /**
+     * Connect and start the reader thread
+     *
+     * @param idleTimeoutMillis The connection is closed after this long without any incoming frame
+     */
+    public TcpConnection(InetSocketAddress address, int connectTimeoutMillis, int idleTimeoutMillis,
+                         RateLimiter downloadLimiter) throws IOException {
+        this.address = address;
+        this.downloadLimiter = downloadLimiter;
+        this.socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.connect(address, connectTimeoutMillis);
+            socket.setSoTimeout(idleTimeoutMillis);
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE));
+            this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE));
+            TcpFrame.writePreface(out);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        
+        Thread reader = new Thread(this::readLoop, "tcp-data-client-" + address);
+        reader.setDaemon(true);
+        reader.start();
+    }
+    
+    public InetSocketAddress getAddress() { return address; }
+    public boolean isClosed() { return closed; }
+    public int getPendingCount() { return pending.size(); }
+    
+    /**
+     * Request a piece, which may come back compressed with one of the accepted
+     * encodings; the returned piece has not been decoded or verified yet
+     */
+    public CompletableFuture<PieceBuffer> request(String fileHash, int pieceIndex, int acceptedEncodings) {
+        int requestId = nextRequestId.incrementAndGet();
+        CompletableFuture<PieceBuffer> future = register(requestId);
+        try {
+            synchronized (out) {
+                TcpFrame.writeRequest(out, requestId, fileHash, pieceIndex, acceptedEncodings);
+            }
+        } catch (IOException | RuntimeException e) {
+            fail(future, e);
+        }
+        return future;
+    }
+    
+    /**
+     * Request a piece and stream it into a sink as it arrives; completes once
+     * the frame has been read, after which the sink tells whether it was accepted
+     */
+    public CompletableFuture<Void> requestInto(String fileHash, int pieceIndex, PieceSink sink) {
+        int requestId = nextRequestId.incrementAndGet();
+        sinks.put(requestId, sink);
+        CompletableFuture<Void> future = register(requestId);
+        future.whenComplete((value, error) -> sinks.remove(requestId));
+        try {
+            synchronized (out) {
+                TcpFrame.writeRequest(out, requestId, fileHash, pieceIndex, 0);
+            }
+        } catch (IOException | RuntimeException e) {
+            fail(future, e);
+        }
+        return future;
+    }
+    
+    /**
+     * Request a block of a piece; it cannot be verified until the whole piece is assembled
+     */
+    public CompletableFuture<Block> requestBlock(String fileHash, int pieceIndex, int offset, int length) {
+        int requestId = nextRequestId.incrementAndGet();
+        CompletableFuture<Block> future = register(requestId);
+        try {
+            synchronized (out) {
+                TcpFrame.writeBlockRequest(out, requestId, fileHash, pieceIndex, offset, length);
+            }
+        } catch (IOException | RuntimeException e) {
+            fail(future, e);
+        }
+        return future;
+    }
+    
+    /**
+     * Push a piece to the peer, completing once the peer has acknowledged it.
+     * Blocks the calling thread while it waits for the rate limiter and while
+     * the data is written; the caller keeps the piece referenced until then.
+     * The connection is only held for the write, so a throttled push does not
+     * hold up the other requests pipelined on it.
+     */
+    public CompletableFuture<Void> push(PieceBuffer piece, RateLimiter.Path throttle) {
+        int requestId = nextRequestId.incrementAndGet();
+        CompletableFuture<Void> future = register(requestId);
+        try {
+            TcpFrame.throttle(throttle, piece.getLength());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.completeExceptionally(e); // nothing written yet, the connection is fine
+            return future;
+        }
+        try {
+            synchronized (out) {
+                TcpFrame.writePiece(out, requestId, piece);
+            }
+        } catch (IOException | RuntimeException e) {
+            fail(future, e);
+        }
+        return future;
+    }
+    
+    public void close() {
+        close(new IOException("Connection to " + address + " closed"));
+    }
+    
+    @SuppressWarnings("unchecked")
+    private <T> CompletableFuture<T> register(int requestId) {
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        if (closed) {
+            future.completeExceptionally(new IOException("Connection to " + address + " closed"));
+            return (CompletableFuture<T>) future;
+        }
+        pending.put(requestId, future);
+        if (closed && pending.remove(requestId) != null) {
+            future.completeExceptionally(new IOException("Connection to " + address + " closed"));
+            return (CompletableFuture<T>) future;
+        }
+        // A caller's timeout or cancellation must not leave the entry behind
+        future.whenComplete((value, error) -> pending.remove(requestId, future));
+        return (CompletableFuture<T>) future;
+    }
+    
+    /**
+     * A write failed, so the stream may be mid-frame: give up on the whole connection
+     */
+    private void fail(CompletableFuture<?> future, Exception error) {
+        future.completeExceptionally(error);
+        close(error instanceof IOException ? (IOException) error : new IOException(error));
+    }
+    
+    private void readLoop() {
+        TcpFrame frame = new TcpFrame();
+        try {
+            while (!closed) {
+                frame.read(in, downloadLimiter, address.getAddress(), sinks::get);
+                CompletableFuture<Object> future = pending.remove(frame.getRequestId());
+                if (future == null) {
+                    continue; // the caller gave up on it already
+                }
+                
+                switch (frame.getType()) {
+                    case TcpFrame.TYPE_PIECE:
+                    case TcpFrame.TYPE_ACK:
+                        future.complete(frame.getPiece());
+                        break;
+                    case TcpFrame.TYPE_BLOCK:
+                        future.complete(frame.getBlock());
+                        break;
+                    case TcpFrame.TYPE_ERROR:
+                        future.completeExceptionally(new IOException(frame.getMessage()));
+                        break;
+                    default:
+                        throw new IOException("Unexpected frame type " + frame.getType());
+                }
+            }
+        } catch (SocketTimeoutException e) {
+            logger.debug("Closing idle TCP connection to {}", address);
+            close(e);
+        } catch (IOException e) {
+            if (!closed) {
+                logger.debug("TCP connection to {} failed: {}", address, e.getMessage());
+            }
+            close(e);
+        } catch (InterruptedException e) {
+            close(new IOException("Interrupted", e));
+        }
+    }
+    
+    private void close(IOException cause) {
+        closed = true;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            logger.debug("Error closing TCP connection to {}", address, e);
+        }
+        for (CompletableFuture<Object> future : pending.values()) {
+            future.completeExceptionally(cause);
+        }
+        pending.clear();
+    }
+}
@@ -0,0 +1,201 @@
+package vn.ptit.p2p.data;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A few persistent {@link TcpConnection}s per peer. Each transfer goes to
+ * the connection with the fewest outstanding requests; closed connections
+ * are replaced on the next use. A slot being connected holds the pending
+ * connect, so concurrent callers wait for it or take another slot instead of
+ * opening sockets of their own, and a peer is forgotten once none of its
+ * slots holds a live connection.
+ */
+public class TcpConnectionPool {
+    private final int connectionsPerPeer;
+    private final int connectTimeoutMillis;
+    private final int idleTimeoutMillis;
+    private final RateLimiter downloadLimiter;
+    private final Map<InetSocketAddress, CompletableFuture<TcpConnection>[]> connections = new ConcurrentHashMap<>();
+    private volatile boolean closed;
+    
+    public TcpConnectionPool(int connectionsPerPeer, int connectTimeoutMillis, int idleTimeoutMillis,
+                             RateLimiter downloadLimiter) {
+        this.connectionsPerPeer = Math.max(1, connectionsPerPeer);
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.downloadLimiter = downloadLimiter;
+    }
+    
+    /**
+     * Least loaded open connection to the address, connecting (blocking) if a slot is empty or closed.
+     * The connect runs outside the lock, with the slot reserved for it.
+     */
+    public TcpConnection get(InetSocketAddress address) throws IOException {
+        while (true) {
+            if (closed) {
+                throw new IOException("TCP connection pool closed");
+            }
+            CompletableFuture<TcpConnection>[] slots = connections.computeIfAbsent(address, k -> newSlots());
+            
+            int free = -1;
+            CompletableFuture<TcpConnection> connecting = null;
+            CompletableFuture<TcpConnection> reserved;
+            synchronized (slots) {
+                if (connections.get(address) != slots) {
+                    continue; // dropped as dead meanwhile
+                }
+                TcpConnection best = null;
+                for (int i = 0; i < slots.length; i++) {
+                    CompletableFuture<TcpConnection> slot = slots[i];
+                    if (slot != null && !slot.isDone()) {
+                        connecting = slot;
+                        continue;
+                    }
+                    TcpConnection connection = connection(slot);
+                    if (connection == null || connection.isClosed()) {
+                        slots[i] = null;
+                        if (free < 0) {
+                            free = i;
+                        }
+                    } else if (best == null || connection.getPendingCount() < best.getPendingCount()) {
+                        best = connection;
+                    }
+                }
+                // An idle slot beats sharing a busy connection
+                if (best != null && (free < 0 || best.getPendingCount() == 0)) {
+                    return best;
+                }
+                if (free < 0) {
+                    reserved = null; // every slot is being connected: wait for one
+                } else {
+                    reserved = new CompletableFuture<>();
+                    slots[free] = reserved;
+                }
+            }
+            
+            if (reserved == null) {
+                return await(connecting);
+            }
+            return connect(address, slots, free, reserved);
+        }
+    }
+    
+    public int getConnectionCount() {
+        int count = 0;
+        for (CompletableFuture<TcpConnection>[] slots : connections.values()) {
+            synchronized (slots) {
+                for (CompletableFuture<TcpConnection> slot : slots) {
+                    if (isLive(slot)) {
+                        count++;
+                    }
+                }
+            }
+        }
+        return count;
+    }
+    
+    public void close() {
+        closed = true;
+        for (CompletableFuture<TcpConnection>[] slots : connections.values()) {
+            synchronized (slots) {
+                for (CompletableFuture<TcpConnection> slot : slots) {
+                    TcpConnection connection = connection(slot);
+                    if (connection != null) {
+                        connection.close();
+                    }
+                }
+            }
+        }
+        connections.clear();
+    }
+    
+    /**
+     * Connect the slot reserved for us, then publish the connection to the callers waiting on it.
+     * On failure the slot is cleared again; either way peers without live connections are dropped.
+     */
+    private TcpConnection connect(InetSocketAddress address, CompletableFuture<TcpConnection>[] slots, int slot,
+                                  CompletableFuture<TcpConnection> reserved) throws IOException {
+        TcpConnection connection;
+        try {
+            connection = new TcpConnection(address, connectTimeoutMillis, idleTimeoutMillis, downloadLimiter);
+        } catch (IOException | RuntimeException e) {
+            synchronized (slots) {
+                if (slots[slot] == reserved) {
+                    slots[slot] = null;
+                }
+                reserved.completeExceptionally(e);
+            }
+            prune();
+            throw e;
+        }
+        
+        boolean installed;
+        synchronized (slots) {
+            installed = !closed && slots[slot] == reserved;
+            if (installed) {
+                reserved.complete(connection);
+            } else {
+                if (slots[slot] == reserved) {
+                    slots[slot] = null;
+                }
+                reserved.completeExceptionally(new IOException("TCP connection pool closed"));
+            }
+        }
+        prune();
+        if (!installed) {
+            connection.close();
+            throw new IOException("TCP connection pool closed");
+        }
+        return connection;
+    }
+    
+    /**
+     * Forget peers none of whose slots holds a connection that is open or being made
+     */
+    private void prune() {
+        for (Map.Entry<InetSocketAddress, CompletableFuture<TcpConnection>[]> entry : connections.entrySet()) {
+            CompletableFuture<TcpConnection>[] slots = entry.getValue();
+            synchronized (slots) {
+                boolean live = false;
+                for (CompletableFuture<TcpConnection> slot : slots) {
+                    live |= slot != null && (!slot.isDone() || isLive(slot));
+                }
+                if (!live) {
+                    connections.remove(entry.getKey(), slots);
+                }
+            }
+        }
+    }
+    
+    private static boolean isLive(CompletableFuture<TcpConnection> slot) {
+        TcpConnection connection = connection(slot);
+        return connection != null && !connection.isClosed();
+    }
+    
+    /**
+     * The connection a slot holds, or null if it is empty, still connecting or failed to connect
+     */
+    private static TcpConnection connection(CompletableFuture<TcpConnection> slot) {
+        return slot != null && slot.isDone() && !slot.isCompletedExceptionally() ? slot.join() : null;
+    }
+    
+    private static TcpConnection await(CompletableFuture<TcpConnection> connecting) throws IOException {
+        try {
+            return connecting.join();
+        } catch (CompletionException | CancellationException e) {
+            Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+            throw cause instanceof IOException ? (IOException) cause : new IOException("Connect failed", cause);
+        }
+    }
+    
+    @SuppressWarnings("unchecked")
+    private CompletableFuture<TcpConnection>[] newSlots() {
+        return (CompletableFuture<TcpConnection>[]) new CompletableFuture[connectionsPerPeer];
+    }
+}
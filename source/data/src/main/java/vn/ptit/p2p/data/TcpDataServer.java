@@ -0,0 +1,772 @@
+package vn.ptit.p2p.data;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.FileRegion;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.handler.timeout.IdleStateHandler;
+import io.netty.util.AbstractReferenceCounted;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import vn.ptit.p2p.common.Hashing;
+import vn.ptit.p2p.common.Models.Block;
+import vn.ptit.p2p.common.Models.Peer;
+import vn.ptit.p2p.common.Models.PieceBuffer;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Non-blocking server side of the TCP data port: a fixed number of event
+ * loops serve every connection, whatever their count, with pooled buffers
+ * for reading. Frames are as in {@link TcpFrame}. Responses are queued per
+ * connection and written in chunks as rate limiter tokens and socket buffer
+ * space allow; a lookup that may block (the request handler) runs on the
+ * send pool. Pieces of shared files are written as file regions, i.e. with
+ * transferTo. NIO is used rather than native epoll because only a JDK
+ * SocketChannel lets a FileRegion over a shared FileChannel reach sendfile.
+ */
+public class TcpDataServer {
+    private static final Logger logger = LoggerFactory.getLogger(TcpDataServer.class);
+    private static final int CHUNK_SIZE = 64 * 1024;      // Granularity of rate limiting and writes
+    private static final int IDLE_TIMEOUT_SECONDS = 120;  // Clients close idle connections after 60 s
+    private static final WriteBufferWaterMark WATER_MARK = new WriteBufferWaterMark(256 * 1024, 512 * 1024);
+    private static final int MAX_QUEUED_RESPONSES = 32;   // Per connection, each may hold a piece in memory
+    
+    private final DataService dataService;
+    private final int threads;
+    private final ChannelGroup channels = new DefaultChannelGroup("tcp-data", GlobalEventExecutor.INSTANCE);
+    private EventLoopGroup bossGroup;
+    private EventLoopGroup workerGroup;
+    
+    /**
+     * @param threads Event loop threads (0 = one per core)
+     */
+    public TcpDataServer(DataService dataService, int threads) {
+        this.dataService = dataService;
+        this.threads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+    }
+    
+    public void start(int port) throws IOException {
+        bossGroup = new NioEventLoopGroup(1, new DefaultThreadFactory("tcp-data-accept", true));
+        workerGroup = new NioEventLoopGroup(threads, new DefaultThreadFactory("tcp-data-server", true));
+        
+        ServerBootstrap bootstrap = new ServerBootstrap()
+            .group(bossGroup, workerGroup)
+            .channel(NioServerSocketChannel.class)
+            .childOption(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+            .childOption(ChannelOption.TCP_NODELAY, true)
+            .childOption(ChannelOption.SO_KEEPALIVE, true)
+            .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, WATER_MARK)
+            .childHandler(new ChannelInitializer<SocketChannel>() {
+                @Override
+                protected void initChannel(SocketChannel channel) {
+                    channels.add(channel);
+                    InetAddress address = channel.remoteAddress().getAddress();
+                    channel.pipeline().addLast(
+                        new IdleStateHandler(0, 0, IDLE_TIMEOUT_SECONDS, TimeUnit.SECONDS),
+                        new FrameDecoder((fileHash, pieceIndex) ->
+                            dataService.expectedPushLength(address, fileHash, pieceIndex)),
+                        new ConnectionHandler(channel));
+                }
+            });
+        
+        try {
+            bootstrap.bind(port).sync();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            stop();
+            throw new IOException("Interrupted while binding TCP port " + port, e);
+        } catch (Exception e) {
+            stop();
+            throw e instanceof IOException ? (IOException) e : new IOException("Failed to bind TCP port " + port, e);
+        }
+        logger.info("TCP data server listening on port {} with {} event loop(s)", port, threads);
+    }
+    
+    public void stop() {
+        channels.close();
+        if (bossGroup != null) {
+            bossGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+        }
+        if (workerGroup != null) {
+            workerGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+        }
+    }
+    
+    /**
+     * Open client connections (the listening channel included)
+     */
+    public int getConnectionCount() {
+        return channels.size();
+    }
+    
+    /**
+     * A REQUEST frame from a client
+     */
+    private static class RequestFrame {
+        private final int requestId;
+        private final String fileHash;
+        private final int pieceIndex;
+        private final int acceptedEncodings;
+        
+        RequestFrame(int requestId, String fileHash, int pieceIndex, int acceptedEncodings) {
+            this.requestId = requestId;
+            this.fileHash = fileHash;
+            this.pieceIndex = pieceIndex;
+            this.acceptedEncodings = acceptedEncodings;
+        }
+    }
+    
+    /**
+     * A BLOCK_REQUEST frame from a client
+     */
+    private static class BlockRequestFrame {
+        private final int requestId;
+        private final String fileHash;
+        private final int pieceIndex;
+        private final int offset;
+        private final int length;
+        
+        BlockRequestFrame(int requestId, String fileHash, int pieceIndex, int offset, int length) {
+            this.requestId = requestId;
+            this.fileHash = fileHash;
+            this.pieceIndex = pieceIndex;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+    
+    /**
+     * A PIECE frame pushed by a client
+     */
+    private static class PushFrame {
+        private final int requestId;
+        private final PieceBuffer piece;
+        
+        PushFrame(int requestId, PieceBuffer piece) {
+            this.requestId = requestId;
+            this.piece = piece;
+        }
+    }
+    
+    /**
+     * Checks the preface, then cuts the stream into frames. Lengths are validated
+     * from the header before a body is buffered, and a pushed piece only once its
+     * prefix shows it is one we asked this client for, no longer than the manifest
+     * says; anything else closes the connection.
+     */
+    static class FrameDecoder extends ByteToMessageDecoder {
+        private static final int PREFACE_SIZE = 3;
+        private final Filter filter;
+        private boolean prefaceSeen;
+        private boolean piecePrefixChecked;
+        
+        /**
+         * Decides which pieces the client may push
+         */
+        interface Filter {
+            /**
+             * Length of a piece the client may push, or -1 if it was not requested from it
+             */
+            int expectedLength(String fileHash, int pieceIndex);
+        }
+        
+        FrameDecoder(Filter filter) {
+            this.filter = filter;
+        }
+        
+        @Override
+        protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) {
+            if (!prefaceSeen) {
+                if (in.readableBytes() < PREFACE_SIZE) {
+                    return;
+                }
+                if (in.readShort() != PacketCodec.MAGIC || in.readByte() != PacketCodec.VERSION) {
+                    logger.debug("Dropping TCP connection from {} without a valid preface", ctx.channel().remoteAddress());
+                    in.skipBytes(in.readableBytes());
+                    ctx.close();
+                    return;
+                }
+                prefaceSeen = true;
+            }
+            
+            if (in.readableBytes() < TcpFrame.HEADER_SIZE) {
+                return;
+            }
+            int start = in.readerIndex();
+            byte type = in.getByte(start);
+            int requestId = in.getInt(start + 1);
+            int length = in.getInt(start + 5);
+            
+            boolean valid = type == TcpFrame.TYPE_REQUEST ? length == TcpFrame.REQUEST_SIZE
+                            : type == TcpFrame.TYPE_BLOCK_REQUEST ? length == BlockHeader.SIZE
+                            : type == TcpFrame.TYPE_PIECE && length >= TcpFrame.PIECE_PREFIX_SIZE
+                              && length <= TcpFrame.MAX_BODY_SIZE;
+            if (!valid) {
+                logger.debug("Closing TCP connection from {}: invalid frame type {} / length {}",
+                            ctx.channel().remoteAddress(), type, length);
+                in.skipBytes(in.readableBytes());
+                ctx.close();
+                return;
+            }
+            if (type == TcpFrame.TYPE_PIECE && !piecePrefixChecked) {
+                if (in.readableBytes() < TcpFrame.HEADER_SIZE + TcpFrame.PIECE_PREFIX_SIZE) {
+                    return;
+                }
+                if (!checkPiecePrefix(ctx, in, start + TcpFrame.HEADER_SIZE, length)) {
+                    in.skipBytes(in.readableBytes());
+                    ctx.close();
+                    return;
+                }
+                piecePrefixChecked = true;
+            }
+            if (in.readableBytes() < TcpFrame.HEADER_SIZE + length) {
+                return;
+            }
+            
+            in.skipBytes(TcpFrame.HEADER_SIZE);
+            if (type == TcpFrame.TYPE_REQUEST) {
+                String fileHash = readHash(in);
+                out.add(new RequestFrame(requestId, fileHash, in.readInt(), in.readUnsignedByte()));
+                return;
+            }
+            if (type == TcpFrame.TYPE_BLOCK_REQUEST) {
+                String fileHash = readHash(in);
+                out.add(new BlockRequestFrame(requestId, fileHash, in.readInt(), in.readInt(), in.readInt()));
+                return;
+            }
+            
+            piecePrefixChecked = false;
+            int pieceIndex = in.readInt();
+            String fileHash = readHash(in);
+            String pieceHash = readHash(in);
+            byte encoding = in.readByte();
+            int pieceLength = in.readInt();
+            int dataLength = in.readInt();
+            byte[] data = new byte[dataLength];
+            in.readBytes(data);
+            PieceBuffer piece = PieceHeader.piece(fileHash, pieceIndex, ByteBuffer.wrap(data), pieceHash, encoding, pieceLength);
+            if (piece == null) {
+                logger.debug("Closing TCP connection from {}: inconsistent piece header", ctx.channel().remoteAddress());
+                in.skipBytes(in.readableBytes());
+                ctx.close();
+                return;
+            }
+            out.add(new PushFrame(requestId, piece));
+        }
+        
+        /**
+         * Check the prefix of a PIECE frame body, starting at offset, against the frame
+         * length and against the pieces this client may push
+         */
+        private boolean checkPiecePrefix(ChannelHandlerContext ctx, ByteBuf in, int offset, int length) {
+            int pieceIndex = in.getInt(offset);
+            byte[] rawFileHash = new byte[PieceHeader.HASH_SIZE];
+            in.getBytes(offset + 4, rawFileHash);
+            String fileHash = Hashing.bytesToHex(rawFileHash);
+            int pieceLength = in.getInt(offset + 4 + PieceHeader.ENCODING_OFFSET + 1);
+            int dataLength = in.getInt(offset + 4 + PieceHeader.DATA_LENGTH_OFFSET);
+            
+            if (dataLength != length - TcpFrame.PIECE_PREFIX_SIZE) {
+                logger.debug("Closing TCP connection from {}: inconsistent piece frame", ctx.channel().remoteAddress());
+                return false;
+            }
+            int expected = filter.expectedLength(fileHash, pieceIndex);
+            if (expected < 0) {
+                logger.debug("Closing TCP connection from {}: piece {} of {} was not requested from it",
+                            ctx.channel().remoteAddress(), pieceIndex, fileHash);
+                return false;
+            }
+            if (pieceLength != expected || dataLength > expected) {
+                logger.debug("Closing TCP connection from {}: piece {} of {} is {} bytes ({} sent), expected {}",
+                            ctx.channel().remoteAddress(), pieceIndex, fileHash, pieceLength, dataLength, expected);
+                return false;
+            }
+            return true;
+        }
+        
+        private static String readHash(ByteBuf in) {
+            byte[] raw = new byte[PieceHeader.HASH_SIZE];
+            in.readBytes(raw);
+            return Hashing.bytesToHex(raw);
+        }
+    }
+    
+    /**
+     * One frame to write back: a header, then optionally piece or block data from memory or from a shared file.
+     * A response holds one reference to the piece it sends until its last chunk has left the socket.
+     */
+    private static class Response {
+        private final ByteBuffer header;
+        private final ByteBuffer data;
+        private final PieceBuffer piece;
+        private final FileChannel file;
+        private final long fileOffset;
+        private final int length;
+        private final RateLimiter.Path throttle;
+        private boolean headerSent;
+        private int sent;
+        
+        private Response(ByteBuffer header, ByteBuffer data, PieceBuffer piece, FileChannel file, long fileOffset,
+                         int length, RateLimiter.Path throttle) {
+            this.header = header;
+            this.data = data;
+            this.piece = piece;
+            this.file = file;
+            this.fileOffset = fileOffset;
+            this.length = length;
+            this.throttle = throttle;
+        }
+        
+        static Response control(ByteBuffer frame) {
+            return new Response(frame, null, null, null, 0, 0, null);
+        }
+        
+        static Response block(int requestId, Block block, RateLimiter.Path throttle) {
+            int length = block.getData().length;
+            ByteBuffer header = TcpFrame.encodeBlockPrefix(requestId, block.getFileHash(), block.getPieceIndex(),
+                                                           block.getOffset(), length);
+            return new Response(header, ByteBuffer.wrap(block.getData()), null, null, 0, length, throttle);
+        }
+        
+        static Response fileBlock(int requestId, SharedFiles.SharedFile shared, BlockRequestFrame request,
+                                  RateLimiter.Path throttle) {
+            ByteBuffer header = TcpFrame.encodeBlockPrefix(requestId, shared.getMetadata().getFileHash(),
+                                                           request.pieceIndex, request.offset, request.length);
+            return new Response(header, null, null, shared.channel(),
+                                shared.pieceOffset(request.pieceIndex) + request.offset, request.length, throttle);
+        }
+        
+        /**
+         * Takes over the caller's reference to the piece
+         */
+        static Response piece(int requestId, PieceBuffer piece, RateLimiter.Path throttle) {
+            int length = piece.getLength();
+            ByteBuffer header = concat(TcpFrame.encodePiecePrefix(requestId, piece.getIndex(), length),
+                                       PieceHeader.encode(piece));
+            return new Response(header, piece.getData(), piece, null, 0, length, throttle);
+        }
+        
+        static Response file(int requestId, SharedFiles.SharedFile shared, int pieceIndex, RateLimiter.Path throttle) {
+            int length = shared.pieceLength(pieceIndex);
+            String fileHash = shared.getMetadata().getFileHash();
+            ByteBuffer header = concat(TcpFrame.encodePiecePrefix(requestId, pieceIndex, length),
+                                       PieceHeader.encode(fileHash, shared.pieceHash(pieceIndex), length));
+            return new Response(header, null, null, shared.channel(), shared.pieceOffset(pieceIndex), length, throttle);
+        }
+        
+        boolean isDone() {
+            return headerSent && sent == length;
+        }
+        
+        /**
+         * The next chunk of data from memory, sharing the response's buffer
+         */
+        ByteBuf chunk(int chunkLength) {
+            ByteBuffer view = data.duplicate();
+            view.limit(view.position() + sent + chunkLength).position(view.position() + sent);
+            return Unpooled.wrappedBuffer(view);
+        }
+        
+        /**
+         * Drop the reference to the piece, once written or abandoned
+         */
+        void release() {
+            if (piece != null) {
+                piece.release();
+            }
+        }
+        
+        private static ByteBuffer concat(ByteBuffer first, ByteBuffer second) {
+            ByteBuffer out = ByteBuffer.allocate(first.remaining() + second.remaining());
+            out.put(first).put(second).flip();
+            return out;
+        }
+    }
+    
+    /**
+     * Per-connection state: dispatches frames and writes the response queue.
+     * At most {@link #MAX_QUEUED_RESPONSES} responses are queued or being prepared;
+     * frames beyond that wait undispatched and reading stops until the client has
+     * taken enough of its responses, so a client that does not read cannot make
+     * us hold more pieces.
+     */
+    private class ConnectionHandler extends ChannelInboundHandlerAdapter {
+        private final Channel channel;
+        private final Peer peer;
+        private final InetAddress address;
+        private final ArrayDeque<Response> responses = new ArrayDeque<>();
+        private final ArrayDeque<Object> frames = new ArrayDeque<>();
+        private int preparing;             // responses being looked up on the send pool
+        private boolean dispatching;
+        private boolean waitingForTokens;
+        private boolean waitingForDownload;
+        
+        ConnectionHandler(Channel channel) {
+            this.channel = channel;
+            InetSocketAddress remote = (InetSocketAddress) channel.remoteAddress();
+            this.address = remote.getAddress();
+            String host = address.getHostAddress();
+            this.peer = new Peer(host, host, host, remote.getPort());
+        }
+        
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            frames.add(msg);
+            dispatchFrames();
+        }
+        
+        /**
+         * Dispatch waiting frames while there is room for their responses, then read
+         * on only if there still is (and the download limiter does not ask us to wait)
+         */
+        private void dispatchFrames() {
+            if (dispatching) {
+                return;
+            }
+            dispatching = true;
+            try {
+                while (!frames.isEmpty() && responses.size() + preparing < MAX_QUEUED_RESPONSES) {
+                    Object frame = frames.poll();
+                    if (frame instanceof RequestFrame) {
+                        onRequest((RequestFrame) frame);
+                    } else if (frame instanceof BlockRequestFrame) {
+                        onBlockRequest((BlockRequestFrame) frame);
+                    } else if (frame instanceof PushFrame) {
+                        onPush((PushFrame) frame);
+                    }
+                }
+            } finally {
+                dispatching = false;
+            }
+            channel.config().setAutoRead(frames.isEmpty() && responses.size() + preparing < MAX_QUEUED_RESPONSES
+                                         && !waitingForDownload);
+        }
+        
+        @Override
+        public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+            if (channel.isWritable()) {
+                writePending();
+            }
+            ctx.fireChannelWritabilityChanged();
+        }
+        
+        @Override
+        public void userEventTriggered(ChannelHandlerContext ctx, Object event) {
+            if (event instanceof IdleStateEvent) {
+                logger.debug("Closing idle TCP connection from {}", peer.getId());
+                ctx.close();
+            } else {
+                ctx.fireUserEventTriggered(event);
+            }
+        }
+        
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) {
+            for (Response response : responses) {
+                response.release();
+            }
+            responses.clear();
+            for (Object frame : frames) {
+                if (frame instanceof PushFrame) {
+                    ((PushFrame) frame).piece.release();
+                }
+            }
+            frames.clear();
+            ctx.fireChannelInactive();
+        }
+        
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            logger.debug("TCP connection from {} failed: {}", peer.getId(), cause.getMessage());
+            ctx.close();
+        }
+        
+        /**
+         * Shared files are answered right away, unless the piece may be sent
+         * compressed; anything else is looked up (and compressed) on the send pool
+         */
+        private void onRequest(RequestFrame request) {
+            RateLimiter.Path throttle = dataService.getUploadLimiter().path(address, request.fileHash);
+            SharedFiles.SharedFile shared = dataService.getSharedFiles().get(request.fileHash);
+            boolean compress = dataService.getCompressor().isEnabled(request.acceptedEncodings);
+            if (shared != null && shared.hasPiece(request.pieceIndex) && !compress) {
+                enqueue(Response.file(request.requestId, shared, request.pieceIndex, throttle));
+                return;
+            }
+            
+            preparing++;
+            try {
+                dataService.getRuntime().getSendExecutor().execute(() -> {
+                    Response response = respond(request, shared, throttle);
+                    channel.eventLoop().execute(() -> prepared(response));
+                });
+            } catch (RejectedExecutionException e) {
+                preparing--;
+                enqueue(Response.control(TcpFrame.encodeError(request.requestId, "Server busy")));
+            }
+        }
+        
+        /**
+         * Like {@link #onRequest}: ranges of shared files are sent from disk, others cut out of the handler's piece
+         */
+        private void onBlockRequest(BlockRequestFrame request) {
+            RateLimiter.Path throttle = dataService.getUploadLimiter().path(address, request.fileHash);
+            SharedFiles.SharedFile shared = dataService.getSharedFiles().get(request.fileHash);
+            if (shared != null && shared.hasBlock(request.pieceIndex, request.offset, request.length)) {
+                enqueue(Response.fileBlock(request.requestId, shared, request, throttle));
+                return;
+            }
+            
+            preparing++;
+            try {
+                dataService.getRuntime().getSendExecutor().execute(() -> {
+                    Block block = lookup(request);
+                    Response response = block != null ? Response.block(request.requestId, block, throttle)
+                        : Response.control(TcpFrame.encodeError(request.requestId, "Block not available"));
+                    channel.eventLoop().execute(() -> prepared(response));
+                });
+            } catch (RejectedExecutionException e) {
+                preparing--;
+                enqueue(Response.control(TcpFrame.encodeError(request.requestId, "Server busy")));
+            }
+        }
+        
+        private Block lookup(BlockRequestFrame request) {
+            try {
+                return dataService.handleIncomingBlockRequest(peer, request.fileHash, request.pieceIndex,
+                                                              request.offset, request.length);
+            } catch (RuntimeException e) {
+                logger.warn("Request handler failed for piece {} of {}", request.pieceIndex, request.fileHash, e);
+                return null;
+            }
+        }
+        
+        /**
+         * The piece compressed if the requester accepts it and it is worth it, else
+         * as it is: from disk without copying for a shared file
+         */
+        private Response respond(RequestFrame request, SharedFiles.SharedFile shared, RateLimiter.Path throttle) {
+            PieceBuffer piece = lookup(request);
+            if (piece == null) {
+                return Response.control(TcpFrame.encodeError(request.requestId, "Piece not available"));
+            }
+            PieceBuffer encoded = dataService.getCompressor().encode(piece, request.acceptedEncodings);
+            if (encoded != piece) {
+                piece.release();
+                return Response.piece(request.requestId, encoded, throttle);
+            }
+            if (shared != null && shared.hasPiece(request.pieceIndex)) {
+                piece.release();
+                return Response.file(request.requestId, shared, request.pieceIndex, throttle);
+            }
+            return Response.piece(request.requestId, piece, throttle);
+        }
+        
+        private PieceBuffer lookup(RequestFrame request) {
+            try {
+                return dataService.handleIncomingRequest(peer, request.fileHash, request.pieceIndex);
+            } catch (RuntimeException e) {
+                logger.warn("Request handler failed for piece {} of {}", request.pieceIndex, request.fileHash, e);
+                return null;
+            }
+        }
+        
+        /**
+         * A pushed piece completes our pending request, if that went to this
+         * client's host. Its bytes are charged to the download limiter
+         * afterwards by pausing reads on this connection.
+         */
+        private void onPush(PushFrame push) {
+            PieceBuffer piece = push.piece;
+            long wait = dataService.getDownloadLimiter().path(address, piece.getFileHash())
+                .consume(piece.getLength());
+            if (wait > 0) {
+                waitingForDownload = true;
+                channel.eventLoop().schedule(() -> {
+                    waitingForDownload = false;
+                    dispatchFrames();
+                }, wait, TimeUnit.NANOSECONDS);
+            }
+            
+            boolean delivered = dataService.deliverPiece(address, piece);
+            if (!delivered) {
+                piece.release();
+            }
+            enqueue(Response.control(delivered ? TcpFrame.encodeAck(push.requestId)
+                : TcpFrame.encodeError(push.requestId, "Piece was not requested")));
+        }
+        
+        /**
+         * Queue a response looked up on the send pool, back on the event loop
+         */
+        private void prepared(Response response) {
+            preparing--;
+            enqueue(response);
+            dispatchFrames();
+        }
+        
+        private void enqueue(Response response) {
+            if (!channel.isActive()) {
+                response.release();
+                return;
+            }
+            responses.add(response);
+            writePending();
+        }
+        
+        /**
+         * Write queued responses in order, one chunk at a time, until the socket
+         * buffer is full, the limiter asks us to wait or the queue is empty
+         */
+        private void writePending() {
+            if (waitingForTokens) {
+                return;
+            }
+            boolean wrote = false;
+            boolean finished = false;
+            while (channel.isWritable() && !responses.isEmpty()) {
+                Response response = responses.peek();
+                if (!response.headerSent) {
+                    channel.write(channel.alloc().directBuffer(response.header.remaining()).writeBytes(response.header),
+                                  channel.voidPromise());
+                    response.headerSent = true;
+                    if (response.length == 0) {
+                        response.release();
+                    }
+                    wrote = true;
+                } else {
+                    int chunk = Math.min(CHUNK_SIZE, response.length - response.sent);
+                    long wait = response.throttle.tryAcquire(chunk);
+                    if (wait > 0) {
+                        waitingForTokens = true;
+                        channel.eventLoop().schedule(() -> {
+                            waitingForTokens = false;
+                            writePending();
+                        }, wait, TimeUnit.NANOSECONDS);
+                        break;
+                    }
+                    Object message = response.file != null
+                        ? new SharedFileRegion(response.file, response.fileOffset + response.sent, chunk)
+                        : response.chunk(chunk);
+                    response.sent += chunk;
+                    if (response.isDone() && response.piece != null) {
+                        // The chunk still refers to the piece until it has been flushed, or failed on close
+                        channel.write(message).addListener(future -> response.release());
+                    } else {
+                        channel.write(message, channel.voidPromise());
+                    }
+                    wrote = true;
+                }
+                if (response.isDone()) {
+                    responses.poll();
+                    finished = true;
+                }
+            }
+            if (wrote) {
+                channel.flush();
+            }
+            if (finished) {
+                dispatchFrames();
+            }
+        }
+    }
+    
+    /**
+     * Region of a shared file. Unlike DefaultFileRegion it does not close the
+     * FileChannel when released, since every transfer of the file uses the same one.
+     */
+    private static class SharedFileRegion extends AbstractReferenceCounted implements FileRegion {
+        private final FileChannel file;
+        private final long position;
+        private final long count;
+        private long transferred;
+        
+        SharedFileRegion(FileChannel file, long position, long count) {
+            this.file = file;
+            this.position = position;
+            this.count = count;
+        }
+        
+        @Override
+        public long position() { return position; }
+        
+        @Override
+        public long count() { return count; }
+        
+        @Override
+        public long transferred() { return transferred; }
+        
+        @Override
+        @Deprecated
+        public long transfered() { return transferred; }
+        
+        @Override
+        public long transferTo(WritableByteChannel target, long position) throws IOException {
+            long remaining = count - position;
+            if (remaining <= 0) {
+                return 0;
+            }
+            long written = file.transferTo(this.position + position, remaining, target);
+            if (written > 0) {
+                transferred += written;
+            } else if (this.position + position >= file.size()) {
+                throw new IOException("Shared file shrank below the piece being sent");
+            }
+            return written;
+        }
+        
+        @Override
+        protected void deallocate() {
+            // The FileChannel belongs to SharedFiles
+        }
+        
+        @Override
+        public FileRegion retain() {
+            super.retain();
+            return this;
+        }
+        
+        @Override
+        public FileRegion retain(int increment) {
+            super.retain(increment);
+            return this;
+        }
+        
+        @Override
+        public FileRegion touch() {
+            return this;
+        }
+        
+        @Override
+        public FileRegion touch(Object hint) {
+            return this;
+        }
+    }
+}
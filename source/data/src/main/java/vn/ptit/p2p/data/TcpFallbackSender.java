@@ -2,191 +2,165 @@ package vn.ptit.p2p.data;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import vn.ptit.p2p.common.Models.Piece;
+import vn.ptit.p2p.common.Models.Block;
+import vn.ptit.p2p.common.Models.PieceBuffer;
 import vn.ptit.p2p.common.Models.Peer;
 
-import java.io.*;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.io.IOException;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 /**
- * TCP fallback for unreliable UDP connections
+ * TCP fallback for unreliable UDP connections. Transfers to a peer share a
+ * few persistent connections on which requests are pipelined (see {@link TcpFrame}),
+ * instead of paying a handshake and slow start for every piece.
+ * Incoming connections are served by the non-blocking {@link TcpDataServer}.
  */
 public class TcpFallbackSender {
     private static final Logger logger = LoggerFactory.getLogger(TcpFallbackSender.class);
     private static final int CONNECTION_TIMEOUT = 5000;
+    private static final int IDLE_TIMEOUT = 60000;
     
     private final DataService dataService;
-    private ServerSocket serverSocket;
-    private volatile boolean running;
-    private ExecutorService executor;
+    private final TcpConnectionPool connections;
+    private final TcpDataServer server;
     
     public TcpFallbackSender(DataService dataService) {
         this.dataService = dataService;
-        this.executor = Executors.newCachedThreadPool();
+        this.connections = new TcpConnectionPool(dataService.getConfig().getTcpConnectionsPerPeer(),
+                                                 CONNECTION_TIMEOUT, IDLE_TIMEOUT, dataService.getDownloadLimiter());
+        this.server = new TcpDataServer(dataService, dataService.getConfig().getTcpServerThreads());
     }
     
     /**
      * Start TCP server for accepting connections
      */
     public void startServer(int port) throws IOException {
-        serverSocket = new ServerSocket(port);
-        running = true;
-        
-        Thread serverThread = new Thread(this::acceptLoop);
-        serverThread.setDaemon(true);
-        serverThread.start();
-        
-        logger.info("TCP fallback server started on port {}", port);
+        server.start(port);
     }
     
     /**
-     * Stop the TCP server
+     * Stop the TCP server and close all connections
      */
     public void stopServer() {
-        running = false;
-        if (serverSocket != null) {
-            try {
-                serverSocket.close();
-            } catch (IOException e) {
-                logger.error("Error closing TCP server socket", e);
-            }
-        }
-        executor.shutdown();
+        server.stop();
+        connections.close();
         logger.info("TCP fallback server stopped");
     }
     
     /**
-     * Send a piece to a peer via TCP
+     * Open outgoing data connections
+     */
+    public int getConnectionCount() {
+        return connections.getConnectionCount();
+    }
+    
+    /**
+     * Push a piece to a peer via TCP, completing once the peer has acknowledged it.
+     * The push holds its own reference to the piece while the data is written,
+     * so the caller may release it as soon as the returned future completes.
      */
-    public CompletableFuture<Void> sendPiece(Peer peer, Piece piece) {
-        return CompletableFuture.runAsync(() -> {
-            try (Socket socket = new Socket(peer.getHost(), peer.getPort() + 1)) {
-                socket.setSoTimeout(CONNECTION_TIMEOUT);
-                
-                DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
-                
-                // Write piece data
-                dos.writeUTF("PIECE");
-                dos.writeUTF(piece.getFileHash());
-                dos.writeInt(piece.getIndex());
-                dos.writeUTF(piece.getHash());
-                dos.writeInt(piece.getData().length);
-                dos.write(piece.getData());
-                dos.flush();
-                
-                logger.debug("Sent piece {} via TCP to {}", piece.getIndex(), peer.getId());
-                
-            } catch (IOException e) {
-                logger.error("Failed to send piece via TCP", e);
-                throw new RuntimeException(e);
-            }
-        }, executor);
+    public CompletableFuture<Void> sendPiece(Peer peer, PieceBuffer piece, long timeoutMillis) {
+        DataRuntime runtime = dataService.getRuntime();
+        piece.retain();
+        CompletableFuture<CompletableFuture<Void>> started;
+        try {
+            started = CompletableFuture.supplyAsync(() -> {
+                try {
+                    RateLimiter.Path throttle = dataService.getUploadLimiter()
+                        .path(runtime.resolve(peer).getAddress(), piece.getFileHash());
+                    return connection(peer).push(piece, throttle);
+                } finally {
+                    piece.release();
+                }
+            }, runtime.getSendExecutor());
+        } catch (RejectedExecutionException e) {
+            piece.release();
+            return CompletableFuture.failedFuture(e);
+        }
+        return started.thenCompose(future -> future)
+            .orTimeout(timeoutMillis, TimeUnit.MILLISECONDS)
+            .whenComplete((result, error) -> {
+                if (error == null) {
+                    logger.debug("Sent piece {} via TCP to {}", piece.getIndex(), peer.getId());
+                } else {
+                    logger.error("Failed to send piece {} via TCP to {}: {}", piece.getIndex(), peer.getId(),
+                                error.getMessage());
+                }
+            });
     }
     
     /**
-     * Request a piece from a peer via TCP
+     * Request a piece from a peer via TCP. The response is read by the
+     * connection's reader and the piece is decompressed if need be and verified
+     * on the verify pool; the caller owns the returned piece.
      */
-    public CompletableFuture<Piece> requestPiece(Peer peer, String fileHash, int pieceIndex) {
-        return CompletableFuture.supplyAsync(() -> {
-            try (Socket socket = new Socket(peer.getHost(), peer.getPort() + 1)) {
-                socket.setSoTimeout(CONNECTION_TIMEOUT);
-                
-                DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
-                DataInputStream dis = new DataInputStream(socket.getInputStream());
-                
-                // Send request
-                dos.writeUTF("REQUEST");
-                dos.writeUTF(fileHash);
-                dos.writeInt(pieceIndex);
-                dos.flush();
-                
-                // Receive response
-                String magic = dis.readUTF();
-                if (!"PIECE".equals(magic)) {
-                    throw new IOException("Invalid response");
+    public CompletableFuture<PieceBuffer> requestPiece(Peer peer, String fileHash, int pieceIndex, long timeoutMillis) {
+        DataRuntime runtime = dataService.getRuntime();
+        int encodings = dataService.getCompressor().acceptedEncodings();
+        return CompletableFuture.supplyAsync(() -> connection(peer).request(fileHash, pieceIndex, encodings),
+                                             runtime.getReceiveExecutor())
+            .thenCompose(future -> future)
+            .orTimeout(timeoutMillis, TimeUnit.MILLISECONDS)
+            .thenApplyAsync(received -> {
+                if (received.getIndex() != pieceIndex || !received.getFileHash().equalsIgnoreCase(fileHash)) {
+                    received.release();
+                    throw new CompletionException(new IOException("Response does not match the request"));
                 }
-                
-                String respFileHash = dis.readUTF();
-                int respIndex = dis.readInt();
-                String hash = dis.readUTF();
-                int length = dis.readInt();
-                
-                byte[] data = new byte[length];
-                dis.readFully(data);
-                
-                Piece piece = new Piece(respFileHash, respIndex, data, hash);
-                
-                if (!piece.verify()) {
-                    throw new IOException("Piece verification failed");
+                int expectedLength = dataService.getPieceVerifier().expectedLength(fileHash, pieceIndex);
+                PieceBuffer piece = dataService.getCompressor().decode(received, expectedLength);
+                if (piece == null) {
+                    throw new CompletionException(new PieceCorruptException("Compressed piece could not be restored"));
+                }
+                if (!dataService.getPieceVerifier().verify(piece)) {
+                    piece.release();
+                    throw new CompletionException(new PieceCorruptException("Piece verification failed"));
                 }
-                
                 logger.debug("Received piece {} via TCP from {}", pieceIndex, peer.getId());
                 return piece;
-                
-            } catch (IOException e) {
-                logger.error("Failed to request piece via TCP", e);
-                throw new RuntimeException(e);
-            }
-        }, executor);
+            }, runtime.getVerifyExecutor());
     }
     
     /**
-     * Accept incoming TCP connections
+     * Request a piece from a peer via TCP and stream it into a sink; completes
+     * once every byte has been written (the caller verifies the sink)
      */
-    private void acceptLoop() {
-        while (running) {
-            try {
-                Socket clientSocket = serverSocket.accept();
-                executor.submit(() -> handleClient(clientSocket));
-            } catch (IOException e) {
-                if (running) {
-                    logger.error("Error accepting TCP connection", e);
-                }
-            }
-        }
+    public CompletableFuture<Void> requestPieceInto(Peer peer, String fileHash, int pieceIndex, PieceSink sink,
+                                                    long timeoutMillis) {
+        return CompletableFuture.supplyAsync(() -> connection(peer).requestInto(fileHash, pieceIndex, sink),
+                                             dataService.getRuntime().getReceiveExecutor())
+            .thenCompose(future -> future)
+            .thenCompose(frameRead -> sink.whenReceived())
+            .orTimeout(timeoutMillis, TimeUnit.MILLISECONDS);
     }
     
     /**
-     * Handle a client connection
+     * Request a block of a piece from a peer via TCP
      */
-    private void handleClient(Socket socket) {
-        try (socket) {
-            DataInputStream dis = new DataInputStream(socket.getInputStream());
-            DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
-            
-            String command = dis.readUTF();
-            
-            if ("REQUEST".equals(command)) {
-                String fileHash = dis.readUTF();
-                int pieceIndex = dis.readInt();
-                
-                // Get piece from data service
-                Peer requestingPeer = new Peer("unknown", "unknown", 
-                                              socket.getInetAddress().getHostAddress(), 
-                                              socket.getPort());
-                Piece piece = dataService.handleIncomingRequest(requestingPeer, fileHash, pieceIndex);
-                
-                if (piece != null) {
-                    dos.writeUTF("PIECE");
-                    dos.writeUTF(piece.getFileHash());
-                    dos.writeInt(piece.getIndex());
-                    dos.writeUTF(piece.getHash());
-                    dos.writeInt(piece.getData().length);
-                    dos.write(piece.getData());
-                    dos.flush();
-                } else {
-                    dos.writeUTF("ERROR");
-                    dos.writeUTF("Piece not available");
-                    dos.flush();
+    public CompletableFuture<Block> requestBlock(Peer peer, String fileHash, int pieceIndex, int offset, int length,
+                                                 long timeoutMillis) {
+        return CompletableFuture.supplyAsync(() -> connection(peer).requestBlock(fileHash, pieceIndex, offset, length),
+                                             dataService.getRuntime().getReceiveExecutor())
+            .thenCompose(future -> future)
+            .orTimeout(timeoutMillis, TimeUnit.MILLISECONDS)
+            .thenApply(block -> {
+                if (!BlockHeader.matches(block, fileHash, pieceIndex, offset, length)) {
+                    throw new CompletionException(new IOException("Block does not match the request"));
                 }
-            }
+                return block;
+            });
+    }
+    
+    /**
+     * Pooled connection to the peer's TCP port (UDP port + 1)
+     */
+    private TcpConnection connection(Peer peer) {
+        try {
+            return connections.get(dataService.getRuntime().resolve(peer.getHost(), peer.getPort() + 1));
         } catch (IOException e) {
-            logger.error("Error handling TCP client", e);
+            throw new CompletionException(e);
         }
     }
 }
-
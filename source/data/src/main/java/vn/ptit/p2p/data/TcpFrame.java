@@ -0,0 +1,326 @@
+package vn.ptit.p2p.data;
+
+import vn.ptit.p2p.common.Hashing;
+import vn.ptit.p2p.common.Models.Block;
+import vn.ptit.p2p.common.Models.PieceBuffer;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.function.IntFunction;
+
+/**
+ * Framing of the persistent TCP data connections. A connection starts with
+ * the client's preface (magic and version as in {@link PacketCodec}), then both
+ * sides exchange frames of type (1 byte), request id (4) and body length (4):
+ * <ul>
+ *   <li>REQUEST: raw file hash (32), piece index (4), accepted encodings (1) as in {@link UdpRequest}</li>
+ *   <li>PIECE: piece index (4), {@link PieceHeader} (73), data; answers a REQUEST or is pushed</li>
+ *   <li>ERROR: UTF-8 message; answers a REQUEST that cannot be served</li>
+ *   <li>ACK: empty; answers a pushed PIECE</li>
+ *   <li>BLOCK_REQUEST: {@link BlockHeader} (44) naming the range</li>
+ *   <li>BLOCK: {@link BlockHeader} (44), data; answers a BLOCK_REQUEST</li>
+ * </ul>
+ * Request ids let several requests be in flight on one connection and the
+ * responses come back in any order. Instances are mutable and reused for
+ * reading, one per connection.
+ */
+public class TcpFrame {
+    public static final byte TYPE_REQUEST = 1;
+    public static final byte TYPE_PIECE = 2;
+    public static final byte TYPE_ERROR = 3;
+    public static final byte TYPE_ACK = 4;
+    public static final byte TYPE_BLOCK_REQUEST = 5;
+    public static final byte TYPE_BLOCK = 6;
+    
+    public static final int HEADER_SIZE = 9;
+    public static final int REQUEST_SIZE = PieceHeader.HASH_SIZE + 5;
+    public static final int PIECE_PREFIX_SIZE = 4 + PieceHeader.SIZE;
+    public static final int MAX_BODY_SIZE = 64 * 1024 * 1024; // Sanity bound on what the remote side may make us allocate
+    private static final int MAX_MESSAGE_SIZE = 1024;
+    private static final int CHUNK_SIZE = 16 * 1024; // Granularity of rate limiting on the stream
+    
+    private byte type;
+    private int requestId;
+    private String fileHash;
+    private int pieceIndex;
+    private int acceptedEncodings;
+    private PieceBuffer piece;
+    private Block block;
+    private String message;
+    private byte[] scratch;
+    
+    public byte getType() { return type; }
+    public int getRequestId() { return requestId; }
+    public String getFileHash() { return fileHash; }
+    public int getPieceIndex() { return pieceIndex; }
+    public int getAcceptedEncodings() { return acceptedEncodings; }
+    
+    /**
+     * The piece carried by a PIECE frame, read into a heap buffer the caller owns;
+     * an {@link EncodedPiece} if it was sent compressed
+     */
+    public PieceBuffer getPiece() { return piece; }
+    
+    /**
+     * The block carried by a BLOCK frame
+     */
+    public Block getBlock() { return block; }
+    
+    /**
+     * The message of an ERROR frame
+     */
+    public String getMessage() { return message; }
+    
+    public static void writePreface(DataOutputStream out) throws IOException {
+        out.writeShort(PacketCodec.MAGIC);
+        out.writeByte(PacketCodec.VERSION);
+        out.flush();
+    }
+    
+    public static void writeRequest(DataOutputStream out, int requestId, String fileHash, int pieceIndex,
+                                    int acceptedEncodings) throws IOException {
+        writeHeader(out, TYPE_REQUEST, requestId, REQUEST_SIZE);
+        out.write(rawHash(fileHash));
+        out.writeInt(pieceIndex);
+        out.writeByte(acceptedEncodings);
+        out.flush();
+    }
+    
+    public static void writeBlockRequest(DataOutputStream out, int requestId, String fileHash, int pieceIndex,
+                                         int offset, int length) throws IOException {
+        writeHeader(out, TYPE_BLOCK_REQUEST, requestId, BlockHeader.SIZE);
+        out.write(BlockHeader.encode(fileHash, pieceIndex, offset, length).array());
+        out.flush();
+    }
+    
+    /**
+     * Wait for rate limiter tokens for length bytes, a chunk at a time, before
+     * they are written with {@link #writePiece}
+     */
+    public static void throttle(RateLimiter.Path throttle, int length) throws InterruptedException {
+        for (int remaining = length; remaining > 0; remaining -= CHUNK_SIZE) {
+            throttle.acquire(Math.min(CHUNK_SIZE, remaining));
+        }
+    }
+    
+    /**
+     * Write a PIECE frame in one go; the caller has waited for rate limiter
+     * tokens already, see {@link #throttle}, so other frames are not held up.
+     * Heap data is written from its array; other buffers go through a chunk-sized copy.
+     */
+    public static void writePiece(DataOutputStream out, int requestId, PieceBuffer piece) throws IOException {
+        ByteBuffer data = piece.getData();
+        writeHeader(out, TYPE_PIECE, requestId, PIECE_PREFIX_SIZE + data.remaining());
+        out.writeInt(piece.getIndex());
+        out.write(PieceHeader.encode(piece).array());
+        byte[] chunkCopy = data.hasArray() ? null : new byte[Math.min(CHUNK_SIZE, data.remaining())];
+        while (data.hasRemaining()) {
+            int length = Math.min(CHUNK_SIZE, data.remaining());
+            if (chunkCopy == null) {
+                out.write(data.array(), data.arrayOffset() + data.position(), length);
+                data.position(data.position() + length);
+            } else {
+                data.get(chunkCopy, 0, length);
+                out.write(chunkCopy, 0, length);
+            }
+        }
+        out.flush();
+    }
+    
+    /**
+     * Frame header and piece index of a PIECE frame whose {@link PieceHeader} and data
+     * the caller writes itself, e.g. followed by a file region
+     */
+    public static ByteBuffer encodePiecePrefix(int requestId, int pieceIndex, int dataLength) {
+        ByteBuffer out = ByteBuffer.allocate(HEADER_SIZE + 4);
+        out.put(TYPE_PIECE);
+        out.putInt(requestId);
+        out.putInt(PIECE_PREFIX_SIZE + dataLength);
+        out.putInt(pieceIndex);
+        out.flip();
+        return out;
+    }
+    
+    /**
+     * Frame header and {@link BlockHeader} of a BLOCK frame whose data the caller writes itself
+     */
+    public static ByteBuffer encodeBlockPrefix(int requestId, String fileHash, int pieceIndex, int offset, int length) {
+        ByteBuffer out = ByteBuffer.allocate(HEADER_SIZE + BlockHeader.SIZE);
+        out.put(TYPE_BLOCK);
+        out.putInt(requestId);
+        out.putInt(BlockHeader.SIZE + length);
+        BlockHeader.put(out, fileHash, pieceIndex, offset, length);
+        out.flip();
+        return out;
+    }
+    
+    public static ByteBuffer encodeError(int requestId, String message) {
+        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+        int length = Math.min(bytes.length, MAX_MESSAGE_SIZE);
+        ByteBuffer out = ByteBuffer.allocate(HEADER_SIZE + length);
+        out.put(TYPE_ERROR);
+        out.putInt(requestId);
+        out.putInt(length);
+        out.put(bytes, 0, length);
+        out.flip();
+        return out;
+    }
+    
+    public static ByteBuffer encodeAck(int requestId) {
+        ByteBuffer out = ByteBuffer.allocate(HEADER_SIZE);
+        out.put(TYPE_ACK);
+        out.putInt(requestId);
+        out.putInt(0);
+        out.flip();
+        return out;
+    }
+    
+    /**
+     * Read the next frame into this instance. Piece data is read in chunks, each
+     * charged to the limiter path of the sending peer and the piece's file.
+     * A PIECE answering a request that has a {@link PieceSink} is streamed into
+     * it through a small scratch buffer instead of being allocated; one whose
+     * length differs from the sink's is consumed and the sink failed.
+     *
+     * @param sinks Sink of a request id, or null to read the piece into memory
+     * @throws IOException if the stream ends or the frame is malformed; the connection should then be closed
+     */
+    public void read(DataInputStream in, RateLimiter limiter, InetAddress peer, IntFunction<PieceSink> sinks)
+            throws IOException, InterruptedException {
+        type = in.readByte();
+        requestId = in.readInt();
+        int length = in.readInt();
+        if (length < 0 || length > MAX_BODY_SIZE) {
+            throw new IOException("Invalid frame length " + length);
+        }
+        piece = null;
+        block = null;
+        message = null;
+        
+        switch (type) {
+            case TYPE_REQUEST:
+                expectLength(length, REQUEST_SIZE);
+                fileHash = readHash(in);
+                pieceIndex = in.readInt();
+                acceptedEncodings = in.readUnsignedByte();
+                break;
+            case TYPE_PIECE:
+                if (length < PIECE_PREFIX_SIZE) {
+                    throw new IOException("Truncated piece frame");
+                }
+                pieceIndex = in.readInt();
+                fileHash = readHash(in);
+                String pieceHash = readHash(in);
+                byte encoding = in.readByte();
+                int pieceLength = in.readInt();
+                int dataLength = in.readInt();
+                expectLength(length, PIECE_PREFIX_SIZE + dataLength);
+                
+                PieceSink sink = sinks.apply(requestId);
+                if (sink != null) {
+                    if (encoding != PieceCompressor.ENCODING_RAW) {
+                        sink.fail(new IOException("Piece sent encoded to a sink, which takes raw data only"));
+                    }
+                    streamData(in, dataLength, limiter.path(peer, fileHash), sink);
+                    break;
+                }
+                byte[] data = readData(in, dataLength, limiter.path(peer, fileHash));
+                piece = PieceHeader.piece(fileHash, pieceIndex, ByteBuffer.wrap(data), pieceHash, encoding, pieceLength);
+                if (piece == null) {
+                    throw new IOException("Inconsistent piece header");
+                }
+                break;
+            case TYPE_BLOCK:
+                if (length < BlockHeader.SIZE) {
+                    throw new IOException("Truncated block frame");
+                }
+                fileHash = readHash(in);
+                pieceIndex = in.readInt();
+                int blockOffset = in.readInt();
+                int blockLength = in.readInt();
+                expectLength(length, BlockHeader.SIZE + blockLength);
+                block = new Block(fileHash, pieceIndex, blockOffset,
+                                  readData(in, blockLength, limiter.path(peer, fileHash)));
+                break;
+            case TYPE_ERROR:
+                if (length > MAX_MESSAGE_SIZE) {
+                    throw new IOException("Error message too long");
+                }
+                byte[] bytes = new byte[length];
+                in.readFully(bytes);
+                message = new String(bytes, StandardCharsets.UTF_8);
+                break;
+            case TYPE_ACK:
+                expectLength(length, 0);
+                break;
+            default:
+                throw new IOException("Unknown frame type " + type);
+        }
+    }
+    
+    /**
+     * Read piece or block data in chunks, each charged to the limiter path first
+     */
+    private static byte[] readData(DataInputStream in, int length, RateLimiter.Path throttle)
+            throws IOException, InterruptedException {
+        byte[] data = new byte[length];
+        for (int offset = 0; offset < length; offset += CHUNK_SIZE) {
+            int chunk = Math.min(CHUNK_SIZE, length - offset);
+            throttle.acquire(chunk);
+            in.readFully(data, offset, chunk);
+        }
+        return data;
+    }
+    
+    /**
+     * Pass piece data on to a sink chunk by chunk, or skip it if its length is not the expected one
+     */
+    private void streamData(DataInputStream in, int length, RateLimiter.Path throttle, PieceSink sink)
+            throws IOException, InterruptedException {
+        boolean accepted = length == sink.getLength();
+        if (!accepted) {
+            sink.fail(new IOException("Piece length " + length + " does not match the manifest (" + sink.getLength() + ")"));
+        }
+        if (scratch == null) {
+            scratch = new byte[CHUNK_SIZE];
+        }
+        for (int offset = 0; offset < length; offset += CHUNK_SIZE) {
+            int chunk = Math.min(CHUNK_SIZE, length - offset);
+            throttle.acquire(chunk);
+            in.readFully(scratch, 0, chunk);
+            if (accepted) {
+                sink.write(offset, ByteBuffer.wrap(scratch, 0, chunk));
+            }
+        }
+    }
+    
+    private static void writeHeader(DataOutputStream out, byte type, int requestId, int length) throws IOException {
+        out.writeByte(type);
+        out.writeInt(requestId);
+        out.writeInt(length);
+    }
+    
+    private static void expectLength(int length, int expected) throws IOException {
+        if (length != expected) {
+            throw new IOException("Frame length " + length + " does not match its contents (" + expected + ")");
+        }
+    }
+    
+    private static String readHash(DataInputStream in) throws IOException {
+        byte[] raw = new byte[PieceHeader.HASH_SIZE];
+        in.readFully(raw);
+        return Hashing.bytesToHex(raw);
+    }
+    
+    private static byte[] rawHash(String hex) {
+        byte[] raw = Hashing.hexToBytes(hex);
+        if (raw.length != PieceHeader.HASH_SIZE) {
+            throw new IllegalArgumentException("Not a SHA-256 hash: " + hex);
+        }
+        return raw;
+    }
+}
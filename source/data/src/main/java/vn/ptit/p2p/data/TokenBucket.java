@@ -0,0 +1,113 @@
+package vn.ptit.p2p.data;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free token bucket implemented as a generic cell rate algorithm (GCRA):
+ * the whole state is one "theoretical arrival time" that is advanced with CAS,
+ * so no lock is taken on the send path. A rate of 0 means unlimited.
+ */
+public class TokenBucket {
+    private static final double BURST_SECONDS = 0.05;
+    private static final long MIN_BURST_BYTES = 64 * 1024;
+    
+    private final AtomicLong theoreticalArrival = new AtomicLong(System.nanoTime());
+    private volatile long bytesPerSecond;
+    private volatile double nanosPerByte;
+    private volatile long burstNanos;
+    
+    public TokenBucket(long bytesPerSecond) {
+        setRate(bytesPerSecond);
+    }
+    
+    /**
+     * Change the rate at runtime; 0 disables the limit
+     */
+    public void setRate(long bytesPerSecond) {
+        this.bytesPerSecond = Math.max(0, bytesPerSecond);
+        if (this.bytesPerSecond == 0) {
+            this.nanosPerByte = 0;
+            this.burstNanos = 0;
+        } else {
+            double perByte = 1e9 / this.bytesPerSecond;
+            long burstBytes = Math.max(MIN_BURST_BYTES, (long) (this.bytesPerSecond * BURST_SECONDS));
+            this.nanosPerByte = perByte;
+            this.burstNanos = (long) (burstBytes * perByte);
+        }
+    }
+    
+    public long getRate() {
+        return bytesPerSecond;
+    }
+    
+    public boolean isUnlimited() {
+        return bytesPerSecond == 0;
+    }
+    
+    /**
+     * Whether the bucket has been full for at least idleNanos, i.e. nothing was taken from it lately.
+     * An unlimited bucket keeps no history and counts as idle once it is that old.
+     */
+    public boolean isIdle(long nowNanos, long idleNanos) {
+        return nowNanos - theoreticalArrival.get() >= idleNanos;
+    }
+    
+    /**
+     * Take tokens for the given number of bytes if available
+     * 
+     * @return 0 if granted, otherwise the nanoseconds to wait before retrying (nothing is taken)
+     */
+    public long tryAcquire(int bytes, long nowNanos) {
+        double perByte = nanosPerByte;
+        if (perByte == 0) {
+            return 0;
+        }
+        
+        long increment = (long) (bytes * perByte);
+        long tolerance = Math.max(burstNanos, increment); // oversized requests pass once the bucket is full
+        while (true) {
+            long tat = theoreticalArrival.get();
+            long start = tat - nowNanos > 0 ? tat : nowNanos;
+            long newTat = start + increment;
+            long excess = newTat - nowNanos - tolerance;
+            if (excess > 0) {
+                return excess;
+            }
+            if (theoreticalArrival.compareAndSet(tat, newTat)) {
+                return 0;
+            }
+        }
+    }
+    
+    /**
+     * Take tokens unconditionally, possibly going into debt
+     * 
+     * @return the nanoseconds until the bucket is back within its burst allowance
+     */
+    public long consume(int bytes, long nowNanos) {
+        double perByte = nanosPerByte;
+        if (perByte == 0) {
+            return 0;
+        }
+        
+        long increment = (long) (bytes * perByte);
+        while (true) {
+            long tat = theoreticalArrival.get();
+            long start = tat - nowNanos > 0 ? tat : nowNanos;
+            long newTat = start + increment;
+            if (theoreticalArrival.compareAndSet(tat, newTat)) {
+                return Math.max(0, newTat - nowNanos - burstNanos);
+            }
+        }
+    }
+    
+    /**
+     * Give back tokens taken by a reservation that could not be completed
+     */
+    public void refund(int bytes) {
+        double perByte = nanosPerByte;
+        if (perByte != 0) {
+            theoreticalArrival.addAndGet(-(long) (bytes * perByte));
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package vn.ptit.p2p.data;
+
+/**
+ * Available datagram transports for the UDP data plane
+ */
+public enum TransportType {
+    BLOCKING,  // One blocking DatagramChannel and reader thread per socket, portable
+    NETTY;     // Netty event loops: native epoll with recvmmsg and SO_REUSEPORT on Linux, NIO elsewhere
+    
+    /**
+     * Create a transport
+     * 
+     * @param name Thread name prefix
+     * @param threads Number of I/O threads (0 = one per core), ignored by BLOCKING
+     */
+    public UdpTransport create(String name, int threads) {
+        switch (this) {
+            case BLOCKING:
+                return new BlockingUdpTransport(name);
+            case NETTY:
+            default:
+                return new NettyUdpTransport(name, threads);
+        }
+    }
+    
+    /**
+     * Parse a config value such as "netty", falling back to NETTY when unknown
+     */
+    public static TransportType fromString(String name) {
+        if (name != null) {
+            for (TransportType type : values()) {
+                if (type.name().equalsIgnoreCase(name.trim())) {
+                    return type;
+                }
+            }
+        }
+        return NETTY;
+    }
+}
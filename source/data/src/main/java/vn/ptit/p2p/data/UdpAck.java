@@ -0,0 +1,77 @@
+package vn.ptit.p2p.data;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Selective acknowledgement sent by the receiver for every data segment.
+ * cumAck is the first sequence number not yet received; bit i of sackBits
+ * means segment cumAck + 1 + i has been received. tsEcho returns the
+ * timestamp of the segment that triggered the ACK for RTT measurement and
+ * delay is the one-way delay the receiver observed for it (clock offset
+ * included, only differences between samples are meaningful). recovered
+ * counts the segments of the transfer the receiver has rebuilt from FEC
+ * parity.
+ */
+public class UdpAck {
+    public static final int SIZE = PacketCodec.HEADER_SIZE + 32;
+    public static final int SACK_BITS = 64;
+    
+    private int fileIdCrc;
+    private int pieceId;
+    private int cumAck;
+    private long sackBits;
+    private int tsEcho;
+    private int delay;
+    private int recovered;
+    
+    public int getFileIdCrc() { return fileIdCrc; }
+    public int getPieceId() { return pieceId; }
+    public int getCumAck() { return cumAck; }
+    public long getSackBits() { return sackBits; }
+    public int getTsEcho() { return tsEcho; }
+    public int getDelay() { return delay; }
+    public int getRecovered() { return recovered; }
+    
+    public void setFileIdCrc(int fileIdCrc) { this.fileIdCrc = fileIdCrc; }
+    public void setPieceId(int pieceId) { this.pieceId = pieceId; }
+    public void setCumAck(int cumAck) { this.cumAck = cumAck; }
+    public void setSackBits(long sackBits) { this.sackBits = sackBits; }
+    public void setTsEcho(int tsEcho) { this.tsEcho = tsEcho; }
+    public void setDelay(int delay) { this.delay = delay; }
+    public void setRecovered(int recovered) { this.recovered = recovered; }
+    
+    /**
+     * Encode into a reusable buffer, clearing it first and leaving it flipped for sending
+     */
+    public void encode(ByteBuffer out) {
+        out.clear();
+        PacketCodec.putHeader(out, PacketCodec.TYPE_ACK);
+        out.putInt(fileIdCrc);
+        out.putInt(pieceId);
+        out.putInt(cumAck);
+        out.putLong(sackBits);
+        out.putInt(tsEcho);
+        out.putInt(delay);
+        out.putInt(recovered);
+        out.flip();
+    }
+    
+    /**
+     * Decode an ACK datagram (position to limit) into this instance, returning false if it is not an ACK
+     */
+    public boolean decode(ByteBuffer datagram) {
+        if (PacketCodec.type(datagram) != PacketCodec.TYPE_ACK || datagram.remaining() < SIZE) {
+            return false;
+        }
+        
+        int base = datagram.position() + PacketCodec.HEADER_SIZE;
+        fileIdCrc = datagram.getInt(base);
+        pieceId = datagram.getInt(base + 4);
+        cumAck = datagram.getInt(base + 8);
+        sackBits = datagram.getLong(base + 12);
+        tsEcho = datagram.getInt(base + 20);
+        delay = datagram.getInt(base + 24);
+        recovered = datagram.getInt(base + 28);
+        return cumAck >= 0;
+    }
+}
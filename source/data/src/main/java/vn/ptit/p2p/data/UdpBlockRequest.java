@@ -0,0 +1,69 @@
+package vn.ptit.p2p.data;
+
+import vn.ptit.p2p.common.Hashing;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Block request datagram: common header, transfer id (4) and a {@link BlockHeader}.
+ * The block comes back as a UDP transfer whose segments carry the transfer id in
+ * place of a piece index; ids chosen by the requester have the high bit set,
+ * so they never collide with piece transfers.
+ */
+public class UdpBlockRequest {
+    public static final int SIZE = PacketCodec.HEADER_SIZE + 4 + BlockHeader.SIZE;
+    public static final int TRANSFER_ID_FLAG = 0x80000000;
+    
+    private int transferId;
+    private String fileHash;
+    private int pieceIndex;
+    private int offset;
+    private int length;
+    
+    public int getTransferId() { return transferId; }
+    public String getFileHash() { return fileHash; }
+    public int getPieceIndex() { return pieceIndex; }
+    public int getOffset() { return offset; }
+    public int getLength() { return length; }
+    
+    /**
+     * Whether a segment's piece id field names a block transfer rather than a piece
+     */
+    public static boolean isBlockTransfer(int pieceId) {
+        return (pieceId & TRANSFER_ID_FLAG) != 0;
+    }
+    
+    public static ByteBuffer encode(int transferId, String fileHash, int pieceIndex, int offset, int length) {
+        ByteBuffer out = ByteBuffer.allocate(SIZE);
+        PacketCodec.putHeader(out, PacketCodec.TYPE_BLOCK_REQUEST);
+        out.putInt(transferId);
+        BlockHeader.put(out, fileHash, pieceIndex, offset, length);
+        out.flip();
+        return out;
+    }
+    
+    /**
+     * Decode a block request datagram into this instance, returning false if it
+     * is malformed or asks for a range we never serve
+     */
+    public boolean decode(ByteBuffer datagram) {
+        if (PacketCodec.type(datagram) != PacketCodec.TYPE_BLOCK_REQUEST || datagram.remaining() < SIZE) {
+            return false;
+        }
+        
+        ByteBuffer in = datagram.duplicate();
+        in.position(in.position() + PacketCodec.HEADER_SIZE);
+        transferId = in.getInt();
+        byte[] rawHash = new byte[PieceHeader.HASH_SIZE];
+        in.get(rawHash);
+        pieceIndex = in.getInt();
+        offset = in.getInt();
+        length = in.getInt();
+        if (!isBlockTransfer(transferId) || !BlockHeader.isValidRange(pieceIndex, offset, length)) {
+            return false;
+        }
+        
+        fileHash = Hashing.bytesToHex(rawHash);
+        return true;
+    }
+}
@@ -2,30 +2,65 @@ package vn.ptit.p2p.data;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import vn.ptit.p2p.common.Models.Piece;
+import vn.ptit.p2p.common.Models.Block;
+import vn.ptit.p2p.common.Models.PieceBuffer;
 import vn.ptit.p2p.common.Models.Peer;
 
-import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
- * Receives data pieces via UDP protocol
+ * Receives data pieces via UDP protocol, and serves the pieces and blocks
+ * other peers request from us over UDP. Serving runs on the runtime's bounded
+ * upload pool, and no source may have more than {@link #MAX_SERVES_PER_SOURCE}
+ * pieces queued or in flight; requests beyond either bound are dropped and
+ * counted, and the requester falls back on its own. Until a source has
+ * acknowledged something we sent it, it gets {@link #MAX_UNACKNOWLEDGED_SERVES}
+ * at a time, so a small REQUEST with a spoofed source address cannot turn
+ * into a flood of pieces at the victim.
  */
 public class UdpDataReceiver {
     private static final Logger logger = LoggerFactory.getLogger(UdpDataReceiver.class);
-    private static final int MAX_PACKET_SIZE = 65507;
+    private static final long EVICT_INTERVAL_MS = 5000;
+    private static final int MAX_SERVES_PER_SOURCE = 4 * UdpRequest.MAX_PIECES; // a few full REQUEST datagrams
+    private static final int MAX_UNACKNOWLEDGED_SERVES = 1;
     
     private final DataService dataService;
-    private DatagramSocket socket;
-    private volatile boolean running;
-    private Thread receiverThread;
+    private UdpTransport transport;
+    private ReceivePipeline pipeline;
     
-    private final ConcurrentHashMap<String, CompletableFuture<Piece>> pendingRequests = new ConcurrentHashMap<>();
+    // Peer each outstanding UDP request went to, by request key: only its host may answer the request,
+    // and the loss on the way back is charged to it
+    private final Map<Long, RequestTarget> requestTargets = new ConcurrentHashMap<>();
+    private final PieceReassembler reassembler = new PieceReassembler(this::onReassembled, this::expects);
+    private final AtomicLong lastEviction = new AtomicLong(System.currentTimeMillis());
+    // Packets are handled on several pipeline workers at once
+    private final ThreadLocal<UdpSegment> segments = ThreadLocal.withInitial(UdpSegment::new);
+    private final ThreadLocal<UdpParity> parities = ThreadLocal.withInitial(UdpParity::new);
+    private final ThreadLocal<UdpAck> acks = ThreadLocal.withInitial(UdpAck::new);
+    private final ThreadLocal<ByteBuffer> ackBuffers = ThreadLocal.withInitial(() -> ByteBuffer.allocate(UdpAck.SIZE));
+    private final ThreadLocal<UdpProbe> probes = ThreadLocal.withInitial(UdpProbe::new);
+    private final ThreadLocal<ByteBuffer> probeAckBuffers = ThreadLocal.withInitial(
+        () -> ByteBuffer.allocate(UdpProbe.ACK_SIZE));
+    private final PendingRequests<PieceBuffer> pendingRequests = new PendingRequests<>("piece");
+    private final PendingRequests<Block> pendingBlocks = new PendingRequests<>("block");
+    private final AtomicInteger nextBlockTransfer = new AtomicInteger();
+    private final Map<InetAddress, Integer> servesBySource = new ConcurrentHashMap<>();
+    private final LongAdder rejectedServes = new LongAdder();
     
     public UdpDataReceiver(DataService dataService) {
         this.dataService = dataService;
@@ -35,12 +70,12 @@ public class UdpDataReceiver {
      * Start listening for incoming UDP packets
      */
     public void start(int port) throws IOException {
-        socket = new DatagramSocket(port);
-        running = true;
-        
-        receiverThread = new Thread(this::receiveLoop);
-        receiverThread.setDaemon(true);
-        receiverThread.start();
+        DataConfig config = dataService.getConfig();
+        // The transport threads only enqueue; decoding, reassembly and verification run on the workers
+        pipeline = new ReceivePipeline("udp-receive-worker", config.getReceiveWorkers(),
+                                       config.getReceiveQueueSize(), this::handlePacket);
+        transport = config.getTransport().create("udp-receiver", config.getTransportThreads());
+        transport.bind(port, pipeline);
         
         logger.info("UDP receiver started on port {}", port);
     }
@@ -49,74 +84,441 @@ public class UdpDataReceiver {
      * Stop the UDP receiver
      */
     public void stop() {
-        running = false;
-        if (socket != null) {
-            socket.close();
+        if (transport != null) {
+            transport.close();
         }
-        if (receiverThread != null) {
-            receiverThread.interrupt();
+        if (pipeline != null) {
+            pipeline.stop();
         }
+        pendingRequests.stop();
+        pendingBlocks.stop();
         logger.info("UDP receiver stopped");
     }
     
     /**
-     * Request a piece from a peer
+     * Datagrams waiting for a pipeline worker
+     */
+    public int getQueueDepth() {
+        return pipeline != null ? pipeline.getQueueDepth() : 0;
+    }
+    
+    /**
+     * Datagrams dropped because the pipeline queue was full
+     */
+    public long getDroppedDatagrams() {
+        return pipeline != null ? pipeline.getDropped() : 0;
+    }
+    
+    /**
+     * Pieces and blocks requested from us over UDP that were not served because
+     * the upload pool or the requester's share of it was full
+     */
+    public long getRejectedServes() {
+        return rejectedServes.sum();
+    }
+    
+    /**
+     * Number of piece requests waiting for data
+     */
+    public int getPendingCount() {
+        return pendingRequests.size() + pendingBlocks.size();
+    }
+    
+    /**
+     * Request a piece from a peer; the caller owns the returned piece and releases it
      */
-    public CompletableFuture<Piece> requestPiece(Peer peer, String fileHash, int pieceIndex) {
-        String key = fileHash + ":" + pieceIndex;
-        CompletableFuture<Piece> future = new CompletableFuture<>();
-        pendingRequests.put(key, future);
+    public CompletableFuture<PieceBuffer> requestPiece(Peer peer, String fileHash, int pieceIndex) {
+        return requestPiece(peer, fileHash, pieceIndex, dataService.getConfig().getTransferTimeout());
+    }
+    
+    /**
+     * Request a piece from a peer, failing if it has not arrived within timeoutMillis
+     */
+    public CompletableFuture<PieceBuffer> requestPiece(Peer peer, String fileHash, int pieceIndex, long timeoutMillis) {
+        return requestPieces(peer, fileHash, new int[] {pieceIndex}, timeoutMillis).get(0);
+    }
+    
+    /**
+     * Request several pieces from a peer with the configured transfer timeout
+     */
+    public List<CompletableFuture<PieceBuffer>> requestPieces(Peer peer, String fileHash, int[] pieceIndices) {
+        return requestPieces(peer, fileHash, pieceIndices, dataService.getConfig().getTransferTimeout());
+    }
+    
+    /**
+     * Request several pieces from a peer with as few REQUEST datagrams as possible.
+     * A request for a piece that is already pending shares the existing
+     * transfer and gets its own reference-counted view of the result.
+     * The download budget is reserved up front; if it is exhausted the request
+     * is issued later, which paces how fast the peer sends to us.
+     * Each future fails if its piece has not arrived within timeoutMillis.
+     * 
+     * @return One future per requested index, in the same order
+     */
+    public List<CompletableFuture<PieceBuffer>> requestPieces(Peer peer, String fileHash, int[] pieceIndices,
+                                                              long timeoutMillis) {
+        List<CompletableFuture<PieceBuffer>> futures = new ArrayList<>(pieceIndices.length);
+        List<CompletableFuture<PieceBuffer>> registered = new ArrayList<>(pieceIndices.length);
+        int[] toSend = new int[pieceIndices.length];
+        int sendCount = 0;
         
-        // Send request (simplified - in real implementation would send actual request)
-        logger.debug("Requesting piece {} of file {} via UDP", pieceIndex, fileHash);
+        for (int pieceIndex : pieceIndices) {
+            CompletableFuture<PieceBuffer> future = new CompletableFuture<>();
+            CompletableFuture<PieceBuffer> pending = pendingRequests.register(fileHash, pieceIndex, future, timeoutMillis);
+            if (pending == future) {
+                futures.add(future); // failed: another file with the same CRC has the piece pending
+                continue;
+            }
+            if (pending != null) {
+                logger.debug("Piece {} of file {} already requested, sharing the pending request", pieceIndex, fileHash);
+                futures.add(pending.thenApply(PieceBuffer::duplicate));
+                continue;
+            }
+            reassembler.forget(UdpSegment.fileIdCrc(fileHash), pieceIndex);
+            track(future, UdpSegment.fileIdCrc(fileHash), pieceIndex, target(peer, fileHash, pieceIndex));
+            futures.add(future);
+            registered.add(future);
+            toSend[sendCount++] = pieceIndex;
+        }
         
+        if (sendCount == 0) {
+            return futures;
+        }
+        
+        int[] indices = Arrays.copyOf(toSend, sendCount);
+        int encodings = dataService.getCompressor().acceptedEncodings();
+        int bytes = (int) Math.min(Integer.MAX_VALUE, (long) dataService.getConfig().getPieceSize() * sendCount);
+        long delayNanos = downloadPath(peer, fileHash).consume(bytes);
+        if (delayNanos > 0) {
+            logger.debug("Download budget exhausted, delaying request for {} pieces by {} ms",
+                        sendCount, delayNanos / 1_000_000);
+            CompletableFuture.delayedExecutor(delayNanos, TimeUnit.NANOSECONDS,
+                                              dataService.getRuntime().getSendExecutor())
+                .execute(() -> sendRequest(peer, fileHash, indices, encodings, registered));
+        } else {
+            sendRequest(peer, fileHash, indices, encodings, registered);
+        }
+        
+        return futures;
+    }
+    
+    /**
+     * Request a piece from a peer and stream its segments into a sink as they
+     * arrive, instead of reassembling it in memory. Completes once every byte
+     * has been written (the caller verifies the sink), or fails after timeoutMillis.
+     */
+    public CompletableFuture<Void> requestPieceInto(Peer peer, String fileHash, int pieceIndex, PieceSink sink,
+                                                    long timeoutMillis) {
+        int fileIdCrc = UdpSegment.fileIdCrc(fileHash);
+        reassembler.attach(fileIdCrc, pieceIndex, sink);
+        CompletableFuture<Void> future = sink.whenReceived().orTimeout(timeoutMillis, TimeUnit.MILLISECONDS)
+            .whenComplete((result, error) -> reassembler.detach(fileIdCrc, pieceIndex, sink));
+        track(future, fileIdCrc, pieceIndex, target(peer, fileHash, pieceIndex));
+        
+        int[] indices = {pieceIndex};
+        List<CompletableFuture<Void>> futures = List.of(sink.whenReceived());
+        long delayNanos = downloadPath(peer, fileHash).consume(sink.getLength());
+        if (delayNanos > 0) {
+            CompletableFuture.delayedExecutor(delayNanos, TimeUnit.NANOSECONDS,
+                                              dataService.getRuntime().getSendExecutor())
+                .execute(() -> sendRequest(peer, fileHash, indices, 0, futures));
+        } else {
+            sendRequest(peer, fileHash, indices, 0, futures);
+        }
         return future;
     }
     
     /**
-     * Main receive loop
+     * Request a block of a piece from a peer. The block comes back as its own
+     * small transfer, named by a transfer id we pick, so several blocks of one
+     * piece can be in flight from different peers at once.
+     */
+    public CompletableFuture<Block> requestBlock(Peer peer, String fileHash, int pieceIndex, int offset, int length,
+                                                 long timeoutMillis) {
+        int transferId = nextBlockTransfer.incrementAndGet() | UdpBlockRequest.TRANSFER_ID_FLAG;
+        CompletableFuture<Block> future = new CompletableFuture<>();
+        pendingBlocks.register(fileHash, transferId, future, timeoutMillis);
+        track(future, UdpSegment.fileIdCrc(fileHash), transferId, target(peer, fileHash, pieceIndex));
+        
+        long delayNanos = downloadPath(peer, fileHash).consume(length);
+        Runnable send = () -> sendBlockRequest(peer, transferId, fileHash, pieceIndex, offset, length, future);
+        if (delayNanos > 0) {
+            CompletableFuture.delayedExecutor(delayNanos, TimeUnit.NANOSECONDS,
+                                              dataService.getRuntime().getSendExecutor()).execute(send);
+        } else {
+            send.run();
+        }
+        
+        return future.thenApply(block -> {
+            if (!BlockHeader.matches(block, fileHash, pieceIndex, offset, length)) {
+                throw new CompletionException(new IOException("Block does not match the request"));
+            }
+            return block;
+        });
+    }
+    
+    private RequestTarget target(Peer peer, String fileHash, int pieceIndex) {
+        return new RequestTarget(peer, dataService.getRuntime().resolve(peer).getAddress(), fileHash, pieceIndex);
+    }
+    
+    /**
+     * Remember which peer a request went to until it has ended
+     */
+    private void track(CompletableFuture<?> future, int fileIdCrc, int pieceId, RequestTarget target) {
+        long key = PendingRequests.key(fileIdCrc, pieceId);
+        requestTargets.put(key, target);
+        future.whenComplete((result, error) -> requestTargets.remove(key, target));
+    }
+    
+    /**
+     * Whether an outstanding request of ours with this key went to this host.
+     * Data for a request is taken only from the host it was sent to, so no one
+     * else can fill it, or fail it, with data of their own.
+     */
+    private boolean expects(InetAddress source, long requestKey) {
+        RequestTarget target = requestTargets.get(requestKey);
+        return target != null && source.equals(target.address);
+    }
+    
+    /**
+     * Charge the segments a reassembled transfer of ours had to have repaired to the peer it came from
+     */
+    private void onReassembled(int fileIdCrc, int pieceId, int segments, int repaired) {
+        RequestTarget target = requestTargets.remove(PendingRequests.key(fileIdCrc, pieceId));
+        if (target != null) {
+            dataService.getLinkMonitor().sampleLoss(dataService.getRuntime().resolve(target.peer), segments, repaired,
+                                                    target.fileHash, target.pieceIndex);
+        }
+    }
+    
+    private void sendBlockRequest(Peer peer, int transferId, String fileHash, int pieceIndex, int offset, int length,
+                                  CompletableFuture<Block> future) {
+        try {
+            if (transport == null) {
+                throw new IOException("UDP receiver is not listening");
+            }
+            transport.send(UdpBlockRequest.encode(transferId, fileHash, pieceIndex, offset, length),
+                           dataService.getRuntime().resolve(peer));
+        } catch (IOException | RuntimeException e) {
+            future.completeExceptionally(e);
+        }
+    }
+    
+    /**
+     * Download limiter path for bytes requested from a peer, keyed on its address like every other path
+     */
+    private RateLimiter.Path downloadPath(Peer peer, String fileHash) {
+        return dataService.getDownloadLimiter().path(dataService.getRuntime().resolve(peer).getAddress(), fileHash);
+    }
+    
+    /**
+     * Send REQUEST datagrams to the peer's UDP port; the pieces come back to our bound port.
+     * Pieces streamed into a sink are asked for raw, as the sink writes the data where it lands.
+     * If sending fails, the futures of the pieces asked for here fail, which drops their pending
+     * entries; requests of other callers that were joined are left alone.
+     */
+    private void sendRequest(Peer peer, String fileHash, int[] pieceIndices, int acceptedEncodings,
+                             List<? extends CompletableFuture<?>> futures) {
+        try {
+            if (transport == null) {
+                throw new IOException("UDP receiver is not listening");
+            }
+            InetSocketAddress target = dataService.getRuntime().resolve(peer);
+            for (ByteBuffer datagram : UdpRequest.encode(fileHash, pieceIndices, acceptedEncodings)) {
+                transport.send(datagram, target);
+            }
+            logger.debug("Requested {} pieces of file {} from {} via UDP", pieceIndices.length, fileHash, peer.getId());
+        } catch (IOException | RuntimeException e) {
+            for (CompletableFuture<?> future : futures) {
+                future.completeExceptionally(e);
+            }
+        }
+    }
+    
+    /**
+     * Serve a REQUEST datagram: look each piece up through the registered request
+     * handler and send it back to the address the request came from
+     */
+    private void handleRequest(UdpRequest request, InetSocketAddress requester) {
+        Peer peer = new Peer(requester.getHostString() + ":" + requester.getPort(), requester.getHostString(),
+                             requester.getHostString(), requester.getPort());
+        logger.debug("Serving {} pieces of file {} to {}", request.getPieceCount(), request.getFileHash(), peer.getId());
+        
+        for (int[] range : request.getRanges()) {
+            for (int pieceIndex = range[0]; pieceIndex < range[0] + range[1]; pieceIndex++) {
+                int index = pieceIndex;
+                serve(requester, () -> servePiece(peer, request.getFileHash(), index,
+                                                  request.getAcceptedEncodings()));
+            }
+        }
+    }
+    
+    /**
+     * Queue serving one requested piece or block on the upload pool, unless the
+     * pool or the requester's share of it is full
      */
-    private void receiveLoop() {
-        byte[] buffer = new byte[MAX_PACKET_SIZE];
+    private void serve(InetSocketAddress requester, Runnable task) {
+        InetAddress source = requester.getAddress();
+        int limit = dataService.hasAcknowledgedUdp(source) ? MAX_SERVES_PER_SOURCE : MAX_UNACKNOWLEDGED_SERVES;
+        boolean[] reserved = new boolean[1];
+        servesBySource.compute(source, (key, count) -> {
+            int current = count != null ? count : 0;
+            if (current >= limit) {
+                return count;
+            }
+            reserved[0] = true;
+            return current + 1;
+        });
+        if (!reserved[0]) {
+            rejectedServes.increment();
+            logger.debug("Dropping request from {}: it already has {} pieces queued", requester, limit);
+            return;
+        }
         
-        while (running) {
+        try {
+            dataService.getRuntime().getUploadExecutor().execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    releaseServe(source);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            releaseServe(source);
+            rejectedServes.increment();
+            logger.debug("Dropping request from {}: the upload queue is full", requester);
+        }
+    }
+    
+    private void releaseServe(InetAddress source) {
+        servesBySource.computeIfPresent(source, (key, count) -> count > 1 ? count - 1 : null);
+    }
+    
+    /**
+     * Serve a block request: the block goes back as a plain UDP transfer; if that
+     * fails the requester falls back to TCP on its own
+     */
+    private void handleBlockRequest(UdpBlockRequest request, InetSocketAddress requester) {
+        Peer peer = new Peer(requester.getHostString() + ":" + requester.getPort(), requester.getHostString(),
+                             requester.getHostString(), requester.getPort());
+        serve(requester, () -> {
             try {
-                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-                socket.receive(packet);
-                
-                handlePacket(packet);
-            } catch (IOException e) {
-                if (running) {
-                    logger.error("Error receiving UDP packet", e);
+                Block block = dataService.handleIncomingBlockRequest(peer, request.getFileHash(), request.getPieceIndex(),
+                                                                     request.getOffset(), request.getLength());
+                if (block == null) {
+                    logger.debug("Block {} of piece {} requested by {} is not available", request.getOffset(),
+                                request.getPieceIndex(), peer.getId());
+                    return;
                 }
+                dataService.sendBlock(peer, block, request.getTransferId()).join();
+            } catch (Exception e) {
+                logger.warn("Failed to serve block of piece {} to {}: {}", request.getPieceIndex(), peer.getId(),
+                           e.getMessage());
+            }
+        });
+    }
+    
+    /**
+     * Send a requested piece, compressed if the requester accepts it and it is worth it
+     */
+    private void servePiece(Peer peer, String fileHash, int pieceIndex, int acceptedEncodings) {
+        PieceBuffer piece = null;
+        PieceBuffer encoded = null;
+        try {
+            piece = dataService.handleIncomingRequest(peer, fileHash, pieceIndex);
+            if (piece == null) {
+                logger.debug("Piece {} of file {} requested by {} is not available", pieceIndex, fileHash, peer.getId());
+                return;
+            }
+            encoded = dataService.getCompressor().encode(piece, acceptedEncodings);
+            // Blocking here bounds concurrent uploads to the upload pool size
+            dataService.sendPiece(peer, encoded).join();
+        } catch (Exception e) {
+            logger.warn("Failed to serve piece {} to {}: {}", pieceIndex, peer.getId(), e.getMessage());
+        } finally {
+            if (piece != null) {
+                piece.release();
+            }
+            if (encoded != null && encoded != piece) {
+                encoded.release();
             }
         }
     }
     
     /**
-     * Handle received UDP packet
+     * Handle a received datagram on a pipeline worker: serve piece requests, and
+     * complete our own request once a piece has been reassembled from its segments
      */
-    private void handlePacket(DatagramPacket packet) {
+    private void handlePacket(ByteBuffer datagram, InetSocketAddress sender) {
         try {
-            byte[] data = new byte[packet.getLength()];
-            System.arraycopy(packet.getData(), 0, data, 0, packet.getLength());
+            evictStaleIfDue();
             
-            Piece piece = deserializePiece(data);
+            byte type = PacketCodec.type(datagram);
+            if (type == PacketCodec.TYPE_REQUEST) {
+                UdpRequest request = new UdpRequest();
+                if (request.decode(datagram)) {
+                    handleRequest(request, sender);
+                } else {
+                    logger.debug("Dropping malformed request from {}", sender);
+                }
+                return;
+            }
+            if (type == PacketCodec.TYPE_BLOCK_REQUEST) {
+                UdpBlockRequest request = new UdpBlockRequest();
+                if (request.decode(datagram)) {
+                    handleBlockRequest(request, sender);
+                } else {
+                    logger.debug("Dropping malformed block request from {}", sender);
+                }
+                return;
+            }
             
-            if (piece != null) {
-                String key = piece.getFileHash() + ":" + piece.getIndex();
-                CompletableFuture<Piece> future = pendingRequests.remove(key);
-                
-                if (future != null) {
-                    // Verify piece integrity
-                    if (piece.verify()) {
-                        future.complete(piece);
-                        logger.debug("Received and verified piece {}", piece.getIndex());
-                    } else {
-                        future.completeExceptionally(new IOException("Piece verification failed"));
-                        logger.error("Piece {} failed verification", piece.getIndex());
-                    }
+            if (type == PacketCodec.TYPE_PROBE) {
+                UdpProbe probe = probes.get();
+                if (probe.decodeProbe(datagram)) {
+                    ByteBuffer buffer = probeAckBuffers.get();
+                    probe.encodeAck(buffer);
+                    transport.send(buffer, sender);
                 }
+                return;
+            }
+            
+            if (type == PacketCodec.TYPE_PARITY) {
+                UdpParity parity = parities.get();
+                if (!parity.decode(datagram)) {
+                    logger.debug("Dropping malformed or corrupted parity segment from {}", sender);
+                    return;
+                }
+                if (!reassembler.accepts(sender, parity.getFileIdCrc(), parity.getPieceId())) {
+                    logger.debug("Dropping parity segment of piece {} we did not ask for from {}", parity.getPieceId(),
+                                sender);
+                    return;
+                }
+                UdpAck ack = acks.get();
+                byte[] data = reassembler.addParity(sender, parity, ack);
+                sendAck(ack, sender);
+                if (data != null) {
+                    completePiece(parity.getFileIdCrc(), parity.getPieceId(), data);
+                }
+                return;
+            }
+            
+            UdpSegment segment = segments.get();
+            if (!segment.decode(datagram)) {
+                logger.debug("Dropping malformed or corrupted segment from {}", sender);
+                return;
+            }
+            if (!reassembler.accepts(sender, segment.getFileIdCrc(), segment.getPieceId())) {
+                logger.debug("Dropping segment of piece {} we did not ask for from {}", segment.getPieceId(), sender);
+                return;
+            }
+            
+            UdpAck ack = acks.get();
+            byte[] data = reassembler.addSegment(sender, segment, ack);
+            sendAck(ack, sender);
+            
+            if (data != null) {
+                completePiece(segment.getFileIdCrc(), segment.getPieceId(), data);
             }
         } catch (Exception e) {
             logger.error("Error handling UDP packet", e);
@@ -124,28 +526,137 @@ public class UdpDataReceiver {
     }
     
     /**
-     * Deserialize a piece from received bytes
+     * Decode a reassembled piece (without copying it out of the reassembled
+     * stream) and hand its verification to the verify pool, so hashing never
+     * holds up the receive workers
      */
-    private Piece deserializePiece(byte[] data) throws IOException {
-        ByteArrayInputStream bais = new ByteArrayInputStream(data);
-        DataInputStream dis = new DataInputStream(bais);
-        
-        // Read header
-        String magic = dis.readUTF();
-        if (!"PIECE".equals(magic)) {
-            return null;
+    private void completePiece(int fileIdCrc, int pieceIndex, byte[] data) {
+        if (UdpBlockRequest.isBlockTransfer(pieceIndex)) {
+            completeBlock(fileIdCrc, pieceIndex, data);
+            return;
+        }
+        PieceBuffer piece = PieceHeader.decode(pieceIndex, data);
+        if (piece == null) {
+            logger.warn("Dropping piece {} with an inconsistent header", pieceIndex);
+            return;
         }
         
-        String fileHash = dis.readUTF();
-        int index = dis.readInt();
-        String hash = dis.readUTF();
+        CompletableFuture<PieceBuffer> future = pendingRequests.remove(fileIdCrc, piece.getFileHash(), pieceIndex);
+        if (future != null) {
+            verifyLater(piece, future);
+        }
+    }
+    
+    /**
+     * Blocks have no hash to check, so they complete right away; the caller verifies the assembled piece
+     */
+    private void completeBlock(int fileIdCrc, int transferId, byte[] data) {
+        Block block = BlockHeader.decode(data);
+        if (block == null) {
+            logger.warn("Dropping block with an inconsistent header");
+            return;
+        }
         
-        // Read data
-        int length = dis.readInt();
-        byte[] pieceData = new byte[length];
-        dis.readFully(pieceData);
+        CompletableFuture<Block> future = pendingBlocks.remove(fileIdCrc, block.getFileHash(), transferId);
+        if (future != null) {
+            future.complete(block);
+        }
+    }
+    
+    /**
+     * Whether a request for the piece is pending with that host
+     */
+    public boolean expectsPiece(InetAddress source, String fileHash, int pieceIndex) {
+        return expects(source, PendingRequests.key(UdpSegment.fileIdCrc(fileHash), pieceIndex));
+    }
+    
+    /**
+     * Complete a pending request with a piece that arrived on another path, e.g. pushed over TCP.
+     * The piece is taken over if it is accepted.
+     * 
+     * @param source Host the piece came from, which must be the one the request went to
+     * @return false if no request for the piece is pending with that host; the caller still owns the piece
+     */
+    public boolean deliverPiece(InetAddress source, PieceBuffer piece) {
+        if (!expectsPiece(source, piece.getFileHash(), piece.getIndex())) {
+            return false;
+        }
+        CompletableFuture<PieceBuffer> future = pendingRequests.remove(UdpSegment.fileIdCrc(piece.getFileHash()), piece.getFileHash(), piece.getIndex());
+        if (future == null) {
+            return false;
+        }
+        verifyLater(piece, future);
+        return true;
+    }
+    
+    private void verifyLater(PieceBuffer piece, CompletableFuture<PieceBuffer> future) {
+        try {
+            dataService.getRuntime().getVerifyExecutor().execute(() -> verifyPiece(piece, future));
+        } catch (RejectedExecutionException e) {
+            piece.release();
+            future.completeExceptionally(e);
+        }
+    }
+    
+    /**
+     * A verified piece is handed on to the requester, whose reference it then is; a corrupt one is released.
+     * A compressed piece is restored first, which releases the compressed one.
+     */
+    private void verifyPiece(PieceBuffer received, CompletableFuture<PieceBuffer> future) {
+        int expectedLength = dataService.getPieceVerifier().expectedLength(received.getFileHash(), received.getIndex());
+        PieceBuffer piece = dataService.getCompressor().decode(received, expectedLength);
+        if (piece == null) {
+            future.completeExceptionally(new PieceCorruptException("Compressed piece could not be restored"));
+            logger.error("Piece {} could not be decompressed", received.getIndex());
+            return;
+        }
+        if (dataService.getPieceVerifier().verify(piece)) {
+            if (!future.complete(piece)) {
+                piece.release(); // the requester gave up meanwhile
+            }
+            logger.debug("Received and verified piece {}", piece.getIndex());
+        } else {
+            piece.release();
+            future.completeExceptionally(new PieceCorruptException("Piece verification failed"));
+            logger.error("Piece {} failed verification", piece.getIndex());
+        }
+    }
+    
+    private void evictStaleIfDue() {
+        long now = System.currentTimeMillis();
+        long last = lastEviction.get();
+        if (now - last > EVICT_INTERVAL_MS && lastEviction.compareAndSet(last, now)) {
+            reassembler.evictStale();
+        }
+    }
+    
+    /**
+     * Send the selective ACK for the segment just processed back to its sender
+     */
+    private void sendAck(UdpAck ack, InetSocketAddress sender) {
+        try {
+            ByteBuffer buffer = ackBuffers.get();
+            ack.encode(buffer);
+            transport.send(buffer, sender);
+        } catch (IOException e) {
+            logger.debug("Failed to send ACK to {}", sender, e);
+        }
+    }
+    
+    /**
+     * Peer and piece an outstanding request is for
+     */
+    private static class RequestTarget {
+        private final Peer peer;
+        private final InetAddress address;  // null if the peer's host could not be resolved
+        private final String fileHash;
+        private final int pieceIndex;
         
-        return new Piece(fileHash, index, pieceData, hash);
+        RequestTarget(Peer peer, InetAddress address, String fileHash, int pieceIndex) {
+            this.peer = peer;
+            this.address = address;
+            this.fileHash = fileHash;
+            this.pieceIndex = pieceIndex;
+        }
     }
 }
-
@@ -2,88 +2,303 @@ package vn.ptit.p2p.data;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import vn.ptit.p2p.common.Models.Block;
 import vn.ptit.p2p.common.Models.Piece;
+import vn.ptit.p2p.common.Models.PieceBuffer;
 import vn.ptit.p2p.common.Models.Peer;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 /**
- * Sends data pieces via UDP protocol
+ * Sends data pieces via UDP protocol using a sliding window with selective ACKs
  */
 public class UdpDataSender {
     private static final Logger logger = LoggerFactory.getLogger(UdpDataSender.class);
-    private static final int MAX_PACKET_SIZE = 65507; // Maximum UDP packet size
-    private static final int HEADER_SIZE = 100; // Reserve space for header
+    private static final long TICK_INTERVAL_MS = 5;
+    private static final long PATH_IDLE_NANOS = TimeUnit.MINUTES.toNanos(10);
     
     private final DataService dataService;
-    private DatagramSocket socket;
+    private final DataConfig config;
+    private final UdpTransport transport;
+    private final ThreadLocal<UdpAck> acks = ThreadLocal.withInitial(UdpAck::new);
+    private final ThreadLocal<UdpProbe> probes = ThreadLocal.withInitial(UdpProbe::new);
+    private final ScheduledExecutorService timer;
+    private final Pacer pacer;
     
-    public UdpDataSender(DataService dataService) {
+    private final Map<TransferKey, UdpTransfer> transfers = new ConcurrentHashMap<>();
+    private final Map<InetSocketAddress, Integer> windowByPeer = new ConcurrentHashMap<>();
+    private final Map<InetSocketAddress, PathMtu> paths = new ConcurrentHashMap<>();
+    private final Map<InetAddress, Long> ackedHosts = new ConcurrentHashMap<>(); // host -> nanoTime of its latest ACK
+    
+    public UdpDataSender(DataService dataService, DataConfig config) {
         this.dataService = dataService;
+        this.config = config;
+        this.transport = config.getTransport().create("udp-ack-reader", config.getTransportThreads());
         try {
-            this.socket = new DatagramSocket();
-            this.socket.setSoTimeout(5000); // 5 second timeout
+            this.transport.bind(0, this::handleAck);
         } catch (IOException e) {
             logger.error("Failed to create UDP socket", e);
         }
+        
+        this.pacer = new Pacer("udp-pacer");
+        
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "udp-retransmit-timer");
+            t.setDaemon(true);
+            return t;
+        });
+        this.timer.scheduleAtFixedRate(this::tick, TICK_INTERVAL_MS, TICK_INTERVAL_MS, TimeUnit.MILLISECONDS);
     }
     
     /**
-     * Send a piece to a peer via UDP
+     * Send a piece to a peer via UDP using the configured congestion control
      */
     public CompletableFuture<Void> sendPiece(Peer peer, Piece piece) {
-        return CompletableFuture.runAsync(() -> {
-            try {
-                byte[] data = serializePiece(piece);
-                
-                if (data.length > MAX_PACKET_SIZE) {
-                    throw new IOException("Piece too large for UDP: " + data.length);
+        return sendPiece(peer, piece, config.getCongestionAlgorithm());
+    }
+    
+    /**
+     * Send a piece to a peer via UDP with the given congestion control and the configured transfer timeout
+     */
+    public CompletableFuture<Void> sendPiece(Peer peer, Piece piece, CongestionAlgorithm algorithm) {
+        return sendPiece(peer, PieceBuffer.wrap(piece), algorithm, config.getTransferTimeout());
+    }
+    
+    /**
+     * Send a piece to a peer via UDP, split into segments sized to the path MTU that are
+     * encoded straight from the piece's buffer. The transfer holds its own
+     * reference to the piece until it has ended, retransmissions included.
+     * Completes once every segment has been acknowledged, or fails after timeoutMillis.
+     */
+    public CompletableFuture<Void> sendPiece(Peer peer, PieceBuffer piece, CongestionAlgorithm algorithm,
+                                             long timeoutMillis) {
+        piece.retain();
+        try {
+            return send(peer, piece.getFileHash(), piece.getIndex(), piece.getIndex(),
+                        () -> PieceHeader.encode(piece), piece.getData(), "piece " + piece.getIndex(),
+                        algorithm, timeoutMillis)
+                .whenComplete((result, error) -> piece.release());
+        } catch (RuntimeException e) {
+            piece.release();
+            throw e;
+        }
+    }
+    
+    /**
+     * Send a requested block back as a transfer identified by the requester's transfer id
+     */
+    public CompletableFuture<Void> sendBlock(Peer peer, Block block, int transferId, long timeoutMillis) {
+        return send(peer, block.getFileHash(), block.getPieceIndex(), transferId,
+                    () -> BlockHeader.encode(block.getFileHash(), block.getPieceIndex(), block.getOffset(),
+                                             block.getData().length),
+                    ByteBuffer.wrap(block.getData()),
+                    "block " + block.getOffset() + " of piece " + block.getPieceIndex(),
+                    config.getCongestionAlgorithm(), timeoutMillis);
+    }
+    
+    /**
+     * Send a header and body as one transfer, split into segments sized to the
+     * path MTU towards the peer that carry transferId in their piece id field;
+     * pieceIndex is the piece the data belongs to, which link quality alerts refer to
+     */
+    private CompletableFuture<Void> send(Peer peer, String fileHash, int pieceIndex, int transferId,
+                                         Supplier<ByteBuffer> headerEncoder,
+                                         ByteBuffer body, String description, CongestionAlgorithm algorithm,
+                                         long timeoutMillis) {
+        DataRuntime runtime = dataService.getRuntime();
+        return CompletableFuture.supplyAsync(() -> {
+            ByteBuffer header = headerEncoder.get();
+            int fileIdCrc = UdpSegment.fileIdCrc(fileHash);
+            
+            InetSocketAddress target = runtime.resolve(peer);
+            LinkMonitor links = dataService.getLinkMonitor();
+            LinkQuality quality = links.quality(target);
+            // Start from the window the previous transfer to this peer ended with
+            int initialWindow = windowByPeer.getOrDefault(target, CongestionController.INITIAL_WINDOW);
+            CongestionController congestion = algorithm.create(initialWindow, config.getWindowSize());
+            RateLimiter.Path throttle = dataService.getUploadLimiter().path(target.getAddress(), fileHash);
+            // Protect the transfer with as much parity as the loss seen towards this peer calls for
+            FecMode.Plan fec = config.getFecMode().plan(quality.getLossRate(), config.getFecGroupSize());
+            PathMtu path = path(target);
+            int mtu = path.getMtu();
+            int segmentSize = UdpSegment.segmentSize(mtu, UdpSegment.overhead(target));
+            UdpTransfer transfer = new UdpTransfer(target, fileIdCrc, transferId, header, body, segmentSize,
+                                                   timeoutMillis, config, quality.getRtt(), congestion, throttle, this::transmit,
+                                                   pacer, fec);
+            
+            TransferKey key = new TransferKey(target, fileIdCrc, transferId);
+            UdpTransfer previous = transfers.put(key, transfer);
+            if (previous != null) {
+                previous.fail(new IOException("Superseded by a new transfer of the same " + description));
+            }
+            
+            transfer.getFuture().whenComplete((result, error) -> {
+                transfers.remove(key, transfer);
+                windowByPeer.put(target, transfer.getCongestionWindow());
+                int sent = transfer.getSegmentCount() + transfer.getRetransmitted();
+                int lost = transfer.getRetransmitted() + transfer.getRecovered();
+                links.sampleLoss(target, sent, lost, fileHash, pieceIndex);
+                path.onTransfer(mtu, error != null, sent, lost);
+                if (error == null) {
+                    logger.debug("Sent {} via UDP to {} ({} retransmitted segments, {} rebuilt from {} parity)",
+                                description, peer.getId(), transfer.getRetransmitted(),
+                                transfer.getRecovered(), transfer.getParitySent());
                 }
-                
-                InetAddress address = InetAddress.getByName(peer.getHost());
-                DatagramPacket packet = new DatagramPacket(data, data.length, address, peer.getPort());
-                
-                socket.send(packet);
-                logger.debug("Sent piece {} via UDP to {}", piece.getIndex(), peer.getId());
-                
-            } catch (IOException e) {
-                logger.error("Failed to send piece via UDP", e);
-                throw new RuntimeException(e);
+            });
+            
+            transfer.pump();
+            return transfer.getFuture();
+        }, runtime.getSendExecutor()).thenCompose(future -> future);
+    }
+    
+    /**
+     * Retransmit specific sequence numbers of a piece currently being sent
+     */
+    public void retransmitSeq(String fileHash, int pieceIndex, List<Integer> seqList) {
+        int fileIdCrc = UdpSegment.fileIdCrc(fileHash);
+        for (UdpTransfer transfer : transfers.values()) {
+            if (transfer.getFileIdCrc() == fileIdCrc && transfer.getPieceId() == pieceIndex) {
+                transfer.retransmit(seqList);
             }
-        });
+        }
+    }
+    
+    /**
+     * MTU the next transfer to a target will be sized for
+     */
+    public int getPathMtu(InetSocketAddress target) {
+        PathMtu path = paths.get(target);
+        return path != null ? path.getMtu() : UdpSegment.DEFAULT_MTU;
+    }
+    
+    /**
+     * Whether a host has acknowledged a transfer we sent it within the last {@link #PATH_IDLE_NANOS},
+     * i.e. it really asked for what it was sent rather than having its address spoofed
+     */
+    public boolean hasAcknowledged(InetAddress host) {
+        return ackedHosts.containsKey(host);
+    }
+    
+    /**
+     * Path MTU state towards a target; without discovery every target stays at the base MTU
+     */
+    private PathMtu path(InetSocketAddress target) {
+        PathMtu path = paths.computeIfAbsent(target, t -> new PathMtu(
+            t, config.isPmtuDiscovery() ? PathMtu.ceiling(t, config.getMaxMtu()) : UdpSegment.DEFAULT_MTU));
+        path.touch(System.nanoTime());
+        return path;
+    }
+    
+    private void transmit(ByteBuffer datagram, InetSocketAddress target) throws IOException {
+        transport.send(datagram, target);
     }
     
     /**
-     * Serialize a piece into bytes for transmission
+     * Handle a selective ACK, or a path MTU probe acknowledgement, coming back from a receiver
      */
-    private byte[] serializePiece(Piece piece) throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        DataOutputStream dos = new DataOutputStream(baos);
+    private void handleAck(ByteBuffer datagram, InetSocketAddress sender) {
+        if (PacketCodec.type(datagram) == PacketCodec.TYPE_PROBE_ACK) {
+            UdpProbe probe = probes.get();
+            PathMtu path = paths.get(sender);
+            if (path != null && probe.decodeAck(datagram)) {
+                path.onProbeAck(probe);
+            }
+            return;
+        }
         
-        // Write header
-        dos.writeUTF("PIECE");
-        dos.writeUTF(piece.getFileHash());
-        dos.writeInt(piece.getIndex());
-        dos.writeUTF(piece.getHash());
+        UdpAck ack = acks.get();
+        if (!ack.decode(datagram)) {
+            return;
+        }
         
-        // Write data
-        dos.writeInt(piece.getData().length);
-        dos.write(piece.getData());
+        UdpTransfer transfer = transfers.get(new TransferKey(sender, ack.getFileIdCrc(), ack.getPieceId()));
+        if (transfer != null) {
+            ackedHosts.put(sender.getAddress(), System.nanoTime());
+            transfer.onAck(ack);
+        }
+    }
+    
+    /**
+     * Drive retransmission timeouts of all active transfers, and send the path MTU probes that are due.
+     * Targets no transfer has gone to for {@link #PATH_IDLE_NANOS} are forgotten, with their window.
+     */
+    private void tick() {
+        long now = System.nanoTime();
+        for (UdpTransfer transfer : transfers.values()) {
+            try {
+                transfer.onTick(now);
+            } catch (Exception e) {
+                logger.error("Error in retransmit timer", e);
+            }
+        }
+        ackedHosts.values().removeIf(acked -> now - acked > PATH_IDLE_NANOS);
         
-        dos.flush();
-        return baos.toByteArray();
+        for (Map.Entry<InetSocketAddress, PathMtu> entry : paths.entrySet()) {
+            InetSocketAddress target = entry.getKey();
+            if (entry.getValue().isIdle(now, PATH_IDLE_NANOS)) {
+                paths.remove(target, entry.getValue());
+                windowByPeer.remove(target);
+                continue;
+            }
+            long timeoutNanos = dataService.getLinkMonitor().quality(target).getRtt().getRtoMicros() * 1000;
+            ByteBuffer probe = entry.getValue().nextProbe(now, timeoutNanos);
+            if (probe != null) {
+                try {
+                    transport.send(probe, target);
+                } catch (IOException e) {
+                    // EMSGSIZE and the like: the size does not fit, let the probe time out
+                    logger.debug("Failed to send a {} byte MTU probe to {}", probe.remaining(), target, e);
+                }
+            }
+        }
     }
     
     public void close() {
-        if (socket != null && !socket.isClosed()) {
-            socket.close();
+        timer.shutdownNow();
+        pacer.stop();
+        for (UdpTransfer transfer : transfers.values()) {
+            transfer.fail(new IOException("UDP sender closed"));
+        }
+        transport.close();
+    }
+    
+    /**
+     * Identifies a transfer by destination, file and piece
+     */
+    private static class TransferKey {
+        private final InetSocketAddress target;
+        private final int fileIdCrc;
+        private final int pieceId;
+        
+        TransferKey(InetSocketAddress target, int fileIdCrc, int pieceId) {
+            this.target = target;
+            this.fileIdCrc = fileIdCrc;
+            this.pieceId = pieceId;
+        }
+        
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            TransferKey that = (TransferKey) o;
+            return fileIdCrc == that.fileIdCrc && pieceId == that.pieceId && Objects.equals(target, that.target);
+        }
+        
+        @Override
+        public int hashCode() {
+            return Objects.hash(target, fileIdCrc, pieceId);
         }
     }
 }
-
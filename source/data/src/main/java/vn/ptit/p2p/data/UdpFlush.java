@@ -0,0 +1,47 @@
+package vn.ptit.p2p.data;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Multicast end-of-transmission marker: common header, fileIdCrc (4),
+ * pieceCount (4) and segmentSize (4). The sender repeats it while it waits
+ * for repair requests after the last piece, so a receiver that lost the tail
+ * of the transmission (which no later data segment would reveal), or joined
+ * after it, still learns that every piece below pieceCount has been sent and
+ * how the pieces were cut into segments.
+ */
+public class UdpFlush {
+    public static final int SIZE = PacketCodec.HEADER_SIZE + 12;
+    
+    private int fileIdCrc;
+    private int pieceCount;
+    private int segmentSize;
+    
+    public int getFileIdCrc() { return fileIdCrc; }
+    public int getPieceCount() { return pieceCount; }
+    public int getSegmentSize() { return segmentSize; }
+    
+    public static ByteBuffer encode(int fileIdCrc, int pieceCount, int segmentSize) {
+        ByteBuffer out = ByteBuffer.allocate(SIZE);
+        PacketCodec.putHeader(out, PacketCodec.TYPE_FLUSH);
+        out.putInt(fileIdCrc);
+        out.putInt(pieceCount);
+        out.putInt(segmentSize);
+        out.flip();
+        return out;
+    }
+    
+    /**
+     * Decode a flush datagram into this instance, returning false if it is malformed
+     */
+    public boolean decode(ByteBuffer datagram) {
+        if (PacketCodec.type(datagram) != PacketCodec.TYPE_FLUSH || datagram.remaining() < SIZE) {
+            return false;
+        }
+        int base = datagram.position() + PacketCodec.HEADER_SIZE;
+        fileIdCrc = datagram.getInt(base);
+        pieceCount = datagram.getInt(base + 4);
+        segmentSize = datagram.getInt(base + 8);
+        return pieceCount > 0 && segmentSize > 0 && segmentSize <= UdpSegment.MAX_SEGMENT_SIZE;
+    }
+}
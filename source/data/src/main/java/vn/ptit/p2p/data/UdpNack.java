@@ -0,0 +1,78 @@
+package vn.ptit.p2p.data;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Multicast repair request: common header, fileIdCrc (4), range count (2) and
+ * that many {pieceId, firstSeq, count} triples (4 + 4 + 4 each) naming the
+ * data segments a receiver is missing. NACKs are sent to the group rather than
+ * to the sender, so other receivers missing the same segments hear them and
+ * hold back their own.
+ */
+public class UdpNack {
+    public static final int FIXED_SIZE = PacketCodec.HEADER_SIZE + 4 + 2;
+    public static final int RANGE_SIZE = 12;
+    public static final int MAX_RANGES = (UdpSegment.DEFAULT_MTU - UdpSegment.IP_UDP_OVERHEAD - FIXED_SIZE) / RANGE_SIZE;
+    
+    private int fileIdCrc;
+    private final List<int[]> ranges = new ArrayList<>();
+    
+    public int getFileIdCrc() { return fileIdCrc; }
+    
+    /**
+     * Missing segments as {pieceId, firstSeq, count}
+     */
+    public List<int[]> getRanges() { return ranges; }
+    
+    /**
+     * Encode a NACK for at most {@link #MAX_RANGES} ranges of {pieceId, firstSeq, count}
+     */
+    public static ByteBuffer encode(int fileIdCrc, List<int[]> ranges) {
+        if (ranges.isEmpty() || ranges.size() > MAX_RANGES) {
+            throw new IllegalArgumentException("A NACK carries 1 to " + MAX_RANGES + " ranges, not " + ranges.size());
+        }
+        ByteBuffer out = ByteBuffer.allocate(FIXED_SIZE + ranges.size() * RANGE_SIZE);
+        PacketCodec.putHeader(out, PacketCodec.TYPE_NACK);
+        out.putInt(fileIdCrc);
+        out.putShort((short) ranges.size());
+        for (int[] range : ranges) {
+            out.putInt(range[0]);
+            out.putInt(range[1]);
+            out.putInt(range[2]);
+        }
+        out.flip();
+        return out;
+    }
+    
+    /**
+     * Decode a NACK datagram into this instance, returning false if it is malformed
+     */
+    public boolean decode(ByteBuffer datagram) {
+        if (PacketCodec.type(datagram) != PacketCodec.TYPE_NACK || datagram.remaining() < FIXED_SIZE) {
+            return false;
+        }
+        
+        ByteBuffer in = datagram.duplicate();
+        in.position(in.position() + PacketCodec.HEADER_SIZE);
+        int crc = in.getInt();
+        int rangeCount = in.getShort() & 0xFFFF;
+        if (rangeCount == 0 || rangeCount > MAX_RANGES || in.remaining() < rangeCount * RANGE_SIZE) {
+            return false;
+        }
+        
+        ranges.clear();
+        for (int r = 0; r < rangeCount; r++) {
+            int pieceId = in.getInt();
+            int firstSeq = in.getInt();
+            int count = in.getInt();
+            if (pieceId < 0 || firstSeq < 0 || count <= 0) {
+                return false;
+            }
+            ranges.add(new int[] {pieceId, firstSeq, count});
+        }
+        fileIdCrc = crc;
+        return true;
+    }
+}
@@ -0,0 +1,106 @@
+package vn.ptit.p2p.data;
+
+import java.nio.ByteBuffer;
+
+/**
+ * FEC parity segment: common header followed by
+ * {fileIdCrc, pieceId, streamLength, group (2), groupSize (1), parityIndex (1), crc32c, timestamp,
+ * segmentSize (2)} and a segmentSize payload, the size of a full data segment of the transfer.
+ * Like a data segment's, the CRC32C covers the whole datagram but itself.
+ * Group g covers data segments g * groupSize up to the end of the transfer;
+ * shorter data segments count as zero padded. Parity segments are neither
+ * acknowledged nor retransmitted. The stream length lets a receiver that has
+ * lost the last data segment tell its length, and derive the segment count.
+ */
+public class UdpParity {
+    public static final int HEADER_SIZE = PacketCodec.HEADER_SIZE + 26;
+    
+    private static final int CRC_OFFSET = PacketCodec.HEADER_SIZE + 16;
+    
+    private int fileIdCrc;
+    private int pieceId;
+    private int streamLength;
+    private int group;
+    private int groupSize;
+    private int parityIndex;
+    private int timestamp;
+    private int segmentSize;
+    private ByteBuffer payload;
+    
+    public int getFileIdCrc() { return fileIdCrc; }
+    public int getPieceId() { return pieceId; }
+    public int getStreamLength() { return streamLength; }
+    public int getGroup() { return group; }
+    public int getGroupSize() { return groupSize; }
+    public int getParityIndex() { return parityIndex; }
+    public int getTimestamp() { return timestamp; }
+    public int getSegmentSize() { return segmentSize; }
+    public int getTotal() { return UdpSegment.segmentCount(streamLength, segmentSize); }
+    
+    /**
+     * First data segment covered by this parity segment
+     */
+    public int getFirstSeq() { return group * groupSize; }
+    
+    /**
+     * Payload view into the received datagram, only valid while the datagram is being handled
+     */
+    public ByteBuffer getPayload() { return payload; }
+    
+    /**
+     * Encode a parity segment into a reusable buffer, clearing it first and leaving it flipped for sending
+     */
+    public static void encode(ByteBuffer out, int fileIdCrc, int pieceId, int streamLength, int segmentSize,
+                              int group, int groupSize, int parityIndex, byte[] parity) {
+        out.clear();
+        PacketCodec.putHeader(out, PacketCodec.TYPE_PARITY);
+        out.putInt(fileIdCrc);
+        out.putInt(pieceId);
+        out.putInt(streamLength);
+        out.putShort((short) group);
+        out.put((byte) groupSize);
+        out.put((byte) parityIndex);
+        out.putInt(0); // crc, filled in below
+        out.putInt(UdpSegment.nowMicros());
+        out.putShort((short) segmentSize);
+        out.put(parity, 0, segmentSize);
+        out.putInt(CRC_OFFSET, PacketCodec.checksum(out, 0, CRC_OFFSET, out.position()));
+        out.flip();
+    }
+    
+    /**
+     * Decode a received datagram (position to limit) into this instance, returning false
+     * if it is not a parity segment, is malformed or its CRC does not match
+     */
+    public boolean decode(ByteBuffer datagram) {
+        if (PacketCodec.type(datagram) != PacketCodec.TYPE_PARITY || datagram.remaining() <= HEADER_SIZE) {
+            return false;
+        }
+        
+        int start = datagram.position();
+        int base = start + PacketCodec.HEADER_SIZE;
+        fileIdCrc = datagram.getInt(base);
+        pieceId = datagram.getInt(base + 4);
+        streamLength = datagram.getInt(base + 8);
+        group = datagram.getShort(base + 12) & 0xffff;
+        groupSize = datagram.get(base + 14) & 0xff;
+        parityIndex = datagram.get(base + 15) & 0xff;
+        int crc = datagram.getInt(base + 16);
+        timestamp = datagram.getInt(base + 20);
+        segmentSize = datagram.getShort(base + 24) & 0xffff;
+        
+        if (datagram.remaining() != HEADER_SIZE + segmentSize || segmentSize > UdpSegment.MAX_SEGMENT_SIZE
+            || streamLength <= 0 || groupSize <= 0 || groupSize > FecCodec.MAX_GROUP_SIZE
+            || parityIndex >= FecCodec.MAX_PARITY || getFirstSeq() >= getTotal()) {
+            return false;
+        }
+        
+        if (PacketCodec.checksum(datagram, start, start + CRC_OFFSET, datagram.limit()) != crc) {
+            return false;
+        }
+        
+        payload = datagram.duplicate();
+        payload.position(start + HEADER_SIZE);
+        return true;
+    }
+}
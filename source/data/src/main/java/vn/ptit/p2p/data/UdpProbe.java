@@ -0,0 +1,68 @@
+package vn.ptit.p2p.data;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Path MTU probe and its acknowledgement. A probe is the common header
+ * followed by {nonce, size} and zero padding up to size bytes, the datagram
+ * size being tested; the receiver answers with a small PROBE_ACK carrying
+ * the same nonce and size. A probe that arrives truncated is not answered.
+ */
+public class UdpProbe {
+    public static final int HEADER_SIZE = PacketCodec.HEADER_SIZE + 8;
+    public static final int ACK_SIZE = HEADER_SIZE;
+    
+    private int nonce;
+    private int size;
+    
+    public int getNonce() { return nonce; }
+    public int getSize() { return size; }
+    
+    /**
+     * A probe datagram of exactly size bytes
+     */
+    public static ByteBuffer encodeProbe(int nonce, int size) {
+        ByteBuffer out = ByteBuffer.allocate(size);
+        PacketCodec.putHeader(out, PacketCodec.TYPE_PROBE);
+        out.putInt(nonce);
+        out.putInt(size);
+        out.position(size);
+        out.flip();
+        return out;
+    }
+    
+    /**
+     * Encode the acknowledgement of this probe into a reusable buffer, leaving it flipped for sending
+     */
+    public void encodeAck(ByteBuffer out) {
+        out.clear();
+        PacketCodec.putHeader(out, PacketCodec.TYPE_PROBE_ACK);
+        out.putInt(nonce);
+        out.putInt(size);
+        out.flip();
+    }
+    
+    /**
+     * Decode a probe (position to limit), returning false if it is not a probe or did not arrive whole
+     */
+    public boolean decodeProbe(ByteBuffer datagram) {
+        return decode(datagram, PacketCodec.TYPE_PROBE) && datagram.remaining() == size;
+    }
+    
+    /**
+     * Decode a probe acknowledgement (position to limit), returning false if it is not one
+     */
+    public boolean decodeAck(ByteBuffer datagram) {
+        return decode(datagram, PacketCodec.TYPE_PROBE_ACK);
+    }
+    
+    private boolean decode(ByteBuffer datagram, byte type) {
+        if (PacketCodec.type(datagram) != type || datagram.remaining() < HEADER_SIZE) {
+            return false;
+        }
+        int base = datagram.position() + PacketCodec.HEADER_SIZE;
+        nonce = datagram.getInt(base);
+        size = datagram.getInt(base + 4);
+        return size >= HEADER_SIZE;
+    }
+}
@@ -0,0 +1,137 @@
+package vn.ptit.p2p.data;
+
+import vn.ptit.p2p.common.Hashing;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Piece request datagram: common header, raw SHA-256 file hash (32 bytes),
+ * accepted encodings (1), range count (2) and that many {firstPiece, count}
+ * pairs (4 + 4 each). Consecutive indices collapse into one range, so a
+ * downloader can pull dozens of pieces with one small packet. The accepted
+ * encodings are a bit set of 1 << encoding that the pieces may be compressed
+ * with, see {@link PieceCompressor}; 0 asks for raw pieces.
+ */
+public class UdpRequest {
+    public static final int FIXED_SIZE = PacketCodec.HEADER_SIZE + PieceHeader.HASH_SIZE + 3;
+    public static final int RANGE_SIZE = 8;
+    public static final int MAX_RANGES = (UdpSegment.DEFAULT_MTU - UdpSegment.IP_UDP_OVERHEAD - FIXED_SIZE) / RANGE_SIZE;
+    public static final int MAX_PIECES = 64; // Bounds how much one (possibly spoofed) packet can make us send
+    
+    private String fileHash;
+    private int acceptedEncodings;
+    private final List<int[]> ranges = new ArrayList<>();
+    
+    public String getFileHash() { return fileHash; }
+    public int getAcceptedEncodings() { return acceptedEncodings; }
+    
+    /**
+     * Requested ranges as {firstPiece, count}
+     */
+    public List<int[]> getRanges() { return ranges; }
+    
+    /**
+     * Total number of pieces requested
+     */
+    public int getPieceCount() {
+        int count = 0;
+        for (int[] range : ranges) {
+            count += range[1];
+        }
+        return count;
+    }
+    
+    /**
+     * Encode requests for the given pieces, splitting into as many datagrams as needed
+     */
+    public static List<ByteBuffer> encode(String fileHash, int[] pieceIndices, int acceptedEncodings) {
+        byte[] rawHash = Hashing.hexToBytes(fileHash);
+        if (rawHash.length != PieceHeader.HASH_SIZE) {
+            throw new IllegalArgumentException("Not a SHA-256 hash: " + fileHash);
+        }
+        
+        int[] sorted = pieceIndices.clone();
+        Arrays.sort(sorted);
+        
+        List<ByteBuffer> datagrams = new ArrayList<>();
+        List<int[]> pending = new ArrayList<>();
+        int pieces = 0;
+        int i = 0;
+        while (i < sorted.length) {
+            int first = sorted[i];
+            int count = 1;
+            i++;
+            while (i < sorted.length && sorted[i] <= first + count && pieces + count < MAX_PIECES) {
+                if (sorted[i] == first + count) {
+                    count++;
+                }
+                i++; // duplicates are skipped
+            }
+            
+            pending.add(new int[] {first, count});
+            pieces += count;
+            if (pending.size() == MAX_RANGES || pieces >= MAX_PIECES) {
+                datagrams.add(encode(rawHash, acceptedEncodings, pending));
+                pending.clear();
+                pieces = 0;
+            }
+        }
+        if (!pending.isEmpty()) {
+            datagrams.add(encode(rawHash, acceptedEncodings, pending));
+        }
+        return datagrams;
+    }
+    
+    private static ByteBuffer encode(byte[] rawHash, int acceptedEncodings, List<int[]> ranges) {
+        ByteBuffer out = ByteBuffer.allocate(FIXED_SIZE + ranges.size() * RANGE_SIZE);
+        PacketCodec.putHeader(out, PacketCodec.TYPE_REQUEST);
+        out.put(rawHash);
+        out.put((byte) acceptedEncodings);
+        out.putShort((short) ranges.size());
+        for (int[] range : ranges) {
+            out.putInt(range[0]);
+            out.putInt(range[1]);
+        }
+        out.flip();
+        return out;
+    }
+    
+    /**
+     * Decode a request datagram into this instance, returning false if it is not a
+     * valid request or asks for more than {@link #MAX_PIECES} pieces
+     */
+    public boolean decode(ByteBuffer datagram) {
+        if (PacketCodec.type(datagram) != PacketCodec.TYPE_REQUEST || datagram.remaining() < FIXED_SIZE) {
+            return false;
+        }
+        
+        ByteBuffer in = datagram.duplicate();
+        in.position(in.position() + PacketCodec.HEADER_SIZE);
+        byte[] rawHash = new byte[PieceHeader.HASH_SIZE];
+        in.get(rawHash);
+        int encodings = in.get() & 0xFF;
+        int rangeCount = in.getShort() & 0xFFFF;
+        if (rangeCount == 0 || in.remaining() < rangeCount * RANGE_SIZE) {
+            return false;
+        }
+        
+        ranges.clear();
+        int pieces = 0;
+        for (int r = 0; r < rangeCount; r++) {
+            int first = in.getInt();
+            int count = in.getInt();
+            if (first < 0 || count <= 0 || count > MAX_PIECES - pieces) {
+                return false;
+            }
+            pieces += count;
+            ranges.add(new int[] {first, count});
+        }
+        
+        fileHash = Hashing.bytesToHex(rawHash);
+        acceptedEncodings = encodings;
+        return true;
+    }
+}
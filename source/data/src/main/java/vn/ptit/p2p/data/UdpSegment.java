@@ -0,0 +1,150 @@
+package vn.ptit.p2p.data;
+
+import java.net.Inet6Address;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+/**
+ * UDP data segment: common header followed by
+ * {fileIdCrc, pieceId, seq, total, crc32c, timestamp, segmentSize (2)} and a payload.
+ * The CRC32C covers the whole datagram but itself, so a corrupted piece id or
+ * sequence number cannot put good data in the wrong place.
+ * A transfer is cut into segments of segmentSize bytes (the last one may be
+ * shorter), chosen by the sender to fill the path MTU towards the receiver.
+ * Instances are mutable and meant to be reused for decoding, like {@link UdpAck}.
+ */
+public class UdpSegment {
+    public static final int HEADER_SIZE = PacketCodec.HEADER_SIZE + 26;
+    public static final int DEFAULT_MTU = 1500;
+    public static final int MAX_MTU = 9000;          // jumbo frames
+    public static final int IP_UDP_OVERHEAD = 28;    // IPv4 (20) + UDP (8)
+    public static final int IPV6_UDP_OVERHEAD = 48;  // IPv6 (40) + UDP (8)
+    public static final int DEFAULT_SEGMENT_SIZE = segmentSize(DEFAULT_MTU, IP_UDP_OVERHEAD);
+    public static final int MAX_SEGMENT_SIZE = segmentSize(MAX_MTU, IP_UDP_OVERHEAD);
+    public static final int MAX_DATAGRAM_SIZE = MAX_MTU - IP_UDP_OVERHEAD;
+    
+    private static final int CRC_OFFSET = PacketCodec.HEADER_SIZE + 16;
+    
+    private int fileIdCrc;
+    private int pieceId;
+    private int seq;
+    private int total;
+    private int timestamp;
+    private int segmentSize;
+    private ByteBuffer payload;
+    
+    public int getFileIdCrc() { return fileIdCrc; }
+    public int getPieceId() { return pieceId; }
+    public int getSeq() { return seq; }
+    public int getTotal() { return total; }
+    public int getTimestamp() { return timestamp; }
+    public int getSegmentSize() { return segmentSize; }
+    
+    /**
+     * Payload view into the received datagram, only valid while the datagram is being handled
+     */
+    public ByteBuffer getPayload() { return payload; }
+    
+    /**
+     * Number of segments of the given size needed to carry the given number of bytes
+     */
+    public static int segmentCount(int length, int segmentSize) {
+        return Math.max(1, (length + segmentSize - 1) / segmentSize);
+    }
+    
+    /**
+     * Largest payload of a data segment that fits an MTU
+     * 
+     * @param ipOverhead IP and UDP header bytes, {@link #overhead(InetSocketAddress)}
+     */
+    public static int segmentSize(int mtu, int ipOverhead) {
+        return mtu - ipOverhead - HEADER_SIZE;
+    }
+    
+    /**
+     * IP and UDP header bytes of datagrams sent to an address
+     */
+    public static int overhead(InetSocketAddress target) {
+        return target.getAddress() instanceof Inet6Address ? IPV6_UDP_OVERHEAD : IP_UDP_OVERHEAD;
+    }
+    
+    /**
+     * Start encoding a segment into a reusable buffer: clears it and writes the header.
+     * The caller then puts the payload and calls {@link #finishEncode(ByteBuffer)}.
+     */
+    public static void beginEncode(ByteBuffer out, int fileIdCrc, int pieceId, int seq, int total, int segmentSize) {
+        out.clear();
+        PacketCodec.putHeader(out, PacketCodec.TYPE_DATA);
+        out.putInt(fileIdCrc);
+        out.putInt(pieceId);
+        out.putInt(seq);
+        out.putInt(total);
+        out.putInt(0); // crc, filled in by finishEncode
+        out.putInt(nowMicros());
+        out.putShort((short) segmentSize);
+    }
+    
+    /**
+     * Checksum the header and payload written since {@link #beginEncode} and flip the buffer for sending
+     */
+    public static void finishEncode(ByteBuffer out) {
+        out.putInt(CRC_OFFSET, PacketCodec.checksum(out, 0, CRC_OFFSET, out.position()));
+        out.flip();
+    }
+    
+    /**
+     * Decode a received datagram (position to limit) into this instance, returning false
+     * if it is not a data segment, is malformed or its CRC does not match.
+     * The datagram buffer itself is not modified.
+     */
+    public boolean decode(ByteBuffer datagram) {
+        if (PacketCodec.type(datagram) != PacketCodec.TYPE_DATA || datagram.remaining() < HEADER_SIZE) {
+            return false;
+        }
+        
+        int start = datagram.position();
+        int base = start + PacketCodec.HEADER_SIZE;
+        fileIdCrc = datagram.getInt(base);
+        pieceId = datagram.getInt(base + 4);
+        seq = datagram.getInt(base + 8);
+        total = datagram.getInt(base + 12);
+        int crc = datagram.getInt(base + 16);
+        timestamp = datagram.getInt(base + 20);
+        segmentSize = datagram.getShort(base + 24) & 0xffff;
+        
+        if (total <= 0 || seq < 0 || seq >= total || segmentSize == 0 || segmentSize > MAX_SEGMENT_SIZE) {
+            return false;
+        }
+        // Every segment but the last is full
+        int length = datagram.remaining() - HEADER_SIZE;
+        if (seq < total - 1 ? length != segmentSize : length <= 0 || length > segmentSize) {
+            return false;
+        }
+        
+        if (PacketCodec.checksum(datagram, start, start + CRC_OFFSET, datagram.limit()) != crc) {
+            return false;
+        }
+        
+        payload = datagram.duplicate();
+        payload.position(start + HEADER_SIZE);
+        return true;
+    }
+    
+    /**
+     * Compact 4-byte identifier of a file, used instead of the full hash in every segment
+     */
+    public static int fileIdCrc(String fileHash) {
+        CRC32 crc = new CRC32();
+        crc.update(fileHash.toLowerCase().getBytes(StandardCharsets.US_ASCII));
+        return (int) crc.getValue();
+    }
+    
+    /**
+     * Current time in microseconds, truncated to 32 bits (compare with int subtraction)
+     */
+    public static int nowMicros() {
+        return (int) (System.nanoTime() / 1000);
+    }
+}
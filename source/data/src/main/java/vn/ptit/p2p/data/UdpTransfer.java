@@ -0,0 +1,457 @@
+package vn.ptit.p2p.data;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Sliding-window state of one piece being sent to one peer.
+ * Segments are acknowledged selectively; a segment is considered lost when
+ * a segment transmitted after it has been acknowledged (plus a reordering
+ * allowance) or when the retransmission timeout expires. Only the missing
+ * sequence numbers are ever retransmitted. The number of segments in flight
+ * is bounded by both the configured window and the congestion controller,
+ * and every datagram (retransmissions included) is charged to the rate limiter.
+ * Datagrams are not sent in bursts: the pacer releases them one at a time,
+ * spreading the congestion window over roughly one smoothed RTT.
+ * With FEC, the parity segments of each group of data segments follow the
+ * group's last segment; they are paced and rate limited like data but are
+ * neither acknowledged nor counted against the window.
+ */
+public class UdpTransfer implements Pacer.Source {
+    private static final Logger logger = LoggerFactory.getLogger(UdpTransfer.class);
+    private static final double PACING_GAIN = 1.25; // pace slightly faster than cwnd/srtt so the window can grow
+    // Segments are encoded at transmission time into one buffer per sending thread
+    private static final ThreadLocal<ByteBuffer> ENCODE_BUFFERS = ThreadLocal.withInitial(
+        () -> ByteBuffer.allocateDirect(UdpSegment.HEADER_SIZE + UdpSegment.MAX_SEGMENT_SIZE));
+    private static final ThreadLocal<byte[]> PARITY_INPUTS = ThreadLocal.withInitial(
+        () -> new byte[UdpSegment.MAX_SEGMENT_SIZE]);
+    
+    /**
+     * Sends one encoded datagram (position to limit) to the transfer's target
+     */
+    public interface Transmitter {
+        void transmit(ByteBuffer datagram, InetSocketAddress target) throws IOException;
+    }
+    
+    private final InetSocketAddress target;
+    private final int fileIdCrc;
+    private final int pieceId;
+    private final ByteBuffer header;
+    private final ByteBuffer body;
+    private final int streamLength;
+    private final int segmentSize;
+    private final int total;
+    private final int window;
+    private final int maxRetransmits;
+    private final long deadlineNanos;
+    private final RttEstimator rtt;
+    private final CongestionController congestion;
+    private final RateLimiter.Path throttle;
+    private final Transmitter transmitter;
+    private final Pacer.Entry pacing;
+    private final long initialPacingNanos;
+    private final FecMode.Plan fec;
+    private final CompletableFuture<Void> future = new CompletableFuture<>();
+    
+    private final BitSet acked = new BitSet();
+    private final BitSet lost = new BitSet();
+    private final long[] sentAtNanos;
+    private final int[] retransmissions;  // per segment, the first send not counted
+    private int nextSeq;
+    private int cumAck;
+    private int inFlight;
+    private int retransmitted;
+    private long lastReductionNanos;
+    private final long[] parityDoneNanos; // per group, when its last parity segment was sent
+    private byte[][] parity;     // parity segments of parityGroup, computed when its last segment is sent
+    private int parityGroup = -1;
+    private int nextParity;
+    private int paritySent;
+    private int recovered;       // as last reported by the receiver
+    
+    /**
+     * @param header Bytes sent in front of the body, e.g. the encoded {@link PieceHeader}
+     * @param body Piece data; neither buffer is modified
+     * @param segmentSize Payload bytes per data segment, fitted to the path MTU
+     * @param timeoutMillis The transfer fails if not fully acknowledged within this time
+     * @param fec Parity to send with each group of segments, {@link FecMode.Plan#OFF} for none
+     */
+    public UdpTransfer(InetSocketAddress target, int fileIdCrc, int pieceId, ByteBuffer header, ByteBuffer body,
+                       int segmentSize, long timeoutMillis, DataConfig config, RttEstimator rtt, CongestionController congestion,
+                       RateLimiter.Path throttle, Transmitter transmitter, Pacer pacer, FecMode.Plan fec) {
+        this.target = target;
+        this.fileIdCrc = fileIdCrc;
+        this.pieceId = pieceId;
+        this.header = header;
+        this.body = body;
+        this.streamLength = header.remaining() + body.remaining();
+        this.segmentSize = segmentSize;
+        this.total = UdpSegment.segmentCount(streamLength, segmentSize);
+        this.window = config.getWindowSize();
+        this.maxRetransmits = config.getMaxRetransmits();
+        this.deadlineNanos = System.nanoTime() + timeoutMillis * 1_000_000L;
+        this.rtt = rtt;
+        this.congestion = congestion;
+        this.throttle = throttle;
+        this.transmitter = transmitter;
+        this.pacing = pacer.register(this);
+        this.initialPacingNanos = config.getPacingDelayMicros() * 1000L;
+        this.fec = fec;
+        this.parityDoneNanos = new long[fec.isEnabled() ? (total + fec.getGroupSize() - 1) / fec.getGroupSize() : 0];
+        this.sentAtNanos = new long[total];
+        this.retransmissions = new int[total];
+    }
+    
+    public InetSocketAddress getTarget() { return target; }
+    public int getFileIdCrc() { return fileIdCrc; }
+    public int getPieceId() { return pieceId; }
+    public CompletableFuture<Void> getFuture() { return future; }
+    public synchronized int getRetransmitted() { return retransmitted; }
+    public synchronized int getParitySent() { return paritySent; }
+    public synchronized int getRecovered() { return recovered; }
+    public int getSegmentCount() { return total; }
+    public int getSegmentSize() { return segmentSize; }
+    public synchronized int getCongestionWindow() { return congestion.getWindow(); }
+    
+    /**
+     * Hand the transfer to the pacer if it has anything to send
+     */
+    public synchronized void pump() {
+        if (!future.isDone() && hasSendable()) {
+            pacing.schedule();
+        }
+    }
+    
+    /**
+     * Called by the pacer: send one segment, retransmissions first, then pending
+     * parity, and tell it when the next one is due. Waits imposed by the rate
+     * limiter are also returned to the pacer rather than polled for.
+     */
+    @Override
+    public synchronized long sendNext(long nowNanos) {
+        if (future.isDone() || !hasSendable()) {
+            return 0;
+        }
+        
+        int seq = lost.nextSetBit(0);
+        boolean retransmission = seq >= 0;
+        if ((!retransmission || !windowOpen()) && parityPending()) {
+            long wait = throttle.tryAcquire(UdpParity.HEADER_SIZE + segmentSize);
+            if (wait > 0) {
+                return nowNanos + wait;
+            }
+            try {
+                transmitParity();
+            } catch (IOException e) {
+                fail(e);
+                return 0;
+            }
+            return hasSendable() ? nowNanos + pacingIntervalNanos() : 0;
+        }
+        if (!retransmission) {
+            seq = nextSeq;
+        }
+        
+        long wait = throttle.tryAcquire(UdpSegment.HEADER_SIZE + payloadLength(seq));
+        if (wait > 0) {
+            return nowNanos + wait;
+        }
+        
+        try {
+            if (retransmission) {
+                lost.clear(seq);
+                if (++retransmissions[seq] > maxRetransmits) {
+                    fail(new IOException("Segment " + seq + " of piece " + pieceId
+                                         + " exceeded " + maxRetransmits + " retransmissions"));
+                    return 0;
+                }
+                retransmitted++;
+            } else {
+                nextSeq++;
+            }
+            
+            transmit(seq);
+            inFlight++;
+            if (!retransmission && fec.isEnabled() && (nextSeq == total || nextSeq % fec.getGroupSize() == 0)) {
+                encodeParity(seq / fec.getGroupSize());
+            }
+        } catch (IOException e) {
+            fail(e);
+            return 0;
+        }
+        
+        return hasSendable() ? nowNanos + pacingIntervalNanos() : 0;
+    }
+    
+    /**
+     * Process a selective acknowledgement from the receiver
+     */
+    public synchronized void onAck(UdpAck ack) {
+        if (future.isDone()) {
+            return;
+        }
+        
+        recovered = Math.max(recovered, ack.getRecovered());
+        int sample = UdpSegment.nowMicros() - ack.getTsEcho();
+        if (sample > 0) {
+            rtt.sample(sample);
+        }
+        
+        int ackedBefore = acked.cardinality();
+        long latestDeliveredSentAt = 0;
+        int upTo = Math.min(ack.getCumAck(), total);
+        for (int seq = cumAck; seq < upTo; seq++) {
+            latestDeliveredSentAt = Math.max(latestDeliveredSentAt, markAcked(seq));
+        }
+        cumAck = Math.max(cumAck, upTo);
+        
+        // Only a cumulative ACK within the piece can have segments past it; this
+        // also keeps cumAck + 1 + bit from overflowing
+        long bits = ack.getCumAck() < total ? ack.getSackBits() : 0;
+        while (bits != 0) {
+            int bit = Long.numberOfTrailingZeros(bits);
+            bits &= bits - 1;
+            int seq = ack.getCumAck() + 1 + bit;
+            if (seq < total) {
+                latestDeliveredSentAt = Math.max(latestDeliveredSentAt, markAcked(seq));
+            }
+        }
+        
+        long now = System.nanoTime();
+        int newlyAcked = acked.cardinality() - ackedBefore;
+        if (newlyAcked > 0) {
+            congestion.onAck(newlyAcked, rtt.getSrttMicros(), ack.getDelay(), now);
+        }
+        
+        if (acked.cardinality() == total) {
+            future.complete(null);
+            return;
+        }
+        
+        if (detectLoss(latestDeliveredSentAt)) {
+            congestion.onLoss(now);
+            lastReductionNanos = now;
+        }
+        pump();
+    }
+    
+    /**
+     * Check the retransmission timeout and the overall transfer deadline
+     */
+    public synchronized void onTick(long nowNanos) {
+        if (future.isDone()) {
+            return;
+        }
+        
+        if (nowNanos - deadlineNanos > 0) {
+            fail(new TimeoutException("UDP transfer of piece " + pieceId + " timed out"));
+            return;
+        }
+        
+        long rtoNanos = rtt.getRtoMicros() * 1000;
+        boolean expired = false;
+        for (int seq = acked.nextClearBit(cumAck); seq < nextSeq; seq = acked.nextClearBit(seq + 1)) {
+            if (!lost.get(seq) && nowNanos - Math.max(sentAtNanos[seq], parityDoneNanos(seq)) > rtoNanos) {
+                markLost(seq);
+                expired = true;
+            }
+        }
+        
+        if (expired) {
+            rtt.backoff();
+            congestion.onTimeout(nowNanos);
+            lastReductionNanos = nowNanos;
+            logger.debug("RTO expired for piece {} to {}, retransmitting {} segments",
+                        pieceId, target, lost.cardinality());
+            pump();
+        }
+    }
+    
+    /**
+     * Explicitly retransmit the given sequence numbers (e.g. on a NACK from the control plane)
+     */
+    public synchronized void retransmit(Iterable<Integer> seqs) {
+        for (int seq : seqs) {
+            if (seq >= 0 && seq < nextSeq && !acked.get(seq) && !lost.get(seq)) {
+                markLost(seq);
+            }
+        }
+        pump();
+    }
+    
+    public synchronized void fail(Throwable error) {
+        future.completeExceptionally(error);
+    }
+    
+    private boolean hasSendable() {
+        return parityPending() || (windowOpen() && (!lost.isEmpty() || nextSeq < total));
+    }
+    
+    private boolean windowOpen() {
+        return inFlight < Math.min(window, congestion.getWindow());
+    }
+    
+    private boolean parityPending() {
+        return parityGroup >= 0 && nextParity < fec.getParityCount();
+    }
+    
+    /**
+     * Gap between two datagrams: the congestion window spread over one smoothed RTT.
+     * Before the first RTT sample the configured pacing delay is used instead.
+     */
+    private long pacingIntervalNanos() {
+        if (!rtt.hasSample()) {
+            return initialPacingNanos;
+        }
+        int cwnd = Math.max(1, Math.min(window, congestion.getWindow()));
+        return (long) (rtt.getSrttMicros() * 1000 / (cwnd * PACING_GAIN));
+    }
+    
+    private void transmit(int seq) throws IOException {
+        ByteBuffer datagram = ENCODE_BUFFERS.get();
+        UdpSegment.beginEncode(datagram, fileIdCrc, pieceId, seq, total, segmentSize);
+        putPayload(seq, datagram);
+        UdpSegment.finishEncode(datagram);
+        sentAtNanos[seq] = System.nanoTime();
+        transmitter.transmit(datagram, target);
+    }
+    
+    /**
+     * Compute the parity segments of a group whose segments have all been sent once
+     */
+    private void encodeParity(int group) {
+        if (parity == null) {
+            parity = new byte[fec.getParityCount()][segmentSize];
+        }
+        for (byte[] block : parity) {
+            Arrays.fill(block, (byte) 0);
+        }
+        
+        byte[] data = PARITY_INPUTS.get();
+        int first = group * fec.getGroupSize();
+        int end = Math.min(total, first + fec.getGroupSize());
+        for (int seq = first; seq < end; seq++) {
+            int length = payloadLength(seq);
+            putPayload(seq, ByteBuffer.wrap(data, 0, length));
+            Arrays.fill(data, length, segmentSize, (byte) 0);
+            for (int j = 0; j < parity.length; j++) {
+                FecCodec.mulAdd(parity[j], data, segmentSize, FecCodec.coefficient(j, seq - first));
+            }
+        }
+        parityGroup = group;
+        nextParity = 0;
+    }
+    
+    private void transmitParity() throws IOException {
+        ByteBuffer datagram = ENCODE_BUFFERS.get();
+        UdpParity.encode(datagram, fileIdCrc, pieceId, streamLength, segmentSize, parityGroup, fec.getGroupSize(),
+                         nextParity, parity[nextParity]);
+        nextParity++;
+        paritySent++;
+        transmitter.transmit(datagram, target);
+        if (nextParity == parity.length) {
+            parityDoneNanos[parityGroup] = System.nanoTime();
+        }
+    }
+    
+    /**
+     * Put a segment's share of header and body at the buffer's position
+     */
+    private void putPayload(int seq, ByteBuffer out) {
+        int offset = seq * segmentSize;
+        int length = payloadLength(seq);
+        int headerLength = header.remaining();
+        if (offset < headerLength) {
+            int fromHeader = Math.min(length, headerLength - offset);
+            copy(header, header.position() + offset, fromHeader, out);
+            offset += fromHeader;
+            length -= fromHeader;
+        }
+        if (length > 0) {
+            copy(body, body.position() + offset - headerLength, length, out);
+        }
+    }
+    
+    private int payloadLength(int seq) {
+        return Math.min(segmentSize, streamLength - seq * segmentSize);
+    }
+    
+    private static void copy(ByteBuffer source, int from, int length, ByteBuffer out) {
+        if (source.hasArray()) {
+            out.put(source.array(), source.arrayOffset() + from, length);
+        } else {
+            ByteBuffer view = source.duplicate();
+            view.limit(from + length).position(from);
+            out.put(view);
+        }
+    }
+    
+    /**
+     * Mark a segment acknowledged, returning its last transmission time (0 if already acked)
+     */
+    private long markAcked(int seq) {
+        if (acked.get(seq)) {
+            return 0;
+        }
+        acked.set(seq);
+        if (lost.get(seq)) {
+            lost.clear(seq); // spurious loss, the original arrived
+        } else if (sentAtNanos[seq] != 0) {
+            inFlight--;
+        }
+        return sentAtNanos[seq];
+    }
+    
+    private void markLost(int seq) {
+        lost.set(seq);
+        inFlight--;
+    }
+    
+    /**
+     * When the last parity segment of a segment's group was sent, 0 if not yet or without FEC
+     */
+    private long parityDoneNanos(int seq) {
+        return fec.isEnabled() ? parityDoneNanos[seq / fec.getGroupSize()] : 0;
+    }
+    
+    /**
+     * A segment is lost if one transmitted sufficiently later has already been delivered.
+     * With FEC it is not judged before its group's parity has been sent, and
+     * then only by segments sent after that parity.
+     * Returns true if this is a new congestion event, i.e. a lost segment was sent after
+     * the window was last reduced.
+     */
+    private boolean detectLoss(long latestDeliveredSentAt) {
+        if (latestDeliveredSentAt == 0) {
+            return false;
+        }
+        
+        boolean newEvent = false;        
+        long reorderWindowNanos = rtt.getSrttMicros() * 1000 / 4;
+        for (int seq = acked.nextClearBit(cumAck); seq < nextSeq; seq = acked.nextClearBit(seq + 1)) {
+            if (lost.get(seq)) {
+                continue;
+            }
+            long judgedFrom = sentAtNanos[seq];
+            if (fec.isEnabled()) {
+                if (parityDoneNanos(seq) == 0) {
+                    continue; // the group's parity is still to come and may rebuild it
+                }
+                judgedFrom = Math.max(judgedFrom, parityDoneNanos(seq));
+            }
+            if (judgedFrom + reorderWindowNanos < latestDeliveredSentAt) {
+                markLost(seq);
+                newEvent |= sentAtNanos[seq] - lastReductionNanos > 0;
+            }
+        }
+        return newEvent;
+    }
+}
@@ -0,0 +1,33 @@
+package vn.ptit.p2p.data;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Datagram I/O used by the UDP data plane. Implementations may deliver
+ * datagrams from several threads at once, so handlers must be thread-safe.
+ */
+public interface UdpTransport {
+    
+    /**
+     * Receives datagrams; the buffer (position to limit) is only valid during the call
+     */
+    interface Handler {
+        void onDatagram(ByteBuffer datagram, InetSocketAddress sender);
+    }
+    
+    /**
+     * Bind to a local port (0 for an ephemeral one) and start delivering datagrams to the handler
+     */
+    void bind(int port, Handler handler) throws IOException;
+    
+    /**
+     * Send the bytes between position and limit of the buffer; the buffer is not modified
+     */
+    void send(ByteBuffer datagram, InetSocketAddress target) throws IOException;
+    
+    int getLocalPort();
+    
+    void close();
+}
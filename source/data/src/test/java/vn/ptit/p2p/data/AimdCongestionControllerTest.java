@@ -0,0 +1,50 @@
+package vn.ptit.p2p.data;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class AimdCongestionControllerTest {
+    private static final int MAX_WINDOW = 1000;
+    private static final long RTT_MICROS = 10_000;
+    
+    @Test
+    void slowStartGrowsBySegmentAckedUpToSsthresh() {
+        AimdCongestionController controller = new AimdCongestionController(10, MAX_WINDOW);
+        controller.onAck(30, RTT_MICROS, 0, 0);
+        assertEquals(40, controller.getWindow());
+        
+        controller.onTimeout(0); // ssthresh 20
+        assertEquals(CongestionController.MIN_WINDOW, controller.getWindow());
+        for (int window = CongestionController.MIN_WINDOW; window < 20; window++) {
+            assertEquals(window, controller.getWindow());
+            controller.onAck(1, RTT_MICROS, 0, 0);
+        }
+        assertEquals(20, controller.getWindow());
+        
+        controller.onAck(10, RTT_MICROS, 0, 0);
+        assertEquals(20, controller.getWindow(), "past ssthresh a window of ACKs adds one segment");
+        controller.onAck(11, RTT_MICROS, 0, 0);
+        assertEquals(21, controller.getWindow());
+    }
+    
+    @Test
+    void lossHalvesTheWindowWhereATimeoutStartsOver() {
+        AimdCongestionController lossy = new AimdCongestionController(40, MAX_WINDOW);
+        lossy.onLoss(0);
+        assertEquals(20, lossy.getWindow());
+        lossy.onAck(20, RTT_MICROS, 0, 0);
+        assertEquals(21, lossy.getWindow(), "no slow start after a loss");
+        
+        AimdCongestionController timedOut = new AimdCongestionController(40, MAX_WINDOW);
+        timedOut.onTimeout(0);
+        assertEquals(CongestionController.MIN_WINDOW, timedOut.getWindow());
+    }
+    
+    @Test
+    void neverGrowsPastTheMaximum() {
+        AimdCongestionController controller = new AimdCongestionController(10, 16);
+        controller.onAck(100, RTT_MICROS, 0, 0);
+        assertEquals(16, controller.getWindow());
+    }
+}
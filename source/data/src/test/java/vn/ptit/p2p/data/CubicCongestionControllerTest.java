@@ -0,0 +1,72 @@
+package vn.ptit.p2p.data;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CubicCongestionControllerTest {
+    private static final int MAX_WINDOW = 1000;
+    private static final long RTT_MICROS = 100_000; // long enough for the cubic curve to beat Reno's growth
+    private static final long START = TimeUnit.SECONDS.toNanos(1);
+    
+    @Test
+    void slowStartGrowsBySegmentAckedUpToSsthresh() {
+        CubicCongestionController controller = new CubicCongestionController(10, MAX_WINDOW);
+        controller.onAck(30, RTT_MICROS, 0, START);
+        assertEquals(40, controller.getWindow());
+        
+        controller.onTimeout(START); // ssthresh 28
+        assertEquals(CongestionController.MIN_WINDOW, controller.getWindow());
+        for (int window = CongestionController.MIN_WINDOW; window < 28; window++) {
+            assertEquals(window, controller.getWindow());
+            controller.onAck(1, RTT_MICROS, 0, START);
+        }
+        controller.onAck(1, RTT_MICROS, 0, START);
+        assertEquals(28, controller.getWindow(), "past ssthresh one ACK is not worth a segment");
+    }
+    
+    @Test
+    void lossCutsTheWindowByBetaWhereATimeoutStartsOver() {
+        CubicCongestionController lossy = new CubicCongestionController(40, MAX_WINDOW);
+        lossy.onLoss(START);
+        assertEquals(28, lossy.getWindow());
+        
+        CubicCongestionController timedOut = new CubicCongestionController(40, MAX_WINDOW);
+        timedOut.onTimeout(START);
+        assertEquals(CongestionController.MIN_WINDOW, timedOut.getWindow());
+    }
+    
+    @Test
+    void growsBackTowardsTheWindowOfTheLossAndLevelsOffThere() {
+        CubicCongestionController controller = new CubicCongestionController(400, MAX_WINDOW);
+        controller.onLoss(START);
+        assertEquals(280, controller.getWindow());
+        
+        // K = cbrt(400 * 0.3 / 0.4), about 6.7 s until the window is back at 400
+        long now = ackEveryRtt(controller, START, TimeUnit.MILLISECONDS.toNanos(3400));
+        int halfway = controller.getWindow();
+        assertTrue(halfway > 370 && halfway < 400, "concave: most of the way back in half the time, was " + halfway);
+        
+        now = ackEveryRtt(controller, now, TimeUnit.MILLISECONDS.toNanos(3400));
+        int atWMax = controller.getWindow();
+        assertTrue(atWMax >= 395 && atWMax <= 402, "back at the saturation point, was " + atWMax);
+        
+        ackEveryRtt(controller, now, TimeUnit.SECONDS.toNanos(1));
+        assertTrue(controller.getWindow() <= 403, "probes slowly around it, was " + controller.getWindow());
+    }
+    
+    /**
+     * Acknowledge a full window every RTT for the given time, returning the time reached
+     */
+    private static long ackEveryRtt(CongestionController controller, long now, long durationNanos) {
+        long end = now + durationNanos;
+        while (now < end) {
+            now += TimeUnit.MICROSECONDS.toNanos(RTT_MICROS);
+            controller.onAck(controller.getWindow(), RTT_MICROS, 0, now);
+        }
+        return now;
+    }
+}
@@ -0,0 +1,118 @@
+package vn.ptit.p2p.data;
+
+import org.junit.jupiter.api.Test;
+import vn.ptit.p2p.dataapi.DataApi.StageStats;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class FallbackTransferTest {
+    private static final Executor DIRECT = Runnable::run;
+    private static final long TIMEOUT = 5_000;
+    
+    private final StageCounter[] counters = {new StageCounter(), new StageCounter(), new StageCounter()};
+    private final List<String> attempts = new ArrayList<>();
+    
+    @Test
+    void staysOnUdpWhenItWorks() throws Exception {
+        FallbackTransfer<String> transfer = transfer(udp("udp", 0), tcp("tcp"));
+        
+        assertEquals("udp", transfer.start().get(5, TimeUnit.SECONDS));
+        assertEquals(List.of("UDP"), attempts);
+        assertEquals(FallbackTransfer.Stage.UDP, transfer.getStage());
+        assertStats(FallbackTransfer.Stage.UDP, 1, 1, 0, 0);
+    }
+    
+    @Test
+    void retriesUdpOnceBeforeFallingBackToTcp() throws Exception {
+        FallbackTransfer<String> transfer = transfer(udp("udp", 2), tcp("tcp"));
+        
+        assertEquals("tcp", transfer.start().get(5, TimeUnit.SECONDS));
+        assertEquals(List.of("UDP", "UDP", "TCP"), attempts);
+        assertEquals(FallbackTransfer.Stage.TCP, transfer.getStage());
+        assertStats(FallbackTransfer.Stage.UDP, 1, 0, 1, 0);
+        assertStats(FallbackTransfer.Stage.UDP_RETRY, 1, 0, 1, 0);
+        assertStats(FallbackTransfer.Stage.TCP, 1, 1, 0, 0);
+    }
+    
+    @Test
+    void theRetrySucceedingSkipsTcp() throws Exception {
+        FallbackTransfer<String> transfer = transfer(udp("udp", 1), tcp("tcp"));
+        
+        assertEquals("udp", transfer.start().get(5, TimeUnit.SECONDS));
+        assertEquals(List.of("UDP", "UDP"), attempts);
+        assertStats(FallbackTransfer.Stage.UDP_RETRY, 1, 1, 0, 0);
+        assertStats(FallbackTransfer.Stage.TCP, 0, 0, 0, 0);
+    }
+    
+    @Test
+    void anAttemptThatNeverFinishesTimesOut() throws Exception {
+        FallbackTransfer.Attempt<String> silent = timeout -> {
+            attempts.add("UDP");
+            return new CompletableFuture<>();
+        };
+        FallbackTransfer<String> transfer = new FallbackTransfer<>("test", silent, tcp("tcp"), 20, TIMEOUT,
+                                                                   counters, DIRECT, DIRECT);
+        
+        assertEquals("tcp", transfer.start().get(5, TimeUnit.SECONDS));
+        assertStats(FallbackTransfer.Stage.UDP, 1, 0, 0, 1);
+        assertStats(FallbackTransfer.Stage.UDP_RETRY, 1, 0, 0, 1);
+    }
+    
+    @Test
+    void failsWithTheLastErrorWhenEveryStageFails() {
+        FallbackTransfer.Attempt<String> tcp = timeout -> {
+            attempts.add("TCP");
+            return CompletableFuture.failedFuture(new IOException("tcp down"));
+        };
+        FallbackTransfer<String> transfer = transfer(udp("udp", 2), tcp);
+        
+        ExecutionException error = assertThrows(ExecutionException.class,
+                                                () -> transfer.start().get(5, TimeUnit.SECONDS));
+        assertInstanceOf(IOException.class, error.getCause());
+        assertEquals("tcp down", error.getCause().getMessage());
+        assertEquals(List.of("UDP", "UDP", "TCP"), attempts);
+    }
+    
+    private FallbackTransfer<String> transfer(FallbackTransfer.Attempt<String> udp, FallbackTransfer.Attempt<String> tcp) {
+        return new FallbackTransfer<>("test", udp, tcp, TIMEOUT, TIMEOUT, counters, DIRECT, DIRECT);
+    }
+    
+    /**
+     * UDP attempt that fails the first {@code failures} times, then succeeds
+     */
+    private FallbackTransfer.Attempt<String> udp(String value, int failures) {
+        int[] calls = new int[1];
+        return timeout -> {
+            attempts.add("UDP");
+            if (calls[0]++ < failures) {
+                return CompletableFuture.failedFuture(new IOException("udp lost"));
+            }
+            return CompletableFuture.completedFuture(value);
+        };
+    }
+    
+    private FallbackTransfer.Attempt<String> tcp(String value) {
+        return timeout -> {
+            attempts.add("TCP");
+            return CompletableFuture.completedFuture(value);
+        };
+    }
+    
+    private void assertStats(FallbackTransfer.Stage stage, long attempts, long successes, long failures, long timeouts) {
+        StageStats stats = counters[stage.ordinal()].snapshot();
+        assertEquals(attempts, stats.getAttempts(), stage + " attempts");
+        assertEquals(successes, stats.getSuccesses(), stage + " successes");
+        assertEquals(failures, stats.getFailures(), stage + " failures");
+        assertEquals(timeouts, stats.getTimeouts(), stage + " timeouts");
+    }
+}
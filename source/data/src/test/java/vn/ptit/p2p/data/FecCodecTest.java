@@ -0,0 +1,98 @@
+package vn.ptit.p2p.data;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FecCodecTest {
+    private static final int BLOCK_SIZE = 64;
+    
+    @Test
+    void recoversEveryErasurePatternUpToTheParityCount() {
+        int[][] shapes = { {1, 1}, {8, 1}, {3, 2}, {8, 3}, {16, 4} }; // {data blocks, parity blocks}
+        for (int[] shape : shapes) {
+            int groupSize = shape[0];
+            int parityCount = shape[1];
+            byte[][] data = randomBlocks(groupSize, groupSize * 31 + parityCount);
+            byte[][] parity = encode(data, parityCount);
+            
+            int blocks = groupSize + parityCount;
+            for (int lost = 0; lost < 1 << blocks; lost++) {
+                if (Integer.bitCount(lost) > parityCount) {
+                    continue;
+                }
+                byte[][] received = erase(data, lost, 0);
+                byte[][] receivedParity = erase(parity, lost, groupSize);
+                assertTrue(FecCodec.recover(received, receivedParity, BLOCK_SIZE),
+                           "group " + groupSize + "+" + parityCount + ", lost " + Integer.toBinaryString(lost));
+                for (int i = 0; i < groupSize; i++) {
+                    assertArrayEquals(data[i], received[i],
+                                      "block " + i + " of group " + groupSize + "+" + parityCount
+                                      + ", lost " + Integer.toBinaryString(lost));
+                }
+            }
+        }
+    }
+    
+    @Test
+    void singleParityBlockIsPlainXor() {
+        byte[][] data = randomBlocks(5, 7);
+        byte[] xor = new byte[BLOCK_SIZE];
+        for (byte[] block : data) {
+            for (int n = 0; n < BLOCK_SIZE; n++) {
+                xor[n] ^= block[n];
+            }
+        }
+        assertArrayEquals(xor, encode(data, 1)[0]);
+    }
+    
+    @Test
+    void givesUpWhenMoreBlocksAreMissingThanParity() {
+        byte[][] data = randomBlocks(8, 11);
+        byte[][] parity = encode(data, 2);
+        byte[][] received = erase(data, 0b111, 0);
+        
+        assertFalse(FecCodec.recover(received, parity, BLOCK_SIZE));
+        for (int i = 0; i < 3; i++) {
+            assertNull(received[i], "data must be left untouched");
+        }
+    }
+    
+    private static byte[][] randomBlocks(int count, long seed) {
+        Random random = new Random(seed);
+        byte[][] blocks = new byte[count][BLOCK_SIZE];
+        for (byte[] block : blocks) {
+            random.nextBytes(block);
+        }
+        return blocks;
+    }
+    
+    /**
+     * Parity blocks the way a sender computes them
+     */
+    private static byte[][] encode(byte[][] data, int parityCount) {
+        byte[][] parity = new byte[parityCount][BLOCK_SIZE];
+        for (int j = 0; j < parityCount; j++) {
+            for (int i = 0; i < data.length; i++) {
+                FecCodec.mulAdd(parity[j], data[i], BLOCK_SIZE, FecCodec.coefficient(j, i));
+            }
+        }
+        return parity;
+    }
+    
+    /**
+     * Copies of the blocks with those whose bit (shifted by offset) is set in lost replaced by null
+     */
+    private static byte[][] erase(byte[][] blocks, int lost, int offset) {
+        byte[][] copy = new byte[blocks.length][];
+        for (int i = 0; i < blocks.length; i++) {
+            copy[i] = (lost & 1 << (offset + i)) != 0 ? null : blocks[i].clone();
+        }
+        return copy;
+    }
+}
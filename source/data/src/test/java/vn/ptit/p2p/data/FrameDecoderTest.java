@@ -0,0 +1,127 @@
+package vn.ptit.p2p.data;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.jupiter.api.Test;
+import vn.ptit.p2p.common.Hashing;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FrameDecoderTest {
+    private static final String FILE = Hashing.hashString("file");
+    private static final byte[] FILE_HASH = Hashing.hexToBytes(FILE);
+    private static final int REQUESTED_PIECE = 3;
+    private static final int PIECE_LENGTH = 8;
+    
+    private final EmbeddedChannel channel = new EmbeddedChannel(new TcpDataServer.FrameDecoder(
+        (fileHash, pieceIndex) -> fileHash.equals(FILE) && pieceIndex == REQUESTED_PIECE ? PIECE_LENGTH : -1));
+    
+    @Test
+    void decodesARequestOnceItHasFullyArrived() {
+        ByteBuf request = preface();
+        header(request, TcpFrame.TYPE_REQUEST, TcpFrame.REQUEST_SIZE);
+        request.writeBytes(FILE_HASH).writeInt(3).writeByte(0);
+        
+        channel.writeInbound(request.readRetainedSlice(request.readableBytes() - 1));
+        assertNull(channel.readInbound(), "the last byte is still missing");
+        channel.writeInbound(request);
+        assertNotNull(channel.readInbound());
+        assertTrue(channel.isOpen());
+    }
+    
+    @Test
+    void closesWithoutAValidPreface() {
+        channel.writeInbound(Unpooled.copiedBuffer("GET / HTTP/1.1\r\n", StandardCharsets.US_ASCII));
+        assertNull(channel.readInbound());
+        assertFalse(channel.isOpen());
+    }
+    
+    @Test
+    void closesOnARequestOfTheWrongLength() {
+        ByteBuf request = preface();
+        header(request, TcpFrame.TYPE_REQUEST, TcpFrame.REQUEST_SIZE + 1);
+        channel.writeInbound(request);
+        assertFalse(channel.isOpen());
+    }
+    
+    @Test
+    void closesOnAnOversizedPieceBeforeItsBodyArrives() {
+        ByteBuf push = preface();
+        header(push, TcpFrame.TYPE_PIECE, TcpFrame.MAX_BODY_SIZE + 1);
+        channel.writeInbound(push);
+        assertFalse(channel.isOpen());
+    }
+    
+    @Test
+    void closesOnFramesClientsDoNotSend() {
+        ByteBuf ack = preface();
+        header(ack, TcpFrame.TYPE_ACK, 0);
+        channel.writeInbound(ack);
+        assertFalse(channel.isOpen());
+    }
+    
+    @Test
+    void closesOnAPieceWhoseDataLengthDisagreesWithTheFrame() {
+        ByteBuf push = preface();
+        header(push, TcpFrame.TYPE_PIECE, TcpFrame.PIECE_PREFIX_SIZE + 4);
+        piecePrefix(push, REQUESTED_PIECE, PIECE_LENGTH, PIECE_LENGTH);
+        channel.writeInbound(push);
+        assertNull(channel.readInbound());
+        assertFalse(channel.isOpen());
+    }
+    
+    @Test
+    void decodesARequestedPiece() {
+        ByteBuf push = preface();
+        header(push, TcpFrame.TYPE_PIECE, TcpFrame.PIECE_PREFIX_SIZE + PIECE_LENGTH);
+        piecePrefix(push, REQUESTED_PIECE, PIECE_LENGTH, PIECE_LENGTH);
+        push.writeBytes(new byte[PIECE_LENGTH]);
+        
+        channel.writeInbound(push.readRetainedSlice(push.readableBytes() - 1));
+        assertNull(channel.readInbound(), "the last byte is still missing");
+        assertTrue(channel.isOpen());
+        channel.writeInbound(push);
+        assertNotNull(channel.readInbound());
+        assertTrue(channel.isOpen());
+    }
+    
+    @Test
+    void closesOnAPieceNotRequestedFromTheClientBeforeItsBodyArrives() {
+        ByteBuf push = preface();
+        header(push, TcpFrame.TYPE_PIECE, TcpFrame.PIECE_PREFIX_SIZE + PIECE_LENGTH);
+        piecePrefix(push, REQUESTED_PIECE + 1, PIECE_LENGTH, PIECE_LENGTH);
+        channel.writeInbound(push);
+        assertNull(channel.readInbound());
+        assertFalse(channel.isOpen());
+    }
+    
+    @Test
+    void closesOnAPieceLongerThanTheManifestSaysBeforeItsBodyArrives() {
+        int length = 1024 * 1024;
+        ByteBuf push = preface();
+        header(push, TcpFrame.TYPE_PIECE, TcpFrame.PIECE_PREFIX_SIZE + length);
+        piecePrefix(push, REQUESTED_PIECE, length, length);
+        channel.writeInbound(push);
+        assertNull(channel.readInbound());
+        assertFalse(channel.isOpen());
+    }
+    
+    private static ByteBuf preface() {
+        return Unpooled.buffer().writeShort(PacketCodec.MAGIC).writeByte(PacketCodec.VERSION);
+    }
+    
+    private static void header(ByteBuf out, byte type, int length) {
+        out.writeByte(type).writeInt(1).writeInt(length);
+    }
+    
+    private static void piecePrefix(ByteBuf out, int pieceIndex, int pieceLength, int dataLength) {
+        out.writeInt(pieceIndex).writeBytes(FILE_HASH).writeBytes(FILE_HASH).writeByte(PieceCompressor.ENCODING_RAW)
+            .writeInt(pieceLength).writeInt(dataLength);
+    }
+}
@@ -0,0 +1,57 @@
+package vn.ptit.p2p.data;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LedbatCongestionControllerTest {
+    private static final int MAX_WINDOW = 1000;
+    private static final long RTT_MICROS = 10_000;
+    private static final int BASE_DELAY = 1_000_000; // clock offset between the hosts, in us
+    
+    @Test
+    void growsWhileQueuingDelayIsBelowTarget() {
+        LedbatCongestionController controller = new LedbatCongestionController(10, MAX_WINDOW);
+        ack(controller, 200, BASE_DELAY + 5_000);
+        assertTrue(controller.getWindow() > 20, "was " + controller.getWindow());
+    }
+    
+    @Test
+    void shrinksWhileQueuingDelayIsAboveTarget() {
+        LedbatCongestionController controller = new LedbatCongestionController(10, MAX_WINDOW);
+        ack(controller, 200, BASE_DELAY);
+        int grown = controller.getWindow();
+        
+        ack(controller, 100, BASE_DELAY + 75_000);
+        assertTrue(controller.getWindow() < grown, grown + " -> " + controller.getWindow());
+        
+        ack(controller, 1000, BASE_DELAY + 75_000);
+        assertEquals(CongestionController.MIN_WINDOW, controller.getWindow());
+    }
+    
+    @Test
+    void holdsStillAtTheTarget() {
+        LedbatCongestionController controller = new LedbatCongestionController(10, MAX_WINDOW);
+        ack(controller, 1, BASE_DELAY);
+        ack(controller, 200, BASE_DELAY + 25_000);
+        assertEquals(10, controller.getWindow());
+    }
+    
+    @Test
+    void lossHalvesTheWindowWhereATimeoutStartsOver() {
+        LedbatCongestionController lossy = new LedbatCongestionController(40, MAX_WINDOW);
+        lossy.onLoss(0);
+        assertEquals(20, lossy.getWindow());
+        
+        LedbatCongestionController timedOut = new LedbatCongestionController(40, MAX_WINDOW);
+        timedOut.onTimeout(0);
+        assertEquals(CongestionController.MIN_WINDOW, timedOut.getWindow());
+    }
+    
+    private static void ack(CongestionController controller, int acks, int delayMicros) {
+        for (int i = 0; i < acks; i++) {
+            controller.onAck(1, RTT_MICROS, delayMicros, 0);
+        }
+    }
+}
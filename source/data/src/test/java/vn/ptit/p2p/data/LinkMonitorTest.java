@@ -0,0 +1,119 @@
+package vn.ptit.p2p.data;
+
+import org.junit.jupiter.api.Test;
+import vn.ptit.p2p.dataapi.DataApi;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LinkMonitorTest {
+    private static final InetSocketAddress PEER = new InetSocketAddress("127.0.0.1", 9);
+    private static final String FILE_HASH = "ab";
+    
+    private final List<Double> alerts = new ArrayList<>();
+    
+    @Test
+    void movesToTcpOnlyAfterEnoughLossySamples() {
+        LinkMonitor monitor = monitor(DataConfig.builder().build());
+        monitor.sampleLoss(PEER, 10, 10, FILE_HASH, 0);
+        monitor.sampleLoss(PEER, 10, 10, FILE_HASH, 1);
+        assertFalse(monitor.isOnTcp(PEER), "two transfers are not enough to judge the link");
+        assertEquals(FallbackTransfer.Route.UDP_FIRST, monitor.route(PEER));
+        
+        monitor.sampleLoss(PEER, 10, 10, FILE_HASH, 2);
+        assertTrue(monitor.isOnTcp(PEER));
+        assertEquals(FallbackTransfer.Route.TCP_ONLY, monitor.route(PEER), "no probe before the interval is up");
+    }
+    
+    @Test
+    void lossBetweenTheThresholdsKeepsThePeerWhereItIs() {
+        LinkMonitor monitor = monitor(DataConfig.builder().build()); // TCP above 30%, UDP below 10%
+        moveToTcp(monitor);
+        
+        for (int i = 0; i < 20; i++) {
+            monitor.sampleLoss(PEER, 10, 2, FILE_HASH, i);
+        }
+        assertTrue(monitor.isOnTcp(PEER), "20% is not good enough to go back to UDP");
+        
+        while (monitor.isOnTcp(PEER)) {
+            monitor.sampleLoss(PEER, 10, 0, FILE_HASH, 0);
+        }
+        assertTrue(monitor.quality(PEER).getLossRate() < 0.1);
+        assertEquals(FallbackTransfer.Route.UDP_FIRST, monitor.route(PEER));
+        
+        for (int i = 0; i < 20; i++) {
+            monitor.sampleLoss(PEER, 10, 2, FILE_HASH, i);
+        }
+        assertFalse(monitor.isOnTcp(PEER), "nor is it bad enough to leave UDP");
+    }
+    
+    @Test
+    void probesUdpOncePerInterval() {
+        LinkMonitor monitor = monitor(DataConfig.builder().udpProbeInterval(0).build());
+        moveToTcp(monitor);
+        assertEquals(FallbackTransfer.Route.UDP_PROBE, monitor.route(PEER));
+        
+        LinkMonitor patient = monitor(DataConfig.builder().udpProbeInterval(60_000).build());
+        moveToTcp(patient);
+        assertEquals(FallbackTransfer.Route.TCP_ONLY, patient.route(PEER));
+        assertEquals(FallbackTransfer.Route.TCP_ONLY, patient.route(PEER));
+    }
+    
+    @Test
+    void alertsOncePerThresholdCrossed() {
+        LinkMonitor monitor = monitor(DataConfig.builder().build());
+        moveToTcp(monitor);
+        assertEquals(List.of(1.0), alerts, "the first transfer crossed both thresholds at once");
+        
+        while (monitor.isOnTcp(PEER)) {
+            monitor.sampleLoss(PEER, 10, 0, FILE_HASH, 0);
+        }
+        monitor.sampleLoss(PEER, 10, 10, FILE_HASH, 0);
+        assertEquals(2, alerts.size(), "rising above the UDP threshold again is worth another alert");
+        assertTrue(alerts.get(1) > 0.1 && alerts.get(1) < 0.3);
+    }
+    
+    @Test
+    void udpTimeoutsCountAsTransfersThatLostEverything() {
+        LinkMonitor monitor = monitor(DataConfig.builder().build());
+        FallbackTransfer.Observer observer = monitor.observer(PEER, FILE_HASH, 0);
+        
+        observer.onAttempt(FallbackTransfer.Stage.UDP, new IOException("unreachable"));
+        observer.onAttempt(FallbackTransfer.Stage.TCP, new TimeoutException());
+        assertFalse(monitor.quality(PEER).hasSample(), "only UDP timeouts say something about the link");
+        
+        observer.onAttempt(FallbackTransfer.Stage.UDP, new TimeoutException());
+        observer.onAttempt(FallbackTransfer.Stage.UDP_RETRY, new TimeoutException());
+        observer.onAttempt(FallbackTransfer.Stage.UDP, new TimeoutException());
+        assertTrue(monitor.isOnTcp(PEER));
+    }
+    
+    private LinkMonitor monitor(DataConfig config) {
+        LinkMonitor monitor = new LinkMonitor(config);
+        monitor.setListener(new DataApi.LinkListener() {
+            @Override
+            public void onLossAlert(String fileHash, int pieceId, double lossRate) {
+                alerts.add(lossRate);
+            }
+            
+            @Override
+            public void onPieceCrcError(String fileHash, int pieceId) {
+            }
+        });
+        return monitor;
+    }
+    
+    private static void moveToTcp(LinkMonitor monitor) {
+        for (int i = 0; i < 3; i++) {
+            monitor.sampleLoss(PEER, 10, 10, FILE_HASH, i);
+        }
+        assertTrue(monitor.isOnTcp(PEER));
+    }
+}
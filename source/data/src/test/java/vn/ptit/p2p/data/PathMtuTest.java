@@ -0,0 +1,125 @@
+package vn.ptit.p2p.data;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PathMtuTest {
+    private static final InetSocketAddress TARGET = new InetSocketAddress("127.0.0.1", 9);
+    private static final long TIMEOUT_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final int GRANULARITY = 64;
+    
+    @Test
+    void startsAtTheBase() {
+        PathMtu path = new PathMtu(TARGET, UdpSegment.MAX_MTU);
+        assertEquals(UdpSegment.DEFAULT_MTU, path.getMtu());
+    }
+    
+    @Test
+    void confirmsTheCeilingWithOneProbe() {
+        PathMtu path = new PathMtu(TARGET, UdpSegment.MAX_MTU);
+        int probes = search(path, UdpSegment.MAX_MTU);
+        assertEquals(UdpSegment.MAX_MTU, path.getMtu());
+        assertEquals(1, probes);
+    }
+    
+    @Test
+    void bisectsDownToThePathMtu() {
+        for (int pathMtu : new int[] {1500, 1501, 2000, 4000, 8936, 8999}) {
+            PathMtu path = new PathMtu(TARGET, UdpSegment.MAX_MTU);
+            search(path, pathMtu);
+            assertTrue(path.getMtu() <= pathMtu, "never above the path MTU " + pathMtu);
+            assertTrue(path.getMtu() > pathMtu - GRANULARITY, path.getMtu() + " too far below " + pathMtu);
+        }
+    }
+    
+    @Test
+    void doesNotSearchWithoutRoomAboveTheBase() {
+        PathMtu path = new PathMtu(TARGET, UdpSegment.DEFAULT_MTU);
+        assertNull(path.nextProbe(System.nanoTime(), TIMEOUT_NANOS));
+        assertEquals(UdpSegment.DEFAULT_MTU, path.getMtu());
+    }
+    
+    @Test
+    void ignoresAcksForOtherProbes() {
+        PathMtu path = new PathMtu(TARGET, UdpSegment.MAX_MTU);
+        ByteBuffer probe = path.nextProbe(System.nanoTime(), TIMEOUT_NANOS);
+        UdpProbe received = new UdpProbe();
+        assertTrue(received.decodeProbe(probe));
+        
+        path.onProbeAck(ack(UdpProbe.encodeProbe(received.getNonce() + 1, received.getSize())));
+        path.onProbeAck(ack(UdpProbe.encodeProbe(received.getNonce(), received.getSize() - 1)));
+        assertEquals(UdpSegment.DEFAULT_MTU, path.getMtu());
+        assertTrue(path.isSearching());
+    }
+    
+    @Test
+    void fallsBackToTheBaseOnABlackHole() {
+        PathMtu path = new PathMtu(TARGET, UdpSegment.MAX_MTU);
+        search(path, UdpSegment.MAX_MTU);
+        
+        path.onTransfer(UdpSegment.MAX_MTU, false, 100, 10);
+        assertEquals(UdpSegment.MAX_MTU, path.getMtu(), "some loss is not a black hole");
+        
+        path.onTransfer(UdpSegment.MAX_MTU, true, 100, 90);
+        assertEquals(UdpSegment.DEFAULT_MTU, path.getMtu());
+        assertTrue(path.isSearching(), "searches again below the failed size");
+        
+        search(path, 4000);
+        assertTrue(path.getMtu() <= 4000 && path.getMtu() > 4000 - GRANULARITY);
+    }
+    
+    @Test
+    void expiresWhenUnused() {
+        PathMtu path = new PathMtu(TARGET, UdpSegment.MAX_MTU);
+        long now = System.nanoTime();
+        path.touch(now);
+        assertFalse(path.isIdle(now + TIMEOUT_NANOS, TIMEOUT_NANOS));
+        assertTrue(path.isIdle(now + TIMEOUT_NANOS + 1, TIMEOUT_NANOS));
+    }
+    
+    /**
+     * Run a search over a simulated path that drops datagrams larger than pathMtu
+     *
+     * @return The number of probes sent
+     */
+    private static int search(PathMtu path, int pathMtu) {
+        long now = System.nanoTime();
+        int overhead = UdpSegment.overhead(TARGET);
+        int probes = 0;
+        for (int step = 0; step < 1000; step++) {
+            ByteBuffer probe = path.nextProbe(now, TIMEOUT_NANOS);
+            if (probe != null) {
+                probes++;
+                if (probe.remaining() + overhead <= pathMtu) {
+                    path.onProbeAck(ack(probe));
+                }
+            }
+            if (!path.isSearching()) {
+                return probes;
+            }
+            now += TIMEOUT_NANOS;
+        }
+        throw new AssertionError("search did not end");
+    }
+    
+    /**
+     * The acknowledgement a receiver sends back for a probe that arrived whole
+     */
+    private static UdpProbe ack(ByteBuffer probe) {
+        UdpProbe received = new UdpProbe();
+        assertTrue(received.decodeProbe(probe.duplicate()));
+        ByteBuffer out = ByteBuffer.allocate(UdpProbe.ACK_SIZE);
+        received.encodeAck(out);
+        UdpProbe ack = new UdpProbe();
+        assertTrue(ack.decodeAck(out));
+        return ack;
+    }
+}
@@ -0,0 +1,105 @@
+package vn.ptit.p2p.data;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import vn.ptit.p2p.common.Models.Piece;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PendingRequestsTest {
+    private static final String FILE_HASH = "ab".repeat(32);
+    private static final int FILE_ID = UdpSegment.fileIdCrc(FILE_HASH);
+    
+    private final PendingRequests<Piece> requests = new PendingRequests<>("piece");
+    
+    @AfterEach
+    void stop() {
+        requests.stop();
+    }
+    
+    @Test
+    void duplicateRequestsShareOneFuture() {
+        CompletableFuture<Piece> first = new CompletableFuture<>();
+        assertNull(requests.register(FILE_HASH, 3, first, 60_000));
+        
+        assertSame(first, requests.register(FILE_HASH, 3, new CompletableFuture<>(), 60_000));
+        assertEquals(1, requests.size());
+    }
+    
+    @Test
+    void doesNotShareTheFutureOfAnotherFileWithTheSameCrc() {
+        String file = "f81d0c1bc3aafb906003c4ae3c300ffd0b44751b22e3d9629b2a79f32e57ef41";
+        String collision = "a0ab88ff77697c223a0cded1620b9a3f93e4a705dad7d7b9bf7bbf969494af84";
+        assertEquals(UdpSegment.fileIdCrc(file), UdpSegment.fileIdCrc(collision));
+        CompletableFuture<Piece> first = new CompletableFuture<>();
+        assertNull(requests.register(file, 3, first, 60_000));
+        
+        CompletableFuture<Piece> second = new CompletableFuture<>();
+        assertSame(second, requests.register(collision, 3, second, 60_000));
+        assertTrue(second.isCompletedExceptionally());
+        assertFalse(first.isDone());
+        assertSame(first, requests.register(file.toUpperCase(), 3, new CompletableFuture<>(), 60_000));
+        assertEquals(1, requests.size());
+    }
+    
+    @Test
+    void failsRequestsRegisteredAfterStop() {
+        requests.stop();
+        CompletableFuture<Piece> future = new CompletableFuture<>();
+        assertNull(requests.register(FILE_HASH, 3, future, 60_000));
+        
+        assertTrue(future.isCompletedExceptionally());
+        assertEquals(0, requests.size());
+    }
+    
+    @Test
+    void removeHandsOutTheRequestOnce() {
+        CompletableFuture<Piece> future = new CompletableFuture<>();
+        requests.register(FILE_HASH, 3, future, 60_000);
+        
+        assertNull(requests.remove(FILE_ID, "cd".repeat(32), 3), "same key, different file");
+        assertSame(future, requests.remove(FILE_ID, FILE_HASH, 3));
+        assertNull(requests.remove(FILE_ID, FILE_HASH, 3));
+        assertEquals(0, requests.size());
+    }
+    
+    @Test
+    void failsTheRequestWhenThePieceNeverArrives() throws Exception {
+        CompletableFuture<Piece> future = new CompletableFuture<>();
+        requests.register(FILE_HASH, 3, future, 50);
+        
+        ExecutionException error = assertThrows(ExecutionException.class, () -> future.get(5, TimeUnit.SECONDS));
+        assertInstanceOf(TimeoutException.class, error.getCause());
+        awaitEmpty();
+    }
+    
+    @Test
+    void dropsTheEntryHoweverTheFutureEnds() {
+        CompletableFuture<Piece> cancelled = new CompletableFuture<>();
+        requests.register(FILE_HASH, 3, cancelled, 60_000);
+        cancelled.cancel(false);
+        assertEquals(0, requests.size());
+        
+        CompletableFuture<Piece> next = new CompletableFuture<>();
+        assertNull(requests.register(FILE_HASH, 3, next, 60_000), "a new request once the old one is gone");
+    }
+    
+    private void awaitEmpty() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (requests.size() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(0, requests.size());
+    }
+}
@@ -0,0 +1,139 @@
+package vn.ptit.p2p.data;
+
+import org.junit.jupiter.api.Test;
+import vn.ptit.p2p.common.Models.PieceBuffer;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PieceCompressorTest {
+    private static final String FILE_HASH = "ab".repeat(32);
+    private static final int PIECE_SIZE = 64 * 1024;
+    
+    private final PieceCompressor compressor = new PieceCompressor(CompressionMode.FAST, PIECE_SIZE);
+    private final int deflate = compressor.acceptedEncodings();
+    
+    @Test
+    void roundTripsCompressibleData() {
+        for (CompressionMode mode : new CompressionMode[] {CompressionMode.FAST, CompressionMode.STRONG}) {
+            PieceCompressor compressor = new PieceCompressor(mode, PIECE_SIZE);
+            byte[] data = text(PIECE_SIZE);
+            PieceBuffer piece = piece(data);
+            
+            PieceBuffer encoded = compressor.encode(piece, deflate);
+            assertTrue(encoded instanceof EncodedPiece, mode.name());
+            assertTrue(encoded.getLength() < data.length * 0.95);
+            assertEquals(1, piece.refCnt(), "the caller keeps its reference");
+            
+            PieceBuffer decoded = compressor.decode(encoded, data.length);
+            assertNotNull(decoded);
+            assertEquals(ByteBuffer.wrap(data), decoded.getData());
+            assertEquals(0, encoded.refCnt(), "the encoded piece is released");
+        }
+    }
+    
+    @Test
+    void sendsIncompressibleAndSmallPiecesRaw() {
+        byte[] random = new byte[PIECE_SIZE];
+        new Random(1).nextBytes(random);
+        PieceBuffer piece = piece(random);
+        assertSame(piece, compressor.encode(piece, deflate));
+        
+        PieceBuffer small = piece(text(1024));
+        assertSame(small, compressor.encode(small, deflate));
+        assertEquals(1, compressor.getStats().getPiecesSentRaw());
+    }
+    
+    @Test
+    void leavesPiecesRawUnlessBothSidesAgree() {
+        PieceBuffer piece = piece(text(PIECE_SIZE));
+        assertSame(piece, compressor.encode(piece, 0));
+        
+        PieceCompressor off = new PieceCompressor(CompressionMode.NONE, PIECE_SIZE);
+        assertEquals(0, off.acceptedEncodings());
+        assertFalse(off.isEnabled(deflate));
+        assertSame(piece, off.encode(piece, deflate));
+    }
+    
+    @Test
+    void passesRawPiecesThroughDecode() {
+        PieceBuffer piece = piece(text(PIECE_SIZE));
+        assertSame(piece, compressor.decode(piece, PIECE_SIZE));
+    }
+    
+    @Test
+    void rejectsTruncatedData() {
+        byte[] data = text(PIECE_SIZE);
+        EncodedPiece encoded = (EncodedPiece) compressor.encode(piece(data), deflate);
+        ByteBuffer compressed = encoded.getData();
+        compressed.limit(compressed.position() + compressed.remaining() / 2);
+        EncodedPiece truncated = new EncodedPiece(FILE_HASH, 0, compressed.slice(), null,
+                                                  PieceCompressor.ENCODING_DEFLATE, data.length);
+        
+        assertNull(compressor.decode(truncated, data.length));
+        assertEquals(0, truncated.refCnt());
+    }
+    
+    @Test
+    void rejectsDataThatInflatesPastThePiece() {
+        byte[] data = text(PIECE_SIZE);
+        EncodedPiece encoded = (EncodedPiece) compressor.encode(piece(data), deflate);
+        EncodedPiece overlong = new EncodedPiece(FILE_HASH, 0, encoded.getData(), null,
+                                                 PieceCompressor.ENCODING_DEFLATE, data.length - 1);
+        
+        assertNull(compressor.decode(overlong, -1));
+    }
+    
+    @Test
+    void rejectsClaimedLengthsBeforeInflating() {
+        ByteBuffer compressed = deflate(text(1024));
+        
+        EncodedPiece oversized = new EncodedPiece(FILE_HASH, 0, compressed.duplicate(), null,
+                                                  PieceCompressor.ENCODING_DEFLATE, 64 * 1024 * 1024);
+        assertNull(compressor.decode(oversized, -1), "larger than the configured piece size");
+        assertEquals(0, oversized.refCnt());
+        
+        EncodedPiece mismatched = new EncodedPiece(FILE_HASH, 0, compressed.duplicate(), null,
+                                                   PieceCompressor.ENCODING_DEFLATE, 1024);
+        assertNull(compressor.decode(mismatched, 2048), "differs from the manifest");
+        
+        EncodedPiece unknown = new EncodedPiece(FILE_HASH, 0, compressed.duplicate(), null, (byte) 7, 1024);
+        assertNull(compressor.decode(unknown, 1024), "unknown encoding");
+        
+        EncodedPiece valid = new EncodedPiece(FILE_HASH, 0, compressed.duplicate(), null,
+                                              PieceCompressor.ENCODING_DEFLATE, 1024);
+        assertNotNull(compressor.decode(valid, 1024));
+    }
+    
+    private static PieceBuffer piece(byte[] data) {
+        return new PieceBuffer(FILE_HASH, 0, ByteBuffer.wrap(data), null);
+    }
+    
+    private static byte[] text(int length) {
+        byte[] line = "piece compressor test line, repeated to be compressible\n".getBytes(StandardCharsets.US_ASCII);
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = line[i % line.length];
+        }
+        return data;
+    }
+    
+    private static ByteBuffer deflate(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        deflater.setInput(data);
+        deflater.finish();
+        byte[] out = new byte[data.length + 64];
+        int length = deflater.deflate(out);
+        deflater.end();
+        return ByteBuffer.wrap(out, 0, length).slice();
+    }
+}
@@ -0,0 +1,58 @@
+package vn.ptit.p2p.data;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PieceReassemblerTest {
+    private static final InetSocketAddress PEER = new InetSocketAddress("10.0.0.1", 40000);
+    private static final InetSocketAddress OTHER = new InetSocketAddress("10.0.0.2", 40000);
+    private static final int FILE_ID = 0x1234;
+    private static final int PIECE = 7;
+    private static final int SEGMENT_SIZE = 100;
+    
+    private final Set<Long> requested = new HashSet<>();
+    private final PieceReassembler reassembler = new PieceReassembler(
+        (fileIdCrc, pieceId, segments, repaired) -> { },
+        (source, key) -> source.equals(PEER.getAddress()) && requested.contains(key));
+    
+    @Test
+    void acceptsOnlyPiecesAskedForFromTheSourceHost() {
+        requested.add(PendingRequests.key(FILE_ID, PIECE));
+        
+        assertTrue(reassembler.accepts(PEER, FILE_ID, PIECE));
+        assertTrue(reassembler.accepts(new InetSocketAddress(PEER.getAddress(), 40001), FILE_ID, PIECE),
+                   "the peer sends from a port of its own");
+        assertFalse(reassembler.accepts(OTHER, FILE_ID, PIECE));
+        assertFalse(reassembler.accepts(PEER, FILE_ID, PIECE + 1));
+    }
+    
+    @Test
+    void keepsAcceptingATransferItHasStartedFromThatSourceOnly() {
+        requested.add(PendingRequests.key(FILE_ID, PIECE));
+        UdpSegment segment = new UdpSegment();
+        assertTrue(segment.decode(encode(0, 2)));
+        assertNull(reassembler.addSegment(PEER, segment, new UdpAck()));
+        assertEquals(1, reassembler.getPendingCount());
+        
+        requested.clear();
+        assertTrue(reassembler.accepts(PEER, FILE_ID, PIECE), "its retransmissions are still acknowledged");
+        assertFalse(reassembler.accepts(OTHER, FILE_ID, PIECE));
+    }
+    
+    private static ByteBuffer encode(int seq, int total) {
+        ByteBuffer out = ByteBuffer.allocate(UdpSegment.HEADER_SIZE + SEGMENT_SIZE);
+        UdpSegment.beginEncode(out, FILE_ID, PIECE, seq, total, SEGMENT_SIZE);
+        out.put(new byte[SEGMENT_SIZE]);
+        UdpSegment.finishEncode(out);
+        return out;
+    }
+}
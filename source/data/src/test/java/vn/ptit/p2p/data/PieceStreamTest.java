@@ -0,0 +1,158 @@
+package vn.ptit.p2p.data;
+
+import org.junit.jupiter.api.Test;
+import vn.ptit.p2p.common.Models.Piece;
+import vn.ptit.p2p.common.Models.PieceBuffer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PieceStreamTest {
+    private static final String FILE_HASH = "ab";
+    
+    private final List<Integer> fetched = new ArrayList<>();
+    private final Map<Integer, CompletableFuture<PieceBuffer>> futures = new HashMap<>();
+    
+    @Test
+    void fetchesOnlyWhatTheSubscriberAskedFor() {
+        Recorder subscriber = subscribe(stream(10, 16));
+        assertEquals(List.of(), fetched);
+        
+        subscriber.subscription.request(2);
+        assertEquals(List.of(0, 1), fetched);
+        
+        arrive(0);
+        assertEquals(List.of(0), subscriber.received);
+        assertEquals(List.of(0, 1), fetched, "the piece published used up its demand");
+        
+        subscriber.subscription.request(1);
+        assertEquals(List.of(0, 1, 2), fetched);
+    }
+    
+    @Test
+    void capsPiecesInFlightWhateverTheDemand() {
+        Recorder subscriber = subscribe(stream(10, 3));
+        subscriber.subscription.request(Long.MAX_VALUE);
+        assertEquals(List.of(0, 1, 2), fetched);
+        
+        arrive(1);
+        assertEquals(List.of(1), subscriber.received);
+        assertEquals(List.of(0, 1, 2, 3), fetched);
+    }
+    
+    @Test
+    void piecesWaitingForDemandCountAgainstTheCap() {
+        Recorder subscriber = subscribe(stream(10, 2));
+        subscriber.subscription.request(2);
+        arrive(0);
+        arrive(1);
+        assertEquals(List.of(0, 1), subscriber.received);
+        
+        subscriber.subscription.request(5);
+        assertEquals(List.of(0, 1, 2, 3), fetched);
+        arrive(2);
+        arrive(3);
+        assertEquals(List.of(0, 1, 2, 3, 4, 5), fetched);
+    }
+    
+    @Test
+    void completesOnceEveryPieceIsPublished() {
+        Recorder subscriber = subscribe(stream(2, 16));
+        subscriber.subscription.request(5);
+        arrive(1);
+        assertFalse(subscriber.completed);
+        arrive(0);
+        
+        assertEquals(List.of(1, 0), subscriber.received);
+        assertTrue(subscriber.completed);
+        assertNull(subscriber.error);
+    }
+    
+    @Test
+    void theFirstFailureCancelsTheRestAndEndsTheStream() {
+        Recorder subscriber = subscribe(stream(4, 16));
+        subscriber.subscription.request(4);
+        arrive(0);
+        futures.get(1).completeExceptionally(new IOException("gone"));
+        
+        assertEquals(List.of(0), subscriber.received);
+        assertInstanceOf(IOException.class, subscriber.error);
+        assertTrue(futures.get(2).isCancelled());
+        assertTrue(futures.get(3).isCancelled());
+        assertFalse(subscriber.completed);
+    }
+    
+    @Test
+    void acceptsOnlyOneSubscriber() {
+        PieceStream stream = stream(1, 16);
+        subscribe(stream);
+        Recorder second = subscribe(stream);
+        assertInstanceOf(IllegalStateException.class, second.error);
+    }
+    
+    private PieceStream stream(int pieces, int maxInFlight) {
+        int[] indices = new int[pieces];
+        for (int i = 0; i < pieces; i++) {
+            indices[i] = i;
+        }
+        return new PieceStream(FILE_HASH, indices, maxInFlight, batch -> {
+            List<CompletableFuture<PieceBuffer>> issued = new ArrayList<>();
+            for (int index : batch) {
+                CompletableFuture<PieceBuffer> future = new CompletableFuture<>();
+                fetched.add(index);
+                futures.put(index, future);
+                issued.add(future);
+            }
+            return issued;
+        }, Runnable::run);
+    }
+    
+    private void arrive(int index) {
+        futures.get(index).complete(new PieceBuffer(FILE_HASH, index, ByteBuffer.wrap(new byte[] {(byte) index}), "00"));
+    }
+    
+    private static Recorder subscribe(PieceStream stream) {
+        Recorder subscriber = new Recorder();
+        stream.subscribe(subscriber);
+        return subscriber;
+    }
+    
+    private static class Recorder implements Flow.Subscriber<Piece> {
+        private final List<Integer> received = new ArrayList<>();
+        private Flow.Subscription subscription;
+        private Throwable error;
+        private boolean completed;
+        
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+        }
+        
+        @Override
+        public void onNext(Piece piece) {
+            received.add(piece.getIndex());
+        }
+        
+        @Override
+        public void onError(Throwable throwable) {
+            error = throwable;
+        }
+        
+        @Override
+        public void onComplete() {
+            completed = true;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package vn.ptit.p2p.data;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TcpConnectionPoolTest {
+    private static final int CONNECTIONS_PER_PEER = 2;
+    private static final int CALLERS = 16;
+    
+    private final AtomicInteger accepted = new AtomicInteger();
+    private final List<Socket> sockets = new ArrayList<>();
+    private final TcpConnectionPool pool = new TcpConnectionPool(CONNECTIONS_PER_PEER, 5000, 60_000,
+                                                                  new RateLimiter(0, 0));
+    private ServerSocket server;
+    
+    @AfterEach
+    void close() throws IOException {
+        pool.close();
+        if (server != null) {
+            server.close();
+        }
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+    }
+    
+    @Test
+    void concurrentCallersOpenAtMostOneSocketPerSlot() throws Exception {
+        InetSocketAddress address = listen();
+        ExecutorService callers = Executors.newFixedThreadPool(CALLERS);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<TcpConnection>> results = new ArrayList<>();
+        for (int i = 0; i < CALLERS; i++) {
+            results.add(callers.submit(() -> {
+                start.await();
+                return pool.get(address);
+            }));
+        }
+        start.countDown();
+        
+        Set<TcpConnection> handedOut = ConcurrentHashMap.newKeySet();
+        for (Future<TcpConnection> result : results) {
+            handedOut.add(result.get(10, TimeUnit.SECONDS));
+        }
+        callers.shutdown();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(500);
+        while (accepted.get() < CALLERS && System.nanoTime() < deadline) {
+            Thread.sleep(10); // give the acceptor time to see any extra sockets
+        }
+        
+        assertTrue(handedOut.size() <= CONNECTIONS_PER_PEER, "handed out " + handedOut.size());
+        assertTrue(accepted.get() <= CONNECTIONS_PER_PEER, "accepted " + accepted.get());
+        assertEquals(handedOut.size(), pool.getConnectionCount());
+    }
+    
+    @Test
+    void aFailedConnectLeavesTheSlotFree() throws Exception {
+        InetSocketAddress address = listen();
+        server.close();
+        assertThrows(IOException.class, () -> pool.get(address));
+        assertEquals(0, pool.getConnectionCount());
+        
+        server = new ServerSocket(address.getPort(), 50, address.getAddress());
+        accept();
+        assertTrue(pool.get(address) != null);
+        assertEquals(1, pool.getConnectionCount());
+    }
+    
+    private InetSocketAddress listen() throws IOException {
+        server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        accept();
+        return new InetSocketAddress(server.getInetAddress(), server.getLocalPort());
+    }
+    
+    private void accept() {
+        ServerSocket listening = server;
+        Thread acceptor = new Thread(() -> {
+            try {
+                while (true) {
+                    Socket socket = listening.accept();
+                    synchronized (sockets) {
+                        sockets.add(socket);
+                    }
+                    accepted.incrementAndGet();
+                }
+            } catch (IOException e) {
+                // closed
+            }
+        }, "test-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+}
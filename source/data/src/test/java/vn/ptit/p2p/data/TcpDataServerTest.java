@@ -0,0 +1,101 @@
+package vn.ptit.p2p.data;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import vn.ptit.p2p.common.Hashing;
+import vn.ptit.p2p.common.Models.Piece;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TcpDataServerTest {
+    private static final String FILE_HASH = Hashing.hashString("file");
+    private static final int PIECE_LENGTH = 256 * 1024;
+    private static final int REQUESTS = 300;
+    
+    private final DataService dataService = new DataService();
+    private final TcpDataServer server = new TcpDataServer(dataService, 1);
+    private final AtomicInteger lookups = new AtomicInteger();
+    private final Socket client = new Socket();
+    
+    @AfterEach
+    void stop() throws IOException {
+        client.close();
+        server.stop();
+        dataService.stopListening();
+    }
+    
+    @Test
+    void stopsReadingRequestsFromAClientThatDoesNotReadItsResponses() throws Exception {
+        byte[] data = new byte[PIECE_LENGTH];
+        String pieceHash = Hashing.hashBytes(data);
+        dataService.registerPieceRequestHandler((peer, fileHash, pieceIndex) -> {
+            lookups.incrementAndGet();
+            return new Piece(fileHash, pieceIndex, data, pieceHash);
+        });
+        connect();
+        
+        DataOutputStream out = new DataOutputStream(client.getOutputStream());
+        TcpFrame.writePreface(out);
+        for (int i = 0; i < REQUESTS; i++) {
+            TcpFrame.writeRequest(out, i, FILE_HASH, i, 0);
+        }
+        out.flush();
+        
+        int looked = awaitSteady();
+        assertTrue(looked < REQUESTS / 3, "looked up " + looked + " pieces for a client that reads nothing");
+        
+        DataInputStream in = new DataInputStream(new BufferedInputStream(client.getInputStream()));
+        RateLimiter limiter = new RateLimiter(0, 0);
+        TcpFrame frame = new TcpFrame();
+        Set<Integer> answered = new HashSet<>();
+        for (int i = 0; i < REQUESTS; i++) {
+            frame.read(in, limiter, InetAddress.getLoopbackAddress(), id -> null);
+            assertEquals(TcpFrame.TYPE_PIECE, frame.getType());
+            answered.add(frame.getRequestId()); // lookups on the send pool may finish out of order
+            frame.getPiece().release();
+        }
+        assertEquals(REQUESTS, answered.size());
+        assertEquals(REQUESTS, lookups.get(), "reading resumes once the client catches up");
+    }
+    
+    private void connect() throws IOException {
+        int port;
+        try (ServerSocket probe = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            port = probe.getLocalPort();
+        }
+        server.start(port);
+        client.setReceiveBufferSize(64 * 1024);
+        client.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 5000);
+    }
+    
+    /**
+     * Lookups once they have stopped growing for a while
+     */
+    private int awaitSteady() throws InterruptedException {
+        int last = -1;
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (System.nanoTime() < deadline) {
+            Thread.sleep(300);
+            int now = lookups.get();
+            if (now == last && now > 0) {
+                return now;
+            }
+            last = now;
+        }
+        return lookups.get();
+    }
+}
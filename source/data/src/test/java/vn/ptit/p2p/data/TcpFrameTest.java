@@ -0,0 +1,136 @@
+package vn.ptit.p2p.data;
+
+import org.junit.jupiter.api.Test;
+import vn.ptit.p2p.common.Hashing;
+import vn.ptit.p2p.common.Models.PieceBuffer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class TcpFrameTest {
+    private static final String FILE_HASH = Hashing.hashString("file");
+    private static final InetAddress PEER = InetAddress.getLoopbackAddress();
+    
+    private final RateLimiter limiter = new RateLimiter(0, 0);
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    private final DataOutputStream out = new DataOutputStream(bytes);
+    
+    @Test
+    void prefaceIsMagicAndVersion() throws IOException {
+        TcpFrame.writePreface(out);
+        DataInputStream in = input();
+        assertEquals(PacketCodec.MAGIC, in.readShort());
+        assertEquals(PacketCodec.VERSION, in.readByte());
+        assertEquals(-1, in.read());
+    }
+    
+    @Test
+    void roundTripsARequest() throws Exception {
+        TcpFrame.writeRequest(out, 11, FILE_HASH, 5, 0b10);
+        
+        TcpFrame frame = read();
+        assertEquals(TcpFrame.TYPE_REQUEST, frame.getType());
+        assertEquals(11, frame.getRequestId());
+        assertEquals(FILE_HASH, frame.getFileHash());
+        assertEquals(5, frame.getPieceIndex());
+        assertEquals(0b10, frame.getAcceptedEncodings());
+        assertNull(frame.getPiece());
+    }
+    
+    @Test
+    void roundTripsAPieceLargerThanOneChunk() throws Exception {
+        byte[] data = data(40 * 1024 + 3);
+        PieceBuffer piece = new PieceBuffer(FILE_HASH, 2, ByteBuffer.wrap(data), Hashing.hashBytes(data));
+        TcpFrame.throttle(limiter.path(PEER, FILE_HASH), piece.getLength());
+        TcpFrame.writePiece(out, 12, piece);
+        
+        TcpFrame frame = read();
+        assertEquals(TcpFrame.TYPE_PIECE, frame.getType());
+        assertEquals(12, frame.getRequestId());
+        assertEquals(FILE_HASH, frame.getPiece().getFileHash());
+        assertEquals(2, frame.getPiece().getIndex());
+        assertEquals(piece.getHash(), frame.getPiece().getHash());
+        assertEquals(ByteBuffer.wrap(data), frame.getPiece().getData());
+    }
+    
+    @Test
+    void writesDirectPiecesThroughTheChunkCopy() throws Exception {
+        byte[] data = data(20 * 1024);
+        ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+        direct.put(data).flip();
+        TcpFrame.writePiece(out, 15, new PieceBuffer(FILE_HASH, 4, direct, Hashing.hashBytes(data)));
+        
+        assertEquals(ByteBuffer.wrap(data), read().getPiece().getData());
+    }
+    
+    @Test
+    void roundTripsErrorsAndAcks() throws Exception {
+        write(TcpFrame.encodeError(13, "Piece not available"));
+        write(TcpFrame.encodeAck(14));
+        DataInputStream in = input();
+        
+        TcpFrame frame = new TcpFrame();
+        frame.read(in, limiter, PEER, id -> null);
+        assertEquals(TcpFrame.TYPE_ERROR, frame.getType());
+        assertEquals(13, frame.getRequestId());
+        assertEquals("Piece not available", frame.getMessage());
+        
+        frame.read(in, limiter, PEER, id -> null);
+        assertEquals(TcpFrame.TYPE_ACK, frame.getType());
+        assertEquals(14, frame.getRequestId());
+        assertNull(frame.getMessage());
+    }
+    
+    @Test
+    void rejectsMalformedFrames() throws IOException {
+        writeHeader(TcpFrame.TYPE_REQUEST, TcpFrame.REQUEST_SIZE + 1);
+        assertThrows(IOException.class, this::read);
+        
+        bytes.reset();
+        writeHeader(TcpFrame.TYPE_PIECE, TcpFrame.MAX_BODY_SIZE + 1);
+        assertThrows(IOException.class, this::read);
+        
+        bytes.reset();
+        writeHeader((byte) 99, 0);
+        assertThrows(IOException.class, this::read);
+    }
+    
+    private static byte[] data(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 31);
+        }
+        return data;
+    }
+    
+    private TcpFrame read() throws IOException, InterruptedException {
+        TcpFrame frame = new TcpFrame();
+        frame.read(input(), limiter, PEER, id -> null);
+        return frame;
+    }
+    
+    private DataInputStream input() throws IOException {
+        out.flush();
+        return new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+    }
+    
+    private void write(ByteBuffer frame) throws IOException {
+        out.write(frame.array(), frame.position(), frame.remaining());
+    }
+    
+    private void writeHeader(byte type, int length) throws IOException {
+        out.writeByte(type);
+        out.writeInt(1);
+        out.writeInt(length);
+        out.write(new byte[TcpFrame.REQUEST_SIZE + 1]);
+    }
+}
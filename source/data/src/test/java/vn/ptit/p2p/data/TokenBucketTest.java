@@ -0,0 +1,95 @@
+package vn.ptit.p2p.data;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TokenBucketTest {
+    private static final long RATE = 1_000_000;  // 1 ms per 1000 bytes
+    private static final int BURST = 64 * 1024;  // the minimum burst, above 50 ms worth at this rate
+    
+    @Test
+    void grantsABurstThenPaces() {
+        TokenBucket bucket = new TokenBucket(RATE);
+        long now = System.nanoTime();
+        
+        assertEquals(0, bucket.tryAcquire(BURST, now));
+        long wait = bucket.tryAcquire(1000, now);
+        assertTrue(wait > 0);
+        assertEquals(wait, bucket.tryAcquire(1000, now), "a refused request takes nothing");
+        assertEquals(0, bucket.tryAcquire(1000, now + wait));
+    }
+    
+    @Test
+    void refillsAtTheRate() {
+        TokenBucket bucket = new TokenBucket(RATE);
+        long now = System.nanoTime();
+        assertEquals(0, bucket.tryAcquire(BURST, now));
+        
+        long later = now + TimeUnit.MILLISECONDS.toNanos(10);
+        assertEquals(0, bucket.tryAcquire(10_000, later));
+        assertTrue(bucket.tryAcquire(1000, later) > 0);
+    }
+    
+    @Test
+    void letsAnOversizedRequestThroughOnceFull() {
+        TokenBucket bucket = new TokenBucket(RATE);
+        long now = System.nanoTime();
+        assertEquals(0, bucket.tryAcquire(4 * BURST, now));
+        assertTrue(bucket.tryAcquire(1, now) > 0);
+    }
+    
+    @Test
+    void consumeGoesIntoDebt() {
+        TokenBucket bucket = new TokenBucket(RATE);
+        long now = System.nanoTime();
+        
+        assertEquals(0, bucket.consume(BURST, now));
+        long wait = bucket.consume(100_000, now);
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(100), wait, TimeUnit.MICROSECONDS.toNanos(10));
+        assertTrue(bucket.tryAcquire(1, now + wait / 2) > 0);
+    }
+    
+    @Test
+    void refundGivesTokensBack() {
+        TokenBucket bucket = new TokenBucket(RATE);
+        long now = System.nanoTime();
+        assertEquals(0, bucket.tryAcquire(BURST, now));
+        assertTrue(bucket.tryAcquire(10_000, now) > 0);
+        
+        bucket.refund(10_000);
+        assertEquals(0, bucket.tryAcquire(10_000, now));
+    }
+    
+    @Test
+    void zeroRateIsUnlimited() {
+        TokenBucket bucket = new TokenBucket(0);
+        long now = System.nanoTime();
+        assertTrue(bucket.isUnlimited());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(0, bucket.tryAcquire(Integer.MAX_VALUE, now));
+            assertEquals(0, bucket.consume(Integer.MAX_VALUE, now));
+        }
+        
+        bucket.setRate(RATE);
+        assertFalse(bucket.isUnlimited());
+        assertEquals(RATE, bucket.getRate());
+        assertEquals(0, bucket.tryAcquire(BURST, now));
+        assertTrue(bucket.tryAcquire(BURST, now) > 0);
+    }
+    
+    @Test
+    void becomesIdleOnceFullForLongEnough() {
+        TokenBucket bucket = new TokenBucket(RATE);
+        long now = System.nanoTime();
+        long idle = TimeUnit.SECONDS.toNanos(60);
+        assertEquals(0, bucket.tryAcquire(BURST, now));
+        
+        assertFalse(bucket.isIdle(now + idle, idle), "still refilling");
+        assertTrue(bucket.isIdle(now + TimeUnit.MILLISECONDS.toNanos(BURST / 1000 + 1) + idle, idle));
+    }
+}
@@ -0,0 +1,66 @@
+package vn.ptit.p2p.data;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class UdpNackTest {
+    
+    @Test
+    void roundTripsRanges() {
+        List<int[]> ranges = List.of(new int[] {0, 3, 2}, new int[] {5, 0, 40});
+        ByteBuffer datagram = UdpNack.encode(0xCAFEBABE, ranges);
+        
+        UdpNack nack = new UdpNack();
+        assertTrue(nack.decode(datagram));
+        assertEquals(0xCAFEBABE, nack.getFileIdCrc());
+        assertEquals(2, nack.getRanges().size());
+        for (int i = 0; i < ranges.size(); i++) {
+            assertArrayEquals(ranges.get(i), nack.getRanges().get(i));
+        }
+    }
+    
+    @Test
+    void fitsTheMostRangesInOneDatagram() {
+        List<int[]> ranges = new ArrayList<>(Collections.nCopies(UdpNack.MAX_RANGES, new int[] {1, 2, 3}));
+        ByteBuffer datagram = UdpNack.encode(1, ranges);
+        assertTrue(datagram.remaining() <= UdpSegment.DEFAULT_MTU - UdpSegment.IP_UDP_OVERHEAD);
+        assertTrue(new UdpNack().decode(datagram));
+        
+        ranges.add(new int[] {1, 2, 3});
+        assertThrows(IllegalArgumentException.class, () -> UdpNack.encode(1, ranges));
+        assertThrows(IllegalArgumentException.class, () -> UdpNack.encode(1, List.of()));
+    }
+    
+    @Test
+    void rejectsMalformedDatagrams() {
+        UdpNack nack = new UdpNack();
+        ByteBuffer datagram = UdpNack.encode(1, List.of(new int[] {1, 2, 3}, new int[] {4, 5, 6}));
+        
+        ByteBuffer truncated = datagram.duplicate();
+        truncated.limit(truncated.limit() - 1);
+        assertFalse(nack.decode(truncated));
+        
+        ByteBuffer noRanges = datagram.duplicate();
+        noRanges.putShort(PacketCodec.HEADER_SIZE + 4, (short) 0);
+        assertFalse(nack.decode(noRanges));
+        
+        ByteBuffer emptyRange = UdpNack.encode(1, List.of(new int[] {1, 2, 0}));
+        assertFalse(nack.decode(emptyRange));
+        
+        ByteBuffer negative = UdpNack.encode(1, List.of(new int[] {-1, 2, 3}));
+        assertFalse(nack.decode(negative));
+        
+        ByteBuffer other = UdpRequest.encode("ab".repeat(32), new int[] {1}, 0).get(0);
+        assertFalse(nack.decode(other));
+    }
+}
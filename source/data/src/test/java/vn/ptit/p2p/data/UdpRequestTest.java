@@ -0,0 +1,84 @@
+package vn.ptit.p2p.data;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class UdpRequestTest {
+    private static final String FILE_HASH = "0123456789abcdef".repeat(4);
+    
+    @Test
+    void collapsesConsecutivePiecesIntoRanges() {
+        List<ByteBuffer> datagrams = UdpRequest.encode(FILE_HASH.toUpperCase(), new int[] {5, 3, 4, 10, 4}, 0b10);
+        assertEquals(1, datagrams.size());
+        
+        UdpRequest request = new UdpRequest();
+        assertTrue(request.decode(datagrams.get(0)));
+        assertEquals(FILE_HASH, request.getFileHash());
+        assertEquals(0b10, request.getAcceptedEncodings());
+        assertEquals(2, request.getRanges().size());
+        assertArrayEquals(new int[] {3, 3}, request.getRanges().get(0));
+        assertArrayEquals(new int[] {10, 1}, request.getRanges().get(1));
+        assertEquals(4, request.getPieceCount());
+    }
+    
+    @Test
+    void splitsLargeRequestsIntoDatagramsOfBoundedSize() {
+        int[] pieces = new int[3 * UdpRequest.MAX_PIECES + 10];
+        for (int i = 0; i < pieces.length; i++) {
+            pieces[i] = i % 2 == 0 ? i : 10_000 + i; // two interleaved runs
+        }
+        
+        UdpRequest request = new UdpRequest();
+        int total = 0;
+        for (ByteBuffer datagram : UdpRequest.encode(FILE_HASH, pieces, 0)) {
+            assertTrue(datagram.remaining() <= UdpSegment.DEFAULT_MTU - UdpSegment.IP_UDP_OVERHEAD);
+            assertTrue(request.decode(datagram));
+            assertTrue(request.getPieceCount() <= UdpRequest.MAX_PIECES);
+            total += request.getPieceCount();
+        }
+        assertEquals(pieces.length, total);
+    }
+    
+    @Test
+    void rejectsRequestsForTooManyPieces() {
+        ByteBuffer datagram = UdpRequest.encode(FILE_HASH, new int[] {0}, 0).get(0);
+        UdpRequest request = new UdpRequest();
+        
+        ByteBuffer flood = datagram.duplicate();
+        flood.putInt(UdpRequest.FIXED_SIZE + 4, UdpRequest.MAX_PIECES + 1);
+        assertFalse(request.decode(flood));
+        
+        ByteBuffer empty = datagram.duplicate();
+        empty.putInt(UdpRequest.FIXED_SIZE + 4, 0);
+        assertFalse(request.decode(empty));
+    }
+    
+    @Test
+    void rejectsMalformedDatagrams() {
+        ByteBuffer datagram = UdpRequest.encode(FILE_HASH, new int[] {1, 2}, 0).get(0);
+        UdpRequest request = new UdpRequest();
+        
+        ByteBuffer truncated = datagram.duplicate();
+        truncated.limit(truncated.limit() - 1);
+        assertFalse(request.decode(truncated));
+        
+        ByteBuffer negative = datagram.duplicate();
+        negative.putInt(UdpRequest.FIXED_SIZE, -1);
+        assertFalse(request.decode(negative));
+        
+        ByteBuffer segment = ByteBuffer.allocate(UdpSegment.HEADER_SIZE + 1);
+        UdpSegment.beginEncode(segment, 1, 1, 0, 1, 1);
+        segment.put((byte) 0);
+        UdpSegment.finishEncode(segment);
+        assertFalse(request.decode(segment), "not a request");
+        assertThrows(IllegalArgumentException.class, () -> UdpRequest.encode("abcd", new int[] {1}, 0));
+    }
+}
@@ -0,0 +1,115 @@
+package vn.ptit.p2p.data;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class UdpSegmentTest {
+    private static final int SEGMENT_SIZE = 100;
+    
+    @Test
+    void roundTripsHeaderAndPayload() {
+        ByteBuffer datagram = encode(0x12345678, 7, 2, 3, SEGMENT_SIZE, payload(40));
+        
+        UdpSegment segment = new UdpSegment();
+        assertTrue(segment.decode(datagram));
+        assertEquals(0x12345678, segment.getFileIdCrc());
+        assertEquals(7, segment.getPieceId());
+        assertEquals(2, segment.getSeq());
+        assertEquals(3, segment.getTotal());
+        assertEquals(SEGMENT_SIZE, segment.getSegmentSize());
+        assertEquals(ByteBuffer.wrap(payload(40)), segment.getPayload());
+        assertEquals(0, datagram.position(), "the datagram is not consumed");
+    }
+    
+    @Test
+    void checksumCoversHeaderAndPayload() {
+        ByteBuffer datagram = encode(1, 7, 0, 2, SEGMENT_SIZE, payload(SEGMENT_SIZE));
+        UdpSegment segment = new UdpSegment();
+        for (int offset = PacketCodec.HEADER_SIZE; offset < datagram.limit(); offset++) {
+            ByteBuffer corrupted = copy(datagram);
+            corrupted.put(offset, (byte) (corrupted.get(offset) ^ 0x01));
+            assertFalse(segment.decode(corrupted), "bit flipped at " + offset);
+        }
+    }
+    
+    @Test
+    void rejectsSegmentsOfTheWrongLength() {
+        UdpSegment segment = new UdpSegment();
+        assertFalse(segment.decode(encode(1, 7, 0, 2, SEGMENT_SIZE, payload(SEGMENT_SIZE - 1))),
+                    "only the last segment may be short");
+        assertFalse(segment.decode(encode(1, 7, 1, 2, SEGMENT_SIZE, payload(SEGMENT_SIZE + 1))),
+                    "no segment may be longer than the segment size");
+        assertFalse(segment.decode(encode(1, 7, 1, 2, SEGMENT_SIZE, payload(0))));
+        assertTrue(segment.decode(encode(1, 7, 1, 2, SEGMENT_SIZE, payload(1))));
+    }
+    
+    @Test
+    void rejectsInvalidSequenceNumbersAndTruncatedDatagrams() {
+        UdpSegment segment = new UdpSegment();
+        assertFalse(segment.decode(encode(1, 7, 2, 2, SEGMENT_SIZE, payload(10))));
+        assertFalse(segment.decode(encode(1, 7, -1, 2, SEGMENT_SIZE, payload(10))));
+        assertFalse(segment.decode(encode(1, 7, 0, 0, SEGMENT_SIZE, payload(10))));
+        
+        ByteBuffer truncated = encode(1, 7, 0, 1, SEGMENT_SIZE, payload(10));
+        truncated.limit(UdpSegment.HEADER_SIZE - 1);
+        assertFalse(segment.decode(truncated));
+        
+        ByteBuffer shortened = encode(1, 7, 0, 1, SEGMENT_SIZE, payload(10));
+        shortened.limit(shortened.limit() - 1);
+        assertFalse(segment.decode(shortened));
+    }
+    
+    @Test
+    void decodesFromTheBufferPosition() {
+        ByteBuffer datagram = encode(1, 7, 0, 1, SEGMENT_SIZE, payload(10));
+        ByteBuffer buffer = ByteBuffer.allocate(datagram.remaining() + 5);
+        buffer.position(5);
+        buffer.put(datagram.duplicate());
+        buffer.position(5);
+        
+        UdpSegment segment = new UdpSegment();
+        assertTrue(segment.decode(buffer));
+        assertEquals(ByteBuffer.wrap(payload(10)), segment.getPayload());
+    }
+    
+    @Test
+    void sizesSegmentsToTheMtu() {
+        assertEquals(1500 - 28 - UdpSegment.HEADER_SIZE, UdpSegment.DEFAULT_SEGMENT_SIZE);
+        assertEquals(3, UdpSegment.segmentCount(2 * SEGMENT_SIZE + 1, SEGMENT_SIZE));
+        assertEquals(2, UdpSegment.segmentCount(2 * SEGMENT_SIZE, SEGMENT_SIZE));
+        assertEquals(1, UdpSegment.segmentCount(0, SEGMENT_SIZE));
+    }
+    
+    @Test
+    void fileIdIgnoresHashCase() {
+        assertEquals(UdpSegment.fileIdCrc("ABCDEF"), UdpSegment.fileIdCrc("abcdef"));
+    }
+    
+    private static ByteBuffer encode(int fileIdCrc, int pieceId, int seq, int total, int segmentSize, byte[] payload) {
+        ByteBuffer out = ByteBuffer.allocate(UdpSegment.MAX_DATAGRAM_SIZE);
+        UdpSegment.beginEncode(out, fileIdCrc, pieceId, seq, total, segmentSize);
+        out.put(payload);
+        UdpSegment.finishEncode(out);
+        return out;
+    }
+    
+    private static byte[] payload(int length) {
+        byte[] payload = new byte[length];
+        for (int i = 0; i < length; i++) {
+            payload[i] = (byte) (i * 7 + 3);
+        }
+        return payload;
+    }
+    
+    private static ByteBuffer copy(ByteBuffer buffer) {
+        ByteBuffer copy = ByteBuffer.allocate(buffer.remaining());
+        copy.put(buffer.duplicate());
+        copy.flip();
+        return copy;
+    }
+}
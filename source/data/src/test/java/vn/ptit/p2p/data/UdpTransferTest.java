@@ -0,0 +1,153 @@
+package vn.ptit.p2p.data;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class UdpTransferTest {
+    private static final InetSocketAddress TARGET = new InetSocketAddress("127.0.0.1", 9);
+    private static final int FILE_ID = 0x1234;
+    private static final int PIECE = 7;
+    private static final int WINDOW = 4;
+    
+    private final List<Integer> sent = new ArrayList<>();
+    private final Pacer pacer = new Pacer("test-pacer");
+    
+    UdpTransferTest() {
+        pacer.stop(); // the tests call sendNext themselves
+    }
+    
+    @Test
+    void keepsAtMostAWindowInFlight() {
+        UdpTransfer transfer = transfer(10, 3);
+        drain(transfer);
+        assertEquals(List.of(0, 1, 2, 3), sent);
+        
+        drain(transfer);
+        assertEquals(4, sent.size(), "nothing more until something is acknowledged");
+    }
+    
+    @Test
+    void selectiveAcksOpenTheWindowWithoutResendingWhatArrived() {
+        UdpTransfer transfer = transfer(10, 3);
+        drain(transfer);
+        
+        transfer.onAck(ack(2, 0b1)); // 0 and 1, and 3 past the gap
+        drain(transfer);
+        assertEquals(List.of(0, 1, 2, 3, 4, 5, 6), sent);
+        assertEquals(0, transfer.getRetransmitted());
+        assertFalse(transfer.getFuture().isDone());
+    }
+    
+    @Test
+    void completesOnceEverySegmentIsAcknowledged() {
+        UdpTransfer transfer = transfer(3, 3);
+        drain(transfer);
+        
+        transfer.onAck(ack(0, 0b11)); // 1 and 2
+        assertFalse(transfer.getFuture().isDone());
+        transfer.onAck(ack(3, 0));
+        assertTrue(transfer.getFuture().isDone());
+        assertFalse(transfer.getFuture().isCompletedExceptionally());
+    }
+    
+    @Test
+    void ignoresSackBitsPastTheLastSegment() {
+        UdpTransfer transfer = transfer(2, 3);
+        drain(transfer);
+        
+        transfer.onAck(ack(1, -1L)); // claims every segment up to 65 past the first
+        assertFalse(transfer.getFuture().isDone(), "segment 1 was never acknowledged");
+        transfer.onAck(ack(2, 0));
+        assertTrue(transfer.getFuture().isDone());
+    }
+    
+    @Test
+    void toleratesACumulativeAckFarPastTheEnd() {
+        UdpTransfer transfer = transfer(2, 3);
+        drain(transfer);
+        
+        transfer.onAck(ack(Integer.MAX_VALUE, -1L));
+        assertTrue(transfer.getFuture().isDone());
+        assertFalse(transfer.getFuture().isCompletedExceptionally());
+    }
+    
+    @Test
+    void retransmitsOnlyTheMissingSegmentsAfterTheTimeout() {
+        UdpTransfer transfer = transfer(4, 3);
+        drain(transfer);
+        transfer.onAck(ack(1, 0b11)); // all but 1
+        drain(transfer);
+        sent.clear();
+        int retransmitted = transfer.getRetransmitted(); // 1 may already have been resent as lost
+        
+        transfer.onTick(System.nanoTime() + TimeUnit.SECONDS.toNanos(3));
+        drain(transfer);
+        assertEquals(List.of(1), sent);
+        assertEquals(retransmitted + 1, transfer.getRetransmitted());
+    }
+    
+    @Test
+    void failsAfterMaxRetransmitsRetransmissionsOfOneSegment() {
+        int maxRetransmits = 3;
+        UdpTransfer transfer = transfer(1, maxRetransmits);
+        drain(transfer);
+        
+        long now = System.nanoTime();
+        for (int i = 1; i <= maxRetransmits; i++) {
+            now += TimeUnit.SECONDS.toNanos(5); // past any backed-off timeout
+            transfer.onTick(now);
+            drain(transfer);
+            assertFalse(transfer.getFuture().isDone(), "retransmission " + i + " is allowed");
+        }
+        assertEquals(1 + maxRetransmits, sent.size());
+        
+        transfer.onTick(now + TimeUnit.SECONDS.toNanos(5));
+        drain(transfer);
+        assertTrue(transfer.getFuture().isCompletedExceptionally());
+        assertEquals(1 + maxRetransmits, sent.size());
+    }
+    
+    private UdpTransfer transfer(int segments, int maxRetransmits) {
+        ByteBuffer body = ByteBuffer.allocate(segments * UdpSegment.DEFAULT_SEGMENT_SIZE);
+        DataConfig config = DataConfig.builder()
+            .windowSize(WINDOW)
+            .maxRetransmits(maxRetransmits)
+            .build();
+        UdpSegment segment = new UdpSegment();
+        return new UdpTransfer(TARGET, FILE_ID, PIECE, ByteBuffer.allocate(0), body,
+                               UdpSegment.DEFAULT_SEGMENT_SIZE, 600_000, config, new RttEstimator(),
+                               CongestionAlgorithm.AIMD.create(WINDOW, WINDOW),
+                               new RateLimiter(0, 0).path(null, "file"),
+                               (datagram, target) -> {
+                                   assertTrue(segment.decode(datagram));
+                                   sent.add(segment.getSeq());
+                               },
+                               pacer, FecMode.Plan.OFF);
+    }
+    
+    private static void drain(UdpTransfer transfer) {
+        long now = System.nanoTime();
+        while (transfer.sendNext(now) != 0) {
+            // keep sending until the window or the piece runs out
+        }
+    }
+    
+    private static UdpAck ack(int cumAck, long sackBits) {
+        UdpAck ack = new UdpAck();
+        ack.setFileIdCrc(FILE_ID);
+        ack.setPieceId(PIECE);
+        ack.setCumAck(cumAck);
+        ack.setSackBits(sackBits);
+        ack.setTsEcho(UdpSegment.nowMicros() - 100_000); // a 100 ms RTT, so back-to-back sends are never "reordered"
+        return ack;
+    }
+}